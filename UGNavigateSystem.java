@@ -1,17 +1,67 @@
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableColumnModel;
 
@@ -27,22 +77,53 @@ public class UGNavigateSystem extends JFrame {
     // UI Components
     private JComboBox<String> sourceCombo, destinationCombo, timeOfDayCombo, landmarkCombo;
     private JCheckBox landmarkFilterCheckbox;
-    private JEditorPane resultArea;
+    private final Map<RouteConstraints, JCheckBox> constraintCheckboxes = new LinkedHashMap<>();
+    private JEditorPane resultArea, analysisArea;
     private JTable routeTable, algorithmTable;
+    private CampusMapPanel mapPanel;
     private DefaultTableModel routeTableModel, algorithmTableModel;
     private JProgressBar progressBar;
     private JLabel statusLabel;
 
+    private javax.swing.Timer selectionTimer;
+
     // Data
     private List<Route> currentAlternativeRoutes;
+    private List<RoutePresentation> currentPresentations;
     private RoutingResult lastResult;
-
+    private RouteWorker routeWorker;
+    private JButton findButton;
+    private JPanel mapContainer;
+    private JEditorPane overviewArea;
+
+    private static final int SELECTION_COALESCE_MILLIS = 80;
+    // Backends prepared after the graph is loaded, cheapest first
+    private static final RoutingBackend[] STARTUP_STAGES = { RoutingBackend.A_STAR, RoutingBackend.WEIGHTED_A_STAR,
+            RoutingBackend.ANYTIME_A_STAR, RoutingBackend.FLOYD_WARSHALL, RoutingBackend.CRP,
+            RoutingBackend.HUB_LABELS, RoutingBackend.OFF_HEAP };
+
+    /**
+     * Builds the window around an empty graph so it can be shown at once; call
+     * {@link #startBackgroundInitialization} afterwards to load data and prepare the backends.
+     */
     public UGNavigateSystem() {
         initializeLookAndFeel();
-        initializeCampusData();
-        pathfindingEngine = new PathfindingEngine(campusGraph);
+        campusGraph = new CampusGraph();
         setupGUI();
-        setStatusMessage("Ready - Select locations to find optimal routes");
+        setStatusMessage("Loading campus data...");
+    }
+
+    /**
+     * Loads the campus and prepares the routing backends on a background thread. Route queries
+     * are enabled as soon as the graph is in place (Dijkstra needs nothing more); the other
+     * backends join the comparison as their preprocessing finishes.
+     */
+    public void startBackgroundInitialization() {
+        progressBar.setVisible(true);
+        progressBar.setIndeterminate(false);
+        progressBar.setMaximum(STARTUP_STAGES.length + 1);
+        progressBar.setValue(0);
+        new StartupWorker().execute();
     }
 
     private void initializeLookAndFeel() {
@@ -58,84 +139,101 @@ public class UGNavigateSystem extends JFrame {
         }
     }
 
-    private void initializeCampusData() {
-        campusGraph = new CampusGraph();
+    private CampusGraph loadCampusData() {
+        CampusGraph graph = new CampusGraph();
 
         // Try loading from CSV first, fallback to hardcoded data
         try (InputStream nodeStream = getClass().getResourceAsStream("./nodes.csv");
                 InputStream edgeStream = getClass().getResourceAsStream("./edges.csv")) {
 
             if (nodeStream != null && edgeStream != null) {
-                DataReader.loadNodes(nodeStream, campusGraph);
-                DataReader.loadEdges(edgeStream, campusGraph);
+                DataReader.loadNodes(nodeStream, graph);
+                DataReader.loadEdges(edgeStream, graph);
             } else {
-                setupHardcodedCampusData();
+                setupHardcodedCampusData(graph);
             }
         } catch (Exception e) {
-            setupHardcodedCampusData();
+            graph = new CampusGraph();
+            setupHardcodedCampusData(graph);
+        }
+        return graph;
+    }
+
+    private static void attachQueryRecorder(PathfindingEngine pathfindingEngine) {
+        // Record queries for offline replay when started with -Dugnavigate.queryLog=<file>
+        String queryLogPath = System.getProperty("ugnavigate.queryLog");
+        if (queryLogPath == null || queryLogPath.isEmpty()) {
+            return;
+        }
+        try {
+            QueryLog.Writer writer = QueryLog.openWriter(Paths.get(queryLogPath));
+            pathfindingEngine.setQueryRecorder(writer);
+            Runtime.getRuntime().addShutdownHook(new Thread(writer::close));
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    private void setupHardcodedCampusData() {
+    private static void setupHardcodedCampusData(CampusGraph graph) {
         // Comprehensive UG campus locations
-        setupCampusNodes();
-        setupCampusEdges();
-    }
-
-    private void setupCampusNodes() {
-        campusGraph.addNode(0, "Main Entrance", 5.6531, -0.1864, LandmarkType.ENTRANCE);
-        campusGraph.addNode(1, "Balme Library", 5.6545, -0.1875, LandmarkType.ACADEMIC);
-        campusGraph.addNode(2, "Commonwealth Hall", 5.6558, -0.1889, LandmarkType.RESIDENTIAL);
-        campusGraph.addNode(3, "Legon Hall", 5.6572, -0.1901, LandmarkType.RESIDENTIAL);
-        campusGraph.addNode(4, "School of Medicine", 5.6539, -0.1851, LandmarkType.ACADEMIC);
-        campusGraph.addNode(5, "Business School", 5.6551, -0.1867, LandmarkType.ACADEMIC);
-        campusGraph.addNode(6, "Central Cafeteria", 5.6544, -0.1881, LandmarkType.DINING);
-        campusGraph.addNode(7, "Sports Complex", 5.6566, -0.1894, LandmarkType.RECREATION);
-        campusGraph.addNode(8, "Bank Area", 5.6548, -0.1873, LandmarkType.SERVICES);
-        campusGraph.addNode(9, "Night Market", 5.6541, -0.1885, LandmarkType.DINING);
-        campusGraph.addNode(10, "Engineering Block", 5.6537, -0.1859, LandmarkType.ACADEMIC);
-        campusGraph.addNode(11, "Arts Block", 5.6549, -0.1871, LandmarkType.ACADEMIC);
-        campusGraph.addNode(12, "Admin Block", 5.6546, -0.1869, LandmarkType.ADMINISTRATIVE);
-        campusGraph.addNode(13, "JQB Library", 5.6543, -0.1877, LandmarkType.ACADEMIC);
-        campusGraph.addNode(14, "Chemistry Block", 5.6540, -0.1863, LandmarkType.ACADEMIC);
-        campusGraph.addNode(15, "Physics Block", 5.6542, -0.1865, LandmarkType.ACADEMIC);
-        campusGraph.addNode(16, "Mathematics Block", 5.6544, -0.1867, LandmarkType.ACADEMIC);
-        campusGraph.addNode(17, "Law Faculty", 5.6547, -0.1872, LandmarkType.ACADEMIC);
-    }
-
-    private void setupCampusEdges() {
+        setupCampusNodes(graph);
+        setupCampusEdges(graph);
+    }
+
+    private static void setupCampusNodes(CampusGraph graph) {
+        graph.addNode(0, "Main Entrance", 5.6531, -0.1864, LandmarkType.ENTRANCE);
+        graph.addNode(1, "Balme Library", 5.6545, -0.1875, LandmarkType.ACADEMIC);
+        graph.addNode(2, "Commonwealth Hall", 5.6558, -0.1889, LandmarkType.RESIDENTIAL);
+        graph.addNode(3, "Legon Hall", 5.6572, -0.1901, LandmarkType.RESIDENTIAL);
+        graph.addNode(4, "School of Medicine", 5.6539, -0.1851, LandmarkType.ACADEMIC);
+        graph.addNode(5, "Business School", 5.6551, -0.1867, LandmarkType.ACADEMIC);
+        graph.addNode(6, "Central Cafeteria", 5.6544, -0.1881, LandmarkType.DINING);
+        graph.addNode(7, "Sports Complex", 5.6566, -0.1894, LandmarkType.RECREATION);
+        graph.addNode(8, "Bank Area", 5.6548, -0.1873, LandmarkType.SERVICES);
+        graph.addNode(9, "Night Market", 5.6541, -0.1885, LandmarkType.DINING);
+        graph.addNode(10, "Engineering Block", 5.6537, -0.1859, LandmarkType.ACADEMIC);
+        graph.addNode(11, "Arts Block", 5.6549, -0.1871, LandmarkType.ACADEMIC);
+        graph.addNode(12, "Admin Block", 5.6546, -0.1869, LandmarkType.ADMINISTRATIVE);
+        graph.addNode(13, "JQB Library", 5.6543, -0.1877, LandmarkType.ACADEMIC);
+        graph.addNode(14, "Chemistry Block", 5.6540, -0.1863, LandmarkType.ACADEMIC);
+        graph.addNode(15, "Physics Block", 5.6542, -0.1865, LandmarkType.ACADEMIC);
+        graph.addNode(16, "Mathematics Block", 5.6544, -0.1867, LandmarkType.ACADEMIC);
+        graph.addNode(17, "Law Faculty", 5.6547, -0.1872, LandmarkType.ACADEMIC);
+    }
+
+    private static void setupCampusEdges(CampusGraph graph) {
         // Connect nodes with realistic distances and traffic patterns
-        campusGraph.addEdge(0, 1, 450, TrafficCondition.MODERATE);
-        campusGraph.addEdge(0, 4, 320, TrafficCondition.LIGHT);
-        campusGraph.addEdge(0, 12, 380, TrafficCondition.HEAVY);
-        campusGraph.addEdge(1, 2, 280, TrafficCondition.LIGHT);
-        campusGraph.addEdge(1, 5, 220, TrafficCondition.MODERATE);
-        campusGraph.addEdge(1, 6, 180, TrafficCondition.HEAVY);
-        campusGraph.addEdge(1, 8, 160, TrafficCondition.MODERATE);
-        campusGraph.addEdge(1, 11, 140, TrafficCondition.LIGHT);
-        campusGraph.addEdge(1, 13, 200, TrafficCondition.LIGHT);
-        campusGraph.addEdge(2, 3, 350, TrafficCondition.LIGHT);
-        campusGraph.addEdge(2, 7, 290, TrafficCondition.MODERATE);
-        campusGraph.addEdge(3, 7, 200, TrafficCondition.LIGHT);
-        campusGraph.addEdge(4, 10, 180, TrafficCondition.LIGHT);
-        campusGraph.addEdge(4, 14, 160, TrafficCondition.LIGHT);
-        campusGraph.addEdge(4, 15, 170, TrafficCondition.LIGHT);
-        campusGraph.addEdge(5, 6, 190, TrafficCondition.HEAVY);
-        campusGraph.addEdge(5, 8, 120, TrafficCondition.MODERATE);
-        campusGraph.addEdge(6, 9, 240, TrafficCondition.HEAVY);
-        campusGraph.addEdge(8, 11, 110, TrafficCondition.LIGHT);
-        campusGraph.addEdge(8, 12, 90, TrafficCondition.MODERATE);
-        campusGraph.addEdge(8, 17, 130, TrafficCondition.MODERATE);
-        campusGraph.addEdge(10, 14, 130, TrafficCondition.LIGHT);
-        campusGraph.addEdge(10, 15, 120, TrafficCondition.LIGHT);
-        campusGraph.addEdge(11, 12, 80, TrafficCondition.LIGHT);
-        campusGraph.addEdge(11, 13, 100, TrafficCondition.LIGHT);
-        campusGraph.addEdge(11, 16, 90, TrafficCondition.LIGHT);
-        campusGraph.addEdge(12, 13, 85, TrafficCondition.MODERATE);
-        campusGraph.addEdge(13, 6, 120, TrafficCondition.MODERATE);
-        campusGraph.addEdge(14, 15, 80, TrafficCondition.LIGHT);
-        campusGraph.addEdge(15, 16, 70, TrafficCondition.LIGHT);
-        campusGraph.addEdge(16, 17, 110, TrafficCondition.MODERATE);
+        graph.addEdge(0, 1, 450, TrafficCondition.MODERATE);
+        graph.addEdge(0, 4, 320, TrafficCondition.LIGHT);
+        graph.addEdge(0, 12, 380, TrafficCondition.HEAVY);
+        graph.addEdge(1, 2, 280, TrafficCondition.LIGHT);
+        graph.addEdge(1, 5, 220, TrafficCondition.MODERATE);
+        graph.addEdge(1, 6, 180, TrafficCondition.HEAVY);
+        graph.addEdge(1, 8, 160, TrafficCondition.MODERATE);
+        graph.addEdge(1, 11, 140, TrafficCondition.LIGHT);
+        graph.addEdge(1, 13, 200, TrafficCondition.LIGHT);
+        graph.addEdge(2, 3, 350, TrafficCondition.LIGHT);
+        graph.addEdge(2, 7, 290, TrafficCondition.MODERATE);
+        graph.addEdge(3, 7, 200, TrafficCondition.LIGHT);
+        graph.addEdge(4, 10, 180, TrafficCondition.LIGHT);
+        graph.addEdge(4, 14, 160, TrafficCondition.LIGHT);
+        graph.addEdge(4, 15, 170, TrafficCondition.LIGHT);
+        graph.addEdge(5, 6, 190, TrafficCondition.HEAVY);
+        graph.addEdge(5, 8, 120, TrafficCondition.MODERATE);
+        graph.addEdge(6, 9, 240, TrafficCondition.HEAVY);
+        graph.addEdge(8, 11, 110, TrafficCondition.LIGHT);
+        graph.addEdge(8, 12, 90, TrafficCondition.MODERATE);
+        graph.addEdge(8, 17, 130, TrafficCondition.MODERATE);
+        graph.addEdge(10, 14, 130, TrafficCondition.LIGHT);
+        graph.addEdge(10, 15, 120, TrafficCondition.LIGHT);
+        graph.addEdge(11, 12, 80, TrafficCondition.LIGHT);
+        graph.addEdge(11, 13, 100, TrafficCondition.LIGHT);
+        graph.addEdge(11, 16, 90, TrafficCondition.LIGHT);
+        graph.addEdge(12, 13, 85, TrafficCondition.MODERATE);
+        graph.addEdge(13, 6, 120, TrafficCondition.MODERATE);
+        graph.addEdge(14, 15, 80, TrafficCondition.LIGHT);
+        graph.addEdge(15, 16, 70, TrafficCondition.LIGHT);
+        graph.addEdge(16, 17, 110, TrafficCondition.MODERATE);
     }
 
     private void setupGUI() {
@@ -195,6 +293,9 @@ public class UGNavigateSystem extends JFrame {
         // Algorithm Analysis Tab
         tabbedPane.addTab("⚡ Algorithm Analysis", createAlgorithmAnalysisPanel());
 
+        // Interactive Map Tab
+        tabbedPane.addTab("📍 Campus Map", createMapPanel());
+
         // Campus Map Tab
         tabbedPane.addTab("🗺️ Campus Overview", createCampusOverviewPanel());
 
@@ -275,13 +376,35 @@ public class UGNavigateSystem extends JFrame {
 
         landmarkFilterCheckbox.addActionListener(e -> landmarkCombo.setEnabled(landmarkFilterCheckbox.isSelected()));
 
+        // Row 3: Route constraints
+        gbc.gridy = 2;
+        gbc.gridx = 0;
+        gbc.weightx = 0;
+        panel.add(new JLabel("Avoid:"), gbc);
+        gbc.gridx = 1;
+        gbc.gridwidth = 3;
+        JPanel constraintPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
+        constraintPanel.setBackground(Color.WHITE);
+        for (RouteConstraints profile : new RouteConstraints[] { RouteConstraints.AVOID_HEAVY_TRAFFIC,
+                RouteConstraints.AVOID_CLOSED_BUILDINGS, RouteConstraints.WHEELCHAIR_ACCESSIBLE,
+                RouteConstraints.NIGHT_SAFE }) {
+            JCheckBox checkbox = new JCheckBox(profile.getName());
+            checkbox.setBackground(Color.WHITE);
+            checkbox.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+            constraintCheckboxes.put(profile, checkbox);
+            constraintPanel.add(checkbox);
+        }
+        panel.add(constraintPanel, gbc);
+        gbc.gridwidth = 1;
+
         // Find Routes Button
         gbc.gridx = 4;
         gbc.gridy = 0;
-        gbc.gridheight = 2;
+        gbc.gridheight = 3;
         gbc.weightx = 0;
-        JButton findButton = createStyledButton("Find Routes", "🔍");
+        findButton = createStyledButton("Find Routes", "🔍");
         findButton.addActionListener(this::findRoutesAction);
+        findButton.setEnabled(false); // until the startup worker has loaded the graph
         panel.add(findButton, gbc);
 
         return panel;
@@ -337,12 +460,12 @@ public class UGNavigateSystem extends JFrame {
         columnModel.getColumn(3).setPreferredWidth(80);
         columnModel.getColumn(4).setPreferredWidth(400);
 
+        // Coalesce rapid selection changes (e.g. holding an arrow key) into one details update
+        selectionTimer = new javax.swing.Timer(SELECTION_COALESCE_MILLIS, e -> showSelectedRoute());
+        selectionTimer.setRepeats(false);
         routeTable.getSelectionModel().addListSelectionListener(e -> {
-            if (!e.getValueIsAdjusting() && currentAlternativeRoutes != null) {
-                int selectedRow = routeTable.getSelectedRow();
-                if (selectedRow >= 0 && selectedRow < currentAlternativeRoutes.size()) {
-                    displayRouteDetails(currentAlternativeRoutes.get(selectedRow), selectedRow + 1);
-                }
+            if (!e.getValueIsAdjusting()) {
+                selectionTimer.restart();
             }
         });
 
@@ -360,7 +483,8 @@ public class UGNavigateSystem extends JFrame {
         JPanel tablePanel = new JPanel(new BorderLayout());
         tablePanel.setBorder(BorderFactory.createTitledBorder("Algorithm Performance Comparison"));
 
-        String[] algColumns = { "Algorithm", "Distance (m)", "Execution Time (μs)", "Efficiency" };
+        String[] algColumns = { "Algorithm", "Distance (m)", "Execution Time (μs)", "Nodes Settled",
+                "Edges Relaxed", "Bound", "Efficiency" };
         algorithmTableModel = new DefaultTableModel(algColumns, 0) {
             @Override
             public boolean isCellEditable(int row, int column) {
@@ -378,8 +502,9 @@ public class UGNavigateSystem extends JFrame {
         panel.add(tablePanel, BorderLayout.CENTER);
 
         // Analysis text area
-        JEditorPane analysisArea = new JEditorPane("text/html",
-                "<html><body><h2>Algorithm Analysis</h2><p>Run route planning to see detailed algorithm performance analysis.</p></body></html>");
+        analysisArea = new JEditorPane("text/html",
+                "<html><body><h2>Algorithm Analysis</h2>" +
+                        "<p>Run route planning to see detailed algorithm performance analysis.</p></body></html>");
         analysisArea.setEditable(false);
         JScrollPane analysisScrollPane = new JScrollPane(analysisArea);
         analysisScrollPane.setPreferredSize(new Dimension(0, 200));
@@ -388,13 +513,39 @@ public class UGNavigateSystem extends JFrame {
         return panel;
     }
 
+    private JPanel createMapPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createTitledBorder("Campus Map"));
+
+        JLabel placeholder = new JLabel("Loading campus map...", SwingConstants.CENTER);
+        placeholder.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        panel.add(placeholder, BorderLayout.CENTER);
+        mapContainer = panel;
+
+        return panel;
+    }
+
+    /** Replaces the placeholder with a map of the loaded graph. */
+    private void installMapPanel() {
+        mapPanel = new CampusMapPanel(campusGraph);
+        mapPanel.addSelectionListener((node, asDestination) -> {
+            JComboBox<String> combo = asDestination ? destinationCombo : sourceCombo;
+            combo.setSelectedItem(node.getName());
+            setStatusMessage((asDestination ? "Destination" : "Source") + " set to " + node.getName());
+        });
+        mapContainer.removeAll();
+        mapContainer.add(mapPanel, BorderLayout.CENTER);
+        mapContainer.revalidate();
+        mapContainer.repaint();
+    }
+
     private JPanel createCampusOverviewPanel() {
         JPanel panel = new JPanel(new BorderLayout());
 
-        JEditorPane mapArea = new JEditorPane("text/html", getCampusOverviewHTML());
-        mapArea.setEditable(false);
+        overviewArea = new JEditorPane("text/html", getCampusOverviewHTML());
+        overviewArea.setEditable(false);
 
-        JScrollPane scrollPane = new JScrollPane(mapArea);
+        JScrollPane scrollPane = new JScrollPane(overviewArea);
         panel.add(scrollPane, BorderLayout.CENTER);
 
         return panel;
@@ -442,87 +593,200 @@ public class UGNavigateSystem extends JFrame {
             return;
         }
 
+        // Read the inputs here on the EDT; the worker only sees these copies
+        TimeOfDay selectedTime = TimeOfDay.valueOf(
+                ((String) timeOfDayCombo.getSelectedItem()).replace(" ", "_").toUpperCase());
+        LandmarkType landmarkFilter = landmarkFilterCheckbox.isSelected()
+                ? LandmarkType.valueOf((String) landmarkCombo.getSelectedItem())
+                : null;
+        RouteConstraints constraints = RouteConstraints.NONE;
+        for (Map.Entry<RouteConstraints, JCheckBox> entry : constraintCheckboxes.entrySet()) {
+            if (entry.getValue().isSelected()) {
+                constraints = constraints.and(entry.getKey());
+            }
+        }
+
+        // A new query supersedes any one still running; its search loops stop at the next check
+        if (routeWorker != null) {
+            routeWorker.cancel(true);
+        }
+
         // Show progress
         setStatusMessage("Calculating optimal routes...");
         progressBar.setVisible(true);
         progressBar.setIndeterminate(true);
+        currentAlternativeRoutes = new ArrayList<>();
+        currentPresentations = new ArrayList<>();
+        routeTableModel.setRowCount(0);
 
-        // Use SwingWorker for background processing
-        SwingWorker<RoutingResult, Void> worker = new SwingWorker<RoutingResult, Void>() {
-            @Override
-            protected RoutingResult doInBackground() throws Exception {
-                // Dynamic traffic simulation
-                TimeOfDay selectedTime = TimeOfDay.valueOf(
-                        ((String) timeOfDayCombo.getSelectedItem()).replace(" ", "_").toUpperCase());
-                campusGraph.updateTrafficConditions(selectedTime);
+        routeWorker = new RouteWorker(sourceName, destName, landmarkFilter, selectedTime, constraints);
+        routeWorker.execute();
+    }
 
-                CampusNode source = campusGraph.getNodeByName(sourceName);
-                CampusNode destination = campusGraph.getNodeByName(destName);
+    /**
+     * Runs a route query in the background, publishing the optimal route as soon as Dijkstra
+     * finds it and each alternative as it is generated. Table rows and route documents are
+     * prepared on the worker thread so the EDT only swaps them in.
+     */
+    private class RouteWorker extends SwingWorker<RoutePlanView, RoutePresentation> {
+        private final String sourceName;
+        private final String destName;
+        private final LandmarkType landmarkFilter;
+        private final TimeOfDay timeOfDay;
+        private final RouteConstraints constraints;
+
+        RouteWorker(String sourceName, String destName, LandmarkType landmarkFilter, TimeOfDay timeOfDay,
+                RouteConstraints constraints) {
+            this.sourceName = sourceName;
+            this.destName = destName;
+            this.landmarkFilter = landmarkFilter;
+            this.timeOfDay = timeOfDay;
+            this.constraints = constraints;
+        }
 
-                LandmarkType landmarkFilter = null;
-                if (landmarkFilterCheckbox.isSelected()) {
-                    landmarkFilter = LandmarkType.valueOf((String) landmarkCombo.getSelectedItem());
-                }
+        @Override
+        protected RoutePlanView doInBackground() {
+            CampusNode source = campusGraph.getNodeByName(sourceName);
+            CampusNode destination = campusGraph.getNodeByName(destName);
 
-                return pathfindingEngine.findOptimalRoutes(source, destination, landmarkFilter);
-            }
+            RoutingListener listener = new RoutingListener() {
+                private int published;
 
-            @Override
-            protected void done() {
-                try {
-                    lastResult = get();
-                    currentAlternativeRoutes = lastResult.getAlternativeRoutes();
+                @Override
+                public void onOptimalRoute(Route route) {
+                    publishRoute(route);
+                }
 
-                    updateRouteTable();
-                    updateAlgorithmTable();
+                @Override
+                public void onAlternativeRoute(Route route) {
+                    publishRoute(route);
+                }
 
-                    if (currentAlternativeRoutes.isEmpty()) {
-                        resultArea.setText("<html><body><h2>No Route Found</h2>" +
-                                "<p>Unable to find a path between " + sourceName + " and " + destName
-                                + ".</p></body></html>");
-                    } else {
-                        displayRouteDetails(currentAlternativeRoutes.get(0), 1);
-                        routeTable.setRowSelectionInterval(0, 0);
+                private void publishRoute(Route route) {
+                    if (route != null && !route.getPath().isEmpty() && !isCancelled()) {
+                        publish(createPresentation(route, ++published));
                     }
-
-                    setStatusMessage(
-                            "Route calculation complete - " + currentAlternativeRoutes.size() + " routes found");
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    setStatusMessage("Error calculating routes");
-                } finally {
-                    progressBar.setVisible(false);
-                    progressBar.setIndeterminate(false);
                 }
+            };
+
+            RoutingResult result;
+            try {
+                result = pathfindingEngine.findOptimalRoutes(source, destination, landmarkFilter, timeOfDay,
+                        constraints, listener);
+            } catch (QueryCancelledException cancelled) {
+                return null;
             }
-        };
 
-        worker.execute();
+            // Final ordering may differ from arrival order, so rebuild presentations with their ranks
+            List<RoutePresentation> presentations = new ArrayList<>();
+            List<Route> routes = result.getAlternativeRoutes();
+            for (int i = 0; i < routes.size() && !isCancelled(); i++) {
+                presentations.add(createPresentation(routes.get(i), i + 1));
+            }
+            String metricsHTML = getMetricsHTML(pathfindingEngine.getMetrics().snapshot());
+            return new RoutePlanView(result, presentations, metricsHTML);
+        }
+
+        @Override
+        protected void process(List<RoutePresentation> chunks) {
+            if (this != routeWorker) {
+                return;
+            }
+            for (RoutePresentation presentation : chunks) {
+                currentAlternativeRoutes.add(presentation.route);
+                currentPresentations.add(presentation);
+                routeTableModel.addRow(presentation.tableRow);
+            }
+            if (routeTable.getSelectedRow() < 0 && routeTableModel.getRowCount() > 0) {
+                routeTable.setRowSelectionInterval(0, 0);
+                showPresentation(currentPresentations.get(0));
+                setStatusMessage("Optimal route found - computing alternatives...");
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (this != routeWorker || isCancelled()) {
+                return;
+            }
+            try {
+                RoutePlanView view = get();
+                if (view == null) {
+                    return;
+                }
+                lastResult = view.result;
+                currentAlternativeRoutes = lastResult.getAlternativeRoutes();
+                currentPresentations = view.presentations;
+
+                // Recolor the map edges if the query's traffic profile or the graph changed
+                mapPanel.refreshData(timeOfDay);
+                mapPanel.setSelectedEndpoints(campusGraph.getNodeByName(sourceName),
+                        campusGraph.getNodeByName(destName));
+
+                updateRouteTable();
+                updateAlgorithmTable(view.metricsHTML);
+
+                if (currentAlternativeRoutes.isEmpty()) {
+                    mapPanel.setRoute(null);
+                    resultArea.setText("<html><body><h2>No Route Found</h2>" +
+                            "<p>Unable to find a path between " + sourceName + " and " + destName
+                            + ".</p></body></html>");
+                } else {
+                    routeTable.setRowSelectionInterval(0, 0);
+                    showPresentation(currentPresentations.get(0));
+                }
+
+                setStatusMessage(
+                        "Route calculation complete - " + currentAlternativeRoutes.size() + " routes found");
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                setStatusMessage("Error calculating routes");
+            } finally {
+                routeWorker = null;
+                progressBar.setVisible(false);
+                progressBar.setIndeterminate(false);
+            }
+        }
     }
 
     private void updateRouteTable() {
         routeTableModel.setRowCount(0);
 
-        for (int i = 0; i < currentAlternativeRoutes.size(); i++) {
-            Route route = currentAlternativeRoutes.get(i);
-            if (route == null || route.getPath().isEmpty())
-                continue;
+        for (RoutePresentation presentation : currentPresentations) {
+            routeTableModel.addRow(presentation.tableRow);
+        }
+    }
+
+    private RoutePresentation createPresentation(Route route, int routeNumber) {
+        String summary = route.getPath().stream()
+                .map(CampusNode::getName)
+                .collect(Collectors.joining(" → "));
+
+        Object[] tableRow = new Object[] {
+                "#" + routeNumber,
+                String.format("%.0f m", route.getTotalDistance()),
+                String.format("%.1f min", route.getEstimatedTime()),
+                route.getAverageTrafficCondition(campusGraph).name(),
+                summary
+        };
 
-            String summary = route.getPath().stream()
-                    .map(CampusNode::getName)
-                    .collect(Collectors.joining(" → "));
+        return new RoutePresentation(route, tableRow, createDetailsDocument(buildRouteDetailsHTML(route, routeNumber)));
+    }
 
-            routeTableModel.addRow(new Object[] {
-                    "#" + (i + 1),
-                    String.format("%.0f m", route.getTotalDistance()),
-                    String.format("%.1f min", route.getEstimatedTime()),
-                    route.getAverageTrafficCondition(campusGraph).name(),
-                    summary
-            });
+    private void showSelectedRoute() {
+        int selectedRow = routeTable.getSelectedRow();
+        if (currentPresentations != null && selectedRow >= 0 && selectedRow < currentPresentations.size()) {
+            showPresentation(currentPresentations.get(selectedRow));
         }
     }
 
-    private void updateAlgorithmTable() {
+    private void showPresentation(RoutePresentation presentation) {
+        resultArea.setDocument(presentation.details);
+        resultArea.setCaretPosition(0);
+        mapPanel.setRoute(presentation.route);
+    }
+
+    private void updateAlgorithmTable(String metricsHTML) {
         algorithmTableModel.setRowCount(0);
 
         if (lastResult != null && lastResult.getAlgorithmResults() != null) {
@@ -532,10 +796,48 @@ public class UGNavigateSystem extends JFrame {
                         algResult.getAlgorithmName(),
                         String.format("%.0f", algResult.getDistance()),
                         String.format("%d", algResult.getExecutionTime()),
+                        String.format("%d", algResult.getSearchStats().getNodesSettled()),
+                        String.format("%d", algResult.getSearchStats().getEdgesRelaxed()),
+                        algResult.getSuboptimalityBound() == 1.0 ? "exact"
+                                : String.format("≤ %.3f×", algResult.getSuboptimalityBound()),
                         efficiency
                 });
             }
         }
+
+        analysisArea.setText(metricsHTML);
+        analysisArea.setCaretPosition(0);
+    }
+
+    private String getMetricsHTML(MetricsSnapshot snapshot) {
+        StringBuilder html = new StringBuilder();
+        html.append("<html><body style='font-family: Segoe UI; padding: 10px;'>");
+        html.append("<h2>Algorithm Analysis</h2>");
+        html.append("<p>Latency percentiles and average search effort over all queries this session.</p>");
+        html.append("<table border='1' cellpadding='4' cellspacing='0'>");
+        html.append("<tr><th>Algorithm</th><th>Queries</th><th>p50 (μs)</th><th>p95 (μs)</th><th>p99 (μs)</th>")
+                .append("<th>Max (μs)</th><th>Avg settled</th><th>Avg relaxed</th><th>Avg path</th></tr>");
+
+        for (AlgorithmMetricsSnapshot alg : snapshot.getAlgorithms().values()) {
+            html.append("<tr><td>").append(alg.getAlgorithmName()).append("</td>")
+                    .append("<td>").append(alg.getQueryCount()).append("</td>")
+                    .append(String.format("<td>%.1f</td>", alg.getP50Nanos() / 1000.0))
+                    .append(String.format("<td>%.1f</td>", alg.getP95Nanos() / 1000.0))
+                    .append(String.format("<td>%.1f</td>", alg.getP99Nanos() / 1000.0))
+                    .append(String.format("<td>%.1f</td>", alg.getMaxNanos() / 1000.0))
+                    .append(String.format("<td>%.1f</td>", alg.getAverageNodesSettled()))
+                    .append(String.format("<td>%.1f</td>", alg.getAverageEdgesRelaxed()))
+                    .append(String.format("<td>%.1f</td>", alg.getAveragePathLength()))
+                    .append("</tr>");
+        }
+
+        html.append("</table>");
+        double hubLabelBytes = pathfindingEngine.getHubLabelBytesPerNode();
+        if (!Double.isNaN(hubLabelBytes)) {
+            html.append(String.format("<p>Hub labels: %.1f bytes per node.</p>", hubLabelBytes));
+        }
+        html.append("</body></html>");
+        return html.toString();
     }
 
     private String getEfficiencyRating(long executionTime) {
@@ -548,10 +850,7 @@ public class UGNavigateSystem extends JFrame {
         return "Poor";
     }
 
-    private void displayRouteDetails(Route route, int routeNumber) {
-        if (route == null || route.getPath().isEmpty())
-            return;
-
+    private String buildRouteDetailsHTML(Route route, int routeNumber) {
         StringBuilder html = new StringBuilder();
         html.append("<html><body style='font-family: Segoe UI; padding: 10px;'>");
         html.append("<h2 style='color: #0066cc;'>Route #").append(routeNumber).append("</h2>");
@@ -563,24 +862,29 @@ public class UGNavigateSystem extends JFrame {
                 .append("<br>");
         html.append("<strong>Time:</strong> ").append(String.format("%.1f minutes", route.getEstimatedTime()))
                 .append("<br>");
+        html.append("<strong>Heavy traffic:</strong> ")
+                .append(String.format("%.0f meters", route.getHeavyTrafficDistance())).append("<br>");
         html.append("<strong>Traffic:</strong> ").append(route.getAverageTrafficCondition(campusGraph))
                 .append("</div>");
 
         html.append("<h3>Turn-by-Turn Directions:</h3>");
         html.append("<ol style='line-height: 1.6;'>");
 
-        for (int i = 0; i < route.getPath().size() - 1; i++) {
-            CampusNode current = route.getPath().get(i);
-            CampusNode next = route.getPath().get(i + 1);
-            CampusEdge edge = campusGraph.getEdge(current.getId(), next.getId());
-
-            if (edge != null) {
-                String bearing = pathfindingEngine.getBearing(current, next);
-                html.append("<li>From <strong>").append(current.getName()).append("</strong>, ");
-                html.append("walk ").append(String.format("%.0f", edge.getDistance())).append(" meters ");
-                html.append("<span style='color: #0066cc;'>").append(bearing).append("</span> ");
-                html.append("towards <strong>").append(next.getName()).append("</strong></li>");
+        for (DirectionStep step : RouteDirections.generate(route)) {
+            if (step.getTurn() == TurnDirection.DEPART) {
+                html.append("<li>From <strong>").append(step.getFrom().getName()).append("</strong>, walk ");
+            } else {
+                html.append("<li>At <strong>").append(step.getFrom().getName()).append("</strong>, ")
+                        .append(step.getTurn().getInstruction()).append(" and walk ");
             }
+            html.append(String.format("%.0f", step.getDistance())).append(" meters ");
+            html.append("<span style='color: #0066cc;'>").append(step.getCompassDirection()).append("</span> ");
+            html.append("towards <strong>").append(step.getTo().getName()).append("</strong>");
+            if (step.getHopCount() > 1) {
+                html.append(" <span style='color: #6c757d;'>(passing ").append(step.getHopCount() - 1)
+                        .append(step.getHopCount() == 2 ? " stop" : " stops").append(")</span>");
+            }
+            html.append("</li>");
         }
 
         html.append("</ol>");
@@ -588,8 +892,22 @@ public class UGNavigateSystem extends JFrame {
         html.append("🎯 <strong>You have arrived at your destination!</strong>");
         html.append("</div></body></html>");
 
-        resultArea.setText(html.toString());
-        resultArea.setCaretPosition(0);
+        return html.toString();
+    }
+
+    /**
+     * Parses HTML into a standalone document. Safe off the EDT because the document is not
+     * attached to any component until showPresentation installs it.
+     */
+    private static Document createDetailsDocument(String html) {
+        HTMLEditorKit kit = new HTMLEditorKit();
+        Document document = kit.createDefaultDocument();
+        try {
+            kit.read(new StringReader(html), document, 0);
+        } catch (IOException | BadLocationException e) {
+            e.printStackTrace();
+        }
+        return document;
     }
 
     private void setStatusMessage(String message) {
@@ -606,8 +924,8 @@ public class UGNavigateSystem extends JFrame {
                 "<li><strong>Landmark Navigation:</strong> Route planning via specific landmarks</li>" +
                 "<li><strong>Performance Analysis:</strong> Compare algorithm efficiency</li>" +
                 "</ul>" +
-                "<p>Select your <strong>source</strong> and <strong>destination</strong>, then click <strong>'Find Routes'</strong> to begin.</p>"
-                +
+                "<p>Select your <strong>source</strong> and <strong>destination</strong>, " +
+                "then click <strong>'Find Routes'</strong> to begin.</p>" +
                 "</body></html>";
     }
 
@@ -639,590 +957,11599 @@ public class UGNavigateSystem extends JFrame {
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
-            new UGNavigateSystem().setVisible(true);
+            UGNavigateSystem app = new UGNavigateSystem();
+            app.setVisible(true);
+            app.startBackgroundInitialization();
         });
     }
-}
-
-// ===== CORE DATA STRUCTURES =====
-
-class CampusNode {
-    private final int id;
-    private final String name;
-    private final double latitude;
-    private final double longitude;
-    private final LandmarkType landmarkType;
 
-    public CampusNode(int id, String name, double latitude, double longitude, LandmarkType landmarkType) {
-        this.id = id;
-        this.name = name;
-        this.latitude = latitude;
-        this.longitude = longitude;
-        this.landmarkType = landmarkType == null ? LandmarkType.GENERAL : landmarkType;
+    /** Progress report from the startup worker; graph and engine are set once both exist. */
+    private static final class StartupProgress {
+        final String message;
+        final int stage;
+        final CampusGraph graph;
+        final PathfindingEngine engine;
+
+        StartupProgress(String message, int stage, CampusGraph graph, PathfindingEngine engine) {
+            this.message = message;
+            this.stage = stage;
+            this.graph = graph;
+            this.engine = engine;
+        }
     }
 
-    // Getters
-    public int getId() {
-        return id;
-    }
+    /**
+     * Loads the campus graph, then prepares one backend at a time, reporting each stage.
+     * The EDT installs the graph and engine as soon as Dijkstra can answer queries.
+     */
+    private class StartupWorker extends SwingWorker<Void, StartupProgress> {
+        @Override
+        protected Void doInBackground() {
+            publish(new StartupProgress("Loading campus data...", 0, null, null));
+            CampusGraph graph = loadCampusData();
+            PathfindingEngine engine = PathfindingEngine.staged(graph);
+            attachQueryRecorder(engine);
+            engine.prepareBackend(RoutingBackend.DIJKSTRA);
+            publish(new StartupProgress("Ready - Select locations to find optimal routes", 1, graph, engine));
+
+            for (int i = 0; i < STARTUP_STAGES.length; i++) {
+                RoutingBackend backend = STARTUP_STAGES[i];
+                publish(new StartupProgress("Ready - preparing " + backend.getDisplayName() + " in the background...",
+                        i + 1, null, null));
+                engine.prepareBackend(backend);
+            }
+            return null;
+        }
 
-    public String getName() {
-        return name;
-    }
+        @Override
+        protected void process(List<StartupProgress> chunks) {
+            for (StartupProgress progress : chunks) {
+                if (progress.engine != null) {
+                    installCampusData(progress.graph, progress.engine);
+                }
+                // A running route query owns the status bar; startup progress resumes after it
+                if (routeWorker == null) {
+                    progressBar.setVisible(true);
+                    progressBar.setValue(progress.stage);
+                    setStatusMessage(progress.message);
+                }
+            }
+        }
 
-    public double getLatitude() {
-        return latitude;
+        @Override
+        protected void done() {
+            try {
+                get();
+                if (routeWorker == null) {
+                    setStatusMessage("Ready - all routing backends available");
+                    progressBar.setVisible(false);
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                setStatusMessage("Startup failed: " + ex.getMessage());
+                progressBar.setVisible(false);
+            }
+        }
     }
 
-    public double getLongitude() {
-        return longitude;
+    private void installCampusData(CampusGraph graph, PathfindingEngine engine) {
+        campusGraph = graph;
+        pathfindingEngine = engine;
+        sourceCombo.setModel(new DefaultComboBoxModel<>(getLocationNames()));
+        destinationCombo.setModel(new DefaultComboBoxModel<>(getLocationNames()));
+        overviewArea.setText(getCampusOverviewHTML());
+        installMapPanel();
+        findButton.setEnabled(true);
     }
 
-    public LandmarkType getLandmarkType() {
-        return landmarkType;
-    }
+    /** Table row and parsed details document for one route, built off the EDT. */
+    private static final class RoutePresentation {
+        final Route route;
+        final Object[] tableRow;
+        final Document details;
 
-    @Override
-    public String toString() {
-        return name;
+        RoutePresentation(Route route, Object[] tableRow, Document details) {
+            this.route = route;
+            this.tableRow = tableRow;
+            this.details = details;
+        }
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj)
-            return true;
-        if (obj == null || getClass() != obj.getClass())
-            return false;
-        CampusNode that = (CampusNode) obj;
-        return id == that.id;
-    }
+    private static final class RoutePlanView {
+        final RoutingResult result;
+        final List<RoutePresentation> presentations;
+        final String metricsHTML;
 
-    @Override
-    public int hashCode() {
-        return Objects.hash(id);
+        RoutePlanView(RoutingResult result, List<RoutePresentation> presentations, String metricsHTML) {
+            this.result = result;
+            this.presentations = presentations;
+            this.metricsHTML = metricsHTML;
+        }
     }
 }
 
-class CampusEdge {
-    private final CampusNode source;
-    private final CampusNode destination;
-    private final double distance;
-    private TrafficCondition trafficCondition;
+// ===== MAP PANEL =====
 
-    public CampusEdge(CampusNode source, CampusNode destination, double distance, TrafficCondition trafficCondition) {
-        this.source = source;
-        this.destination = destination;
-        this.distance = distance;
-        this.trafficCondition = trafficCondition;
+/**
+ * Interactive campus map drawn with Java2D.
+ * The static layer (edges colored by traffic, nodes and labels) is rendered into cached
+ * 256px tiles per zoom level on a background thread, using compatible images so the
+ * pipeline can keep them in accelerated memory. Tiles only touch the grid cells that
+ * overlap them, and short edges and labels are dropped at low zoom. The selected route
+ * is drawn on top of the tiles on every repaint.
+ * Left click picks the source, right click (or shift-click) picks the destination.
+ */
+class CampusMapPanel extends JComponent {
+    private static final long serialVersionUID = 1L;
+
+    private static final int TILE_SIZE = 256;
+    private static final int MAX_LEVEL = 22;
+    private static final int MAX_CACHED_TILES = 512;
+    private static final double MIN_EDGE_PIXELS = 1.5;
+    private static final double LABEL_MIN_SCALE = 0.6; // pixels per meter
+    private static final int PICK_RADIUS_PIXELS = 10;
+
+    private static final Color BACKGROUND = new Color(242, 239, 233);
+    private static final Color NODE_COLOR = new Color(52, 58, 64);
+    private static final Color ROUTE_COLOR = new Color(0, 102, 204, 210);
+    private static final Color[] TRAFFIC_COLORS = {
+            new Color(40, 167, 69), new Color(253, 126, 20), new Color(220, 53, 69) };
+
+    /** Notified when the user picks a node on the map. */
+    interface SelectionListener {
+        void nodeSelected(CampusNode node, boolean asDestination);
     }
 
-    // Getters and setters
-    public CampusNode getSource() {
-        return source;
+    private final CampusGraph graph;
+    private final List<SelectionListener> selectionListeners = new ArrayList<>();
+    private volatile MapData data;
+    // Profile and graph version the newest built or queued data reflects; event thread only
+    private TimeOfDay dataTimeOfDay;
+    private int dataVersion;
+
+    // Viewport: world coordinates (meters) of the top-left corner and pixels per meter
+    private double offsetX;
+    private double offsetY;
+    private double scale;
+    private boolean viewInitialized;
+
+    private final Map<Long, BufferedImage> tiles = new LinkedHashMap<Long, BufferedImage>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() > MAX_CACHED_TILES;
+        }
+    };
+    private final Set<Long> pendingTiles = new HashSet<>();
+    private final ExecutorService tileRenderer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "map-tile-renderer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private int tileGeneration;
+
+    private Route route;
+    private CampusNode selectedSource;
+    private CampusNode selectedDestination;
+
+    public CampusMapPanel(CampusGraph graph) {
+        this.graph = graph;
+        setOpaque(true);
+        setBackground(BACKGROUND);
+        setPreferredSize(new Dimension(800, 600));
+        // Read before building, so an edit landing mid-build makes the next refresh rebuild
+        dataVersion = graph.getStructureVersion();
+        data = MapData.build(graph, null);
+        installMouseHandlers();
     }
 
-    public CampusNode getDestination() {
-        return destination;
+    public void addSelectionListener(SelectionListener listener) {
+        selectionListeners.add(listener);
     }
 
-    public double getDistance() {
-        return distance;
+    /**
+     * Re-reads nodes and edges from the graph on the tile thread, coloring edges by their
+     * condition under the traffic profile for timeOfDay, then swaps the new snapshot in and
+     * drops cached tiles. Does nothing when neither the profile nor the graph has changed since
+     * the last rebuild, so repeated queries keep their cached tiles.
+     */
+    public void refreshData(TimeOfDay timeOfDay) {
+        int version = graph.getStructureVersion();
+        if (timeOfDay == dataTimeOfDay && version == dataVersion) {
+            return;
+        }
+        dataTimeOfDay = timeOfDay;
+        dataVersion = version;
+        tileRenderer.execute(() -> {
+            MapData rebuilt = MapData.build(graph, timeOfDay);
+            SwingUtilities.invokeLater(() -> {
+                data = rebuilt;
+                invalidateTiles();
+            });
+        });
     }
 
-    public TrafficCondition getTrafficCondition() {
-        return trafficCondition;
+    public void setRoute(Route route) {
+        this.route = route;
+        repaint();
     }
 
-    public void setTrafficCondition(TrafficCondition trafficCondition) {
-        this.trafficCondition = trafficCondition;
+    public void setSelectedEndpoints(CampusNode source, CampusNode destination) {
+        this.selectedSource = source;
+        this.selectedDestination = destination;
+        repaint();
     }
 
-    public double getAdjustedDistance() {
-        return distance * trafficCondition.getDistanceMultiplier();
+    private void invalidateTiles() {
+        synchronized (tiles) {
+            tiles.clear();
+            pendingTiles.clear();
+            tileGeneration++;
+        }
+        repaint();
     }
 
-    public double getEstimatedTime() {
-        double baseTime = distance / 83.33; // 5 km/h = 83.33 m/min
-        return baseTime * trafficCondition.getTimeMultiplier();
-    }
-}
+    private void installMouseHandlers() {
+        MouseAdapter handler = new MouseAdapter() {
+            private Point dragStart;
+            private boolean dragged;
 
-class CampusGraph {
-    private final Map<Integer, CampusNode> nodes;
-    private final Map<Integer, List<CampusEdge>> adjacencyList;
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragStart = e.getPoint();
+                dragged = false;
+            }
 
-    public CampusGraph() {
-        nodes = new HashMap<>();
-        adjacencyList = new HashMap<>();
-    }
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (dragStart == null) {
+                    return;
+                }
+                offsetX -= (e.getX() - dragStart.x) / scale;
+                offsetY -= (e.getY() - dragStart.y) / scale;
+                dragStart = e.getPoint();
+                dragged = true;
+                repaint();
+            }
 
-    public void addNode(int id, String name, double lat, double lng, LandmarkType type) {
-        CampusNode node = new CampusNode(id, name, lat, lng, type);
-        nodes.put(id, node);
-        adjacencyList.put(id, new ArrayList<>());
-    }
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (!dragged) {
+                    pickNode(e);
+                }
+                dragStart = null;
+            }
 
-    public void addNode(CampusNode node) {
-        nodes.put(node.getId(), node);
-        adjacencyList.put(node.getId(), new ArrayList<>());
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                double factor = Math.pow(1.2, -e.getPreciseWheelRotation());
+                zoomAround(e.getX(), e.getY(), factor);
+            }
+        };
+        addMouseListener(handler);
+        addMouseMotionListener(handler);
+        addMouseWheelListener(handler);
     }
 
-    public void addEdge(int sourceId, int destId, double distance, TrafficCondition traffic) {
-        CampusNode source = nodes.get(sourceId);
-        CampusNode dest = nodes.get(destId);
+    private void zoomAround(int screenX, int screenY, double factor) {
+        MapData current = data;
+        double newScale = Math.max(current.baseScale, Math.min(scale * factor, current.baseScale * (1L << MAX_LEVEL)));
+        double worldX = offsetX + screenX / scale;
+        double worldY = offsetY + screenY / scale;
+        scale = newScale;
+        offsetX = worldX - screenX / scale;
+        offsetY = worldY - screenY / scale;
+        repaint();
+    }
 
-        if (source != null && dest != null) {
-            adjacencyList.get(sourceId).add(new CampusEdge(source, dest, distance, traffic));
-            adjacencyList.get(destId).add(new CampusEdge(dest, source, distance, traffic));
+    private void pickNode(MouseEvent e) {
+        MapData current = data;
+        double worldX = offsetX + e.getX() / scale;
+        double worldY = offsetY + e.getY() / scale;
+        int node = current.nearestNode(worldX, worldY, PICK_RADIUS_PIXELS / scale);
+        if (node < 0) {
+            return;
+        }
+        boolean asDestination = SwingUtilities.isRightMouseButton(e) || e.isShiftDown();
+        CampusNode picked = current.nodes[node];
+        if (asDestination) {
+            selectedDestination = picked;
+        } else {
+            selectedSource = picked;
+        }
+        for (SelectionListener listener : selectionListeners) {
+            listener.nodeSelected(picked, asDestination);
         }
+        repaint();
     }
 
-    public CampusNode getNode(int id) {
-        return nodes.get(id);
+    private void fitToView() {
+        MapData current = data;
+        int width = Math.max(1, getWidth());
+        int height = Math.max(1, getHeight());
+        double margin = 40;
+        scale = Math.max(current.baseScale, Math.min((width - 2 * margin) / current.worldWidth,
+                (height - 2 * margin) / current.worldHeight));
+        offsetX = current.worldWidth / 2 - width / (2 * scale);
+        offsetY = current.worldHeight / 2 - height / (2 * scale);
+        viewInitialized = true;
     }
 
-    public CampusNode getNodeByName(String name) {
-        return nodes.values().stream()
-                .filter(node -> node.getName().equals(name))
-                .findFirst()
-                .orElse(null);
-    }
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            g2.setColor(getBackground());
+            g2.fillRect(0, 0, getWidth(), getHeight());
 
-    public Collection<CampusNode> getNodes() {
-        return nodes.values();
-    }
+            MapData current = data;
+            if (current.nodes.length == 0) {
+                return;
+            }
+            if (!viewInitialized && getWidth() > 0) {
+                fitToView();
+            }
 
-    public List<CampusEdge> getEdges(int nodeId) {
-        return adjacencyList.getOrDefault(nodeId, Collections.emptyList());
+            paintTiles(g2, current);
+            paintRoute(g2, current);
+            paintEndpoints(g2);
+            paintLegend(g2);
+        } finally {
+            g2.dispose();
+        }
     }
 
-    public CampusEdge getEdge(int sourceId, int destId) {
-        return getEdges(sourceId).stream()
-                .filter(edge -> edge.getDestination().getId() == destId)
-                .findFirst()
-                .orElse(null);
+    private void paintTiles(Graphics2D g2, MapData current) {
+        int level = (int) Math.max(0, Math.min(MAX_LEVEL,
+                Math.floor(Math.log(scale / current.baseScale) / Math.log(2))));
+        double levelScale = current.baseScale * (1L << level);
+        double tileWorld = TILE_SIZE / levelScale;
+
+        int firstX = (int) Math.floor(offsetX / tileWorld);
+        int firstY = (int) Math.floor(offsetY / tileWorld);
+        int lastX = (int) Math.floor((offsetX + getWidth() / scale) / tileWorld);
+        int lastY = (int) Math.floor((offsetY + getHeight() / scale) / tileWorld);
+
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        for (int ty = firstY; ty <= lastY; ty++) {
+            for (int tx = firstX; tx <= lastX; tx++) {
+                // Neighbouring tiles share rounded edges so no seams open up between them
+                int screenX = (int) Math.floor((tx * tileWorld - offsetX) * scale);
+                int screenY = (int) Math.floor((ty * tileWorld - offsetY) * scale);
+                int width = (int) Math.floor(((tx + 1) * tileWorld - offsetX) * scale) - screenX;
+                int height = (int) Math.floor(((ty + 1) * tileWorld - offsetY) * scale) - screenY;
+                BufferedImage tile = tileFor(current, level, tx, ty);
+                if (tile != null) {
+                    g2.drawImage(tile, screenX, screenY, width, height, null);
+                } else if (level > 0) {
+                    // Stretch the parent tile over the gap until this one is rendered
+                    BufferedImage parent = cachedTile(level - 1, Math.floorDiv(tx, 2), Math.floorDiv(ty, 2));
+                    if (parent != null) {
+                        int half = TILE_SIZE / 2;
+                        int sx = Math.floorMod(tx, 2) * half;
+                        int sy = Math.floorMod(ty, 2) * half;
+                        g2.drawImage(parent, screenX, screenY, screenX + width, screenY + height,
+                                sx, sy, sx + half, sy + half, null);
+                    }
+                }
+            }
+        }
     }
 
-    public int getNodeCount() {
-        return nodes.size();
+    private BufferedImage cachedTile(int level, int tx, int ty) {
+        synchronized (tiles) {
+            return tiles.get(tileKey(level, tx, ty));
+        }
     }
 
-    public void updateTrafficConditions(TimeOfDay timeOfDay) {
-        for (List<CampusEdge> edges : adjacencyList.values()) {
-            for (CampusEdge edge : edges) {
-                TrafficCondition newCondition = calculateTrafficCondition(edge, timeOfDay);
-                edge.setTrafficCondition(newCondition);
+    private BufferedImage tileFor(MapData current, int level, int tx, int ty) {
+        long key = tileKey(level, tx, ty);
+        int generation;
+        synchronized (tiles) {
+            BufferedImage tile = tiles.get(key);
+            if (tile != null || !pendingTiles.add(key)) {
+                return tile;
             }
+            generation = tileGeneration;
         }
+
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        tileRenderer.execute(() -> {
+            BufferedImage image = renderTile(current, configuration, level, tx, ty);
+            synchronized (tiles) {
+                if (generation != tileGeneration) {
+                    return;
+                }
+                pendingTiles.remove(key);
+                tiles.put(key, image);
+            }
+            repaint();
+        });
+        return null;
     }
 
-    private TrafficCondition calculateTrafficCondition(CampusEdge edge, TimeOfDay timeOfDay) {
-        LandmarkType destType = edge.getDestination().getLandmarkType();
+    private static long tileKey(int level, int tx, int ty) {
+        return ((long) level << 56) | ((long) (tx & 0xFFFFFFF) << 28) | (ty & 0xFFFFFFF);
+    }
 
-        switch (timeOfDay) {
-            case MORNING_RUSH:
-                if (destType == LandmarkType.ACADEMIC || destType == LandmarkType.ADMINISTRATIVE) {
-                    return TrafficCondition.HEAVY;
-                }
-                if (destType == LandmarkType.DINING || destType == LandmarkType.SERVICES) {
-                    return TrafficCondition.MODERATE;
+    private static BufferedImage renderTile(MapData current, GraphicsConfiguration configuration,
+            int level, int tx, int ty) {
+        BufferedImage image = configuration != null
+                ? configuration.createCompatibleImage(TILE_SIZE, TILE_SIZE, Transparency.TRANSLUCENT)
+                : new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        double levelScale = current.baseScale * (1L << level);
+        double tileWorld = TILE_SIZE / levelScale;
+        double minX = tx * tileWorld;
+        double minY = ty * tileWorld;
+        // Pad by a few pixels so node dots and labels crossing the border are not clipped
+        double pad = 40 / levelScale;
+
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setStroke(new BasicStroke(level >= 4 ? 3f : 1.5f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+
+            // Edges, skipping those too short to see at this zoom
+            double minEdgeWorld = MIN_EDGE_PIXELS / levelScale;
+            current.forEachEdgeIn(minX - pad, minY - pad, minX + tileWorld + pad, minY + tileWorld + pad, e -> {
+                if (current.edgeLength[e] < minEdgeWorld) {
+                    return;
                 }
+                g.setColor(TRAFFIC_COLORS[current.edgeTraffic[e]]);
+                g.drawLine(toTile(current.edgeX1[e], minX, levelScale), toTile(current.edgeY1[e], minY, levelScale),
+                        toTile(current.edgeX2[e], minX, levelScale), toTile(current.edgeY2[e], minY, levelScale));
+            });
+
+            // Nodes; names only once they have room
+            boolean labels = levelScale >= LABEL_MIN_SCALE;
+            int radius = labels ? 4 : (level >= 2 ? 2 : 1);
+            g.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+            current.forEachNodeIn(minX - pad, minY - pad, minX + tileWorld + pad, minY + tileWorld + pad, n -> {
+                int x = toTile(current.nodeX[n], minX, levelScale);
+                int y = toTile(current.nodeY[n], minY, levelScale);
+                g.setColor(NODE_COLOR);
+                g.fillOval(x - radius, y - radius, 2 * radius, 2 * radius);
+                if (labels) {
+                    g.drawString(current.nodes[n].getName(), x + radius + 3, y + 4);
+                }
+            });
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static int toTile(double world, double tileOrigin, double levelScale) {
+        return (int) Math.round((world - tileOrigin) * levelScale);
+    }
+
+    private void paintRoute(Graphics2D g2, MapData current) {
+        Route shown = route;
+        if (shown == null || shown.getPath().size() < 2) {
+            return;
+        }
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setStroke(new BasicStroke(6f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g2.setColor(ROUTE_COLOR);
+
+        int[] xs = new int[shown.getPath().size()];
+        int[] ys = new int[xs.length];
+        int count = 0;
+        for (CampusNode node : shown.getPath()) {
+            int index = current.indexOf(node);
+            if (index >= 0) {
+                xs[count] = toScreenX(current.nodeX[index]);
+                ys[count] = toScreenY(current.nodeY[index]);
+                count++;
+            }
+        }
+        g2.drawPolyline(xs, ys, count);
+    }
+
+    private void paintEndpoints(Graphics2D g2) {
+        paintMarker(g2, selectedSource, TRAFFIC_COLORS[0], "A");
+        paintMarker(g2, selectedDestination, TRAFFIC_COLORS[2], "B");
+    }
+
+    private void paintMarker(Graphics2D g2, CampusNode node, Color color, String text) {
+        MapData current = data;
+        int index = node == null ? -1 : current.indexOf(node);
+        if (index < 0) {
+            return;
+        }
+        int x = toScreenX(current.nodeX[index]);
+        int y = toScreenY(current.nodeY[index]);
+        g2.setColor(color);
+        g2.fillOval(x - 9, y - 9, 18, 18);
+        g2.setColor(Color.WHITE);
+        g2.setFont(new Font("Segoe UI", Font.BOLD, 11));
+        g2.drawString(text, x - 4, y + 4);
+    }
+
+    private void paintLegend(Graphics2D g2) {
+        String[] labels = { "Light", "Moderate", "Heavy" };
+        int x = 10;
+        int y = getHeight() - 16;
+        g2.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+        for (int i = 0; i < labels.length; i++) {
+            g2.setColor(TRAFFIC_COLORS[i]);
+            g2.fillRect(x, y - 8, 14, 8);
+            g2.setColor(NODE_COLOR);
+            g2.drawString(labels[i], x + 18, y);
+            x += 90;
+        }
+        g2.drawString("Left click: From   Right click: To   Drag: pan   Wheel: zoom", x + 10, y);
+    }
+
+    private int toScreenX(double worldX) {
+        return (int) Math.round((worldX - offsetX) * scale);
+    }
+
+    private int toScreenY(double worldY) {
+        return (int) Math.round((worldY - offsetY) * scale);
+    }
+
+    /**
+     * Flattened snapshot of the graph geometry in local meters, bucketed into a uniform grid
+     * so that tiles and clicks only visit nearby nodes and edges.
+     */
+    private static final class MapData {
+        private static final double METERS_PER_DEGREE_LAT = 110_540;
+        private static final double METERS_PER_DEGREE_LON = 111_320;
+        private static final int TARGET_ITEMS_PER_CELL = 16;
+
+        final CampusNode[] nodes;
+        final double[] nodeX;
+        final double[] nodeY;
+        final Map<Integer, Integer> indexById = new HashMap<>();
+
+        final float[] edgeX1;
+        final float[] edgeY1;
+        final float[] edgeX2;
+        final float[] edgeY2;
+        final float[] edgeLength;
+        final byte[] edgeTraffic;
+
+        final double worldWidth;
+        final double worldHeight;
+        final double baseScale;
+
+        // Grid cells hold item indices in CSR form: cellItems[cellStart[c] .. cellStart[c + 1])
+        final int gridColumns;
+        final int gridRows;
+        final double cellSize;
+        final int[] nodeCellStart;
+        final int[] nodeCellItems;
+        final int[] edgeCellStart;
+        final int[] edgeCellItems;
+
+        private MapData(CampusGraph graph, TimeOfDay timeOfDay) {
+            nodes = graph.getNodes().toArray(new CampusNode[0]);
+            int n = nodes.length;
+            nodeX = new double[n];
+            nodeY = new double[n];
+
+            double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+            double minLon = Double.POSITIVE_INFINITY;
+            for (CampusNode node : nodes) {
+                minLat = Math.min(minLat, node.getLatitude());
+                maxLat = Math.max(maxLat, node.getLatitude());
+                minLon = Math.min(minLon, node.getLongitude());
+            }
+            double lonScale = METERS_PER_DEGREE_LON * Math.cos(Math.toRadians((minLat + maxLat) / 2));
+            double width = 1, height = 1;
+            for (int i = 0; i < n; i++) {
+                indexById.put(nodes[i].getId(), i);
+                nodeX[i] = (nodes[i].getLongitude() - minLon) * lonScale;
+                nodeY[i] = (maxLat - nodes[i].getLatitude()) * METERS_PER_DEGREE_LAT;
+                width = Math.max(width, nodeX[i]);
+                height = Math.max(height, nodeY[i]);
+            }
+            worldWidth = width;
+            worldHeight = height;
+            baseScale = TILE_SIZE / Math.max(width, height);
+
+            // One drawable segment per connected pair, showing the worse of its two directions
+            List<int[]> segments = new ArrayList<>();
+            for (int u = 0; u < n; u++) {
+                for (CampusEdge edge : graph.getEdges(nodes[u].getId())) {
+                    Integer v = indexById.get(edge.getDestination().getId());
+                    if (v == null) {
+                        continue;
+                    }
+                    CampusEdge reverse = graph.getEdge(edge.getDestination().getId(), nodes[u].getId());
+                    if (reverse != null && nodes[u].getId() > edge.getDestination().getId()) {
+                        continue;
+                    }
+                    int traffic = edge.getTrafficCondition(timeOfDay).ordinal();
+                    if (reverse != null) {
+                        traffic = Math.max(traffic, reverse.getTrafficCondition(timeOfDay).ordinal());
+                    }
+                    segments.add(new int[] { u, v, traffic });
+                }
+            }
+            int m = segments.size();
+            edgeX1 = new float[m];
+            edgeY1 = new float[m];
+            edgeX2 = new float[m];
+            edgeY2 = new float[m];
+            edgeLength = new float[m];
+            edgeTraffic = new byte[m];
+            for (int e = 0; e < m; e++) {
+                int[] segment = segments.get(e);
+                edgeX1[e] = (float) nodeX[segment[0]];
+                edgeY1[e] = (float) nodeY[segment[0]];
+                edgeX2[e] = (float) nodeX[segment[1]];
+                edgeY2[e] = (float) nodeY[segment[1]];
+                edgeLength[e] = (float) Math.hypot(edgeX2[e] - edgeX1[e], edgeY2[e] - edgeY1[e]);
+                edgeTraffic[e] = (byte) segment[2];
+            }
+
+            int cellsPerSide = (int) Math.max(1, Math.ceil(Math.sqrt((double) (n + m) / TARGET_ITEMS_PER_CELL)));
+            cellSize = Math.max(width, height) / cellsPerSide + 1e-9;
+            gridColumns = (int) (width / cellSize) + 1;
+            gridRows = (int) (height / cellSize) + 1;
+
+            int cellCount = gridColumns * gridRows;
+            nodeCellStart = new int[cellCount + 1];
+            for (int i = 0; i < n; i++) {
+                nodeCellStart[cellOf(nodeX[i], nodeY[i]) + 1]++;
+            }
+            prefixSum(nodeCellStart);
+            nodeCellItems = new int[n];
+            int[] cursor = Arrays.copyOf(nodeCellStart, cellCount);
+            for (int i = 0; i < n; i++) {
+                nodeCellItems[cursor[cellOf(nodeX[i], nodeY[i])]++] = i;
+            }
+
+            // Edges go into every cell their bounding box touches
+            edgeCellStart = new int[cellCount + 1];
+            for (int e = 0; e < m; e++) {
+                int[] box = cellBox(e);
+                for (int row = box[1]; row <= box[3]; row++) {
+                    for (int col = box[0]; col <= box[2]; col++) {
+                        edgeCellStart[row * gridColumns + col + 1]++;
+                    }
+                }
+            }
+            prefixSum(edgeCellStart);
+            edgeCellItems = new int[edgeCellStart[cellCount]];
+            cursor = Arrays.copyOf(edgeCellStart, cellCount);
+            for (int e = 0; e < m; e++) {
+                int[] box = cellBox(e);
+                for (int row = box[1]; row <= box[3]; row++) {
+                    for (int col = box[0]; col <= box[2]; col++) {
+                        edgeCellItems[cursor[row * gridColumns + col]++] = e;
+                    }
+                }
+            }
+        }
+
+        /** Edges are colored by their condition under the traffic profile for timeOfDay, or as loaded. */
+        static MapData build(CampusGraph graph, TimeOfDay timeOfDay) {
+            // One version throughout, so node positions and edges agree even while edits land
+            graph.pin();
+            try {
+                return new MapData(graph, timeOfDay);
+            } finally {
+                graph.unpin();
+            }
+        }
+
+        int indexOf(CampusNode node) {
+            Integer index = indexById.get(node.getId());
+            return index == null ? -1 : index;
+        }
+
+        private int column(double x) {
+            return (int) Math.max(0, Math.min(gridColumns - 1, Math.floor(x / cellSize)));
+        }
+
+        private int row(double y) {
+            return (int) Math.max(0, Math.min(gridRows - 1, Math.floor(y / cellSize)));
+        }
+
+        private int cellOf(double x, double y) {
+            return row(y) * gridColumns + column(x);
+        }
+
+        private int[] cellBox(int e) {
+            return new int[] {
+                    column(Math.min(edgeX1[e], edgeX2[e])), row(Math.min(edgeY1[e], edgeY2[e])),
+                    column(Math.max(edgeX1[e], edgeX2[e])), row(Math.max(edgeY1[e], edgeY2[e])) };
+        }
+
+        private static void prefixSum(int[] counts) {
+            for (int i = 1; i < counts.length; i++) {
+                counts[i] += counts[i - 1];
+            }
+        }
+
+        void forEachNodeIn(double minX, double minY, double maxX, double maxY, IntConsumer action) {
+            for (int row = row(minY); row <= row(maxY); row++) {
+                for (int col = column(minX); col <= column(maxX); col++) {
+                    int cell = row * gridColumns + col;
+                    for (int i = nodeCellStart[cell]; i < nodeCellStart[cell + 1]; i++) {
+                        action.accept(nodeCellItems[i]);
+                    }
+                }
+            }
+        }
+
+        void forEachEdgeIn(double minX, double minY, double maxX, double maxY, IntConsumer action) {
+            for (int row = row(minY); row <= row(maxY); row++) {
+                for (int col = column(minX); col <= column(maxX); col++) {
+                    int cell = row * gridColumns + col;
+                    for (int i = edgeCellStart[cell]; i < edgeCellStart[cell + 1]; i++) {
+                        action.accept(edgeCellItems[i]);
+                    }
+                }
+            }
+        }
+
+        int nearestNode(double x, double y, double radius) {
+            int[] best = { -1 };
+            double[] bestDistance = { radius * radius };
+            forEachNodeIn(x - radius, y - radius, x + radius, y + radius, i -> {
+                double dx = nodeX[i] - x;
+                double dy = nodeY[i] - y;
+                double d = dx * dx + dy * dy;
+                if (d <= bestDistance[0]) {
+                    bestDistance[0] = d;
+                    best[0] = i;
+                }
+            });
+            return best[0];
+        }
+    }
+}
+
+// ===== CORE DATA STRUCTURES =====
+
+class CampusNode {
+    private final int id;
+    private final String name;
+    private final double latitude;
+    private final double longitude;
+    private final LandmarkType landmarkType;
+
+    public CampusNode(int id, String name, double latitude, double longitude, LandmarkType landmarkType) {
+        this.id = id;
+        this.name = name;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.landmarkType = landmarkType == null ? LandmarkType.GENERAL : landmarkType;
+    }
+
+    // Getters
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public LandmarkType getLandmarkType() {
+        return landmarkType;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        CampusNode that = (CampusNode) obj;
+        return id == that.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id);
+    }
+}
+
+class CampusEdge {
+    private final CampusNode source;
+    private final CampusNode destination;
+    private final double distance;
+    // Initial great-circle bearing in degrees, fixed at load so directions need no trig per hop
+    private final double bearing;
+    // As loaded; traffic profiles derive their own condition rather than changing this one
+    private final TrafficCondition trafficCondition;
+    private EnumSet<AccessFeature> accessFeatures = EnumSet.noneOf(AccessFeature.class);
+    // Measured walking-time distributions per profile, or null; other profiles derive one from the condition
+    private EnumMap<TimeOfDay, TravelTimeDistribution> travelTimes;
+
+    private static final String[] COMPASS_DIRECTIONS = { "North", "North-East", "East", "South-East",
+            "South", "South-West", "West", "North-West" };
+
+    public CampusEdge(CampusNode source, CampusNode destination, double distance, TrafficCondition trafficCondition) {
+        this.source = source;
+        this.destination = destination;
+        this.distance = distance;
+        this.trafficCondition = trafficCondition;
+        this.bearing = initialBearing(source, destination);
+    }
+
+    /** Initial great-circle bearing from one node to another, in degrees clockwise from north. */
+    static double initialBearing(CampusNode from, CampusNode to) {
+        double lat1 = Math.toRadians(from.getLatitude());
+        double lat2 = Math.toRadians(to.getLatitude());
+        double dLon = Math.toRadians(to.getLongitude() - from.getLongitude());
+        double y = Math.sin(dLon) * Math.cos(lat2);
+        double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+        double degrees = Math.toDegrees(Math.atan2(y, x));
+        return degrees < 0 ? degrees + 360 : degrees;
+    }
+
+    /** Eight-way compass name for a bearing in degrees. */
+    static String compassDirection(double bearing) {
+        return COMPASS_DIRECTIONS[(int) Math.round(bearing / 45) % 8];
+    }
+
+    // Getters and setters
+    public CampusNode getSource() {
+        return source;
+    }
+
+    public CampusNode getDestination() {
+        return destination;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public double getBearing() {
+        return bearing;
+    }
+
+    public String getCompassDirection() {
+        return compassDirection(bearing);
+    }
+
+    public TrafficCondition getTrafficCondition() {
+        return trafficCondition;
+    }
+
+    /**
+     * Condition under a traffic profile, which depends only on the destination's landmark type;
+     * the condition as loaded when timeOfDay is null.
+     */
+    public TrafficCondition getTrafficCondition(TimeOfDay timeOfDay) {
+        return timeOfDay == null ? trafficCondition
+                : CampusGraph.trafficConditionFor(destination.getLandmarkType(), timeOfDay);
+    }
+
+    public Set<AccessFeature> getAccessFeatures() {
+        return Collections.unmodifiableSet(accessFeatures);
+    }
+
+    void setAccessFeatures(Set<AccessFeature> accessFeatures) {
+        this.accessFeatures = accessFeatures.isEmpty()
+                ? EnumSet.noneOf(AccessFeature.class) : EnumSet.copyOf(accessFeatures);
+    }
+
+    public double getAdjustedDistance() {
+        return getAdjustedDistance(null);
+    }
+
+    public double getAdjustedDistance(TimeOfDay timeOfDay) {
+        return distance * getTrafficCondition(timeOfDay).getDistanceMultiplier();
+    }
+
+    public double getEstimatedTime() {
+        return getEstimatedTime(null);
+    }
+
+    public double getEstimatedTime(TimeOfDay timeOfDay) {
+        double baseTime = distance / 83.33; // 5 km/h = 83.33 m/min
+        return baseTime * getTrafficCondition(timeOfDay).getTimeMultiplier();
+    }
+
+    /**
+     * Walking time under a profile: the measured distribution if one was set for it, otherwise
+     * one centred on {@link #getEstimatedTime(TimeOfDay)} with the profile's condition's variability.
+     */
+    public TravelTimeDistribution getTravelTimeDistribution(TimeOfDay timeOfDay) {
+        TravelTimeDistribution measured = travelTimes == null || timeOfDay == null ? null : travelTimes.get(timeOfDay);
+        if (measured != null) {
+            return measured;
+        }
+        double estimatedTime = getEstimatedTime(timeOfDay);
+        return new TravelTimeDistribution(estimatedTime,
+                estimatedTime * getTrafficCondition(timeOfDay).getTimeVariability());
+    }
+
+    /** Only for edges not yet published; see CampusGraph.setTravelTimeDistribution. */
+    void setTravelTimeDistribution(TimeOfDay timeOfDay, TravelTimeDistribution distribution) {
+        if (travelTimes == null) {
+            travelTimes = new EnumMap<>(TimeOfDay.class);
+        }
+        travelTimes.put(timeOfDay, distribution);
+    }
+
+    /** An unpublished copy carrying the same condition, features and distributions. */
+    CampusEdge copy() {
+        CampusEdge copy = new CampusEdge(source, destination, distance, trafficCondition);
+        copy.setAccessFeatures(accessFeatures);
+        if (travelTimes != null) {
+            copy.travelTimes = new EnumMap<>(travelTimes);
+        }
+        return copy;
+    }
+}
+
+/**
+ * Walking time of one edge as a random variable, in minutes. Sampled as a lognormal with this
+ * mean and standard deviation, so times stay positive and delays have a long tail.
+ */
+final class TravelTimeDistribution {
+    private final double meanMinutes;
+    private final double stdDevMinutes;
+    // Parameters of the underlying normal
+    private final double logMean;
+    private final double logStdDev;
+
+    public TravelTimeDistribution(double meanMinutes, double stdDevMinutes) {
+        if (!(meanMinutes >= 0) || !(stdDevMinutes >= 0)) {
+            throw new IllegalArgumentException("Mean and standard deviation must be non-negative");
+        }
+        this.meanMinutes = meanMinutes;
+        this.stdDevMinutes = stdDevMinutes;
+        double logVariance = meanMinutes > 0
+                ? Math.log1p(stdDevMinutes * stdDevMinutes / (meanMinutes * meanMinutes))
+                : 0;
+        this.logStdDev = Math.sqrt(logVariance);
+        this.logMean = meanMinutes > 0 ? Math.log(meanMinutes) - logVariance / 2 : Double.NEGATIVE_INFINITY;
+    }
+
+    public double getMeanMinutes() {
+        return meanMinutes;
+    }
+
+    public double getStdDevMinutes() {
+        return stdDevMinutes;
+    }
+
+    double getLogMean() {
+        return logMean;
+    }
+
+    double getLogStdDev() {
+        return logStdDev;
+    }
+}
+
+/**
+ * Campus topology with multi-version concurrency control. Readers always see an immutable
+ * {@link GraphVersion}: a compacted {@link GraphSnapshot} plus the edits made since it was built.
+ * Writers are serialized among themselves and publish each edit as a new version with one atomic
+ * write, so queries never wait for them and never see half of an edit.
+ *
+ * Once edits accumulate, a background thread folds them into a fresh snapshot, lets compaction
+ * listeners build their indexes for it, and only then publishes it. A query pins the version it
+ * started with (see {@link #pin()}) so every lookup it makes agrees, and structures derived from
+ * superseded snapshots are released through {@link #retire} once no pinned query can reach them.
+ */
+class CampusGraph {
+    // Pending edits beyond which compaction starts at once rather than after COMPACTION_DELAY_MILLIS
+    static final int COMPACTION_THRESHOLD = 256;
+    static final long COMPACTION_DELAY_MILLIS = 50;
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "graph-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicReference<GraphVersion> current = new AtomicReference<>(GraphVersion.EMPTY);
+    private final ThreadLocal<PinnedVersion> pinned = new ThreadLocal<>();
+    private final EpochReclaimer reclaimer = new EpochReclaimer();
+    private final List<Consumer<GraphSnapshot>> compactionListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final Object compactionLock = new Object();
+
+    // Writer-side copy of the newest version, guarded by this. Compaction freezes it into a snapshot.
+    private final Map<Integer, CampusNode> latestNodes = new HashMap<>();
+    private final Map<Integer, List<CampusEdge>> latestAdjacency = new HashMap<>();
+    private final Map<Long, Boolean> latestClosed = new HashMap<>();
+    private final Map<Integer, EnumSet<AccessFeature>> latestNodeFeatures = new HashMap<>();
+
+    public CampusGraph() {
+    }
+
+    public void addNode(int id, String name, double lat, double lng, LandmarkType type) {
+        addNode(new CampusNode(id, name, lat, lng, type));
+    }
+
+    /** Adds a node, or replaces the node with the same id and drops its outgoing edges. */
+    public synchronized void addNode(CampusNode node) {
+        publish(GraphEdit.addNode(node));
+    }
+
+    public synchronized void addEdge(int sourceId, int destId, double distance, TrafficCondition traffic) {
+        CampusNode source = latestNodes.get(sourceId);
+        CampusNode dest = latestNodes.get(destId);
+
+        if (source != null && dest != null) {
+            publish(GraphEdit.addEdge(new CampusEdge(source, dest, distance, traffic),
+                    new CampusEdge(dest, source, distance, traffic)));
+        }
+    }
+
+    /**
+     * Closes the edge between two nodes in both directions, e.g. for construction work. The edge
+     * keeps its attributes and comes back unchanged on {@link #reopenEdge}. Dijkstra, A* and the
+     * off-heap store honour the closure from the next query on; the other backends once it has
+     * been compacted.
+     */
+    public synchronized void closeEdge(int sourceId, int destId) {
+        publish(GraphEdit.setClosed(sourceId, destId, true));
+    }
+
+    public synchronized void reopenEdge(int sourceId, int destId) {
+        publish(GraphEdit.setClosed(sourceId, destId, false));
+    }
+
+    public boolean isEdgeClosed(int sourceId, int destId) {
+        return currentVersion().isClosed(sourceId, destId);
+    }
+
+    public CampusNode getNode(int id) {
+        return currentVersion().getNode(id);
+    }
+
+    public Set<AccessFeature> getNodeFeatures(int id) {
+        return currentVersion().getNodeFeatures(id);
+    }
+
+    /** Replaces a node's access features, e.g. to mark a building closed. */
+    public synchronized void setNodeFeatures(int id, Set<AccessFeature> features) {
+        // Constraint bitsets are compiled per snapshot, so this takes effect when it is compacted
+        publish(GraphEdit.setNodeFeatures(id, features));
+    }
+
+    /** Replaces the access features of the edge between two nodes, in both directions. */
+    public synchronized void setEdgeFeatures(int sourceId, int destId, Set<AccessFeature> features) {
+        replaceEdgePair(sourceId, destId, copy -> copy.setAccessFeatures(features));
+    }
+
+    /**
+     * Sets the measured walking-time distribution of the edge between two nodes, in both
+     * directions, for one traffic profile. Used by reliability routing.
+     */
+    public synchronized void setTravelTimeDistribution(int sourceId, int destId, TimeOfDay timeOfDay,
+            TravelTimeDistribution distribution) {
+        replaceEdgePair(sourceId, destId, copy -> copy.setTravelTimeDistribution(timeOfDay, distribution));
+    }
+
+    /** Publishes changed copies of both directions of an edge. Caller holds this. */
+    private void replaceEdgePair(int sourceId, int destId, Consumer<CampusEdge> change) {
+        // Versions share edge objects, so the edge is swapped for a copy rather than changed in place
+        List<CampusEdge> replacements = new ArrayList<>(4);
+        for (CampusEdge edge : new CampusEdge[] { latestEdge(sourceId, destId), latestEdge(destId, sourceId) }) {
+            if (edge != null) {
+                CampusEdge copy = edge.copy();
+                change.accept(copy);
+                replacements.add(edge);
+                replacements.add(copy);
+            }
+        }
+        if (!replacements.isEmpty()) {
+            publish(GraphEdit.replaceEdges(replacements.toArray(new CampusEdge[0])));
+        }
+    }
+
+    private CampusEdge latestEdge(int sourceId, int destId) {
+        for (CampusEdge edge : latestAdjacency.getOrDefault(sourceId, Collections.emptyList())) {
+            if (edge.getDestination().getId() == destId) {
+                return edge;
+            }
+        }
+        return null;
+    }
+
+    /** Applies an edit to the writer-side copy and publishes it as the next version. Caller holds this. */
+    private void publish(GraphEdit edit) {
+        edit.applyTo(latestNodes, latestAdjacency, id -> new ArrayList<>(), latestClosed, latestNodeFeatures);
+        GraphVersion version = current.get().with(edit);
+        current.set(version);
+        scheduleCompaction(version.getPendingEditCount() >= COMPACTION_THRESHOLD ? 0 : COMPACTION_DELAY_MILLIS);
+    }
+
+    private void scheduleCompaction(long delayMillis) {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            COMPACTOR.schedule(() -> {
+                // Cleared first so edits arriving during the merge schedule the next one
+                compactionScheduled.set(false);
+                compact();
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Folds the pending edits into a new snapshot and publishes it. Normally done in the
+     * background; call directly to make every backend see recent edits at once. Writers wait only
+     * while the snapshot is copied, and readers never wait.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            GraphVersion start;
+            GraphSnapshot snapshot;
+            synchronized (this) {
+                start = current.get();
+                if (start.getPendingEditCount() == 0) {
+                    return;
+                }
+                snapshot = new GraphSnapshot(start.getSnapshot().getId() + 1, latestNodes, latestAdjacency,
+                        latestClosed, latestNodeFeatures);
+            }
+            // Listeners build their indexes before anyone can pin the snapshot
+            for (Consumer<GraphSnapshot> listener : compactionListeners) {
+                listener.accept(snapshot);
+            }
+            synchronized (this) {
+                // Edits made while the listeners ran stay pending on top of the new snapshot
+                current.set(current.get().rebase(start, snapshot));
+            }
+        }
+    }
+
+    /**
+     * Registers a callback that runs on the compacting thread for every new snapshot, after it is
+     * built and before it is published.
+     */
+    public void addCompactionListener(Consumer<GraphSnapshot> listener) {
+        compactionListeners.add(listener);
+    }
+
+    public int getPendingEditCount() {
+        return current.get().getPendingEditCount();
+    }
+
+    /**
+     * Pins the current version to the calling thread until the matching {@link #unpin()}: until
+     * then every read made by this thread sees that version, and nothing retired after the pin is
+     * reclaimed. Pins nest; only the outermost one takes effect.
+     */
+    public GraphVersion pin() {
+        PinnedVersion pin = pinned.get();
+        if (pin != null) {
+            pin.depth++;
+            return pin.version;
+        }
+        // Entering the epoch before reading the version is what makes retire safe
+        long epoch = reclaimer.enter();
+        pin = new PinnedVersion(current.get(), epoch);
+        pinned.set(pin);
+        return pin.version;
+    }
+
+    public void unpin() {
+        PinnedVersion pin = pinned.get();
+        if (pin == null) {
+            throw new IllegalStateException("unpin without a matching pin");
+        }
+        if (--pin.depth == 0) {
+            pinned.remove();
+            reclaimer.exit(pin.epoch);
+        }
+    }
+
+    /** The version pinned by this thread, or else the latest published one. */
+    GraphVersion currentVersion() {
+        PinnedVersion pin = pinned.get();
+        return pin != null ? pin.version : current.get();
+    }
+
+    /**
+     * Runs action once every thread that was pinned when it was retired has unpinned. For releasing
+     * structures derived from a snapshot that is no longer current.
+     */
+    public void retire(Runnable action) {
+        reclaimer.retire(action);
+    }
+
+    private static final class PinnedVersion {
+        final GraphVersion version;
+        final long epoch;
+        int depth = 1;
+
+        PinnedVersion(GraphVersion version, long epoch) {
+            this.version = version;
+            this.epoch = epoch;
+        }
+    }
+
+    public CampusNode getNodeByName(String name) {
+        return currentVersion().getNodes().stream()
+                .filter(node -> node.getName().equals(name))
+                .findFirst()
+                .orElse(null);
+    }
+
+    public Collection<CampusNode> getNodes() {
+        return currentVersion().getNodes();
+    }
+
+    /** Open edges leaving the node. */
+    public List<CampusEdge> getEdges(int nodeId) {
+        return currentVersion().getEdges(nodeId);
+    }
+
+    public CampusEdge getEdge(int sourceId, int destId) {
+        return getEdges(sourceId).stream()
+                .filter(edge -> edge.getDestination().getId() == destId)
+                .findFirst()
+                .orElse(null);
+    }
+
+    public int getNodeCount() {
+        return currentVersion().getNodeCount();
+    }
+
+    /** Number of the current version; changes with every edit. */
+    public int getStructureVersion() {
+        return (int) currentVersion().getNumber();
+    }
+
+    /**
+     * Condition of an edge into a destType node under a profile; depends on nothing else. Edges
+     * are shared by every version and never change, so each query applies its profile through
+     * this rather than through the edges.
+     */
+    static TrafficCondition trafficConditionFor(LandmarkType destType, TimeOfDay timeOfDay) {
+        switch (timeOfDay) {
+            case MORNING_RUSH:
+                if (destType == LandmarkType.ACADEMIC || destType == LandmarkType.ADMINISTRATIVE) {
+                    return TrafficCondition.HEAVY;
+                }
+                if (destType == LandmarkType.DINING || destType == LandmarkType.SERVICES) {
+                    return TrafficCondition.MODERATE;
+                }
+                break;
+            case EVENING_RUSH:
+                if (destType == LandmarkType.RESIDENTIAL || destType == LandmarkType.DINING) {
+                    return TrafficCondition.HEAVY;
+                }
+                if (destType == LandmarkType.RECREATION) {
+                    return TrafficCondition.MODERATE;
+                }
+                break;
+            case NORMAL_HOURS:
+            default:
+                // Return original condition or light traffic
+                break;
+        }
+
+        // Default conditions based on landmark type
+        switch (destType) {
+            case DINING:
+            case SERVICES:
+                return TrafficCondition.MODERATE;
+            case ENTRANCE:
+            case ADMINISTRATIVE:
+                return TrafficCondition.HEAVY;
+            default:
+                return TrafficCondition.LIGHT;
+        }
+    }
+}
+
+/** Read-only campus topology, as seen by {@link IndexedGraph#build(CampusGraphView)}. */
+interface CampusGraphView {
+    Collection<CampusNode> getNodes();
+
+    /** Open edges leaving the node. */
+    List<CampusEdge> getEdges(int nodeId);
+
+    Set<AccessFeature> getNodeFeatures(int nodeId);
+}
+
+/**
+ * Immutable compacted topology. Closed edges stay in the adjacency lists so that reopening one
+ * restores it exactly; {@link #getEdges} leaves them out.
+ */
+final class GraphSnapshot implements CampusGraphView {
+    static final GraphSnapshot EMPTY = new GraphSnapshot(0, Collections.emptyMap(), Collections.emptyMap(),
+            Collections.emptyMap(), Collections.emptyMap());
+
+    private final long id;
+    private final Map<Integer, CampusNode> nodes;
+    private final Map<Integer, List<CampusEdge>> adjacency;
+    private final Set<Long> closedEdges;
+    private final Map<Integer, EnumSet<AccessFeature>> nodeFeatures;
+
+    /** Copies the given state; closed maps edge keys to whether the edge is closed. */
+    GraphSnapshot(long id, Map<Integer, CampusNode> nodes, Map<Integer, List<CampusEdge>> adjacency,
+            Map<Long, Boolean> closed, Map<Integer, EnumSet<AccessFeature>> nodeFeatures) {
+        this.id = id;
+        this.nodes = new HashMap<>(nodes);
+        this.adjacency = new HashMap<>(adjacency.size() * 2);
+        for (Map.Entry<Integer, List<CampusEdge>> entry : adjacency.entrySet()) {
+            this.adjacency.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+        this.closedEdges = new HashSet<>();
+        for (Map.Entry<Long, Boolean> entry : closed.entrySet()) {
+            if (entry.getValue()) {
+                closedEdges.add(entry.getKey());
+            }
+        }
+        this.nodeFeatures = new HashMap<>();
+        for (Map.Entry<Integer, EnumSet<AccessFeature>> entry : nodeFeatures.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                this.nodeFeatures.put(entry.getKey(), EnumSet.copyOf(entry.getValue()));
+            }
+        }
+    }
+
+    /** Increases with every compaction of the same graph. */
+    long getId() {
+        return id;
+    }
+
+    CampusNode getNode(int nodeId) {
+        return nodes.get(nodeId);
+    }
+
+    @Override
+    public Collection<CampusNode> getNodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    int getNodeCount() {
+        return nodes.size();
+    }
+
+    @Override
+    public List<CampusEdge> getEdges(int nodeId) {
+        return openEdges(getAllEdges(nodeId), this::isClosed);
+    }
+
+    /** Every edge leaving the node, closed or not. */
+    List<CampusEdge> getAllEdges(int nodeId) {
+        return adjacency.getOrDefault(nodeId, Collections.emptyList());
+    }
+
+    boolean isClosed(int sourceId, int destId) {
+        return !closedEdges.isEmpty() && closedEdges.contains(edgeKey(sourceId, destId));
+    }
+
+    @Override
+    public Set<AccessFeature> getNodeFeatures(int nodeId) {
+        EnumSet<AccessFeature> features = nodeFeatures.get(nodeId);
+        return features == null ? Collections.emptySet() : Collections.unmodifiableSet(features);
+    }
+
+    static long edgeKey(int sourceId, int destId) {
+        return ((long) sourceId << 32) | (destId & 0xffffffffL);
+    }
+
+    interface ClosedTest {
+        boolean isClosed(int sourceId, int destId);
+    }
+
+    /** The list itself when no edge in it is closed, otherwise a filtered copy. */
+    static List<CampusEdge> openEdges(List<CampusEdge> edges, ClosedTest closed) {
+        for (int i = 0; i < edges.size(); i++) {
+            CampusEdge edge = edges.get(i);
+            if (closed.isClosed(edge.getSource().getId(), edge.getDestination().getId())) {
+                List<CampusEdge> open = new ArrayList<>(edges.size() - 1);
+                open.addAll(edges.subList(0, i));
+                for (int j = i + 1; j < edges.size(); j++) {
+                    CampusEdge other = edges.get(j);
+                    if (!closed.isClosed(other.getSource().getId(), other.getDestination().getId())) {
+                        open.add(other);
+                    }
+                }
+                return Collections.unmodifiableList(open);
+            }
+        }
+        return edges;
+    }
+}
+
+/** One topology edit. Edits are applied in order, both to the writer's copy and to reader views. */
+final class GraphEdit {
+    enum Kind { ADD_NODE, ADD_EDGE, SET_CLOSED, SET_NODE_FEATURES, REPLACE_EDGES }
+
+    final Kind kind;
+    final CampusNode node;
+    // ADD_EDGE: the forward and backward edge; REPLACE_EDGES: (old, new) pairs
+    final CampusEdge[] edges;
+    final int sourceId;
+    final int destId;
+    final boolean closed;
+    final EnumSet<AccessFeature> features;
+
+    private GraphEdit(Kind kind, CampusNode node, CampusEdge[] edges, int sourceId, int destId, boolean closed,
+            EnumSet<AccessFeature> features) {
+        this.kind = kind;
+        this.node = node;
+        this.edges = edges;
+        this.sourceId = sourceId;
+        this.destId = destId;
+        this.closed = closed;
+        this.features = features;
+    }
+
+    static GraphEdit addNode(CampusNode node) {
+        return new GraphEdit(Kind.ADD_NODE, node, null, node.getId(), node.getId(), false, null);
+    }
+
+    static GraphEdit addEdge(CampusEdge forward, CampusEdge backward) {
+        return new GraphEdit(Kind.ADD_EDGE, null, new CampusEdge[] { forward, backward },
+                forward.getSource().getId(), forward.getDestination().getId(), false, null);
+    }
+
+    static GraphEdit setClosed(int sourceId, int destId, boolean closed) {
+        return new GraphEdit(Kind.SET_CLOSED, null, null, sourceId, destId, closed, null);
+    }
+
+    static GraphEdit setNodeFeatures(int nodeId, Set<AccessFeature> features) {
+        EnumSet<AccessFeature> copy = features.isEmpty() ? EnumSet.noneOf(AccessFeature.class)
+                : EnumSet.copyOf(features);
+        return new GraphEdit(Kind.SET_NODE_FEATURES, null, null, nodeId, nodeId, false, copy);
+    }
+
+    static GraphEdit replaceEdges(CampusEdge[] oldAndNew) {
+        return new GraphEdit(Kind.REPLACE_EDGES, null, oldAndNew, oldAndNew[0].getSource().getId(),
+                oldAndNew[0].getDestination().getId(), false, null);
+    }
+
+    /**
+     * Applies the edit to mutable state. Out-edge lists are fetched through adjacency, taking a
+     * private copy from baseEdges the first time a node is touched.
+     */
+    void applyTo(Map<Integer, CampusNode> nodes, Map<Integer, List<CampusEdge>> adjacency,
+            Function<Integer, List<CampusEdge>> baseEdges, Map<Long, Boolean> closedEdges,
+            Map<Integer, EnumSet<AccessFeature>> nodeFeatures) {
+        switch (kind) {
+            case ADD_NODE:
+                nodes.put(node.getId(), node);
+                adjacency.put(node.getId(), new ArrayList<>());
+                break;
+            case ADD_EDGE:
+                adjacency.computeIfAbsent(sourceId, baseEdges).add(edges[0]);
+                adjacency.computeIfAbsent(destId, baseEdges).add(edges[1]);
+                break;
+            case SET_CLOSED:
+                closedEdges.put(GraphSnapshot.edgeKey(sourceId, destId), closed);
+                closedEdges.put(GraphSnapshot.edgeKey(destId, sourceId), closed);
+                break;
+            case SET_NODE_FEATURES:
+                nodeFeatures.put(sourceId, features);
+                break;
+            case REPLACE_EDGES:
+            default:
+                for (int i = 0; i < edges.length; i += 2) {
+                    List<CampusEdge> list = adjacency.computeIfAbsent(edges[i].getSource().getId(), baseEdges);
+                    for (int j = 0; j < list.size(); j++) {
+                        if (list.get(j) == edges[i]) {
+                            list.set(j, edges[i + 1]);
+                        }
+                    }
+                }
+                break;
+        }
+    }
+}
+
+/**
+ * Immutable state of a CampusGraph at one point in time: a compacted snapshot plus the edits made
+ * since. The edits are kept as a persistent list, so publishing one costs O(1); the first read
+ * that needs them replays the list once into per-node overrides.
+ */
+final class GraphVersion implements CampusGraphView {
+    static final GraphVersion EMPTY = new GraphVersion(GraphSnapshot.EMPTY, null, 0);
+
+    private final GraphSnapshot snapshot;
+    private final PendingEdit newestEdit;
+    private final long number;
+    // Replayed on first use; a racing duplicate replay is harmless
+    private volatile Overrides overrides;
+
+    private GraphVersion(GraphSnapshot snapshot, PendingEdit newestEdit, long number) {
+        this.snapshot = snapshot;
+        this.newestEdit = newestEdit;
+        this.number = number;
+    }
+
+    GraphVersion with(GraphEdit edit) {
+        return new GraphVersion(snapshot, new PendingEdit(edit, newestEdit), number + 1);
+    }
+
+    /**
+     * This version on top of newSnapshot, which holds everything up to and including start.
+     * Edits made after start are carried over as still pending.
+     */
+    GraphVersion rebase(GraphVersion start, GraphSnapshot newSnapshot) {
+        ArrayDeque<GraphEdit> later = new ArrayDeque<>();
+        for (PendingEdit pending = newestEdit; pending != start.newestEdit; pending = pending.older) {
+            later.addFirst(pending.edit);
+        }
+        PendingEdit rebased = null;
+        for (GraphEdit edit : later) {
+            rebased = new PendingEdit(edit, rebased);
+        }
+        return new GraphVersion(newSnapshot, rebased, number);
+    }
+
+    GraphSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    long getNumber() {
+        return number;
+    }
+
+    int getPendingEditCount() {
+        return newestEdit == null ? 0 : newestEdit.count;
+    }
+
+    CampusNode getNode(int nodeId) {
+        Overrides delta = overrides();
+        CampusNode node = delta == null ? null : delta.nodes.get(nodeId);
+        return node != null ? node : snapshot.getNode(nodeId);
+    }
+
+    @Override
+    public Collection<CampusNode> getNodes() {
+        Overrides delta = overrides();
+        return delta == null ? snapshot.getNodes() : delta.allNodes(snapshot);
+    }
+
+    int getNodeCount() {
+        return getNodes().size();
+    }
+
+    @Override
+    public List<CampusEdge> getEdges(int nodeId) {
+        return GraphSnapshot.openEdges(getAllEdges(nodeId), this::isClosed);
+    }
+
+    /** Every edge leaving the node, closed or not. */
+    List<CampusEdge> getAllEdges(int nodeId) {
+        Overrides delta = overrides();
+        List<CampusEdge> edges = delta == null ? null : delta.adjacency.get(nodeId);
+        return edges != null ? edges : snapshot.getAllEdges(nodeId);
+    }
+
+    boolean isClosed(int sourceId, int destId) {
+        Overrides delta = overrides();
+        Boolean closed = delta == null ? null : delta.closedEdges.get(GraphSnapshot.edgeKey(sourceId, destId));
+        return closed != null ? closed : snapshot.isClosed(sourceId, destId);
+    }
+
+    @Override
+    public Set<AccessFeature> getNodeFeatures(int nodeId) {
+        Overrides delta = overrides();
+        EnumSet<AccessFeature> features = delta == null ? null : delta.nodeFeatures.get(nodeId);
+        return features != null ? Collections.unmodifiableSet(features) : snapshot.getNodeFeatures(nodeId);
+    }
+
+    /** Ids of nodes whose open out-edges may differ from the snapshot's. */
+    Set<Integer> getTouchedNodeIds() {
+        Overrides delta = overrides();
+        return delta == null ? Collections.emptySet() : Collections.unmodifiableSet(delta.touched);
+    }
+
+    private Overrides overrides() {
+        if (newestEdit == null) {
+            return null;
+        }
+        Overrides delta = overrides;
+        if (delta == null) {
+            delta = new Overrides(snapshot, newestEdit);
+            overrides = delta;
+        }
+        return delta;
+    }
+
+    /** Node of a persistent, newest-first list of edits. */
+    private static final class PendingEdit {
+        final GraphEdit edit;
+        final PendingEdit older;
+        final int count;
+
+        PendingEdit(GraphEdit edit, PendingEdit older) {
+            this.edit = edit;
+            this.older = older;
+            this.count = older == null ? 1 : older.count + 1;
+        }
+    }
+
+    /** The pending edits replayed over the snapshot, as per-node replacements. */
+    private static final class Overrides {
+        final Map<Integer, CampusNode> nodes = new HashMap<>();
+        final Map<Integer, List<CampusEdge>> adjacency = new HashMap<>();
+        final Map<Long, Boolean> closedEdges = new HashMap<>();
+        final Map<Integer, EnumSet<AccessFeature>> nodeFeatures = new HashMap<>();
+        final Set<Integer> touched = new HashSet<>();
+        private volatile Collection<CampusNode> allNodes;
+
+        Overrides(GraphSnapshot snapshot, PendingEdit newest) {
+            GraphEdit[] edits = new GraphEdit[newest.count];
+            int i = edits.length;
+            for (PendingEdit pending = newest; pending != null; pending = pending.older) {
+                edits[--i] = pending.edit;
+            }
+            Function<Integer, List<CampusEdge>> baseEdges = id -> new ArrayList<>(snapshot.getAllEdges(id));
+            for (GraphEdit edit : edits) {
+                edit.applyTo(nodes, adjacency, baseEdges, closedEdges, nodeFeatures);
+                if (edit.kind != GraphEdit.Kind.SET_NODE_FEATURES) {
+                    touched.add(edit.sourceId);
+                    touched.add(edit.destId);
+                }
+            }
+            for (Map.Entry<Integer, List<CampusEdge>> entry : adjacency.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+        }
+
+        Collection<CampusNode> allNodes(GraphSnapshot snapshot) {
+            Collection<CampusNode> all = allNodes;
+            if (all == null) {
+                Map<Integer, CampusNode> merged = new HashMap<>(snapshot.getNodeCount() + nodes.size());
+                for (CampusNode node : snapshot.getNodes()) {
+                    merged.put(node.getId(), node);
+                }
+                merged.putAll(nodes);
+                all = Collections.unmodifiableCollection(merged.values());
+                allNodes = all;
+            }
+            return all;
+        }
+    }
+}
+
+/**
+ * Epoch-based reclamation. Readers enter the current epoch and exit when done; a retired action
+ * runs once no reader that entered at or before its epoch is still inside.
+ */
+final class EpochReclaimer {
+    private final AtomicLong epoch = new AtomicLong();
+    // Readers inside, per epoch they entered
+    private final ConcurrentHashMap<Long, Integer> readers = new ConcurrentHashMap<>();
+    // Guarded by this, in epoch order
+    private final ArrayDeque<Retired> retired = new ArrayDeque<>();
+    private volatile int retiredCount;
+
+    long enter() {
+        long entered = epoch.get();
+        readers.merge(entered, 1, Integer::sum);
+        return entered;
+    }
+
+    void exit(long entered) {
+        readers.computeIfPresent(entered, (key, count) -> count == 1 ? null : count - 1);
+        if (retiredCount > 0) {
+            reclaim();
+        }
+    }
+
+    void retire(Runnable action) {
+        synchronized (this) {
+            retired.addLast(new Retired(epoch.getAndIncrement(), action));
+            retiredCount = retired.size();
+        }
+        reclaim();
+    }
+
+    private void reclaim() {
+        List<Runnable> due = new ArrayList<>();
+        synchronized (this) {
+            long oldestReader = Long.MAX_VALUE;
+            for (Long entered : readers.keySet()) {
+                oldestReader = Math.min(oldestReader, entered);
+            }
+            while (!retired.isEmpty() && retired.peekFirst().epoch < oldestReader) {
+                due.add(retired.pollFirst().action);
+            }
+            retiredCount = retired.size();
+        }
+        // Actions run outside the lock, so they may take their own locks
+        for (Runnable action : due) {
+            action.run();
+        }
+    }
+
+    private static final class Retired {
+        final long epoch;
+        final Runnable action;
+
+        Retired(long epoch, Runnable action) {
+            this.epoch = epoch;
+            this.action = action;
+        }
+    }
+}
+
+/**
+ * Immutable array-based view of a CampusGraph.
+ * Nodes get dense indices and edges are stored in forward and reverse
+ * adjacency arrays, with adjusted distances frozen at build time.
+ *
+ * Dense indices follow a Hilbert curve over the node coordinates, so nodes that are close on
+ * campus are close in every per-node array and a search touches few distinct cache lines.
+ * The order depends only on coordinates and ids, so views of the same structure built under
+ * different traffic profiles number their nodes identically.
+ */
+class IndexedGraph {
+    static final int HILBERT_ORDER = 16;
+
+    private final CampusNode[] nodes;
+    private final Map<Integer, Integer> indexById;
+    // Traffic profile the weights and conditions are for; null for the conditions as loaded
+    private final TimeOfDay timeOfDay;
+    private final double[] latitudeRadians;
+    private final double[] longitudeRadians;
+
+    // Forward adjacency: edges of node u are outTargets[outOffsets[u] .. outOffsets[u + 1])
+    private final int[] outOffsets;
+    private final int[] outTargets;
+    private final double[] outWeights;
+    private final TrafficCondition[] outConditions;
+    // Untrafficked length and estimated walking time, for criteria other than the adjusted weight
+    private final double[] outLengths;
+    private final double[] outTimes;
+    // Mean and standard deviation of walking time, from each edge's TravelTimeDistribution
+    private final double[] outTimeMeans;
+    private final double[] outTimeStdDevs;
+    // AccessFeature bitmasks
+    private final int[] outFeatures;
+    private final int[] nodeFeatures;
+
+    // Reverse adjacency: edges entering node v are inSources[inOffsets[v] .. inOffsets[v + 1])
+    private final int[] inOffsets;
+    private final int[] inSources;
+    private final double[] inWeights;
+    // Position of each reverse edge in the forward arrays, for per-edge attributes
+    private final int[] inForwardEdges;
+
+    private IndexedGraph(CampusNode[] nodes, Map<Integer, Integer> indexById, TimeOfDay timeOfDay,
+            int[] outOffsets, int[] outTargets, double[] outWeights, TrafficCondition[] outConditions,
+            double[] outLengths, double[] outTimes, double[] outTimeMeans, double[] outTimeStdDevs,
+            int[] outFeatures, int[] nodeFeatures,
+            int[] inOffsets, int[] inSources, double[] inWeights, int[] inForwardEdges) {
+        this.nodes = nodes;
+        this.indexById = indexById;
+        this.timeOfDay = timeOfDay;
+        this.latitudeRadians = new double[nodes.length];
+        this.longitudeRadians = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            latitudeRadians[i] = Math.toRadians(nodes[i].getLatitude());
+            longitudeRadians[i] = Math.toRadians(nodes[i].getLongitude());
+        }
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+        this.outWeights = outWeights;
+        this.outConditions = outConditions;
+        this.outLengths = outLengths;
+        this.outTimes = outTimes;
+        this.outTimeMeans = outTimeMeans;
+        this.outTimeStdDevs = outTimeStdDevs;
+        this.outFeatures = outFeatures;
+        this.nodeFeatures = nodeFeatures;
+        this.inOffsets = inOffsets;
+        this.inSources = inSources;
+        this.inWeights = inWeights;
+        this.inForwardEdges = inForwardEdges;
+    }
+
+    /** Indexes the graph's current version; see {@link CampusGraph#pin()}. */
+    public static IndexedGraph build(CampusGraph graph) {
+        return build(graph.currentVersion());
+    }
+
+    public static IndexedGraph build(CampusGraphView graph) {
+        return build(graph, null);
+    }
+
+    /**
+     * Weights and conditions under the traffic profile for timeOfDay, or as loaded when it is null.
+     * timeOfDay also picks each edge's measured travel-time distribution, if it has one for that profile.
+     */
+    public static IndexedGraph build(CampusGraphView graph, TimeOfDay timeOfDay) {
+        CampusNode[] nodes = localityOrder(graph.getNodes());
+        int n = nodes.length;
+        Map<Integer, Integer> indexById = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            indexById.put(nodes[i].getId(), i);
+        }
+
+        // Count degrees first so both adjacency arrays can be filled in place
+        int[] outOffsets = new int[n + 1];
+        int[] inOffsets = new int[n + 1];
+        int edgeCount = 0;
+        for (int u = 0; u < n; u++) {
+            for (CampusEdge edge : graph.getEdges(nodes[u].getId())) {
+                Integer v = indexById.get(edge.getDestination().getId());
+                if (v != null) {
+                    outOffsets[u + 1]++;
+                    inOffsets[v + 1]++;
+                    edgeCount++;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            outOffsets[i + 1] += outOffsets[i];
+            inOffsets[i + 1] += inOffsets[i];
+        }
+
+        int[] outTargets = new int[edgeCount];
+        double[] outWeights = new double[edgeCount];
+        TrafficCondition[] outConditions = new TrafficCondition[edgeCount];
+        double[] outLengths = new double[edgeCount];
+        double[] outTimes = new double[edgeCount];
+        double[] outTimeMeans = new double[edgeCount];
+        double[] outTimeStdDevs = new double[edgeCount];
+        int[] outFeatures = new int[edgeCount];
+        int[] nodeFeatures = new int[n];
+        int[] inSources = new int[edgeCount];
+        double[] inWeights = new double[edgeCount];
+        int[] inForwardEdges = new int[edgeCount];
+        int[] inCursor = new int[n];
+        System.arraycopy(inOffsets, 0, inCursor, 0, n);
+
+        for (int u = 0; u < n; u++) {
+            nodeFeatures[u] = AccessFeature.maskOf(graph.getNodeFeatures(nodes[u].getId()));
+            int cursor = outOffsets[u];
+            // Visiting targets in index order keeps a node's relaxations moving forward through memory
+            List<CampusEdge> edges = new ArrayList<>(graph.getEdges(nodes[u].getId()));
+            edges.sort(Comparator.comparingInt(edge -> indexById.getOrDefault(edge.getDestination().getId(), -1)));
+            for (CampusEdge edge : edges) {
+                Integer v = indexById.get(edge.getDestination().getId());
+                if (v == null) {
+                    continue;
+                }
+                double weight = edge.getAdjustedDistance(timeOfDay);
+                outTargets[cursor] = v;
+                outWeights[cursor] = weight;
+                outConditions[cursor] = edge.getTrafficCondition(timeOfDay);
+                outLengths[cursor] = edge.getDistance();
+                outTimes[cursor] = edge.getEstimatedTime(timeOfDay);
+                TravelTimeDistribution travelTime = edge.getTravelTimeDistribution(timeOfDay);
+                outTimeMeans[cursor] = travelTime.getMeanMinutes();
+                outTimeStdDevs[cursor] = travelTime.getStdDevMinutes();
+                outFeatures[cursor] = AccessFeature.maskOf(edge.getAccessFeatures());
+
+                int slot = inCursor[v]++;
+                inSources[slot] = u;
+                inWeights[slot] = weight;
+                inForwardEdges[slot] = cursor;
+                cursor++;
+            }
+        }
+
+        return new IndexedGraph(nodes, indexById, timeOfDay, outOffsets, outTargets, outWeights, outConditions,
+                outLengths, outTimes, outTimeMeans, outTimeStdDevs, outFeatures, nodeFeatures,
+                inOffsets, inSources, inWeights, inForwardEdges);
+    }
+
+    /** Sorts nodes by their position on a Hilbert curve over the campus bounding box, ties by id. */
+    private static CampusNode[] localityOrder(Collection<CampusNode> graphNodes) {
+        CampusNode[] nodes = graphNodes.toArray(new CampusNode[0]);
+        if (nodes.length < 2) {
+            return nodes;
+        }
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (CampusNode node : nodes) {
+            minX = Math.min(minX, node.getLongitude());
+            maxX = Math.max(maxX, node.getLongitude());
+            minY = Math.min(minY, node.getLatitude());
+            maxY = Math.max(maxY, node.getLatitude());
+        }
+        // One scale for both axes so the curve follows the campus shape instead of stretching it
+        double span = Math.max(maxX - minX, maxY - minY);
+        double scale = span > 0 ? ((1 << HILBERT_ORDER) - 1) / span : 0;
+
+        Map<CampusNode, Long> keys = new HashMap<>();
+        for (CampusNode node : nodes) {
+            int x = (int) ((node.getLongitude() - minX) * scale);
+            int y = (int) ((node.getLatitude() - minY) * scale);
+            keys.put(node, hilbertIndex(x, y));
+        }
+        Arrays.sort(nodes, Comparator.<CampusNode>comparingLong(keys::get).thenComparingInt(CampusNode::getId));
+        return nodes;
+    }
+
+    /** Distance along a Hilbert curve of order HILBERT_ORDER for a cell in its 2^order grid. */
+    static long hilbertIndex(int x, int y) {
+        int side = 1 << HILBERT_ORDER;
+        long index = 0;
+        for (int s = side >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant so the sub-curve connects to its neighbours
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /** Returns the dense index of a node id, or -1 if the node is not part of this view. */
+    public int indexOf(int nodeId) {
+        Integer index = indexById.get(nodeId);
+        return index == null ? -1 : index;
+    }
+
+    public CampusNode node(int index) {
+        return nodes[index];
+    }
+
+    /** The traffic profile this view was built for; null for the conditions as loaded. */
+    public TimeOfDay getTimeOfDay() {
+        return timeOfDay;
+    }
+
+    public double latitudeRadians(int index) {
+        return latitudeRadians[index];
+    }
+
+    public double longitudeRadians(int index) {
+        return longitudeRadians[index];
+    }
+
+    public int outStart(int u) {
+        return outOffsets[u];
+    }
+
+    public int outEnd(int u) {
+        return outOffsets[u + 1];
+    }
+
+    public int outTarget(int edge) {
+        return outTargets[edge];
+    }
+
+    public TrafficCondition outCondition(int edge) {
+        return outConditions[edge];
+    }
+
+    public double outLength(int edge) {
+        return outLengths[edge];
+    }
+
+    public double outTime(int edge) {
+        return outTimes[edge];
+    }
+
+    public double outTimeMean(int edge) {
+        return outTimeMeans[edge];
+    }
+
+    public double outTimeStdDev(int edge) {
+        return outTimeStdDevs[edge];
+    }
+
+    public int outFeatures(int edge) {
+        return outFeatures[edge];
+    }
+
+    public int nodeFeatures(int index) {
+        return nodeFeatures[index];
+    }
+
+    public int edgeCount() {
+        return outTargets.length;
+    }
+
+    public double outWeight(int edge) {
+        return outWeights[edge];
+    }
+
+    public int inStart(int v) {
+        return inOffsets[v];
+    }
+
+    public int inEnd(int v) {
+        return inOffsets[v + 1];
+    }
+
+    public int inSource(int edge) {
+        return inSources[edge];
+    }
+
+    public double inWeight(int edge) {
+        return inWeights[edge];
+    }
+
+    /** The same edge's index in the forward adjacency arrays. */
+    public int inForwardEdge(int edge) {
+        return inForwardEdges[edge];
+    }
+
+    /** True when both views have the same nodes in the same order and the same edge layout. */
+    public boolean hasSameTopology(IndexedGraph other) {
+        if (other == this) {
+            return true;
+        }
+        if (nodes.length != other.nodes.length || !Arrays.equals(outOffsets, other.outOffsets)
+                || !Arrays.equals(outTargets, other.outTargets)) {
+            return false;
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i].getId() != other.nodes[i].getId()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+/**
+ * The pending edits of a {@link GraphVersion}, compiled against an IndexedGraph of its snapshot so
+ * Dijkstra and A* can answer on the newest topology without re-indexing. Base edges that the
+ * edits close or drop are marked in a bitset laid out like a compiled {@link RouteConstraints};
+ * added nodes take indices from base.size() on, and edges the base lacks are kept in a small
+ * extra adjacency consulted alongside the base arrays.
+ */
+final class DeltaOverlay {
+    private final IndexedGraph base;
+    private final GraphVersion version;
+    private final long[] hiddenEdges;
+    private final CampusNode[] addedNodes;
+    private final Map<Integer, Integer> addedIndexById;
+    // Extra edges of node u are extraTargets[extraOffsets[u] .. extraOffsets[u + 1])
+    private final int[] extraOffsets;
+    private final int[] extraTargets;
+    private final double[] extraWeights;
+    // The same edges by head: those entering v are extraInSources[extraInOffsets[v] .. extraInOffsets[v + 1])
+    private final int[] extraInOffsets;
+    private final int[] extraInSources;
+    private final double[] extraInWeights;
+
+    private DeltaOverlay(IndexedGraph base, GraphVersion version, long[] hiddenEdges, CampusNode[] addedNodes,
+            Map<Integer, Integer> addedIndexById, int[] extraOffsets, int[] extraTargets, double[] extraWeights) {
+        this.base = base;
+        this.version = version;
+        this.hiddenEdges = hiddenEdges;
+        this.addedNodes = addedNodes;
+        this.addedIndexById = addedIndexById;
+        this.extraOffsets = extraOffsets;
+        this.extraTargets = extraTargets;
+        this.extraWeights = extraWeights;
+        if (extraOffsets == null) {
+            this.extraInOffsets = null;
+            this.extraInSources = null;
+            this.extraInWeights = null;
+            return;
+        }
+        int size = extraOffsets.length - 1;
+        int count = extraOffsets[size];
+        extraInOffsets = new int[size + 1];
+        extraInSources = new int[count];
+        extraInWeights = new double[count];
+        for (int x = 0; x < count; x++) {
+            extraInOffsets[extraTargets[x] + 1]++;
+        }
+        for (int v = 0; v < size; v++) {
+            extraInOffsets[v + 1] += extraInOffsets[v];
+        }
+        int[] cursor = Arrays.copyOf(extraInOffsets, size);
+        for (int u = 0; u < size; u++) {
+            for (int x = extraOffsets[u]; x < extraOffsets[u + 1]; x++) {
+                int slot = cursor[extraTargets[x]]++;
+                extraInSources[slot] = u;
+                extraInWeights[slot] = extraWeights[x];
+            }
+        }
+    }
+
+    /** base must index version's snapshot; added edges are weighed under the same traffic profile. */
+    static DeltaOverlay compile(IndexedGraph base, GraphVersion version) {
+        Set<Integer> touched = version.getTouchedNodeIds();
+        if (touched.isEmpty()) {
+            return new DeltaOverlay(base, version, null, new CampusNode[0], Collections.emptyMap(), null, null, null);
+        }
+
+        // Nodes the snapshot lacks get the next indices, in id order so the numbering is stable
+        List<Integer> addedIds = new ArrayList<>();
+        for (int id : touched) {
+            if (base.indexOf(id) < 0 && version.getNode(id) != null) {
+                addedIds.add(id);
+            }
+        }
+        Collections.sort(addedIds);
+        CampusNode[] addedNodes = new CampusNode[addedIds.size()];
+        Map<Integer, Integer> addedIndexById = new HashMap<>();
+        for (int i = 0; i < addedNodes.length; i++) {
+            addedNodes[i] = version.getNode(addedIds.get(i));
+            addedIndexById.put(addedIds.get(i), base.size() + i);
+        }
+
+        int size = base.size() + addedNodes.length;
+        long[] hidden = new long[(base.edgeCount() + 63) >>> 6];
+        boolean anyHidden = false;
+        List<List<CampusEdge>> extras = new ArrayList<>(Collections.nCopies(size, (List<CampusEdge>) null));
+        int extraCount = 0;
+        for (int id : touched) {
+            int u = base.indexOf(id);
+            if (u < 0) {
+                Integer added = addedIndexById.get(id);
+                if (added == null) {
+                    continue;
+                }
+                u = added;
+            }
+            // Pair each open edge with an unmatched base edge it is identical to; the rest are extras.
+            // Matching by target alone would let a re-added edge inherit the closed one's weight
+            boolean[] matched = u < base.size() ? new boolean[base.outEnd(u) - base.outStart(u)] : new boolean[0];
+            List<CampusEdge> unmatched = new ArrayList<>();
+            for (CampusEdge edge : version.getEdges(id)) {
+                int target = base.indexOf(edge.getDestination().getId());
+                boolean found = false;
+                if (target >= 0 && u < base.size()) {
+                    for (int e = base.outStart(u); e < base.outEnd(u) && !found; e++) {
+                        if (!matched[e - base.outStart(u)] && base.outTarget(e) == target && sameEdge(base, e, edge)) {
+                            matched[e - base.outStart(u)] = true;
+                            found = true;
+                        }
+                    }
+                }
+                if (!found) {
+                    unmatched.add(edge);
+                }
+            }
+            for (int i = 0; i < matched.length; i++) {
+                if (!matched[i]) {
+                    int e = base.outStart(u) + i;
+                    hidden[e >>> 6] |= 1L << e;
+                    anyHidden = true;
+                }
+            }
+            if (!unmatched.isEmpty()) {
+                extras.set(u, unmatched);
+                extraCount += unmatched.size();
+            }
+        }
+
+        int[] extraOffsets = new int[size + 1];
+        int[] extraTargets = new int[extraCount];
+        double[] extraWeights = new double[extraCount];
+        int cursor = 0;
+        for (int u = 0; u < size; u++) {
+            extraOffsets[u] = cursor;
+            List<CampusEdge> edges = extras.get(u);
+            if (edges == null) {
+                continue;
+            }
+            for (CampusEdge edge : edges) {
+                int destinationId = edge.getDestination().getId();
+                int v = base.indexOf(destinationId);
+                if (v < 0) {
+                    v = addedIndexById.getOrDefault(destinationId, -1);
+                }
+                if (v >= 0) {
+                    extraTargets[cursor] = v;
+                    extraWeights[cursor] = edge.getAdjustedDistance(base.getTimeOfDay());
+                    cursor++;
+                }
+            }
+        }
+        extraOffsets[size] = cursor;
+        return new DeltaOverlay(base, version, anyHidden ? hidden : null, addedNodes, addedIndexById,
+                extraOffsets, extraTargets, extraWeights);
+    }
+
+    /** Whether base edge e has edge's length and its weight under base's traffic profile. */
+    private static boolean sameEdge(IndexedGraph base, int e, CampusEdge edge) {
+        return base.outWeight(e) == edge.getAdjustedDistance(base.getTimeOfDay())
+                && base.outLength(e) == edge.getDistance();
+    }
+
+    GraphVersion getVersion() {
+        return version;
+    }
+
+    public boolean isEmpty() {
+        return extraOffsets == null;
+    }
+
+    public int size() {
+        return base.size() + addedNodes.length;
+    }
+
+    public int baseSize() {
+        return base.size();
+    }
+
+    public int indexOf(int nodeId) {
+        int index = base.indexOf(nodeId);
+        return index >= 0 ? index : addedIndexById.getOrDefault(nodeId, -1);
+    }
+
+    public CampusNode node(int index) {
+        return index < base.size() ? base.node(index) : addedNodes[index - base.size()];
+    }
+
+    public TimeOfDay getTimeOfDay() {
+        return base.getTimeOfDay();
+    }
+
+    public double latitudeRadians(int index) {
+        return index < base.size() ? base.latitudeRadians(index)
+                : Math.toRadians(addedNodes[index - base.size()].getLatitude());
+    }
+
+    public double longitudeRadians(int index) {
+        return index < base.size() ? base.longitudeRadians(index)
+                : Math.toRadians(addedNodes[index - base.size()].getLongitude());
+    }
+
+    public int extraStart(int u) {
+        return extraOffsets == null ? 0 : extraOffsets[u];
+    }
+
+    public int extraEnd(int u) {
+        return extraOffsets == null ? 0 : extraOffsets[u + 1];
+    }
+
+    public int extraTarget(int edge) {
+        return extraTargets[edge];
+    }
+
+    public double extraWeight(int edge) {
+        return extraWeights[edge];
+    }
+
+    public int extraInStart(int v) {
+        return extraInOffsets == null ? 0 : extraInOffsets[v];
+    }
+
+    public int extraInEnd(int v) {
+        return extraInOffsets == null ? 0 : extraInOffsets[v + 1];
+    }
+
+    public int extraInSource(int edge) {
+        return extraInSources[edge];
+    }
+
+    public double extraInWeight(int edge) {
+        return extraInWeights[edge];
+    }
+
+    /** blockedEdges with the base edges hidden by the edits added; either may be null. */
+    public long[] block(long[] blockedEdges) {
+        if (hiddenEdges == null) {
+            return blockedEdges;
+        }
+        if (blockedEdges == null) {
+            return hiddenEdges;
+        }
+        long[] combined = blockedEdges.clone();
+        for (int i = 0; i < combined.length; i++) {
+            combined[i] |= hiddenEdges[i];
+        }
+        return combined;
+    }
+}
+
+// ===== PATHFINDING ENGINE =====
+
+class PathfindingEngine {
+    private final CampusGraph graph;
+    // Published in one write so queries running during staged startup never see half-built tables
+    private volatile AllPairsTables allPairs;
+    private volatile long floydWarshallBuildTime;
+    // Size of the most recently built hub labels, NaN before any are built
+    private volatile double hubLabelBytesPerNode = Double.NaN;
+    // Full tables cost 12 bytes per node pair; beyond this budget rows are computed on demand
+    private final long allPairsBudgetBytes;
+    static final long DEFAULT_ALL_PAIRS_BUDGET_BYTES = 64L << 20;
+
+    static final String QUERY_METRIC = "Route query (total)";
+    static final String ALTERNATIVES_METRIC = "Alternative routes";
+    static final String CRP_CUSTOMIZATION_METRIC = "CRP customization";
+    static final String HUB_LABEL_BUILD_METRIC = "Hub label build";
+    static final String PARETO_METRIC = "Pareto front";
+    static final String TOUR_METRIC = "Tour planning";
+    static final String EVACUATION_METRIC = "Evacuation";
+    static final String RELIABILITY_METRIC = "Reliable route";
+    static final String ONE_TO_ALL_METRIC = "One-to-all";
+    static final String SHUTTLE_METRIC = "Shuttle journey";
+    static final String INDOOR_METRIC = "Indoor route";
+    static final String ONE_TO_MANY_METRIC = "One-to-many routes";
+    static final String PREVIEW_METRIC = "Preview route";
+    static final int MAX_PARETO_ROUTES = 4;
+    private final EngineMetrics metrics = new EngineMetrics();
+    private volatile QueryLog.Writer queryRecorder;
+    private volatile BackendVerifier backendVerifier;
+
+    // Derived indexes per compacted snapshot. Those of a superseded snapshot are dropped once no
+    // pinned query can still be using them; pending edits reach Dijkstra and A* through a DeltaOverlay
+    private final Map<GraphSnapshot, SnapshotIndexes> snapshotIndexes = new HashMap<>();
+    private GraphSnapshot newestIndexedSnapshot;
+    private final AtomicBoolean allPairsRefreshing = new AtomicBoolean();
+
+    private volatile EnumSet<RoutingBackend> enabledBackends = EnumSet.allOf(RoutingBackend.class);
+    // Backends whose preprocessing is done; comparison runs skip the others until prepareBackend
+    private volatile EnumSet<RoutingBackend> readyBackends;
+    private final ThreadLocal<SearchWorkspace> workspaces = new ThreadLocal<>();
+    // Second set for searches that must keep a forward search's workspace alive, such as via-landmark routes
+    private final ThreadLocal<SearchWorkspace> reverseWorkspaces = new ThreadLocal<>();
+    private volatile OneToAllAlgorithm oneToAllAlgorithm = OneToAllAlgorithm.AUTO;
+    private volatile ShuttleTimetable shuttleTimetable;
+    private volatile BuildingCatalog buildingCatalog;
+    private volatile QueryBudget defaultBudget = QueryBudget.UNLIMITED;
+    private volatile AdmissionControl admissionControl;
+    // Budget of the route query running on this thread, charged by checkCancelled
+    private static final ThreadLocal<QueryBudget.Meter> activeBudget = new ThreadLocal<>();
+    // Heuristic weight of the fallback search; its routes are at most this much longer than optimal
+    static final double FALLBACK_SEARCH_WEIGHT = 1.5;
+    static final double DEFAULT_SUBOPTIMALITY_EPSILON = 0.1;
+    static final long DEFAULT_ANYTIME_DEADLINE_MICROS = 2000;
+    // Anytime A* starts this many epsilons above optimal, then tightens while time remains
+    static final double ANYTIME_EPSILON_FACTOR = 5;
+    private volatile double suboptimalityEpsilon = DEFAULT_SUBOPTIMALITY_EPSILON;
+    private volatile long anytimeDeadlineMicros = DEFAULT_ANYTIME_DEADLINE_MICROS;
+
+    public PathfindingEngine(CampusGraph graph) {
+        this(graph, DEFAULT_ALL_PAIRS_BUDGET_BYTES);
+    }
+
+    /**
+     * Precomputes Floyd-Warshall tables when they fit in allPairsBudgetBytes. Otherwise the
+     * Floyd-Warshall backend answers from a {@link DistanceRowCache} bounded by the same budget.
+     */
+    public PathfindingEngine(CampusGraph graph, long allPairsBudgetBytes) {
+        this(graph, allPairsBudgetBytes, false);
+    }
+
+    private PathfindingEngine(CampusGraph graph, long allPairsBudgetBytes, boolean staged) {
+        this.graph = graph;
+        this.allPairsBudgetBytes = allPairsBudgetBytes;
+        graph.addCompactionListener(this::prepareSnapshot);
+        if (staged) {
+            this.readyBackends = EnumSet.of(RoutingBackend.DIJKSTRA);
+        } else {
+            this.readyBackends = EnumSet.allOf(RoutingBackend.class);
+            if (allPairsFitBudget()) {
+                precomputeFloydWarshall(null);
+            }
+        }
+    }
+
+    /**
+     * An engine that does no preprocessing up front: Dijkstra answers queries at once, and every
+     * other backend sits out of the comparison runs until {@link #prepareBackend} has built what
+     * it needs. Intended for startup, where the preparation runs on a background thread.
+     */
+    static PathfindingEngine staged(CampusGraph graph) {
+        return new PathfindingEngine(graph, DEFAULT_ALL_PAIRS_BUDGET_BYTES, true);
+    }
+
+    /**
+     * Builds whatever the backend needs for the traffic conditions as loaded, then marks it ready.
+     * Other profiles build theirs on first use. Safe to call while queries run on other threads.
+     */
+    public void prepareBackend(RoutingBackend backend) {
+        graph.pin();
+        try {
+            ProfileIndexes indexes = profileIndexes(null);
+            switch (backend) {
+                case FLOYD_WARSHALL:
+                    if (allPairs == null && allPairsFitBudget()) {
+                        precomputeFloydWarshall(null);
+                    }
+                    break;
+                case CRP:
+                    indexes.overlayMetrics(indexes.owner.overlayPartition(indexes.indexedGraph));
+                    break;
+                case HUB_LABELS:
+                    indexes.hubLabels(indexes.owner.overlayPartition(indexes.indexedGraph));
+                    break;
+                case OFF_HEAP:
+                    indexes.owner.offHeapGraph(indexes.indexedGraph);
+                    break;
+                default:
+                    // Dijkstra and the A* variants only need the indexed graph built above
+                    break;
+            }
+        } finally {
+            graph.unpin();
+        }
+        synchronized (this) {
+            EnumSet<RoutingBackend> ready = EnumSet.copyOf(readyBackends);
+            ready.add(backend);
+            readyBackends = ready;
+        }
+    }
+
+    public boolean isReady(RoutingBackend backend) {
+        return readyBackends.contains(backend);
+    }
+
+    private boolean allPairsFitBudget() {
+        long n = graph.getNodeCount();
+        return n * n * (Double.BYTES + Integer.BYTES) <= allPairsBudgetBytes;
+    }
+
+    public long getFloydWarshallBuildTime() {
+        return floydWarshallBuildTime;
+    }
+
+    /** Memory of the most recently built hub labels per node, or NaN before the backend has run. */
+    public double getHubLabelBytesPerNode() {
+        return hubLabelBytesPerNode;
+    }
+
+    public boolean isAllPairsPrecomputed() {
+        return allPairs != null;
+    }
+
+    /**
+     * Floyd-Warshall distance and next-hop tables over the dense indices of fwIndex, built from
+     * snapshot under the traffic profile for timeOfDay (null for the conditions as loaded).
+     */
+    private static final class AllPairsTables {
+        final GraphSnapshot snapshot;
+        final TimeOfDay timeOfDay;
+        final IndexedGraph fwIndex;
+        final double[][] fwDistances;
+        final int[][] fwNext;
+
+        AllPairsTables(GraphSnapshot snapshot, IndexedGraph fwIndex, double[][] fwDistances, int[][] fwNext) {
+            this.snapshot = snapshot;
+            this.timeOfDay = fwIndex.getTimeOfDay();
+            this.fwIndex = fwIndex;
+            this.fwDistances = fwDistances;
+            this.fwNext = fwNext;
+        }
+    }
+
+    private void precomputeFloydWarshall(TimeOfDay timeOfDay) {
+        long startTime = System.currentTimeMillis();
+        // Tables are indexed by dense index, so gaps in the external node ids cost nothing
+        GraphSnapshot snapshot = graph.currentVersion().getSnapshot();
+        IndexedGraph fwIndex = IndexedGraph.build(snapshot, timeOfDay);
+        int n = fwIndex.size();
+        double[][] fwDistances = new double[n][n];
+        int[][] fwNext = new int[n][n];
+
+        // Initialize matrices
+        for (int i = 0; i < n; i++) {
+            Arrays.fill(fwDistances[i], Double.POSITIVE_INFINITY);
+            Arrays.fill(fwNext[i], -1);
+            fwDistances[i][i] = 0;
+        }
+
+        // Populate with direct edges
+        for (int u = 0; u < n; u++) {
+            for (int e = fwIndex.outStart(u); e < fwIndex.outEnd(u); e++) {
+                int v = fwIndex.outTarget(e);
+                if (fwIndex.outWeight(e) < fwDistances[u][v]) {
+                    fwDistances[u][v] = fwIndex.outWeight(e);
+                    fwNext[u][v] = v;
+                }
+            }
+        }
+
+        // Floyd-Warshall algorithm; rows i and k are hoisted so the inner loop streams two arrays
+        for (int k = 0; k < n; k++) {
+            double[] rowK = fwDistances[k];
+            for (int i = 0; i < n; i++) {
+                double[] rowI = fwDistances[i];
+                double ik = rowI[k];
+                if (ik == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                int[] nextI = fwNext[i];
+                int nextIK = nextI[k];
+                for (int j = 0; j < n; j++) {
+                    double candidate = ik + rowK[j];
+                    if (candidate < rowI[j]) {
+                        rowI[j] = candidate;
+                        nextI[j] = nextIK;
+                    }
+                }
+            }
+        }
+
+        allPairs = new AllPairsTables(snapshot, fwIndex, fwDistances, fwNext);
+        floydWarshallBuildTime = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Returns the k landmarks of a type closest to the origin by traffic-adjusted network distance
+     * under the given traffic profile. Answered from precomputed labels for that profile when k is
+     * small enough, otherwise by an exact search.
+     */
+    public List<LandmarkDistance> findNearestLandmarks(CampusNode origin, LandmarkType type, int k,
+            TimeOfDay timeOfDay) {
+        graph.pin();
+        try {
+            return profileIndexes(timeOfDay).nearestLandmarks.nearest(origin, type, k);
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    /**
+     * Indexes for the snapshot of the version this thread sees, under the traffic profile for
+     * timeOfDay (null for the conditions as loaded). A query resolves these once and passes them
+     * down, so every search it runs sees the same weights.
+     */
+    private ProfileIndexes profileIndexes(TimeOfDay timeOfDay) {
+        GraphSnapshot snapshot = graph.currentVersion().getSnapshot();
+        // Traffic conditions are a pure function of the profile, so indexes stay valid per profile
+        return snapshotIndexes(snapshot, true).forProfile(timeOfDay);
+    }
+
+    /**
+     * Entry for snapshot. Once a query sees a published snapshot, every query that starts later
+     * sees it or a newer one, so all older entries are retired from that point.
+     */
+    private synchronized SnapshotIndexes snapshotIndexes(GraphSnapshot snapshot, boolean published) {
+        SnapshotIndexes indexes = snapshotIndexes.computeIfAbsent(snapshot, SnapshotIndexes::new);
+        if (published && (newestIndexedSnapshot == null || snapshot.getId() > newestIndexedSnapshot.getId())) {
+            newestIndexedSnapshot = snapshot;
+            List<GraphSnapshot> superseded = new ArrayList<>();
+            for (GraphSnapshot indexed : snapshotIndexes.keySet()) {
+                if (indexed.getId() < snapshot.getId()) {
+                    superseded.add(indexed);
+                }
+            }
+            if (!superseded.isEmpty()) {
+                graph.retire(() -> releaseSnapshots(superseded));
+            }
+        }
+        return indexes;
+    }
+
+    private synchronized void releaseSnapshots(List<GraphSnapshot> snapshots) {
+        snapshotIndexes.keySet().removeAll(snapshots);
+    }
+
+    /** Compaction listener: builds indexes for the profiles in use before the snapshot is published. */
+    private void prepareSnapshot(GraphSnapshot snapshot) {
+        SnapshotIndexes indexes = snapshotIndexes(snapshot, false);
+        for (TimeOfDay timeOfDay : profilesInUse()) {
+            indexes.forProfile(timeOfDay);
+        }
+    }
+
+    /** Profiles indexed on the newest published snapshot; the loaded conditions before any query. */
+    private synchronized List<TimeOfDay> profilesInUse() {
+        SnapshotIndexes newest = newestIndexedSnapshot == null ? null : snapshotIndexes.get(newestIndexedSnapshot);
+        return newest == null ? Collections.singletonList(null) : newest.profiles();
+    }
+
+    /**
+     * Finds routes under the traffic profile for the given time of day, or under the conditions as
+     * loaded when it is null. Queries made through this entry point are appended to the attached
+     * query recorder, if any.
+     */
+    public RoutingResult findOptimalRoutes(CampusNode source, CampusNode destination, LandmarkType landmarkFilter,
+            TimeOfDay timeOfDay) {
+        return findOptimalRoutes(source, destination, landmarkFilter, timeOfDay, RoutingListener.NONE);
+    }
+
+    /**
+     * Progressive variant: the listener hears about the optimal route as soon as Dijkstra finds it
+     * and about each alternative as it is generated, before the final ranked result is returned.
+     * Interrupting the calling thread aborts the search with a QueryCancelledException.
+     */
+    public RoutingResult findOptimalRoutes(CampusNode source, CampusNode destination, LandmarkType landmarkFilter,
+            TimeOfDay timeOfDay, RoutingListener listener) {
+        return findOptimalRoutes(source, destination, landmarkFilter, timeOfDay, RouteConstraints.NONE, listener);
+    }
+
+    /**
+     * As above, with every user-facing route (optimal, alternatives, via-landmark and Pareto)
+     * restricted by constraints. Comparison backends that cannot honour constraints are skipped.
+     */
+    public RoutingResult findOptimalRoutes(CampusNode source, CampusNode destination, LandmarkType landmarkFilter,
+            TimeOfDay timeOfDay, RouteConstraints constraints, RoutingListener listener) {
+        return findOptimalRoutes(source, destination, landmarkFilter, timeOfDay, constraints, listener, defaultBudget);
+    }
+
+    /**
+     * As above, within budget. A query that outgrows it degrades rather than fails: see
+     * {@link RoutingResult#getDegradationLevel()}. With admission control set, the call may
+     * wait for a slot, or be refused with a QueryRejectedException when the queue is full.
+     */
+    public RoutingResult findOptimalRoutes(CampusNode source, CampusNode destination, LandmarkType landmarkFilter,
+            TimeOfDay timeOfDay, RouteConstraints constraints, RoutingListener listener, QueryBudget budget) {
+        QueryLog.Writer recorder = queryRecorder;
+        if (recorder != null) {
+            recorder.append(source.getId(), destination.getId(), landmarkFilter, timeOfDay, constraints, -1);
+        }
+        return computeRoutes(source, destination, landmarkFilter, timeOfDay, constraints, listener, budget);
+    }
+
+    /** Budget for route queries that do not pass their own. */
+    public void setDefaultBudget(QueryBudget defaultBudget) {
+        this.defaultBudget = defaultBudget;
+    }
+
+    public QueryBudget getDefaultBudget() {
+        return defaultBudget;
+    }
+
+    /** Bounds concurrent route queries and sheds load past its queue; null admits everything. */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public void setQueryRecorder(QueryLog.Writer queryRecorder) {
+        this.queryRecorder = queryRecorder;
+    }
+
+    /** Checks a sample of answers against a reference search in the background; null turns it off. */
+    public void setBackendVerifier(BackendVerifier backendVerifier) {
+        this.backendVerifier = backendVerifier;
+    }
+
+    public BackendVerifier getBackendVerifier() {
+        return backendVerifier;
+    }
+
+    /** Timetable used by {@link #planShuttleJourney}; null disables shuttle routing. */
+    public void setShuttleTimetable(ShuttleTimetable shuttleTimetable) {
+        this.shuttleTimetable = shuttleTimetable;
+    }
+
+    public ShuttleTimetable getShuttleTimetable() {
+        return shuttleTimetable;
+    }
+
+    /** Buildings used by {@link #findIndoorRoute}; null disables indoor routing. */
+    public void setBuildingCatalog(BuildingCatalog buildingCatalog) {
+        this.buildingCatalog = buildingCatalog;
+    }
+
+    public BuildingCatalog getBuildingCatalog() {
+        return buildingCatalog;
+    }
+
+    /** Weighted A* answers within 1 + epsilon of optimal; anytime A* starts from a looser bound. */
+    public void setSuboptimalityEpsilon(double epsilon) {
+        if (!(epsilon > 0)) {
+            throw new IllegalArgumentException("epsilon must be positive: " + epsilon);
+        }
+        this.suboptimalityEpsilon = epsilon;
+    }
+
+    public double getSuboptimalityEpsilon() {
+        return suboptimalityEpsilon;
+    }
+
+    /** How long anytime A* keeps improving its first route in the comparison runs. */
+    public void setAnytimeDeadlineMicros(long anytimeDeadlineMicros) {
+        this.anytimeDeadlineMicros = anytimeDeadlineMicros;
+    }
+
+    public long getAnytimeDeadlineMicros() {
+        return anytimeDeadlineMicros;
+    }
+
+    public OneToAllAlgorithm getOneToAllAlgorithm() {
+        return oneToAllAlgorithm;
+    }
+
+    /** Algorithm for searches that need every node: distance rows, nearest exits and {@link #shortestPathTree}. */
+    public void setOneToAllAlgorithm(OneToAllAlgorithm oneToAllAlgorithm) {
+        this.oneToAllAlgorithm = oneToAllAlgorithm;
+    }
+
+    /**
+     * Distances from source to every node under the given traffic profile, for isochrones and
+     * one-to-all tables. Closures apply at once; nodes and edges added since the last compaction
+     * are not included until it runs, and such a source is rejected with an IllegalArgumentException.
+     */
+    public ShortestPathTree shortestPathTree(CampusNode source, TimeOfDay timeOfDay) {
+        graph.pin();
+        try {
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            int s = indexes.indexedGraph.indexOf(source.getId());
+            if (s < 0) {
+                throw new IllegalArgumentException("Source is not in the indexed graph: " + source.getName());
+            }
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            ShortestPathTree tree = ShortestPathTree.compute(indexes.indexedGraph, oneToAllAlgorithm, new int[] { s },
+                    false, indexes.deltaOverlay(graph.currentVersion()).block(null), stats);
+            metrics.record(ONE_TO_ALL_METRIC, System.nanoTime() - begin, stats);
+            return tree;
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    /**
+     * Shortest routes from source to each destination under the given traffic profile and
+     * constraints, from a single Dijkstra that stops once every destination is settled. A
+     * destination that cannot be reached maps to an empty route.
+     */
+    public Map<CampusNode, Route> findRoutesFrom(CampusNode source, Collection<CampusNode> destinations,
+            TimeOfDay timeOfDay, RouteConstraints constraints) {
+        graph.pin();
+        try {
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            DeltaOverlay overlay = indexes.deltaOverlay(graph.currentVersion());
+            Map<CampusNode, Route> routes = new LinkedHashMap<>();
+            int s = overlay.indexOf(source.getId());
+            int[] targets = destinations.stream().mapToInt(d -> overlay.indexOf(d.getId())).filter(i -> i >= 0)
+                    .distinct().sorted().toArray();
+            SearchWorkspace workspace = s < 0 || targets.length == 0 ? null
+                    : searchUntilSettled(indexes.indexedGraph, overlay, s, targets, indexes.blockedEdges(constraints),
+                            stats);
+            for (CampusNode destination : destinations) {
+                int t = overlay.indexOf(destination.getId());
+                routes.put(destination,
+                        workspace == null || t < 0 ? new Route() : reconstructPath(overlay, workspace, t));
+            }
+            metrics.record(ONE_TO_MANY_METRIC, System.nanoTime() - begin, stats);
+            return routes;
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    public RoutingResult findOptimalRoutes(CampusNode source, CampusNode destination, LandmarkType landmarkFilter) {
+        return computeRoutes(source, destination, landmarkFilter, null, RouteConstraints.NONE, RoutingListener.NONE,
+                defaultBudget);
+    }
+
+    private RoutingResult computeRoutes(CampusNode source, CampusNode destination, LandmarkType landmarkFilter,
+            TimeOfDay timeOfDay, RouteConstraints constraints, RoutingListener listener, QueryBudget budget) {
+        QueryBudget.Meter meter = budget.start();
+        AdmissionControl admission = admissionControl;
+        // Time spent queued counts against the deadline; a long queue means answering with less
+        DegradationLevel level = admission == null ? DegradationLevel.NONE : admission.admit(meter);
+        QueryBudget.Meter callerMeter = activeBudget.get();
+        graph.pin();
+        try {
+            activeBudget.set(meter);
+            List<AlgorithmResult> algorithmResults = new ArrayList<>();
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            long[] blockedEdges = indexes.blockedEdges(constraints);
+
+            long queryStart = System.nanoTime();
+
+            // Run Dijkstra's Algorithm, falling back to a bounded-suboptimal search if it runs out of budget
+            Route dijkstraRoute;
+            try {
+                dijkstraRoute = runMeasured("Dijkstra", source, destination, algorithmResults,
+                        stats -> runDijkstra(indexes, source, destination, blockedEdges, stats));
+            } catch (BudgetExceededException e) {
+                activeBudget.set(meter.fallback());
+                try {
+                    dijkstraRoute = runMeasured("Weighted A*", source, destination, algorithmResults,
+                            stats -> {
+                                stats.suboptimalityBound = FALLBACK_SEARCH_WEIGHT;
+                                return runWeightedAStar(indexes, source, destination, blockedEdges,
+                                        FALLBACK_SEARCH_WEIGHT, stats);
+                            });
+                    level = DegradationLevel.SUBOPTIMAL;
+                } catch (BudgetExceededException fallbackExceeded) {
+                    dijkstraRoute = new Route();
+                    level = DegradationLevel.BUDGET_EXHAUSTED;
+                }
+            }
+            listener.onOptimalRoute(dijkstraRoute);
+            int maxRoutes = budget.getMaxAlternatives() == Integer.MAX_VALUE ? Integer.MAX_VALUE
+                    : budget.getMaxAlternatives() + 1;
+            if (level.compareTo(DegradationLevel.OPTIMAL_ONLY) >= 0 || maxRoutes == 1) {
+                List<Route> routes = dijkstraRoute.getPath().isEmpty() ? new ArrayList<>()
+                        : new ArrayList<>(Collections.singletonList(dijkstraRoute));
+                return finishQuery(routes.isEmpty() ? null : dijkstraRoute, routes, algorithmResults,
+                        Collections.emptyList(), level, queryStart);
+            }
+
+            // Generate alternative routes
+            SearchStats alternativeStats = new SearchStats();
+            long alternativesStart = System.nanoTime();
+            List<Route> alternativeRoutes = generateAlternativeRoutes(indexes, source, destination, landmarkFilter,
+                    dijkstraRoute, constraints, maxRoutes, alternativeStats, listener);
+            metrics.record(ALTERNATIVES_METRIC, System.nanoTime() - alternativesStart, alternativeStats);
+
+            // Pareto trade-offs join the alternatives so the table shows what each one gives up
+            List<Route> paretoRoutes = Collections.emptyList();
+            if (!meter.isExhausted()) {
+                SearchStats paretoStats = new SearchStats();
+                long paretoStart = System.nanoTime();
+                try {
+                    paretoRoutes = runPareto(indexes, source, destination, Math.min(MAX_PARETO_ROUTES, maxRoutes - 1),
+                            blockedEdges, paretoStats);
+                } catch (BudgetExceededException e) {
+                    // Partial fronts would be misleading, so none is shown
+                }
+                metrics.record(PARETO_METRIC, System.nanoTime() - paretoStart, paretoStats);
+            }
+            for (Route route : paretoRoutes) {
+                if (alternativeRoutes.size() < maxRoutes && !alternativeRoutes.contains(route)) {
+                    alternativeRoutes.add(route);
+                    listener.onAlternativeRoute(route);
+                }
+            }
+
+            // Comparison runs only feed the algorithm table, so they go after the user-facing routes
+            Map<String, Route> backendRoutes = new LinkedHashMap<>();
+            backendRoutes.put(RoutingBackend.DIJKSTRA.getDisplayName(), dijkstraRoute);
+            EnumSet<RoutingBackend> ready = readyBackends;
+            try {
+                for (RoutingBackend backend : enabledBackends) {
+                    if (backend != RoutingBackend.DIJKSTRA && ready.contains(backend)
+                            && (blockedEdges == null || backend.supportsConstraints()) && !meter.isExhausted()) {
+                        backendRoutes.put(backend.getDisplayName(), runMeasured(backend.getDisplayName(), source,
+                                destination, algorithmResults,
+                                stats -> runBackend(indexes, backend, source, destination, blockedEdges, stats)));
+                    }
+                }
+            } catch (BudgetExceededException e) {
+                // The comparison table simply stops at the backend that ran out
+            }
+            BackendVerifier verifier = backendVerifier;
+            if (verifier != null && level == DegradationLevel.NONE && verifier.shouldSample()) {
+                Map<String, Double> bounds = new HashMap<>();
+                for (AlgorithmResult result : algorithmResults) {
+                    if (result.getSuboptimalityBound() != 1.0) {
+                        bounds.put(result.getAlgorithmName(), result.getSuboptimalityBound());
+                    }
+                }
+                GraphVersion version = graph.currentVersion();
+                verifier.submit(indexes.indexedGraph, blockedEdges, version,
+                        new RecordedQuery(0, source.getId(), destination.getId(), landmarkFilter, timeOfDay,
+                                constraints, version.getSnapshot().getId()),
+                        backendRoutes, bounds);
+            }
+            if (meter.isExhausted() && level == DegradationLevel.NONE) {
+                level = DegradationLevel.ALTERNATIVES_TRIMMED;
+            }
+
+            // Sort routes by efficiency (distance + time factor), but never rank a route above one
+            // that is no better on any criterion: dominated routes go after the Pareto front
+            alternativeRoutes.sort((r1, r2) -> {
+                double score1 = r1.getTotalDistance() + r1.getEstimatedTime() * 50; // Weight time higher
+                double score2 = r2.getTotalDistance() + r2.getEstimatedTime() * 50;
+                return Double.compare(score1, score2);
+            });
+            List<Route> dominatedRoutes = new ArrayList<>();
+            for (Route route : alternativeRoutes) {
+                for (Route other : alternativeRoutes) {
+                    if (other != route && other.dominates(route) && !route.dominates(other)) {
+                        dominatedRoutes.add(route);
+                        break;
+                    }
+                }
+            }
+            alternativeRoutes.removeAll(dominatedRoutes);
+            alternativeRoutes.addAll(dominatedRoutes);
+
+            Route optimalRoute = alternativeRoutes.isEmpty() ? null : alternativeRoutes.get(0);
+            return finishQuery(optimalRoute, alternativeRoutes, algorithmResults, paretoRoutes, level, queryStart);
+        } finally {
+            if (callerMeter == null) {
+                activeBudget.remove();
+            } else {
+                activeBudget.set(callerMeter);
+            }
+            graph.unpin();
+            if (admission != null) {
+                admission.release();
+            }
+        }
+    }
+
+    private RoutingResult finishQuery(Route optimalRoute, List<Route> alternativeRoutes,
+            List<AlgorithmResult> algorithmResults, List<Route> paretoRoutes, DegradationLevel level, long queryStart) {
+        SearchStats queryStats = new SearchStats();
+        queryStats.pathLength = optimalRoute == null ? 0 : optimalRoute.getPath().size();
+        metrics.record(QUERY_METRIC, System.nanoTime() - queryStart, queryStats);
+        return new RoutingResult(optimalRoute, alternativeRoutes, algorithmResults, paretoRoutes, level);
+    }
+
+    /**
+     * A quick route for interactive previews under the given traffic profile: anytime A* finds a
+     * first route within 1 + 5 epsilon of optimal, then tightens it until deadlineMicros have
+     * passed. The result carries the bound it reached.
+     */
+    public BoundedRoute findPreviewRoute(CampusNode source, CampusNode destination, TimeOfDay timeOfDay,
+            long deadlineMicros) {
+        graph.pin();
+        try {
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            Route route = runAnytimeAStar(profileIndexes(timeOfDay), source, destination, null,
+                    1 + ANYTIME_EPSILON_FACTOR * suboptimalityEpsilon,
+                    begin + TimeUnit.MICROSECONDS.toNanos(deadlineMicros), stats);
+            stats.pathLength = route.getPath().size();
+            metrics.record(PREVIEW_METRIC, System.nanoTime() - begin, stats);
+            return new BoundedRoute(route, stats.suboptimalityBound);
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    /**
+     * Returns up to maxRoutes representative routes from the Pareto front over walking distance,
+     * estimated time and heavy-traffic exposure under the given traffic profile, ordered by distance.
+     */
+    public List<Route> findParetoRoutes(CampusNode source, CampusNode destination, int maxRoutes,
+            TimeOfDay timeOfDay) {
+        graph.pin();
+        try {
+            SearchStats stats = new SearchStats();
+            long start = System.nanoTime();
+            List<Route> routes = runPareto(profileIndexes(timeOfDay), source, destination, maxRoutes, null, stats);
+            metrics.record(PARETO_METRIC, System.nanoTime() - start, stats);
+            return routes;
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    /**
+     * Finds the route most likely to arrive in time under the given traffic profile, treating
+     * walking times as random. With a deadline (in minutes; NaN for none) the best route is the
+     * one most likely to make it; otherwise the one with the least percentile time, e.g. the
+     * 0.95 quantile. percentile must be in [0.5, 1).
+     */
+    public ReliabilityPlan findReliableRoute(CampusNode source, CampusNode destination, double percentile,
+            double deadlineMinutes, TimeOfDay timeOfDay) {
+        if (!(percentile >= 0.5 && percentile < 1)) {
+            throw new IllegalArgumentException("percentile must be in [0.5, 1): " + percentile);
+        }
+        graph.pin();
+        try {
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            IndexedGraph indexed = indexes.indexedGraph;
+            int s = indexed.indexOf(source.getId());
+            int t = indexed.indexOf(destination.getId());
+            List<RouteReliability> candidates = new ArrayList<>();
+            RouteReliability best = null;
+            if (s >= 0 && t >= 0) {
+                // As with the Pareto front, closures apply at once and added edges after compaction
+                long[] blockedEdges = indexes.deltaOverlay(graph.currentVersion()).block(null);
+                for (ReliabilityRouter.Candidate candidate : indexes.reliabilityRouter.query(s, t, percentile,
+                        deadlineMinutes, blockedEdges, stats)) {
+                    RouteReliability scored = new RouteReliability(toRoute(candidate.getPath(), indexed),
+                            candidate.getMeanMinutes(), candidate.getStdDevMinutes(),
+                            candidate.getPercentileMinutes(), candidate.getOnTimeProbability());
+                    candidates.add(scored);
+                    if (best == null || moreReliable(scored, best, deadlineMinutes)) {
+                        best = scored;
+                    }
+                }
+            }
+            metrics.record(RELIABILITY_METRIC, System.nanoTime() - begin, stats);
+            return new ReliabilityPlan(best, candidates, percentile, deadlineMinutes);
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    /**
+     * Journeys from source to destination leaving at departure, combining walks under the given
+     * traffic profile with rides on the shuttle timetable: the earliest arrival, plus every
+     * journey with fewer rides that arrives later. Walking all the way is the zero-ride journey.
+     */
+    public JourneyPlan planShuttleJourney(CampusNode source, CampusNode destination, LocalTime departure,
+            TimeOfDay timeOfDay) {
+        ShuttleTimetable timetable = shuttleTimetable;
+        if (timetable == null) {
+            throw new IllegalStateException("No shuttle timetable loaded");
+        }
+        graph.pin();
+        try {
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            int s = indexes.indexedGraph.indexOf(source.getId());
+            int t = indexes.indexedGraph.indexOf(destination.getId());
+            JourneyPlan plan;
+            if (s < 0 || t < 0) {
+                plan = new JourneyPlan(departure.toSecondOfDay(), Collections.emptyList());
+            } else {
+                plan = indexes.shuttleRouter(timetable, indexes.deltaOverlay(graph.currentVersion()))
+                        .query(s, t, departure.toSecondOfDay(), stats);
+            }
+            metrics.record(SHUTTLE_METRIC, System.nanoTime() - begin, stats);
+            return plan;
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    /**
+     * Lightest route between two locations, either of which may be inside a registered building,
+     * under the given traffic profile. Buildings on the way count as shortcuts between their
+     * entrances; only the interiors of the endpoint buildings are loaded.
+     */
+    public IndoorRoute findIndoorRoute(IndoorLocation from, IndoorLocation to, TimeOfDay timeOfDay) {
+        BuildingCatalog catalog = buildingCatalog;
+        if (catalog == null && (from.isIndoors() || to.isIndoors())) {
+            throw new IllegalStateException("No building catalog set");
+        }
+        graph.pin();
+        try {
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            IndoorRoute route = indexes.indoorRouter(catalog, indexes.deltaOverlay(graph.currentVersion()))
+                    .route(from, to, catalog, stats);
+            metrics.record(INDOOR_METRIC, System.nanoTime() - begin, stats);
+            return route;
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    private static boolean moreReliable(RouteReliability a, RouteReliability b, double deadlineMinutes) {
+        if (!Double.isNaN(deadlineMinutes) && a.getOnTimeProbability() != b.getOnTimeProbability()) {
+            return a.getOnTimeProbability() > b.getOnTimeProbability();
+        }
+        return a.getPercentileMinutes() < b.getPercentileMinutes();
+    }
+
+    /**
+     * Plans a multi-stop tour from start through every stop under the given traffic profile,
+     * finishing at end, or at whichever stop comes last if end is null. Pass end == start for a
+     * round trip.
+     */
+    public TourPlan planTour(CampusNode start, CampusNode end, List<TourStop> stops, TimeOfDay timeOfDay) {
+        return planTour(start, end, stops, timeOfDay, defaultBudget);
+    }
+
+    /**
+     * As above, charging every search to budget. A tour has no cheaper answer to degrade to, so
+     * one that outgrows its budget fails with a BudgetExceededException.
+     */
+    public TourPlan planTour(CampusNode start, CampusNode end, List<TourStop> stops, TimeOfDay timeOfDay,
+            QueryBudget budget) {
+        QueryBudget.Meter callerMeter = activeBudget.get();
+        graph.pin();
+        try {
+            activeBudget.set(budget.start());
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            // Closures apply at once; edges added since the last compaction are used after it
+            TourPlanner planner = new TourPlanner(graph, indexes.indexedGraph, oneToAllAlgorithm,
+                    indexes.deltaOverlay(graph.currentVersion()).block(null));
+            TourPlan plan = planner.plan(start, end, stops, stats);
+            stats.pathLength = plan.getRoute().getPath().size();
+            metrics.record(TOUR_METRIC, System.nanoTime() - begin, stats);
+            return plan;
+        } finally {
+            if (callerMeter == null) {
+                activeBudget.remove();
+            } else {
+                activeBudget.set(callerMeter);
+            }
+            graph.unpin();
+        }
+    }
+
+    /** Nearest ENTRANCE node of every node under the given traffic profile, from a single reverse search. */
+    public EvacuationPlan findNearestExits(TimeOfDay timeOfDay) {
+        graph.pin();
+        try {
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            // Closures apply at once; edges added since the last compaction are used after it
+            EvacuationPlan plan = new EvacuationPlanner(indexes.indexedGraph).nearestExits(graph, oneToAllAlgorithm,
+                    indexes.deltaOverlay(graph.currentVersion()).block(null), stats);
+            metrics.record(EVACUATION_METRIC, System.nanoTime() - begin, stats);
+            return plan;
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    /**
+     * Capacity-aware evacuation to ENTRANCE nodes: at most edgeCapacity people per edge and, if
+     * exitCapacity is positive, per exit, minimising total traffic-adjusted walking distance.
+     * edgeCapacity must be positive.
+     */
+    public CapacitatedEvacuation planEvacuation(Map<CampusNode, Integer> occupants, int edgeCapacity,
+            int exitCapacity, TimeOfDay timeOfDay) {
+        if (edgeCapacity <= 0) {
+            throw new IllegalArgumentException("edgeCapacity must be positive: " + edgeCapacity);
+        }
+        graph.pin();
+        try {
+            ProfileIndexes indexes = profileIndexes(timeOfDay);
+            IndexedGraph indexed = indexes.indexedGraph;
+            int[] people = new int[indexed.size()];
+            for (Map.Entry<CampusNode, Integer> entry : occupants.entrySet()) {
+                int v = indexed.indexOf(entry.getKey().getId());
+                if (v < 0) {
+                    throw new IllegalArgumentException(
+                            "Occupied node is not in the graph: " + entry.getKey().getName());
+                }
+                people[v] += entry.getValue();
+            }
+            SearchStats stats = new SearchStats();
+            long begin = System.nanoTime();
+            CapacitatedEvacuation evacuation = new EvacuationPlanner(indexed).assign(graph, people, edgeCapacity,
+                    exitCapacity, indexes.deltaOverlay(graph.currentVersion()).block(null), stats);
+            metrics.record(EVACUATION_METRIC, System.nanoTime() - begin, stats);
+            return evacuation;
+        } finally {
+            graph.unpin();
+        }
+    }
+
+    private List<Route> runPareto(ProfileIndexes indexes, CampusNode source, CampusNode destination, int maxRoutes,
+            long[] blockedEdges, SearchStats stats) {
+        IndexedGraph indexed = indexes.indexedGraph;
+        int s = indexed.indexOf(source.getId());
+        int t = indexed.indexOf(destination.getId());
+        List<Route> routes = new ArrayList<>();
+        if (s < 0 || t < 0) {
+            return routes;
+        }
+        // Closures apply at once; edges added since the last compaction join the front after it
+        blockedEdges = indexes.deltaOverlay(graph.currentVersion()).block(blockedEdges);
+        for (IndexedPath path : indexes.paretoRouter.query(s, t, maxRoutes, blockedEdges, stats)) {
+            routes.add(toRoute(path, indexed));
+        }
+        return routes;
+    }
+
+    /**
+     * Runs one algorithm, times it, and records the result in the algorithm table,
+     * the engine metrics and (when enabled) a RoutingQueryEvent for JFR.
+     */
+    private Route runMeasured(String algorithmName, CampusNode source, CampusNode destination,
+            List<AlgorithmResult> algorithmResults, Function<SearchStats, Route> search) {
+        SearchStats stats = new SearchStats();
+        RoutingQueryEvent event = new RoutingQueryEvent();
+        event.begin();
+        long startTime = System.nanoTime();
+
+        Route route = search.apply(stats);
+
+        long elapsedNanos = System.nanoTime() - startTime;
+        event.end();
+        stats.pathLength = route != null ? route.getPath().size() : 0;
+
+        metrics.record(algorithmName, elapsedNanos, stats);
+        if (event.shouldCommit()) {
+            event.algorithm = algorithmName;
+            event.sourceId = source.getId();
+            event.destinationId = destination.getId();
+            event.nodesSettled = stats.nodesSettled;
+            event.edgesRelaxed = stats.edgesRelaxed;
+            event.heapPushes = stats.heapPushes;
+            event.heapPops = stats.heapPops;
+            event.pathLength = stats.pathLength;
+            event.commit();
+        }
+
+        algorithmResults.add(new AlgorithmResult(algorithmName,
+                route != null ? route.getTotalDistance() : 0, elapsedNanos / 1000, stats, stats.suboptimalityBound));
+        return route;
+    }
+
+    public EngineMetrics getMetrics() {
+        return metrics;
+    }
+
+    public CampusGraph getGraph() {
+        return graph;
+    }
+
+    /** Dijkstra always runs because it produces the routes; the other backends are compared against it. */
+    public void setEnabledBackends(Set<RoutingBackend> backends) {
+        EnumSet<RoutingBackend> enabled = EnumSet.of(RoutingBackend.DIJKSTRA);
+        enabled.addAll(backends);
+        this.enabledBackends = enabled;
+    }
+
+    public Set<RoutingBackend> getEnabledBackends() {
+        return Collections.unmodifiableSet(enabledBackends);
+    }
+
+    private Route runBackend(ProfileIndexes indexes, RoutingBackend backend, CampusNode source,
+            CampusNode destination, long[] blockedEdges, SearchStats stats) {
+        switch (backend) {
+            case A_STAR:
+                return runAStar(indexes, source, destination, blockedEdges, stats);
+            case WEIGHTED_A_STAR:
+                stats.suboptimalityBound = 1 + suboptimalityEpsilon;
+                return runWeightedAStar(indexes, source, destination, blockedEdges, 1 + suboptimalityEpsilon, stats);
+            case ANYTIME_A_STAR:
+                return runAnytimeAStar(indexes, source, destination, blockedEdges,
+                        1 + ANYTIME_EPSILON_FACTOR * suboptimalityEpsilon,
+                        System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(anytimeDeadlineMicros), stats);
+            case FLOYD_WARSHALL:
+                return runFloydWarshall(indexes, source, destination, stats);
+            case CRP:
+                return runOverlay(indexes, source, destination, stats);
+            case HUB_LABELS:
+                return runHubLabels(indexes, source, destination, stats);
+            case OFF_HEAP:
+                return runOffHeap(indexes, source, destination, blockedEdges, stats);
+            case DIJKSTRA:
+            default:
+                return runDijkstra(indexes, source, destination, blockedEdges, stats);
+        }
+    }
+
+    private Route runOverlay(ProfileIndexes indexes, CampusNode source, CampusNode destination, SearchStats stats) {
+        IndexedGraph indexed = indexes.indexedGraph;
+        int s = indexed.indexOf(source.getId());
+        int t = indexed.indexOf(destination.getId());
+        if (s < 0 || t < 0) {
+            return new Route();
+        }
+        return toRoute(indexes.overlayMetrics(indexes.owner.overlayPartition(indexed)).query(s, t, stats), indexed);
+    }
+
+    private Route runHubLabels(ProfileIndexes indexes, CampusNode source, CampusNode destination, SearchStats stats) {
+        IndexedGraph indexed = indexes.indexedGraph;
+        int s = indexed.indexOf(source.getId());
+        int t = indexed.indexOf(destination.getId());
+        if (s < 0 || t < 0) {
+            return new Route();
+        }
+        return toRoute(indexes.hubLabels(indexes.owner.overlayPartition(indexed)).query(s, t, stats), indexed);
+    }
+
+    private Route runOffHeap(ProfileIndexes indexes, CampusNode source, CampusNode destination, long[] blockedEdges,
+            SearchStats stats) {
+        IndexedGraph indexed = indexes.indexedGraph;
+        OffHeapGraph store = indexes.owner.offHeapGraph(indexed);
+        // Closures apply at once; edges added since the last compaction are used after it
+        blockedEdges = indexes.deltaOverlay(graph.currentVersion()).block(blockedEdges);
+        return toRoute(store.dijkstra(source.getId(), destination.getId(), indexed.getTimeOfDay(), blockedEdges,
+                stats), indexed);
+    }
+
+    private Route toRoute(IndexedPath indexedPath, IndexedGraph indexed) {
+        if (indexedPath.isEmpty()) {
+            return new Route();
+        }
+        List<CampusNode> path = new ArrayList<>(indexedPath.getNodes().length);
+        for (int node : indexedPath.getNodes()) {
+            path.add(indexed.node(node));
+        }
+        return new Route(path, indexedPath.getDistance(), graph, indexed.getTimeOfDay());
+    }
+
+    /**
+     * At most maxRoutes routes, the optimal one included. Stops early, keeping what it has, when
+     * the query's budget runs out.
+     */
+    private List<Route> generateAlternativeRoutes(ProfileIndexes indexes, CampusNode source, CampusNode destination,
+            LandmarkType landmarkFilter, Route optimalRoute, RouteConstraints constraints, int maxRoutes,
+            SearchStats stats, RoutingListener listener) {
+        Set<Route> routes = new HashSet<>();
+        try {
+            addAlternativeRoutes(indexes, routes, source, destination, landmarkFilter, optimalRoute, constraints,
+                    maxRoutes, stats, listener);
+        } catch (BudgetExceededException e) {
+            // Keep the alternatives found so far
+        }
+        return new ArrayList<>(routes);
+    }
+
+    private void addAlternativeRoutes(ProfileIndexes indexes, Set<Route> routes, CampusNode source,
+            CampusNode destination, LandmarkType landmarkFilter, Route optimalRoute, RouteConstraints constraints,
+            int maxRoutes, SearchStats stats, RoutingListener listener) {
+        long[] blockedEdges = indexes.blockedEdges(constraints);
+
+        // 1. Direct optimal route
+        if (optimalRoute != null && !optimalRoute.getPath().isEmpty()) {
+            routes.add(optimalRoute);
+        }
+
+        // 2. Route via specific landmark type
+        if (landmarkFilter != null && routes.size() < maxRoutes) {
+            Route landmarkRoute = findRouteThroughLandmark(indexes, source, destination, landmarkFilter, blockedEdges,
+                    stats);
+            if (landmarkRoute != null && !landmarkRoute.getPath().isEmpty()) {
+                addAlternative(routes, landmarkRoute, listener);
+            }
+        }
+
+        // 3. Low-traffic route (avoid heavy traffic)
+        if (routes.size() >= maxRoutes) {
+            return;
+        }
+        Route lightTrafficRoute = runDijkstra(indexes, source, destination,
+                indexes.blockedEdges(constraints.and(RouteConstraints.AVOID_HEAVY_TRAFFIC)), stats);
+        if (lightTrafficRoute != null && !lightTrafficRoute.getPath().isEmpty()) {
+            addAlternative(routes, lightTrafficRoute, listener);
+        }
+
+        // 4. Alternative route excluding key nodes from optimal path
+        if (optimalRoute != null && optimalRoute.getPath().size() > 2 && routes.size() < maxRoutes) {
+            Set<Integer> excludedNodes = new HashSet<>();
+            excludedNodes.add(optimalRoute.getPath().get(1).getId()); // Exclude second node
+            Route divergentRoute = runDijkstra(indexes, source, destination,
+                    RouteConstraints.withBlockedNodes(blockedEdges, indexes.indexedGraph, excludedNodes), stats);
+            if (divergentRoute != null && !divergentRoute.getPath().isEmpty()) {
+                addAlternative(routes, divergentRoute, listener);
+            }
+        }
+
+        // 5. Scenic route via recreational areas
+        if (routes.size() >= maxRoutes) {
+            return;
+        }
+        Route scenicRoute = findRouteThroughLandmark(indexes, source, destination, LandmarkType.RECREATION,
+                blockedEdges, stats);
+        if (scenicRoute != null && !scenicRoute.getPath().isEmpty()) {
+            addAlternative(routes, scenicRoute, listener);
+        }
+    }
+
+    private void addAlternative(Set<Route> routes, Route route, RoutingListener listener) {
+        if (routes.add(route)) {
+            listener.onAlternativeRoute(route);
+        }
+    }
+
+    /**
+     * Cooperative cancellation point for the search loops; see findOptimalRoutes with a listener.
+     * Each call also charges one settled node to the budget of the route query on this thread.
+     */
+    static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new QueryCancelledException();
+        }
+        QueryBudget.Meter meter = activeBudget.get();
+        if (meter != null) {
+            meter.charge();
+        }
+    }
+
+    /** blockedEdges is a compiled {@link RouteConstraints} bitset, or null for no constraints. */
+    private Route runDijkstra(ProfileIndexes indexes, CampusNode source, CampusNode destination, long[] blockedEdges,
+            SearchStats stats) {
+        DeltaOverlay overlay = indexes.deltaOverlay(graph.currentVersion());
+        int s = overlay.indexOf(source.getId());
+        int t = overlay.indexOf(destination.getId());
+        if (s < 0 || t < 0) {
+            return new Route();
+        }
+        SearchWorkspace workspace = searchUntilSettled(indexes.indexedGraph, overlay, s, new int[] { t },
+                blockedEdges, stats);
+        return reconstructPath(overlay, workspace, t);
+    }
+
+    /**
+     * Dijkstra from s until every node of targets (sorted, distinct dense indices) is settled or
+     * nothing more is reachable, honouring pending edits. Distances and parents stay in the
+     * returned thread-local workspace until this thread's next search.
+     */
+    private SearchWorkspace searchUntilSettled(IndexedGraph indexed, DeltaOverlay overlay, int s, int[] targets,
+            long[] blockedEdges, SearchStats stats) {
+        blockedEdges = overlay.block(blockedEdges);
+        int baseSize = overlay.baseSize();
+
+        SearchWorkspace workspace = workspace(overlay.size());
+        IndexedMinHeap heap = workspace.heap;
+        workspace.improve(s, 0.0, -1);
+        heap.insertOrDecrease(s, 0.0);
+        stats.heapPushes++;
+        int remaining = targets.length;
+
+        while (!heap.isEmpty()) {
+            checkCancelled();
+            int u = heap.pollMin();
+            stats.heapPops++;
+            stats.nodesSettled++;
+            if (Arrays.binarySearch(targets, u) >= 0 && --remaining == 0) {
+                break;
+            }
+
+            double du = workspace.dist[u];
+            int baseEnd = u < baseSize ? indexed.outEnd(u) : 0;
+            for (int e = u < baseSize ? indexed.outStart(u) : 0; e < baseEnd; e++) {
+                int v = indexed.outTarget(e);
+                stats.edgesRelaxed++;
+
+                // Skip edges the constraints rule out or the pending edits have closed
+                if (blockedEdges != null && (blockedEdges[e >>> 6] & (1L << e)) != 0) {
+                    continue;
+                }
+
+                double newDist = du + indexed.outWeight(e);
+                if (newDist < workspace.dist[v]) {
+                    workspace.improve(v, newDist, u);
+                    heap.insertOrDecrease(v, newDist);
+                    stats.heapPushes++;
+                }
+            }
+            // Edges added since the snapshot was compacted
+            for (int x = overlay.extraStart(u); x < overlay.extraEnd(u); x++) {
+                int v = overlay.extraTarget(x);
+                stats.edgesRelaxed++;
+                double newDist = du + overlay.extraWeight(x);
+                if (newDist < workspace.dist[v]) {
+                    workspace.improve(v, newDist, u);
+                    heap.insertOrDecrease(v, newDist);
+                    stats.heapPushes++;
+                }
+            }
+        }
+        return workspace;
+    }
+
+    private Route runAStar(ProfileIndexes indexes, CampusNode source, CampusNode destination, long[] blockedEdges,
+            SearchStats stats) {
+        return runWeightedAStar(indexes, source, destination, blockedEdges, 1.0, stats);
+    }
+
+    /**
+     * A* with the heuristic scaled by heuristicWeight. Above 1 it settles fewer nodes, and the
+     * route it finds is at most heuristicWeight times the optimal weight.
+     */
+    private Route runWeightedAStar(ProfileIndexes indexes, CampusNode source, CampusNode destination,
+            long[] blockedEdges, double heuristicWeight, SearchStats stats) {
+        IndexedGraph indexed = indexes.indexedGraph;
+        DeltaOverlay overlay = indexes.deltaOverlay(graph.currentVersion());
+        int s = overlay.indexOf(source.getId());
+        int t = overlay.indexOf(destination.getId());
+        if (s < 0 || t < 0) {
+            return new Route();
+        }
+        blockedEdges = overlay.block(blockedEdges);
+        int baseSize = overlay.baseSize();
+
+        SearchWorkspace workspace = workspace(overlay.size());
+        IndexedMinHeap openSet = workspace.heap;
+        workspace.improve(s, 0.0, -1);
+        openSet.insertOrDecrease(s, heuristicWeight * heuristic(overlay, s, t));
+        stats.heapPushes++;
+
+        while (!openSet.isEmpty()) {
+            checkCancelled();
+            int u = openSet.pollMin();
+            stats.heapPops++;
+            stats.nodesSettled++;
+
+            if (u == t) {
+                return reconstructRepairedPath(indexed, overlay, workspace, t, blockedEdges);
+            }
+
+            double gu = workspace.dist[u];
+            int baseEnd = u < baseSize ? indexed.outEnd(u) : 0;
+            for (int e = u < baseSize ? indexed.outStart(u) : 0; e < baseEnd; e++) {
+                int v = indexed.outTarget(e);
+                stats.edgesRelaxed++;
+                if (blockedEdges != null && (blockedEdges[e >>> 6] & (1L << e)) != 0) {
+                    continue;
+                }
+                double tentativeGScore = gu + indexed.outWeight(e);
+
+                if (tentativeGScore < workspace.dist[v]) {
+                    workspace.improve(v, tentativeGScore, u);
+                    openSet.insertOrDecrease(v, tentativeGScore + heuristicWeight * heuristic(overlay, v, t));
+                    stats.heapPushes++;
+                }
+            }
+            for (int x = overlay.extraStart(u); x < overlay.extraEnd(u); x++) {
+                int v = overlay.extraTarget(x);
+                stats.edgesRelaxed++;
+                double tentativeGScore = gu + overlay.extraWeight(x);
+                if (tentativeGScore < workspace.dist[v]) {
+                    workspace.improve(v, tentativeGScore, u);
+                    openSet.insertOrDecrease(v, tentativeGScore + heuristicWeight * heuristic(overlay, v, t));
+                    stats.heapPushes++;
+                }
+            }
+        }
+        return new Route(); // Path not found
+    }
+
+    /**
+     * Anytime repairing A* (ARA*): a weighted A* at initialWeight finds a first route, then rounds
+     * at smaller weights reuse the search so far to improve it, until the route is provably
+     * optimal or deadlineNanos passes. The first round always completes. The bound proven for
+     * the route returned goes into stats.suboptimalityBound: the last completed round's weight, or
+     * tighter, the route's weight over the least g + h among nodes not yet expanded.
+     */
+    private Route runAnytimeAStar(ProfileIndexes indexes, CampusNode source, CampusNode destination,
+            long[] blockedEdges, double initialWeight, long deadlineNanos, SearchStats stats) {
+        IndexedGraph indexed = indexes.indexedGraph;
+        DeltaOverlay overlay = indexes.deltaOverlay(graph.currentVersion());
+        int s = overlay.indexOf(source.getId());
+        int t = overlay.indexOf(destination.getId());
+        if (s < 0 || t < 0) {
+            return new Route();
+        }
+        blockedEdges = overlay.block(blockedEdges);
+        int baseSize = overlay.baseSize();
+
+        SearchWorkspace workspace = workspace(overlay.size());
+        IndexedMinHeap openSet = workspace.heap;
+        double[] g = workspace.dist;
+        workspace.improve(s, 0.0, -1);
+        // Nodes to queue at the start of the next round: OPEN and INCONS of the last one
+        int[] pending = { s };
+        int pendingCount = 1;
+        double weight = initialWeight;
+        double bound = Double.POSITIVE_INFINITY;
+
+        while (true) {
+            int mark = workspace.nextMark();
+            for (int i = 0; i < pendingCount; i++) {
+                openSet.insertOrDecrease(pending[i], g[pending[i]] + weight * heuristic(overlay, pending[i], t));
+                stats.heapPushes++;
+            }
+            pendingCount = 0;
+            boolean outOfTime = false;
+            while (!openSet.isEmpty() && openSet.peekKey() < g[t]) {
+                checkCancelled();
+                if (bound != Double.POSITIVE_INFINITY && (stats.heapPops & 63) == 0
+                        && System.nanoTime() - deadlineNanos > 0) {
+                    outOfTime = true;
+                    break;
+                }
+                int u = openSet.pollMin();
+                stats.heapPops++;
+                stats.nodesSettled++;
+                workspace.closedMark[u] = mark;
+
+                double gu = g[u];
+                int baseEnd = u < baseSize ? indexed.outEnd(u) : 0;
+                int extraEnd = overlay.extraEnd(u);
+                for (int e = u < baseSize ? indexed.outStart(u) : 0, x = overlay.extraStart(u); e < baseEnd
+                        || x < extraEnd;) {
+                    int v;
+                    double newG;
+                    if (e < baseEnd) {
+                        stats.edgesRelaxed++;
+                        if (blockedEdges != null && (blockedEdges[e >>> 6] & (1L << e)) != 0) {
+                            e++;
+                            continue;
+                        }
+                        v = indexed.outTarget(e);
+                        newG = gu + indexed.outWeight(e++);
+                    } else {
+                        stats.edgesRelaxed++;
+                        v = overlay.extraTarget(x);
+                        newG = gu + overlay.extraWeight(x++);
+                    }
+                    if (newG < g[v]) {
+                        workspace.improve(v, newG, u);
+                        if (workspace.closedMark[v] != mark) {
+                            openSet.insertOrDecrease(v, newG + weight * heuristic(overlay, v, t));
+                            stats.heapPushes++;
+                        } else if (workspace.inconsistentMark[v] != mark) {
+                            // Expanded already this round: revisit next round
+                            workspace.inconsistentMark[v] = mark;
+                            if (pendingCount == pending.length) {
+                                pending = Arrays.copyOf(pending, pendingCount * 2);
+                            }
+                            pending[pendingCount++] = v;
+                        }
+                    }
+                }
+            }
+            if (g[t] == Double.POSITIVE_INFINITY) {
+                return new Route(); // Unreachable: the first round searched everything
+            }
+            if (outOfTime) {
+                break; // The previous round's bound still holds, and the route can only have improved
+            }
+            double lowerBound = g[t];
+            while (!openSet.isEmpty()) {
+                if (pendingCount == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingCount * 2);
+                }
+                pending[pendingCount++] = openSet.pollMin();
+            }
+            for (int i = 0; i < pendingCount; i++) {
+                lowerBound = Math.min(lowerBound, g[pending[i]] + heuristic(overlay, pending[i], t));
+            }
+            bound = lowerBound > 0 ? Math.min(weight, g[t] / lowerBound) : 1.0;
+            if (bound <= 1.0 || System.nanoTime() - deadlineNanos > 0) {
+                break;
+            }
+            // Halve the excess weight each round, finishing with a plain A* round
+            weight = weight - 1 < 1e-3 ? 1.0 : 1 + (weight - 1) / 2;
+        }
+        stats.suboptimalityBound = Math.max(1.0, bound);
+        return reconstructRepairedPath(indexed, overlay, workspace, t, blockedEdges);
+    }
+
+    /** Per-thread search arrays, reallocated only when the indexed graph changes size. */
+    private SearchWorkspace workspace(int size) {
+        return workspace(workspaces, size);
+    }
+
+    private static SearchWorkspace workspace(ThreadLocal<SearchWorkspace> pool, int size) {
+        SearchWorkspace workspace = pool.get();
+        if (workspace == null || workspace.size() != size) {
+            workspace = new SearchWorkspace(size);
+            pool.set(workspace);
+        }
+        workspace.reset();
+        return workspace;
+    }
+
+    private Route runFloydWarshall(ProfileIndexes indexes, CampusNode source, CampusNode destination,
+            SearchStats stats) {
+        AllPairsTables tables = allPairs;
+        if (tables == null) {
+            return runDistanceRowLookup(indexes, source, destination, stats);
+        }
+        if (tables.snapshot != graph.currentVersion().getSnapshot()) {
+            // Tables from an older snapshot: answer from distance rows while fresh ones are built
+            refreshAllPairs(tables.timeOfDay);
+            return runDistanceRowLookup(indexes, source, destination, stats);
+        }
+        if (tables.timeOfDay != indexes.indexedGraph.getTimeOfDay()) {
+            // One set of tables is all the budget allows; other profiles answer from their own rows
+            return runDistanceRowLookup(indexes, source, destination, stats);
+        }
+        IndexedGraph fwIndex = tables.fwIndex;
+        double[][] fwDistances = tables.fwDistances;
+        int[][] fwNext = tables.fwNext;
+        int s = fwIndex.indexOf(source.getId());
+        int t = fwIndex.indexOf(destination.getId());
+
+        if (s < 0 || t < 0 || fwDistances[s][t] == Double.POSITIVE_INFINITY) {
+            return new Route();
+        }
+
+        List<CampusNode> path = new ArrayList<>();
+        int current = s;
+        while (current != t) {
+            path.add(fwIndex.node(current));
+            stats.nodesSettled++;
+            current = fwNext[current][t];
+            if (current == -1)
+                return new Route();
+        }
+        path.add(fwIndex.node(t));
+
+        return new Route(path, fwDistances[s][t], graph, fwIndex.getTimeOfDay());
+    }
+
+    private void refreshAllPairs(TimeOfDay timeOfDay) {
+        if (allPairsRefreshing.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    if (allPairsFitBudget()) {
+                        precomputeFloydWarshall(timeOfDay);
+                    }
+                } finally {
+                    allPairsRefreshing.set(false);
+                }
+            });
+        }
+    }
+
+    private Route runDistanceRowLookup(ProfileIndexes indexes, CampusNode source, CampusNode destination,
+            SearchStats stats) {
+        IndexedGraph indexed = indexes.indexedGraph;
+        int s = indexed.indexOf(source.getId());
+        int t = indexed.indexOf(destination.getId());
+        if (s < 0 || t < 0) {
+            return new Route();
+        }
+        return toRoute(indexes.distanceRows().path(s, t, stats), indexed);
+    }
+
+    /**
+     * Shortest route from source to destination through some landmark of the given type, other
+     * than the endpoints themselves: the landmark minimising d(source, L) + d(L, destination),
+     * from one forward search out of the source and one reverse search into the destination.
+     */
+    private Route findRouteThroughLandmark(ProfileIndexes indexes, CampusNode source, CampusNode destination,
+            LandmarkType landmarkType, long[] blockedEdges, SearchStats stats) {
+        GraphVersion version = graph.currentVersion();
+        DeltaOverlay overlay = indexes.deltaOverlay(version);
+        int s = overlay.indexOf(source.getId());
+        int t = overlay.indexOf(destination.getId());
+        if (s < 0 || t < 0) {
+            return new Route();
+        }
+        int[] candidates = new int[overlay.size()];
+        int candidateCount = 0;
+        for (int v = 0; v < overlay.size(); v++) {
+            // The live node, so landmarks replaced or removed since the last compaction count as they are now
+            CampusNode node = version.getNode(overlay.node(v).getId());
+            if (v != s && v != t && node != null && node.getLandmarkType() == landmarkType) {
+                candidates[candidateCount++] = v;
+            }
+        }
+        if (candidateCount == 0) {
+            return new Route();
+        }
+        candidates = Arrays.copyOf(candidates, candidateCount);
+
+        SearchWorkspace forward = searchUntilSettled(indexes.indexedGraph, overlay, s, candidates, blockedEdges,
+                stats);
+        SearchWorkspace reverse = searchTowardsUntilSettled(indexes.indexedGraph, overlay, t, candidates,
+                blockedEdges, stats);
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int landmark : candidates) {
+            double distance = forward.dist[landmark] + reverse.dist[landmark];
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = landmark;
+            }
+        }
+        if (best < 0) {
+            return new Route();
+        }
+
+        LinkedList<CampusNode> path = new LinkedList<>();
+        for (int v = best; v >= 0; v = forward.parent[v]) {
+            path.addFirst(overlay.node(v));
+        }
+        for (int v = reverse.parent[best]; v >= 0; v = reverse.parent[v]) {
+            path.addLast(overlay.node(v));
+        }
+        return new Route(path, bestDistance, graph, overlay.getTimeOfDay());
+    }
+
+    /**
+     * Dijkstra over reverse edges into t until every node of targets (sorted, distinct dense
+     * indices) is settled or nothing more can reach t, honouring pending edits. A node's parent
+     * is its next hop towards t. The result lives in the second thread-local workspace, so a
+     * forward search's workspace stays intact.
+     */
+    private SearchWorkspace searchTowardsUntilSettled(IndexedGraph indexed, DeltaOverlay overlay, int t,
+            int[] targets, long[] blockedEdges, SearchStats stats) {
+        blockedEdges = overlay.block(blockedEdges);
+        int baseSize = overlay.baseSize();
+
+        SearchWorkspace workspace = workspace(reverseWorkspaces, overlay.size());
+        IndexedMinHeap heap = workspace.heap;
+        workspace.improve(t, 0.0, -1);
+        heap.insertOrDecrease(t, 0.0);
+        stats.heapPushes++;
+        int remaining = targets.length;
+
+        while (!heap.isEmpty()) {
+            checkCancelled();
+            int v = heap.pollMin();
+            stats.heapPops++;
+            stats.nodesSettled++;
+            if (Arrays.binarySearch(targets, v) >= 0 && --remaining == 0) {
+                break;
+            }
+
+            double dv = workspace.dist[v];
+            int baseEnd = v < baseSize ? indexed.inEnd(v) : 0;
+            for (int e = v < baseSize ? indexed.inStart(v) : 0; e < baseEnd; e++) {
+                int forwardEdge = indexed.inForwardEdge(e);
+                stats.edgesRelaxed++;
+                if (blockedEdges != null && (blockedEdges[forwardEdge >>> 6] & (1L << forwardEdge)) != 0) {
+                    continue;
+                }
+                int u = indexed.inSource(e);
+                double newDist = dv + indexed.inWeight(e);
+                if (newDist < workspace.dist[u]) {
+                    workspace.improve(u, newDist, v);
+                    heap.insertOrDecrease(u, newDist);
+                    stats.heapPushes++;
+                }
+            }
+            // Edges added since the snapshot was compacted
+            for (int x = overlay.extraInStart(v); x < overlay.extraInEnd(v); x++) {
+                int u = overlay.extraInSource(x);
+                stats.edgesRelaxed++;
+                double newDist = dv + overlay.extraInWeight(x);
+                if (newDist < workspace.dist[u]) {
+                    workspace.improve(u, newDist, v);
+                    heap.insertOrDecrease(u, newDist);
+                    stats.heapPushes++;
+                }
+            }
+        }
+        return workspace;
+    }
+
+    private double heuristic(DeltaOverlay indexed, int a, int b) {
+        // Haversine distance for geographic coordinates
+        final int EARTH_RADIUS = 6371000; // meters
+        double lat1 = indexed.latitudeRadians(a);
+        double lon1 = indexed.longitudeRadians(a);
+        double lat2 = indexed.latitudeRadians(b);
+        double lon2 = indexed.longitudeRadians(b);
+
+        double dLat = lat2 - lat1;
+        double dLon = lon2 - lon1;
+
+        double val = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(lat1) * Math.cos(lat2) *
+                        Math.sin(dLon / 2) * Math.sin(dLon / 2);
+
+        double c = 2 * Math.atan2(Math.sqrt(val), Math.sqrt(1 - val));
+
+        return EARTH_RADIUS * c;
+    }
+
+    private Route reconstructPath(DeltaOverlay indexed, SearchWorkspace workspace, int destination) {
+        if (workspace.dist[destination] == Double.POSITIVE_INFINITY) {
+            return new Route();
+        }
+        LinkedList<CampusNode> path = new LinkedList<>();
+        for (int v = destination; v >= 0; v = workspace.parent[v]) {
+            path.addFirst(indexed.node(v));
+        }
+        return new Route(path, workspace.dist[destination], graph, indexed.getTimeOfDay());
+    }
+
+    /**
+     * As reconstructPath, for searches that may improve a node after expanding it (weighted and
+     * anytime A*): the parent chain then runs through the improved node and can be cheaper than
+     * dist[destination], so the route is weighed hop by hop along its cheapest open edges.
+     */
+    private Route reconstructRepairedPath(IndexedGraph base, DeltaOverlay indexed, SearchWorkspace workspace,
+            int destination, long[] blockedEdges) {
+        if (workspace.dist[destination] == Double.POSITIVE_INFINITY) {
+            return new Route();
+        }
+        int hops = 0;
+        for (int v = destination; workspace.parent[v] >= 0; v = workspace.parent[v]) {
+            hops++;
+        }
+        int[] chain = new int[hops + 1];
+        for (int v = destination, i = hops; v >= 0; v = workspace.parent[v]) {
+            chain[i--] = v;
+        }
+        List<CampusNode> path = new ArrayList<>(chain.length);
+        path.add(indexed.node(chain[0]));
+        double weight = 0;
+        for (int i = 1; i < chain.length; i++) {
+            int u = chain[i - 1];
+            int v = chain[i];
+            double hop = Double.POSITIVE_INFINITY;
+            int baseEnd = u < indexed.baseSize() ? base.outEnd(u) : 0;
+            for (int e = u < indexed.baseSize() ? base.outStart(u) : 0; e < baseEnd; e++) {
+                if (base.outTarget(e) == v && (blockedEdges == null || (blockedEdges[e >>> 6] & (1L << e)) == 0)) {
+                    hop = Math.min(hop, base.outWeight(e));
+                }
+            }
+            for (int x = indexed.extraStart(u); x < indexed.extraEnd(u); x++) {
+                if (indexed.extraTarget(x) == v) {
+                    hop = Math.min(hop, indexed.extraWeight(x));
+                }
+            }
+            weight += hop;
+            path.add(indexed.node(v));
+        }
+        return new Route(path, weight, graph, indexed.getTimeOfDay());
+    }
+
+    public String getBearing(CampusNode node1, CampusNode node2) {
+        CampusEdge edge = graph.getEdge(node1.getId(), node2.getId());
+        return CampusEdge.compassDirection(edge != null ? edge.getBearing() : CampusEdge.initialBearing(node1, node2));
+    }
+
+    /** Everything derived from one compacted snapshot. */
+    private final class SnapshotIndexes {
+        final GraphSnapshot snapshot;
+        private final Map<TimeOfDay, ProfileIndexes> profiles = new HashMap<>();
+        private OverlayPartition overlayPartition;
+        private OffHeapGraph offHeapGraph;
+
+        SnapshotIndexes(GraphSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        synchronized ProfileIndexes forProfile(TimeOfDay timeOfDay) {
+            return profiles.computeIfAbsent(timeOfDay,
+                    t -> new ProfileIndexes(this, IndexedGraph.build(snapshot, t)));
+        }
+
+        synchronized List<TimeOfDay> profiles() {
+            return new ArrayList<>(profiles.keySet());
+        }
+
+        /** Partitions depend on topology only, so every profile of the snapshot shares one. */
+        synchronized OverlayPartition overlayPartition(IndexedGraph indexed) {
+            if (overlayPartition == null) {
+                overlayPartition = OverlayPartition.build(indexed);
+            }
+            return overlayPartition;
+        }
+
+        /**
+         * The off-heap store weighs edges per profile as it searches, so every profile shares one.
+         * It numbers edges as indexed does, which lets constraint and closure bitsets carry over.
+         */
+        synchronized OffHeapGraph offHeapGraph(IndexedGraph indexed) {
+            if (offHeapGraph == null) {
+                OffHeapGraph store = OffHeapGraph.of(snapshot);
+                if (!store.hasSameTopology(indexed)) {
+                    throw new IllegalStateException("Off-heap store numbers the snapshot differently");
+                }
+                offHeapGraph = store;
+            }
+            return offHeapGraph;
+        }
+    }
+
+    private final class ProfileIndexes {
+        final SnapshotIndexes owner;
+        final IndexedGraph indexedGraph;
+        final NearestLandmarkIndex nearestLandmarks;
+        final ParetoRouter paretoRouter;
+        final ReliabilityRouter reliabilityRouter;
+        private OverlayMetrics overlayMetrics;
+        private HubLabels hubLabels;
+        private DistanceRowCache distanceRows;
+        private volatile DeltaOverlay deltaOverlay;
+        private ConnectionScanRouter shuttleRouter;
+        private DeltaOverlay shuttleRouterOverlay;
+        private IndoorRouter indoorRouter;
+        private BuildingCatalog indoorRouterCatalog;
+        private DeltaOverlay indoorRouterOverlay;
+        private final Map<RouteConstraints, long[]> compiledConstraints = new ConcurrentHashMap<>();
+
+        ProfileIndexes(SnapshotIndexes owner, IndexedGraph indexedGraph) {
+            this.owner = owner;
+            this.indexedGraph = indexedGraph;
+            this.nearestLandmarks = new NearestLandmarkIndex(indexedGraph);
+            this.paretoRouter = new ParetoRouter(indexedGraph);
+            this.reliabilityRouter = new ReliabilityRouter(indexedGraph);
+        }
+
+        /** Pending edits of version over this snapshot, compiled once per version. */
+        DeltaOverlay deltaOverlay(GraphVersion version) {
+            DeltaOverlay overlay = deltaOverlay;
+            if (overlay == null || overlay.getVersion() != version) {
+                overlay = DeltaOverlay.compile(indexedGraph, version);
+                deltaOverlay = overlay;
+            }
+            return overlay;
+        }
+
+        /** Customizes the overlay for this profile's weights on first use. */
+        synchronized OverlayMetrics overlayMetrics(OverlayPartition partition) {
+            if (overlayMetrics == null) {
+                overlayMetrics = OverlayMetrics.customize(partition, indexedGraph);
+                metrics.record(CRP_CUSTOMIZATION_METRIC, overlayMetrics.getCustomizationNanos(), new SearchStats());
+            }
+            return overlayMetrics;
+        }
+
+        /** Labels depend on the weights, so each profile builds its own on first use. */
+        synchronized HubLabels hubLabels(OverlayPartition partition) {
+            if (hubLabels == null) {
+                hubLabels = HubLabels.build(indexedGraph, partition);
+                metrics.record(HUB_LABEL_BUILD_METRIC, hubLabels.getBuildNanos(), new SearchStats());
+                hubLabelBytesPerNode = hubLabels.getBytesPerNode();
+            }
+            return hubLabels;
+        }
+
+        /** Compiled bitset for constraints, or null when they block nothing. */
+        long[] blockedEdges(RouteConstraints constraints) {
+            if (constraints.isUnconstrained()) {
+                return null;
+            }
+            return compiledConstraints.computeIfAbsent(constraints, c -> c.compile(indexedGraph));
+        }
+
+        /** Transfer walks depend on closures too, so the router is rebuilt per timetable and overlay. */
+        synchronized ConnectionScanRouter shuttleRouter(ShuttleTimetable timetable, DeltaOverlay overlay) {
+            if (shuttleRouter == null || shuttleRouter.getTimetable() != timetable || shuttleRouterOverlay != overlay) {
+                shuttleRouter = new ConnectionScanRouter(indexedGraph, timetable, overlay.block(null));
+                shuttleRouterOverlay = overlay;
+            }
+            return shuttleRouter;
+        }
+
+        /** Rebuilt when the catalog, its registrations or the pending edits change. */
+        synchronized IndoorRouter indoorRouter(BuildingCatalog catalog, DeltaOverlay overlay) {
+            long revision = catalog == null ? 0 : catalog.getRevision();
+            if (indoorRouter == null || indoorRouterCatalog != catalog || indoorRouter.getRevision() != revision
+                    || indoorRouterOverlay != overlay) {
+                indoorRouter = new IndoorRouter(indexedGraph,
+                        catalog == null ? Collections.emptyList() : catalog.getEntranceTables(), revision,
+                        overlay.block(null));
+                indoorRouterCatalog = catalog;
+                indoorRouterOverlay = overlay;
+            }
+            return indoorRouter;
+        }
+
+        synchronized DistanceRowCache distanceRows() {
+            if (distanceRows == null) {
+                distanceRows = new DistanceRowCache(indexedGraph, allPairsBudgetBytes,
+                        PathfindingEngine.this::getOneToAllAlgorithm);
+            }
+            return distanceRows;
+        }
+    }
+}
+
+// ===== LANDMARK INDEX =====
+
+/**
+ * Precomputed k-nearest landmark labels for every node of an IndexedGraph.
+ * For each LandmarkType a multi-source Dijkstra runs over reverse edges from
+ * all nodes of that type, leaving every node with its closest landmarks
+ * sorted by network distance. Queries are then a walk over at most k labels.
+ */
+class NearestLandmarkIndex {
+    public static final int DEFAULT_LABELS_PER_NODE = 5;
+
+    private final IndexedGraph graph;
+    private final int labelsPerNode;
+    private final Map<LandmarkType, TypeLabels> labelsByType = new EnumMap<>(LandmarkType.class);
+
+    public NearestLandmarkIndex(IndexedGraph graph) {
+        this(graph, DEFAULT_LABELS_PER_NODE);
+    }
+
+    public NearestLandmarkIndex(IndexedGraph graph, int labelsPerNode) {
+        this.graph = graph;
+        this.labelsPerNode = labelsPerNode;
+    }
+
+    public int getLabelsPerNode() {
+        return labelsPerNode;
+    }
+
+    /**
+     * Returns up to k landmarks of the given type ordered by network distance from the origin.
+     * The origin itself is included (at distance 0) when it matches the type.
+     */
+    public List<LandmarkDistance> nearest(CampusNode origin, LandmarkType type, int k) {
+        int source = graph.indexOf(origin.getId());
+        if (source < 0 || k <= 0) {
+            return Collections.emptyList();
+        }
+        if (k > labelsPerNode) {
+            return exactSearch(source, type, k);
+        }
+
+        TypeLabels labels = labelsFor(type);
+        int count = Math.min(k, labels.count[source]);
+        List<LandmarkDistance> result = new ArrayList<>(count);
+        int base = source * labelsPerNode;
+        for (int i = 0; i < count; i++) {
+            result.add(new LandmarkDistance(graph.node(labels.landmark[base + i]), labels.distance[base + i]));
+        }
+        return result;
+    }
+
+    private synchronized TypeLabels labelsFor(LandmarkType type) {
+        return labelsByType.computeIfAbsent(type, this::buildLabels);
+    }
+
+    private TypeLabels buildLabels(LandmarkType type) {
+        int n = graph.size();
+        TypeLabels labels = new TypeLabels(n, labelsPerNode);
+        PriorityQueue<LabelEntry> pq = new PriorityQueue<>();
+
+        for (int i = 0; i < n; i++) {
+            if (graph.node(i).getLandmarkType() == type) {
+                pq.add(new LabelEntry(i, i, 0.0));
+            }
+        }
+
+        // Each (node, landmark) pair is settled at most once, in distance order,
+        // and a node stops accepting labels once it holds labelsPerNode of them
+        while (!pq.isEmpty()) {
+            LabelEntry current = pq.poll();
+            int v = current.node;
+            if (labels.count[v] == labelsPerNode || labels.contains(v, current.landmark)) {
+                continue;
+            }
+            labels.add(v, current.landmark, current.distance);
+
+            for (int e = graph.inStart(v); e < graph.inEnd(v); e++) {
+                int u = graph.inSource(e);
+                if (labels.count[u] < labelsPerNode) {
+                    pq.add(new LabelEntry(u, current.landmark, current.distance + graph.inWeight(e)));
+                }
+            }
+        }
+        return labels;
+    }
+
+    private List<LandmarkDistance> exactSearch(int source, LandmarkType type, int k) {
+        int n = graph.size();
+        double[] distances = new double[n];
+        boolean[] settled = new boolean[n];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        distances[source] = 0.0;
+
+        List<LandmarkDistance> result = new ArrayList<>(k);
+        PriorityQueue<LabelEntry> pq = new PriorityQueue<>();
+        pq.add(new LabelEntry(source, source, 0.0));
+
+        while (!pq.isEmpty() && result.size() < k) {
+            LabelEntry current = pq.poll();
+            int u = current.node;
+            if (settled[u]) {
+                continue;
+            }
+            settled[u] = true;
+            if (graph.node(u).getLandmarkType() == type) {
+                result.add(new LandmarkDistance(graph.node(u), current.distance));
+            }
+
+            for (int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+                int v = graph.outTarget(e);
+                double newDist = current.distance + graph.outWeight(e);
+                if (newDist < distances[v]) {
+                    distances[v] = newDist;
+                    pq.add(new LabelEntry(v, source, newDist));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static final class TypeLabels {
+        final int[] landmark;
+        final double[] distance;
+        final int[] count;
+        final int width;
+
+        TypeLabels(int nodeCount, int width) {
+            this.landmark = new int[nodeCount * width];
+            this.distance = new double[nodeCount * width];
+            this.count = new int[nodeCount];
+            this.width = width;
+        }
+
+        boolean contains(int node, int landmarkIndex) {
+            int base = node * width;
+            for (int i = 0; i < count[node]; i++) {
+                if (landmark[base + i] == landmarkIndex) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(int node, int landmarkIndex, double dist) {
+            int slot = node * width + count[node]++;
+            landmark[slot] = landmarkIndex;
+            distance[slot] = dist;
+        }
+    }
+
+    private static final class LabelEntry implements Comparable<LabelEntry> {
+        final int node;
+        final int landmark;
+        final double distance;
+
+        LabelEntry(int node, int landmark, double distance) {
+            this.node = node;
+            this.landmark = landmark;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(LabelEntry other) {
+            return Double.compare(this.distance, other.distance);
+        }
+    }
+}
+
+class LandmarkDistance {
+    private final CampusNode landmark;
+    private final double distance;
+
+    public LandmarkDistance(CampusNode landmark, double distance) {
+        this.landmark = landmark;
+        this.distance = distance;
+    }
+
+    public CampusNode getLandmark() {
+        return landmark;
+    }
+
+    /** Traffic-adjusted network distance from the query origin, in meters. */
+    public double getDistance() {
+        return distance;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%.0f m)", landmark.getName(), distance);
+    }
+}
+
+// ===== INSTRUMENTATION =====
+
+/**
+ * Search-effort counters for a single algorithm run.
+ * Owned by one thread for the duration of a query, so plain fields are enough.
+ */
+class SearchStats {
+    long nodesSettled;
+    long edgesRelaxed;
+    long heapPushes;
+    long heapPops;
+    int pathLength;
+    // Proven ratio of the route found to the optimal one; 1 for exact searches
+    double suboptimalityBound = 1.0;
+
+    public long getNodesSettled() {
+        return nodesSettled;
+    }
+
+    public long getEdgesRelaxed() {
+        return edgesRelaxed;
+    }
+
+    public long getHeapPushes() {
+        return heapPushes;
+    }
+
+    public long getHeapPops() {
+        return heapPops;
+    }
+
+    public int getPathLength() {
+        return pathLength;
+    }
+
+    public double getSuboptimalityBound() {
+        return suboptimalityBound;
+    }
+}
+
+/**
+ * Lock-free latency histogram with log-linear buckets (about 3% relative precision).
+ * Values below 32 get exact buckets; above that every power of two is split into 32 sub-buckets.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final LongAccumulator maxValue = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        recordCount(value, 1);
+    }
+
+    /**
+     * Records a value and, when it exceeds the expected interval between samples, the
+     * samples that a stalled caller would have issued meanwhile (coordinated omission correction).
+     */
+    public void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    public void recordCount(long value, long count) {
+        long v = Math.max(0, value);
+        counts.addAndGet(bucketIndex(v), count);
+        totalCount.add(count);
+        totalValue.add(v * count);
+        maxValue.accumulate(v);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0.0 : (double) totalValue.sum() / count;
+    }
+
+    /** Returns the value at the given percentile (0-100), as the upper bound of its bucket. */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long threshold = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= threshold) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalValue.reset();
+        maxValue.reset();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+/**
+ * Always-on engine metrics: a latency histogram plus summed search-effort counters per algorithm.
+ * Recording is lock-free so it can stay enabled in production.
+ */
+class EngineMetrics {
+    private final Map<String, AlgorithmMetrics> byAlgorithm = new ConcurrentHashMap<>();
+
+    public void record(String algorithmName, long elapsedNanos, SearchStats stats) {
+        byAlgorithm.computeIfAbsent(algorithmName, name -> new AlgorithmMetrics()).record(elapsedNanos, stats);
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, AlgorithmMetricsSnapshot> snapshots = new TreeMap<>();
+        byAlgorithm.forEach((name, metrics) -> snapshots.put(name, metrics.snapshot(name)));
+        return new MetricsSnapshot(System.currentTimeMillis(), snapshots);
+    }
+
+    public void reset() {
+        byAlgorithm.clear();
+    }
+
+    private static final class AlgorithmMetrics {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder nodesSettled = new LongAdder();
+        final LongAdder edgesRelaxed = new LongAdder();
+        final LongAdder heapPushes = new LongAdder();
+        final LongAdder heapPops = new LongAdder();
+        final LongAdder pathLength = new LongAdder();
+
+        void record(long elapsedNanos, SearchStats stats) {
+            latency.record(elapsedNanos);
+            nodesSettled.add(stats.nodesSettled);
+            edgesRelaxed.add(stats.edgesRelaxed);
+            heapPushes.add(stats.heapPushes);
+            heapPops.add(stats.heapPops);
+            pathLength.add(stats.pathLength);
+        }
+
+        AlgorithmMetricsSnapshot snapshot(String name) {
+            return new AlgorithmMetricsSnapshot(name, latency.getCount(),
+                    latency.getMean(), latency.getValueAtPercentile(50), latency.getValueAtPercentile(95),
+                    latency.getValueAtPercentile(99), latency.getMax(),
+                    nodesSettled.sum(), edgesRelaxed.sum(), heapPushes.sum(), heapPops.sum(), pathLength.sum());
+        }
+    }
+}
+
+class MetricsSnapshot {
+    private final long timestamp;
+    private final Map<String, AlgorithmMetricsSnapshot> algorithms;
+
+    public MetricsSnapshot(long timestamp, Map<String, AlgorithmMetricsSnapshot> algorithms) {
+        this.timestamp = timestamp;
+        this.algorithms = Collections.unmodifiableMap(algorithms);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, AlgorithmMetricsSnapshot> getAlgorithms() {
+        return algorithms;
+    }
+
+    public AlgorithmMetricsSnapshot get(String algorithmName) {
+        return algorithms.get(algorithmName);
+    }
+
+    /** Plain-text report for headless processes and logs. */
+    public String formatReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-22s %8s %10s %10s %10s %10s %12s %12s%n",
+                "Algorithm", "Queries", "p50 (us)", "p95 (us)", "p99 (us)", "max (us)", "avg settled", "avg relaxed"));
+        for (AlgorithmMetricsSnapshot alg : algorithms.values()) {
+            report.append(String.format("%-22s %8d %10.1f %10.1f %10.1f %10.1f %12.1f %12.1f%n",
+                    alg.getAlgorithmName(), alg.getQueryCount(),
+                    alg.getP50Nanos() / 1000.0, alg.getP95Nanos() / 1000.0, alg.getP99Nanos() / 1000.0,
+                    alg.getMaxNanos() / 1000.0, alg.getAverageNodesSettled(), alg.getAverageEdgesRelaxed()));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return formatReport();
+    }
+}
+
+class AlgorithmMetricsSnapshot {
+    private final String algorithmName;
+    private final long queryCount;
+    private final double meanNanos;
+    private final long p50Nanos;
+    private final long p95Nanos;
+    private final long p99Nanos;
+    private final long maxNanos;
+    private final long nodesSettled;
+    private final long edgesRelaxed;
+    private final long heapPushes;
+    private final long heapPops;
+    private final long pathLength;
+
+    public AlgorithmMetricsSnapshot(String algorithmName, long queryCount, double meanNanos,
+            long p50Nanos, long p95Nanos, long p99Nanos, long maxNanos,
+            long nodesSettled, long edgesRelaxed, long heapPushes, long heapPops, long pathLength) {
+        this.algorithmName = algorithmName;
+        this.queryCount = queryCount;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p95Nanos = p95Nanos;
+        this.p99Nanos = p99Nanos;
+        this.maxNanos = maxNanos;
+        this.nodesSettled = nodesSettled;
+        this.edgesRelaxed = edgesRelaxed;
+        this.heapPushes = heapPushes;
+        this.heapPops = heapPops;
+        this.pathLength = pathLength;
+    }
+
+    public String getAlgorithmName() {
+        return algorithmName;
+    }
+
+    public long getQueryCount() {
+        return queryCount;
+    }
+
+    public double getMeanNanos() {
+        return meanNanos;
+    }
+
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    public long getP95Nanos() {
+        return p95Nanos;
+    }
+
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getTotalHeapPushes() {
+        return heapPushes;
+    }
+
+    public long getTotalHeapPops() {
+        return heapPops;
+    }
+
+    public double getAverageNodesSettled() {
+        return average(nodesSettled);
+    }
+
+    public double getAverageEdgesRelaxed() {
+        return average(edgesRelaxed);
+    }
+
+    public double getAveragePathLength() {
+        return average(pathLength);
+    }
+
+    private double average(long total) {
+        return queryCount == 0 ? 0.0 : (double) total / queryCount;
+    }
+}
+
+/**
+ * JFR event emitted per algorithm run. Costs next to nothing unless a recording
+ * has it enabled, e.g. {@code java -XX:StartFlightRecording UGNavigateSystem}.
+ */
+@jdk.jfr.Name("ugnavigate.RoutingQuery")
+@jdk.jfr.Label("Routing Query")
+@jdk.jfr.Category("UG Navigate")
+class RoutingQueryEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Algorithm")
+    String algorithm;
+
+    @jdk.jfr.Label("Source Node")
+    int sourceId;
+
+    @jdk.jfr.Label("Destination Node")
+    int destinationId;
+
+    @jdk.jfr.Label("Nodes Settled")
+    long nodesSettled;
+
+    @jdk.jfr.Label("Edges Relaxed")
+    long edgesRelaxed;
+
+    @jdk.jfr.Label("Heap Pushes")
+    long heapPushes;
+
+    @jdk.jfr.Label("Heap Pops")
+    long heapPops;
+
+    @jdk.jfr.Label("Path Length")
+    int pathLength;
+}
+
+// ===== QUERY RECORDING AND REPLAY =====
+
+/**
+ * Compact append-only binary log of routing queries.
+ * Layout: magic "UGQL", a version byte and the start time in epoch millis, followed by one
+ * record per query: varint microseconds since the previous record, varint source id,
+ * varint destination id, then one byte each for landmark filter and time of day
+ * (0 = none, otherwise ordinal + 1). Since version 2 each record goes on with the constraints as
+ * varint traffic-condition and access-feature masks, and varint snapshot id + 1 (0 = unknown),
+ * so a query answered under constraints on a known snapshot can be replayed as it ran. Version 1
+ * logs still read, as unconstrained queries. The writer flushes at arbitrary byte positions, so
+ * a log from a killed process may end partway through a record; read drops that partial record.
+ */
+class QueryLog {
+    private static final int MAGIC = 0x5547514C; // "UGQL"
+    private static final int VERSION = 2;
+
+    public static Writer openWriter(Path file) throws IOException {
+        boolean fresh = !Files.exists(file) || Files.size(file) == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024));
+        if (fresh) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(System.currentTimeMillis());
+        }
+        return new Writer(out);
+    }
+
+    public static List<RecordedQuery> read(Path file) throws IOException {
+        List<RecordedQuery> queries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a query log: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported query log version " + version);
+            }
+            in.readLong(); // Start time, informational only
+
+            long offsetMicros = 0;
+            while (true) {
+                long delta;
+                int sourceId;
+                int destinationId;
+                int landmark;
+                int timeOfDay;
+                int conditionMask = 0;
+                int featureMask = 0;
+                long snapshotId = -1;
+                try {
+                    delta = readVarLong(in);
+                    sourceId = (int) readVarLong(in);
+                    destinationId = (int) readVarLong(in);
+                    landmark = in.readUnsignedByte();
+                    timeOfDay = in.readUnsignedByte();
+                    if (version >= 2) {
+                        conditionMask = (int) readVarLong(in);
+                        featureMask = (int) readVarLong(in);
+                        snapshotId = readVarLong(in) - 1;
+                    }
+                } catch (EOFException endOfLog) {
+                    // Either the clean end or a last record torn by a killed writer; drop the partial tail
+                    break;
+                }
+                offsetMicros += delta;
+                queries.add(new RecordedQuery(offsetMicros, sourceId, destinationId,
+                        landmark == 0 ? null : LandmarkType.values()[landmark - 1],
+                        timeOfDay == 0 ? null : TimeOfDay.values()[timeOfDay - 1],
+                        RouteConstraints.fromMasks(conditionMask, featureMask), snapshotId));
+            }
+        }
+        return queries;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in query log");
+    }
+
+    /** Thread-safe appender. Buffered, so records reach disk on close or when the buffer fills. */
+    static class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+        private long lastNanos = System.nanoTime();
+        private boolean failed;
+
+        private Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void append(int sourceId, int destinationId, LandmarkType landmarkFilter, TimeOfDay timeOfDay) {
+            append(sourceId, destinationId, landmarkFilter, timeOfDay, RouteConstraints.NONE, -1);
+        }
+
+        /** snapshotId is the compacted snapshot the query ran on, or -1 if unknown. */
+        public synchronized void append(int sourceId, int destinationId, LandmarkType landmarkFilter,
+                TimeOfDay timeOfDay, RouteConstraints constraints, long snapshotId) {
+            if (failed) {
+                return;
+            }
+            long now = System.nanoTime();
+            try {
+                writeVarLong(out, Math.max(0, (now - lastNanos) / 1000));
+                writeVarLong(out, sourceId & 0xFFFFFFFFL);
+                writeVarLong(out, destinationId & 0xFFFFFFFFL);
+                out.writeByte(landmarkFilter == null ? 0 : landmarkFilter.ordinal() + 1);
+                out.writeByte(timeOfDay == null ? 0 : timeOfDay.ordinal() + 1);
+                writeVarLong(out, constraints.getConditionMask());
+                writeVarLong(out, constraints.getFeatureMask());
+                writeVarLong(out, snapshotId + 1);
+                lastNanos = now;
+            } catch (IOException e) {
+                // Recording must never break routing; stop recording instead
+                failed = true;
+                e.printStackTrace();
+            }
+        }
+
+        public synchronized void flush() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+class RecordedQuery {
+    private final long offsetMicros;
+    private final int sourceId;
+    private final int destinationId;
+    private final LandmarkType landmarkFilter;
+    private final TimeOfDay timeOfDay;
+    private final RouteConstraints constraints;
+    private final long snapshotId;
+
+    public RecordedQuery(long offsetMicros, int sourceId, int destinationId, LandmarkType landmarkFilter,
+            TimeOfDay timeOfDay) {
+        this(offsetMicros, sourceId, destinationId, landmarkFilter, timeOfDay, RouteConstraints.NONE, -1);
+    }
+
+    /** snapshotId is the compacted snapshot the query ran on, or -1 if unknown. */
+    public RecordedQuery(long offsetMicros, int sourceId, int destinationId, LandmarkType landmarkFilter,
+            TimeOfDay timeOfDay, RouteConstraints constraints, long snapshotId) {
+        this.offsetMicros = offsetMicros;
+        this.sourceId = sourceId;
+        this.destinationId = destinationId;
+        this.landmarkFilter = landmarkFilter;
+        this.timeOfDay = timeOfDay;
+        this.constraints = constraints;
+        this.snapshotId = snapshotId;
+    }
+
+    /** Microseconds since the first query of the log. */
+    public long getOffsetMicros() {
+        return offsetMicros;
+    }
+
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    public int getDestinationId() {
+        return destinationId;
+    }
+
+    public LandmarkType getLandmarkFilter() {
+        return landmarkFilter;
+    }
+
+    public TimeOfDay getTimeOfDay() {
+        return timeOfDay;
+    }
+
+    public RouteConstraints getConstraints() {
+        return constraints;
+    }
+
+    /** Compacted snapshot the query ran on, or -1 if unknown. */
+    public long getSnapshotId() {
+        return snapshotId;
+    }
+}
+
+/**
+ * Offline load generator that replays a QueryLog against local engine instances.
+ *
+ * <pre>
+ * java QueryReplayer --log queries.bin [--nodes nodes.csv --edges edges.csv]
+ *      [--mode open|closed] [--concurrency 8] [--rate 500] [--speed 1.0] [--repeat 1] [--warmup 1000]
+ * </pre>
+ *
+ * Open loop issues queries on a fixed schedule (the given rate, or the recorded timing scaled
+ * by speed) and measures latency from the intended start, so queueing delay is never hidden.
+ * Closed loop runs each worker back to back and reports both raw service times and times
+ * corrected for coordinated omission against the expected per-worker interval.
+ */
+class QueryReplayer {
+    private final PathfindingEngine engine;
+    private final List<RecordedQuery> queries;
+
+    public QueryReplayer(Path nodesFile, Path edgesFile, List<RecordedQuery> queries) throws IOException {
+        this.queries = queries;
+        this.engine = new PathfindingEngine(loadGraph(nodesFile, edgesFile));
+    }
+
+    private static CampusGraph loadGraph(Path nodesFile, Path edgesFile) throws IOException {
+        CampusGraph graph = new CampusGraph();
+        DataReader.loadNodes(new FileInputStream(nodesFile.toFile()), graph);
+        DataReader.loadEdges(new FileInputStream(edgesFile.toFile()), graph);
+        return graph;
+    }
+
+    private void execute(RecordedQuery query) {
+        CampusGraph graph = engine.getGraph();
+        CampusNode source = graph.getNode(query.getSourceId());
+        CampusNode destination = graph.getNode(query.getDestinationId());
+        if (source != null && destination != null) {
+            engine.findOptimalRoutes(source, destination, query.getLandmarkFilter(), query.getTimeOfDay(),
+                    query.getConstraints(), RoutingListener.NONE);
+        }
+    }
+
+    /** Runs queries untimed so JIT compilation and index builds do not pollute the measurement. */
+    public void warmUp(int count) {
+        for (int i = 0; i < count; i++) {
+            execute(queries.get(i % queries.size()));
+        }
+    }
+
+    public ReplayReport runOpenLoop(int concurrency, double rate, double speed, int repeat)
+            throws InterruptedException {
+        int total = queries.size() * repeat;
+        long[] intendedStart = new long[total];
+        long span = queries.isEmpty() ? 0 : queries.get(queries.size() - 1).getOffsetMicros() + 1;
+        for (int i = 0; i < total; i++) {
+            RecordedQuery query = queries.get(i % queries.size());
+            long offsetNanos = rate > 0
+                    ? (long) (i * 1_000_000_000.0 / rate)
+                    : (long) (((i / queries.size()) * span + query.getOffsetMicros()) * 1000 / speed);
+            intendedStart[i] = offsetNanos;
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram serviceTime = new LatencyHistogram();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch finished = new CountDownLatch(total);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < total; i++) {
+            long scheduled = start + intendedStart[i];
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            RecordedQuery query = queries.get(i % queries.size());
+            pool.execute(() -> {
+                long begin = System.nanoTime();
+                try {
+                    execute(query);
+                } finally {
+                    long end = System.nanoTime();
+                    serviceTime.record(end - begin);
+                    latency.record(end - scheduled);
+                    finished.countDown();
+                }
+            });
+        }
+
+        finished.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return new ReplayReport("open", concurrency, total, elapsed, latency, serviceTime);
+    }
+
+    public ReplayReport runClosedLoop(int concurrency, double rate, int repeat) throws InterruptedException {
+        int total = queries.size() * repeat;
+        long expectedInterval = rate > 0 ? (long) (concurrency * 1_000_000_000.0 / rate) : 0;
+        LatencyHistogram corrected = new LatencyHistogram();
+        LatencyHistogram serviceTime = new LatencyHistogram();
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[concurrency];
+        long start = System.nanoTime();
+
+        for (int w = 0; w < concurrency; w++) {
+            workers[w] = new Thread(() -> {
+                long nextStart = System.nanoTime();
+                int i;
+                while ((i = next.getAndIncrement()) < total) {
+                    if (expectedInterval > 0) {
+                        long wait = nextStart - System.nanoTime();
+                        if (wait > 0) {
+                            try {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                        }
+                        nextStart += expectedInterval;
+                    }
+                    long begin = System.nanoTime();
+                    execute(queries.get(i % queries.size()));
+                    long elapsed = System.nanoTime() - begin;
+                    serviceTime.record(elapsed);
+                    corrected.recordCorrected(elapsed, expectedInterval);
+                }
+            }, "replay-worker-" + w);
+            workers[w].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        return new ReplayReport("closed", concurrency, total, elapsed, corrected, serviceTime);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        if (!options.containsKey("log")) {
+            System.err.println("Usage: java QueryReplayer --log <file> [--nodes nodes.csv] [--edges edges.csv]"
+                    + " [--mode open|closed] [--concurrency N] [--rate qps] [--speed factor] [--repeat N]"
+                    + " [--warmup N]");
+            System.exit(2);
+        }
+
+        List<RecordedQuery> queries = QueryLog.read(Paths.get(options.get("log")));
+        if (queries.isEmpty()) {
+            System.err.println("Query log is empty");
+            System.exit(1);
+        }
+        QueryReplayer replayer = new QueryReplayer(
+                Paths.get(options.getOrDefault("nodes", "nodes.csv")),
+                Paths.get(options.getOrDefault("edges", "edges.csv")),
+                queries);
+
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "4"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        int repeat = Integer.parseInt(options.getOrDefault("repeat", "1"));
+        replayer.warmUp(Integer.parseInt(options.getOrDefault("warmup", "0")));
+
+        ReplayReport report;
+        if ("closed".equals(options.getOrDefault("mode", "open"))) {
+            report = replayer.runClosedLoop(concurrency, rate, repeat);
+        } else {
+            double speed = Double.parseDouble(options.getOrDefault("speed", "1.0"));
+            report = replayer.runOpenLoop(concurrency, rate, speed, repeat);
+        }
+        System.out.print(report.format());
+    }
+}
+
+class ReplayReport {
+    private final String mode;
+    private final int concurrency;
+    private final int queryCount;
+    private final long elapsedNanos;
+    private final LatencyHistogram latency;
+    private final LatencyHistogram serviceTime;
+
+    public ReplayReport(String mode, int concurrency, int queryCount, long elapsedNanos,
+            LatencyHistogram latency, LatencyHistogram serviceTime) {
+        this.mode = mode;
+        this.concurrency = concurrency;
+        this.queryCount = queryCount;
+        this.elapsedNanos = elapsedNanos;
+        this.latency = latency;
+        this.serviceTime = serviceTime;
+    }
+
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0.0 : queryCount * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    /** Latency corrected for coordinated omission. */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /** Raw per-query service time, as a naive benchmark would report it. */
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    public String format() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Mode: %s loop, concurrency %d%n", mode, concurrency));
+        report.append(String.format("Queries: %d in %.2f s (%.1f queries/s)%n",
+                queryCount, elapsedNanos / 1e9, getThroughput()));
+        appendPercentiles(report, "Corrected latency", latency);
+        appendPercentiles(report, "Service time", serviceTime);
+        return report.toString();
+    }
+
+    private static void appendPercentiles(StringBuilder report, String title, LatencyHistogram histogram) {
+        report.append(String.format("%-18s p50 %9.1f us  p90 %9.1f us  p99 %9.1f us  p99.9 %9.1f us  max %9.1f us%n",
+                title + ":",
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0));
+    }
+}
+
+// ===== QUERY BUDGETS =====
+
+/**
+ * Limits on the work one route query may do: nodes settled across all of its searches, wall
+ * time from submission (queueing included), and alternatives beyond the optimal route. A query
+ * that exceeds them is answered with less rather than failed; see {@link DegradationLevel}.
+ */
+final class QueryBudget {
+    static final QueryBudget UNLIMITED = new QueryBudget(Long.MAX_VALUE, 0, Integer.MAX_VALUE);
+    // How often, in settled nodes, the clock is read against the deadline
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    private final long maxSettledNodes;
+    private final long timeoutNanos;
+    private final int maxAlternatives;
+
+    private QueryBudget(long maxSettledNodes, long timeoutNanos, int maxAlternatives) {
+        this.maxSettledNodes = maxSettledNodes;
+        this.timeoutNanos = timeoutNanos;
+        this.maxAlternatives = maxAlternatives;
+    }
+
+    /** timeoutMillis of 0 means no deadline. */
+    public static QueryBudget of(long maxSettledNodes, long timeoutMillis, int maxAlternatives) {
+        if (maxSettledNodes < 1 || timeoutMillis < 0 || maxAlternatives < 0) {
+            throw new IllegalArgumentException("Need maxSettledNodes >= 1, timeoutMillis >= 0, maxAlternatives >= 0");
+        }
+        return new QueryBudget(maxSettledNodes, TimeUnit.MILLISECONDS.toNanos(timeoutMillis), maxAlternatives);
+    }
+
+    public long getMaxSettledNodes() {
+        return maxSettledNodes;
+    }
+
+    public long getTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    public int getMaxAlternatives() {
+        return maxAlternatives;
+    }
+
+    /** Starts the clock for one query. */
+    Meter start() {
+        return new Meter(maxSettledNodes, timeoutNanos == 0 ? Long.MAX_VALUE : System.nanoTime() + timeoutNanos);
+    }
+
+    /** Work charged to one query so far. Used only by the thread running the query. */
+    static final class Meter {
+        private final long maxSettledNodes;
+        private final long deadline;
+        private long settledNodes;
+        private boolean exhausted;
+
+        private Meter(long maxSettledNodes, long deadline) {
+            this.maxSettledNodes = maxSettledNodes;
+            this.deadline = deadline;
+        }
+
+        /** Charges one settled node, throwing BudgetExceededException once the budget is spent. */
+        void charge() {
+            if (++settledNodes > maxSettledNodes
+                    || settledNodes % DEADLINE_CHECK_INTERVAL == 0 && deadline != Long.MAX_VALUE
+                    && System.nanoTime() - deadline > 0) {
+                exhausted = true;
+                throw new BudgetExceededException();
+            }
+        }
+
+        boolean isExhausted() {
+            if (!exhausted && deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+                exhausted = true;
+            }
+            return exhausted;
+        }
+
+        long remainingNanos() {
+            return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, deadline - System.nanoTime());
+        }
+
+        /**
+         * A fresh node allowance without deadline for the one fallback search run once the budget
+         * is spent, so a query does at most twice its node budget and always gets an answer.
+         */
+        Meter fallback() {
+            return new Meter(maxSettledNodes, Long.MAX_VALUE);
+        }
+    }
+}
+
+/**
+ * Admission control for route queries: at most maxConcurrent run at once and at most maxQueued
+ * wait for a slot. Past that, and for queries whose deadline passes while queued, requests are
+ * shed with a {@link QueryRejectedException}. Queries admitted while the queue is at least half
+ * full skip alternatives, so the backlog drains faster.
+ */
+final class AdmissionControl {
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final Semaphore slots;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder degraded = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public AdmissionControl(int maxConcurrent, int maxQueued) {
+        if (maxConcurrent < 1 || maxQueued < 0) {
+            throw new IllegalArgumentException("Need maxConcurrent >= 1 and maxQueued >= 0");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.slots = new Semaphore(maxConcurrent, true);
+    }
+
+    /** Waits for a slot within the meter's deadline; the caller must {@link #release} it afterwards. */
+    DegradationLevel admit(QueryBudget.Meter meter) {
+        if (!slots.tryAcquire()) {
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.increment();
+                throw new QueryRejectedException("Route query queue is full");
+            }
+            boolean acquired;
+            try {
+                acquired = slots.tryAcquire(meter.remainingNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QueryCancelledException();
+            } finally {
+                queued.decrementAndGet();
+            }
+            if (!acquired) {
+                rejected.increment();
+                throw new QueryRejectedException("Route query deadline passed while queued");
+            }
+        }
+        admitted.increment();
+        if (maxQueued > 0 && queued.get() * 2 >= maxQueued) {
+            degraded.increment();
+            return DegradationLevel.OPTIMAL_ONLY;
+        }
+        return DegradationLevel.NONE;
+    }
+
+    void release() {
+        slots.release();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    /** Admitted queries that skipped alternatives because of the queue. */
+    public long getDegradedCount() {
+        return degraded.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
+
+// ===== REQUEST DISPATCH =====
+
+/**
+ * Front end for shortest-route requests under load. Identical requests (same endpoints,
+ * traffic profile and constraints) that arrive while one is being answered share its result.
+ * Requests with the same source, profile and constraints that arrive within the batch window
+ * are answered together by one {@link PathfindingEngine#findRoutesFrom} search, which settles
+ * every destination in one pass; a batch that reaches maxBatchSize goes at once.
+ *
+ * The window bounds the latency added to a request; with a window of 0 requests are only
+ * coalesced, never held back.
+ */
+final class QueryDispatcher implements AutoCloseable {
+    static final long DEFAULT_BATCH_WINDOW_MICROS = 2000;
+    static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    private final PathfindingEngine engine;
+    private final long batchWindowMicros;
+    private final int maxBatchSize;
+    private final ExecutorService searchExecutor;
+    private final boolean ownsSearchExecutor;
+    private final ScheduledExecutorService batchTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "route-batch-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<QueryKey, CompletableFuture<Route>> inFlight = new ConcurrentHashMap<>();
+    // Batches still taking destinations, guarded by this
+    private final Map<BatchKey, Batch> openBatches = new HashMap<>();
+    private boolean closed; // Guarded by this
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+
+    /** Defaults, with one search thread per core. */
+    public QueryDispatcher(PathfindingEngine engine) {
+        this(engine, DEFAULT_BATCH_WINDOW_MICROS, DEFAULT_MAX_BATCH_SIZE,
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                    Thread thread = new Thread(task, "route-dispatch");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true);
+    }
+
+    /** Searches run on searchExecutor, which the caller keeps ownership of. */
+    public QueryDispatcher(PathfindingEngine engine, long batchWindowMicros, int maxBatchSize,
+            ExecutorService searchExecutor) {
+        this(engine, batchWindowMicros, maxBatchSize, searchExecutor, false);
+    }
+
+    private QueryDispatcher(PathfindingEngine engine, long batchWindowMicros, int maxBatchSize,
+            ExecutorService searchExecutor, boolean ownsSearchExecutor) {
+        if (batchWindowMicros < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Need batchWindowMicros >= 0 and maxBatchSize >= 1");
+        }
+        this.engine = engine;
+        this.batchWindowMicros = batchWindowMicros;
+        this.maxBatchSize = maxBatchSize;
+        this.searchExecutor = searchExecutor;
+        this.ownsSearchExecutor = ownsSearchExecutor;
+    }
+
+    /** Shortest route under the given traffic profile and constraints, completed on a search thread. */
+    public CompletableFuture<Route> route(CampusNode source, CampusNode destination, TimeOfDay timeOfDay,
+            RouteConstraints constraints) {
+        requests.increment();
+        QueryKey key = new QueryKey(source.getId(), destination.getId(), timeOfDay, constraints);
+        CompletableFuture<Route> future = new CompletableFuture<>();
+        CompletableFuture<Route> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        future.whenComplete((route, failure) -> inFlight.remove(key, future));
+
+        Batch ready = null;
+        synchronized (this) {
+            if (closed) {
+                // Completing removes it from inFlight, so identical requests later are not handed a dead future
+                future.completeExceptionally(new RejectedExecutionException("Query dispatcher is closed"));
+                return future;
+            }
+            BatchKey batchKey = new BatchKey(source.getId(), timeOfDay, constraints);
+            Batch batch = openBatches.get(batchKey);
+            if (batch == null) {
+                batch = new Batch(batchKey, source);
+                if (batchWindowMicros > 0) {
+                    openBatches.put(batchKey, batch);
+                    Batch scheduled = batch;
+                    batchTimer.schedule(() -> flush(scheduled), batchWindowMicros, TimeUnit.MICROSECONDS);
+                }
+            }
+            batch.destinations.add(destination);
+            batch.futures.add(future);
+            if (batchWindowMicros == 0 || batch.destinations.size() >= maxBatchSize) {
+                openBatches.remove(batchKey, batch);
+                ready = batch;
+            }
+        }
+        if (ready != null) {
+            dispatch(ready);
+        }
+        return future;
+    }
+
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (!openBatches.remove(batch.key, batch)) {
+                return; // Already sent when it filled up
+            }
+        }
+        dispatch(batch);
+    }
+
+    private void dispatch(Batch batch) {
+        try {
+            searchExecutor.execute(() -> answer(batch));
+        } catch (RejectedExecutionException e) {
+            batch.fail(e);
+        }
+    }
+
+    private void answer(Batch batch) {
+        try {
+            Map<CampusNode, Route> routes = engine.findRoutesFrom(batch.source, batch.destinations,
+                    batch.key.timeOfDay, batch.key.constraints);
+            searches.increment();
+            for (int i = 0; i < batch.destinations.size(); i++) {
+                batch.futures.get(i).complete(routes.get(batch.destinations.get(i)));
+            }
+        } catch (RuntimeException e) {
+            batch.fail(e);
+        }
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /** Requests answered by sharing an identical in-flight request's result. */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /** One-to-many searches run for the requests that were not coalesced. */
+    public long getSearchCount() {
+        return searches.sum();
+    }
+
+    /**
+     * Sends every open batch without waiting for its window, then stops taking work: later
+     * requests fail with RejectedExecutionException.
+     */
+    @Override
+    public void close() {
+        List<Batch> pending;
+        synchronized (this) {
+            closed = true;
+            pending = new ArrayList<>(openBatches.values());
+            openBatches.clear();
+        }
+        for (Batch batch : pending) {
+            dispatch(batch);
+        }
+        batchTimer.shutdownNow();
+        if (ownsSearchExecutor) {
+            searchExecutor.shutdown();
+        }
+    }
+
+    private static final class Batch {
+        final BatchKey key;
+        final CampusNode source;
+        final List<CampusNode> destinations = new ArrayList<>();
+        final List<CompletableFuture<Route>> futures = new ArrayList<>();
+
+        Batch(BatchKey key, CampusNode source) {
+            this.key = key;
+            this.source = source;
+        }
+
+        void fail(Throwable failure) {
+            for (CompletableFuture<Route> future : futures) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static final class BatchKey {
+        final int sourceId;
+        final TimeOfDay timeOfDay;
+        final RouteConstraints constraints;
+
+        BatchKey(int sourceId, TimeOfDay timeOfDay, RouteConstraints constraints) {
+            this.sourceId = sourceId;
+            this.timeOfDay = timeOfDay;
+            this.constraints = constraints;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) obj;
+            return sourceId == other.sourceId && timeOfDay == other.timeOfDay && constraints.equals(other.constraints);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sourceId, timeOfDay, constraints);
+        }
+    }
+
+    private static final class QueryKey {
+        final BatchKey batch;
+        final int destinationId;
+
+        QueryKey(int sourceId, int destinationId, TimeOfDay timeOfDay, RouteConstraints constraints) {
+            this.batch = new BatchKey(sourceId, timeOfDay, constraints);
+            this.destinationId = destinationId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof QueryKey && destinationId == ((QueryKey) obj).destinationId
+                    && batch.equals(((QueryKey) obj).batch);
+        }
+
+        @Override
+        public int hashCode() {
+            return batch.hashCode() * 31 + destinationId;
+        }
+    }
+}
+
+// ===== DIFFERENTIAL VERIFICATION =====
+
+/**
+ * Re-checks a sample of routing answers against a reference Dijkstra on a background thread.
+ * The engine hands over each sampled query with the immutable IndexedGraph and constraint
+ * bitset it was answered on, so the check sees exactly what the backends saw. Queries answered
+ * while edits were pending are skipped, since only Dijkstra and A* see pending edits.
+ *
+ * Checks run on one minimum-priority daemon thread and are dropped rather than queued without
+ * bound: when the queue is full, or when verification has used more than cpuBudget of one
+ * core since the verifier started. A mismatch keeps what is needed to reproduce it (ids,
+ * traffic profile, constraints and snapshot) and is appended to an optional QueryLog, which
+ * {@link QueryReplayer} can replay.
+ */
+final class BackendVerifier implements AutoCloseable {
+    static final double DEFAULT_SAMPLE_RATE = 0.01;
+    static final double DEFAULT_CPU_BUDGET = 0.05;
+    static final int QUEUE_CAPACITY = 256;
+    static final int MAX_KEPT_MISMATCHES = 1000;
+    // Relative difference below which two route costs count as equal
+    private static final double TOLERANCE = 1e-9;
+    // Budget headroom, so checks are not refused right after the verifier starts
+    private static final long BURST_NANOS = 50_000_000L;
+
+    private final double sampleRate;
+    private final double cpuBudget;
+    private final QueryLog.Writer mismatchLog;
+    private final BlockingQueue<Check> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread worker;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong spentNanos = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder skippedPendingEdits = new LongAdder();
+    private final LongAdder skippedOverBudget = new LongAdder();
+    private final LongAdder droppedQueueFull = new LongAdder();
+    private final Map<String, LongAdder> checked = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> mismatched = new ConcurrentHashMap<>();
+    private final Deque<RouteMismatch> mismatches = new ArrayDeque<>();
+    private volatile boolean closed;
+
+    public BackendVerifier() {
+        this(DEFAULT_SAMPLE_RATE, DEFAULT_CPU_BUDGET, null);
+    }
+
+    /**
+     * sampleRate is the fraction of queries checked and cpuBudget the fraction of one core the
+     * checks may use; mismatchLog may be null.
+     */
+    public BackendVerifier(double sampleRate, double cpuBudget, QueryLog.Writer mismatchLog) {
+        if (!(sampleRate >= 0 && sampleRate <= 1) || !(cpuBudget > 0)) {
+            throw new IllegalArgumentException("sampleRate must be in [0, 1] and cpuBudget positive");
+        }
+        this.sampleRate = sampleRate;
+        this.cpuBudget = cpuBudget;
+        this.mismatchLog = mismatchLog;
+        this.worker = new Thread(this::run, "route-verifier");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    boolean shouldSample() {
+        return !closed && sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Queues a check of every backend's route for one query. answers maps backend names to
+     * their routes; version is the pinned version the query ran on, and query carries its
+     * constraints and snapshot. suboptimalityBounds holds, for backends that are not exact, how
+     * far above optimal they may be. Ignored once the verifier is closed.
+     */
+    void submit(IndexedGraph indexed, long[] blockedEdges, GraphVersion version, RecordedQuery query,
+            Map<String, Route> answers, Map<String, Double> suboptimalityBounds) {
+        if (closed) {
+            return;
+        }
+        sampled.increment();
+        if (version.getPendingEditCount() > 0) {
+            skippedPendingEdits.increment();
+            return;
+        }
+        if (spentNanos.get() > cpuBudget * (System.nanoTime() - startNanos) + BURST_NANOS) {
+            skippedOverBudget.increment();
+            return;
+        }
+        Map<String, int[]> paths = new LinkedHashMap<>();
+        answers.forEach((backend, route) -> {
+            if (route != null) {
+                paths.put(backend, route.getPath().stream().mapToInt(CampusNode::getId).toArray());
+            }
+        });
+        inFlight.incrementAndGet();
+        if (!queue.offer(new Check(indexed, blockedEdges, query, paths, suboptimalityBounds))) {
+            inFlight.decrementAndGet();
+            droppedQueueFull.increment();
+        }
+    }
+
+    private void run() {
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        while (!closed) {
+            Check check;
+            try {
+                check = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long begin = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+            try {
+                verify(check);
+            } catch (RuntimeException e) {
+                // A broken check must not stop later ones
+                e.printStackTrace();
+            } finally {
+                spentNanos.addAndGet((cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - begin);
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private void verify(Check check) {
+        IndexedGraph graph = check.graph;
+        int s = graph.indexOf(check.query.getSourceId());
+        int t = graph.indexOf(check.query.getDestinationId());
+        double expected = s < 0 || t < 0 ? Double.POSITIVE_INFINITY
+                : referenceDistance(graph, s, t, check.blockedEdges);
+        for (Map.Entry<String, int[]> answer : check.paths.entrySet()) {
+            String backend = answer.getKey();
+            checked.computeIfAbsent(backend, b -> new LongAdder()).increment();
+            int[] ids = answer.getValue();
+            String reason = null;
+            double actual = Double.POSITIVE_INFINITY;
+            if (ids.length > 0) {
+                if (ids[0] != check.query.getSourceId() || ids[ids.length - 1] != check.query.getDestinationId()) {
+                    reason = "route does not join source and destination";
+                } else {
+                    actual = pathCost(graph, ids, check.blockedEdges);
+                    if (Double.isNaN(actual)) {
+                        reason = "route uses an edge that is missing or blocked";
+                    }
+                }
+            }
+            double bound = check.suboptimalityBounds.getOrDefault(backend, 1.0);
+            if (reason == null && !sameCost(expected, actual) && !withinBound(expected, actual, bound)) {
+                reason = actual == Double.POSITIVE_INFINITY ? "no route found"
+                        : expected == Double.POSITIVE_INFINITY ? "route found where none exists"
+                        : bound > 1.0 ? "route exceeds its suboptimality bound" : "route is not shortest";
+            }
+            if (reason != null) {
+                recordMismatch(new RouteMismatch(backend, check.query, check.query.getConstraints().getName(),
+                        check.query.getSnapshotId(), expected, actual, reason, ids));
+            }
+        }
+    }
+
+    private void recordMismatch(RouteMismatch mismatch) {
+        mismatched.computeIfAbsent(mismatch.getBackend(), b -> new LongAdder()).increment();
+        synchronized (mismatches) {
+            if (mismatches.size() == MAX_KEPT_MISMATCHES) {
+                mismatches.removeFirst();
+            }
+            mismatches.addLast(mismatch);
+        }
+        if (mismatchLog != null) {
+            RecordedQuery query = mismatch.getQuery();
+            mismatchLog.append(query.getSourceId(), query.getDestinationId(), query.getLandmarkFilter(),
+                    query.getTimeOfDay(), query.getConstraints(), query.getSnapshotId());
+        }
+    }
+
+    private static boolean sameCost(double expected, double actual) {
+        if (expected == Double.POSITIVE_INFINITY || actual == Double.POSITIVE_INFINITY) {
+            return expected == actual;
+        }
+        return Math.abs(expected - actual) <= TOLERANCE * Math.max(1.0, expected);
+    }
+
+    /** For bounded-suboptimal backends: no shorter than optimal, and at most bound times longer. */
+    private static boolean withinBound(double expected, double actual, double bound) {
+        if (bound <= 1.0 || expected == Double.POSITIVE_INFINITY || actual == Double.POSITIVE_INFINITY) {
+            return false;
+        }
+        return actual >= expected - TOLERANCE * Math.max(1.0, expected)
+                && actual <= expected * bound + TOLERANCE * Math.max(1.0, expected);
+    }
+
+    /** Plain Dijkstra with no shared workspace or pruning, so it shares no code with the backends. */
+    private static double referenceDistance(IndexedGraph graph, int s, int t, long[] blockedEdges) {
+        double[] dist = new double[graph.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        IndexedMinHeap heap = new IndexedMinHeap(graph.size());
+        dist[s] = 0;
+        heap.insertOrDecrease(s, 0);
+        while (!heap.isEmpty()) {
+            int u = heap.pollMin();
+            if (u == t) {
+                return dist[u];
+            }
+            for (int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+                if (blockedEdges != null && (blockedEdges[e >>> 6] & (1L << e)) != 0) {
+                    continue;
+                }
+                int v = graph.outTarget(e);
+                double nd = dist[u] + graph.outWeight(e);
+                if (nd < dist[v]) {
+                    dist[v] = nd;
+                    heap.insertOrDecrease(v, nd);
+                }
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /** Cost of a node id path over its cheapest usable edges, or NaN if some hop has none. */
+    private static double pathCost(IndexedGraph graph, int[] ids, long[] blockedEdges) {
+        double total = 0;
+        for (int i = 0; i + 1 < ids.length; i++) {
+            int u = graph.indexOf(ids[i]);
+            int v = graph.indexOf(ids[i + 1]);
+            if (u < 0 || v < 0) {
+                return Double.NaN;
+            }
+            double best = Double.POSITIVE_INFINITY;
+            for (int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+                if (graph.outTarget(e) == v && graph.outWeight(e) < best
+                        && (blockedEdges == null || (blockedEdges[e >>> 6] & (1L << e)) == 0)) {
+                    best = graph.outWeight(e);
+                }
+            }
+            if (best == Double.POSITIVE_INFINITY) {
+                return Double.NaN;
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    /**
+     * Waits until every queued check has run; false if that took longer than timeoutMillis.
+     * Returns at once after close, which discards the checks still queued.
+     */
+    boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (inFlight.get() > 0 && !closed) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    public List<RouteMismatch> getMismatches() {
+        synchronized (mismatches) {
+            return new ArrayList<>(mismatches);
+        }
+    }
+
+    public VerificationStats getStats() {
+        Map<String, long[]> backends = new TreeMap<>();
+        checked.forEach((backend, count) -> backends.put(backend, new long[] { count.sum(),
+                mismatched.containsKey(backend) ? mismatched.get(backend).sum() : 0 }));
+        return new VerificationStats(sampled.sum(), skippedPendingEdits.sum(), skippedOverBudget.sum(),
+                droppedQueueFull.sum(), spentNanos.get(), backends);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        List<Check> discarded = new ArrayList<>();
+        queue.drainTo(discarded);
+        inFlight.addAndGet(-discarded.size());
+    }
+
+    private static final class Check {
+        final IndexedGraph graph;
+        final long[] blockedEdges;
+        final RecordedQuery query;
+        final Map<String, int[]> paths;
+        final Map<String, Double> suboptimalityBounds;
+
+        Check(IndexedGraph graph, long[] blockedEdges, RecordedQuery query, Map<String, int[]> paths,
+                Map<String, Double> suboptimalityBounds) {
+            this.graph = graph;
+            this.blockedEdges = blockedEdges;
+            this.query = query;
+            this.paths = paths;
+            this.suboptimalityBounds = suboptimalityBounds;
+        }
+    }
+}
+
+/** One backend answer that disagreed with the reference, with the inputs that reproduce it. */
+class RouteMismatch {
+    private final String backend;
+    private final RecordedQuery query;
+    private final String constraintsName;
+    private final long snapshotId;
+    private final double expectedDistance;
+    private final double actualDistance;
+    private final String reason;
+    private final int[] pathIds;
+    private final long timestamp = System.currentTimeMillis();
+
+    public RouteMismatch(String backend, RecordedQuery query, String constraintsName, long snapshotId,
+            double expectedDistance, double actualDistance, String reason, int[] pathIds) {
+        this.backend = backend;
+        this.query = query;
+        this.constraintsName = constraintsName;
+        this.snapshotId = snapshotId;
+        this.expectedDistance = expectedDistance;
+        this.actualDistance = actualDistance;
+        this.reason = reason;
+        this.pathIds = pathIds;
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    public RecordedQuery getQuery() {
+        return query;
+    }
+
+    public String getConstraintsName() {
+        return constraintsName;
+    }
+
+    /** Compacted graph snapshot the query was answered on. */
+    public long getSnapshotId() {
+        return snapshotId;
+    }
+
+    /** Traffic-adjusted distance from the reference search; infinity if unreachable. */
+    public double getExpectedDistance() {
+        return expectedDistance;
+    }
+
+    /** Traffic-adjusted cost of the backend's route; infinity if it returned none, NaN if it is not a path. */
+    public double getActualDistance() {
+        return actualDistance;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public int[] getPathIds() {
+        return pathIds.clone();
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s (%d -> %d, %s, %s, snapshot %d): expected %.3f, got %.3f", backend, reason,
+                query.getSourceId(), query.getDestinationId(), query.getTimeOfDay(), constraintsName, snapshotId,
+                expectedDistance, actualDistance);
+    }
+}
+
+/** Counters of a BackendVerifier; per-backend mismatch rates are over the checks that ran. */
+class VerificationStats {
+    private final long sampled;
+    private final long skippedPendingEdits;
+    private final long skippedOverBudget;
+    private final long droppedQueueFull;
+    private final long cpuNanos;
+    private final Map<String, long[]> backends;
+
+    public VerificationStats(long sampled, long skippedPendingEdits, long skippedOverBudget, long droppedQueueFull,
+            long cpuNanos, Map<String, long[]> backends) {
+        this.sampled = sampled;
+        this.skippedPendingEdits = skippedPendingEdits;
+        this.skippedOverBudget = skippedOverBudget;
+        this.droppedQueueFull = droppedQueueFull;
+        this.cpuNanos = cpuNanos;
+        this.backends = backends;
+    }
+
+    public long getSampled() {
+        return sampled;
+    }
+
+    public long getSkippedPendingEdits() {
+        return skippedPendingEdits;
+    }
+
+    public long getSkippedOverBudget() {
+        return skippedOverBudget;
+    }
+
+    public long getDroppedQueueFull() {
+        return droppedQueueFull;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public Set<String> getBackends() {
+        return backends.keySet();
+    }
+
+    public long getChecked(String backend) {
+        long[] counts = backends.get(backend);
+        return counts == null ? 0 : counts[0];
+    }
+
+    public long getMismatches(String backend) {
+        long[] counts = backends.get(backend);
+        return counts == null ? 0 : counts[1];
+    }
+
+    public double getMismatchRate(String backend) {
+        long checks = getChecked(backend);
+        return checks == 0 ? 0.0 : (double) getMismatches(backend) / checks;
+    }
+
+    public String format() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(
+                "Sampled %d queries (%d skipped for pending edits, %d over CPU budget, %d dropped), %.1f ms CPU%n",
+                sampled, skippedPendingEdits, skippedOverBudget, droppedQueueFull, cpuNanos / 1e6));
+        for (String backend : backends.keySet()) {
+            report.append(String.format("%-16s %8d checked  %6d mismatches  (%.4f%%)%n", backend, getChecked(backend),
+                    getMismatches(backend), 100 * getMismatchRate(backend)));
+        }
+        return report.toString();
+    }
+}
+
+// ===== CUSTOMIZABLE ROUTE PLANNING =====
+
+/**
+ * Metric-independent half of customizable route planning (CRP): a nested multi-level
+ * partition of the graph with the boundary nodes of every cell. It depends only on the
+ * topology, so it is built once per graph structure and reused for every traffic profile.
+ */
+class OverlayPartition {
+    public static final int DEFAULT_MAX_CELL_SIZE = 128;
+    public static final int DEFAULT_FANOUT = 16;
+
+    private static final double BALANCE_TOLERANCE = 0.05;
+    private static final int REFINEMENT_PASSES = 2;
+
+    final IndexedGraph topology;
+    final int levels;
+    // Indexed by level - 1
+    final int[][] cellOf;
+    final int[] cellCount;
+    final int[][][] boundary;
+    final int[][] boundaryIndex;
+
+    private OverlayPartition(IndexedGraph topology, int levels, int[][] cellOf, int[] cellCount) {
+        this.topology = topology;
+        this.levels = levels;
+        this.cellOf = cellOf;
+        this.cellCount = cellCount;
+        this.boundary = new int[levels][][];
+        this.boundaryIndex = new int[levels][];
+        for (int level = 1; level <= levels; level++) {
+            collectBoundary(level);
+        }
+    }
+
+    public static OverlayPartition build(IndexedGraph topology) {
+        return build(topology, DEFAULT_MAX_CELL_SIZE, DEFAULT_FANOUT);
+    }
+
+    /**
+     * Partitions top-down: the whole graph into fanout cells, each of those into fanout cells,
+     * and so on until the level-1 cells hold at most maxCellSize nodes. Each split is a
+     * balanced coordinate bisection followed by a few greedy cut-reducing moves.
+     */
+    public static OverlayPartition build(IndexedGraph topology, int maxCellSize, int fanout) {
+        int n = topology.size();
+        int levels = 0;
+        for (double cellSize = n; cellSize > maxCellSize; cellSize /= fanout) {
+            levels++;
+        }
+
+        int[][] cellOf = new int[levels][n];
+        int[] cellCount = new int[levels];
+        Bisector bisector = new Bisector(topology);
+
+        List<int[]> cells = new ArrayList<>();
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+        cells.add(all);
+
+        for (int level = levels; level >= 1; level--) {
+            List<int[]> next = new ArrayList<>();
+            for (int[] cell : cells) {
+                next.addAll(bisector.split(cell, fanout));
+            }
+            for (int c = 0; c < next.size(); c++) {
+                for (int node : next.get(c)) {
+                    cellOf[level - 1][node] = c;
+                }
+            }
+            cellCount[level - 1] = next.size();
+            cells = next;
+        }
+        return new OverlayPartition(topology, levels, cellOf, cellCount);
+    }
+
+    private void collectBoundary(int level) {
+        int n = topology.size();
+        int[] cells = cellOf[level - 1];
+        int[] index = new int[n];
+        Arrays.fill(index, -1);
+        int[] counts = new int[cellCount[level - 1]];
+
+        for (int v = 0; v < n; v++) {
+            boolean cut = false;
+            for (int e = topology.outStart(v); e < topology.outEnd(v) && !cut; e++) {
+                cut = cells[topology.outTarget(e)] != cells[v];
+            }
+            for (int e = topology.inStart(v); e < topology.inEnd(v) && !cut; e++) {
+                cut = cells[topology.inSource(e)] != cells[v];
+            }
+            if (cut) {
+                index[v] = counts[cells[v]]++;
+            }
+        }
+
+        int[][] nodes = new int[counts.length][];
+        for (int c = 0; c < counts.length; c++) {
+            nodes[c] = new int[counts[c]];
+        }
+        for (int v = 0; v < n; v++) {
+            if (index[v] >= 0) {
+                nodes[cells[v]][index[v]] = v;
+            }
+        }
+        boundary[level - 1] = nodes;
+        boundaryIndex[level - 1] = index;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getCellCount(int level) {
+        return cellCount[level - 1];
+    }
+
+    public int cellOf(int level, int node) {
+        return cellOf[level - 1][node];
+    }
+
+    /** Highest level at which the node lies on a cell boundary, or 0 if it is interior everywhere. */
+    public int boundaryLevel(int node) {
+        for (int level = levels; level >= 1; level--) {
+            if (boundaryIndex[level - 1][node] >= 0) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /** Highest level at which v shares a cell with neither s nor t, or 0 if it shares level 1 with one. */
+    int queryLevel(int v, int s, int t) {
+        for (int level = levels; level >= 1; level--) {
+            int[] cells = cellOf[level - 1];
+            if (cells[v] != cells[s] && cells[v] != cells[t]) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /** Recursive coordinate bisection with greedy boundary refinement. */
+    private static final class Bisector {
+        private final IndexedGraph graph;
+        private final double[] x;
+        private final double[] y;
+        private final int[] side;
+
+        Bisector(IndexedGraph graph) {
+            this.graph = graph;
+            int n = graph.size();
+            this.x = new double[n];
+            this.y = new double[n];
+            this.side = new int[n];
+            Arrays.fill(side, -1);
+            for (int i = 0; i < n; i++) {
+                CampusNode node = graph.node(i);
+                x[i] = node.getLongitude() * Math.cos(Math.toRadians(node.getLatitude()));
+                y[i] = node.getLatitude();
+            }
+        }
+
+        List<int[]> split(int[] nodes, int parts) {
+            List<int[]> result = new ArrayList<>();
+            splitInto(nodes, parts, result);
+            return result;
+        }
+
+        private void splitInto(int[] nodes, int parts, List<int[]> result) {
+            if (parts <= 1 || nodes.length <= 1) {
+                result.add(nodes);
+                return;
+            }
+            int leftParts = parts / 2;
+            int leftSize = (int) ((long) nodes.length * leftParts / parts);
+
+            // Split along the wider axis at the balanced rank
+            double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int v : nodes) {
+                minX = Math.min(minX, x[v]);
+                maxX = Math.max(maxX, x[v]);
+                minY = Math.min(minY, y[v]);
+                maxY = Math.max(maxY, y[v]);
+            }
+            double[] axis = maxX - minX >= maxY - minY ? x : y;
+            Integer[] order = new Integer[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                order[i] = nodes[i];
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(axis[a], axis[b]));
+            for (int i = 0; i < order.length; i++) {
+                side[order[i]] = i < leftSize ? 0 : 1;
+            }
+
+            refine(nodes, leftSize);
+
+            int[] left = new int[nodes.length];
+            int[] right = new int[nodes.length];
+            int leftCount = 0, rightCount = 0;
+            for (int v : nodes) {
+                if (side[v] == 0) {
+                    left[leftCount++] = v;
+                } else {
+                    right[rightCount++] = v;
+                }
+            }
+            for (int v : nodes) {
+                side[v] = -1;
+            }
+
+            splitInto(Arrays.copyOf(left, leftCount), leftParts, result);
+            splitInto(Arrays.copyOf(right, rightCount), parts - leftParts, result);
+        }
+
+        /** Moves nodes with more neighbours across the cut than on their own side, within the balance slack. */
+        private void refine(int[] nodes, int targetLeft) {
+            int slack = (int) Math.ceil(nodes.length * BALANCE_TOLERANCE);
+            int leftCount = targetLeft;
+            for (int pass = 0; pass < REFINEMENT_PASSES; pass++) {
+                boolean moved = false;
+                for (int v : nodes) {
+                    int gain = 0;
+                    for (int e = graph.outStart(v); e < graph.outEnd(v); e++) {
+                        gain += gainOf(v, graph.outTarget(e));
+                    }
+                    for (int e = graph.inStart(v); e < graph.inEnd(v); e++) {
+                        gain += gainOf(v, graph.inSource(e));
+                    }
+                    if (gain <= 0) {
+                        continue;
+                    }
+                    int newLeft = side[v] == 0 ? leftCount - 1 : leftCount + 1;
+                    if (Math.abs(newLeft - targetLeft) <= slack && newLeft > 0 && newLeft < nodes.length) {
+                        side[v] = 1 - side[v];
+                        leftCount = newLeft;
+                        moved = true;
+                    }
+                }
+                if (!moved) {
+                    break;
+                }
+            }
+        }
+
+        private int gainOf(int v, int neighbour) {
+            if (side[neighbour] < 0) {
+                return 0;
+            }
+            return side[neighbour] == side[v] ? -1 : 1;
+        }
+    }
+}
+
+/**
+ * Metric-dependent half of CRP: for every cell, a clique matrix of shortest distances between
+ * its boundary nodes under one set of edge weights. Level-1 matrices come from searches on the
+ * base graph inside the cell, higher levels from searches over the level below, and all cells
+ * of a level are customized in parallel. A new traffic profile only needs a new instance.
+ */
+class OverlayMetrics {
+    private static final int FORWARD_SPACE = 0;
+    private static final int BACKWARD_SPACE = 1;
+    // The cell searches of level l use space CELL_SPACES + l - 1
+    private static final int CELL_SPACES = 2;
+
+    private final OverlayPartition partition;
+    private final IndexedGraph weights;
+    // [level - 1][cell] -> row-major boundary-to-boundary distances
+    private final double[][][] matrices;
+    private final long customizationNanos;
+    // Per thread: the two halves of a query, then one space per level for the cell searches of
+    // customizing and unpacking, so a shortcut's search survives unpacking the arcs below it
+    private final ThreadLocal<SearchSpace[]> searchSpaces;
+
+    private OverlayMetrics(OverlayPartition partition, IndexedGraph weights) {
+        this.partition = partition;
+        this.weights = weights;
+        this.matrices = new double[partition.levels][][];
+        this.searchSpaces = ThreadLocal.withInitial(() -> new SearchSpace[CELL_SPACES + partition.levels]);
+        long start = System.nanoTime();
+        for (int level = 1; level <= partition.levels; level++) {
+            int current = level;
+            matrices[level - 1] = new double[partition.cellCount[level - 1]][];
+            java.util.stream.IntStream.range(0, partition.cellCount[level - 1]).parallel()
+                    .forEach(cell -> matrices[current - 1][cell] = customizeCell(current, cell));
+        }
+        this.customizationNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Computes cell matrices for the given weights. The weighted graph must share the
+     * partition's topology, i.e. be built from the same graph structure.
+     */
+    public static OverlayMetrics customize(OverlayPartition partition, IndexedGraph weights) {
+        if (!partition.topology.hasSameTopology(weights)) {
+            throw new IllegalArgumentException("Weights were built from a different graph structure");
+        }
+        return new OverlayMetrics(partition, weights);
+    }
+
+    public long getCustomizationNanos() {
+        return customizationNanos;
+    }
+
+    private double[] customizeCell(int level, int cell) {
+        int[] nodes = partition.boundary[level - 1][cell];
+        int b = nodes.length;
+        double[] matrix = new double[b * b];
+        for (int i = 0; i < b; i++) {
+            SearchSpace space = searchSpace(CELL_SPACES + level - 1);
+            cellSearch(space, level, cell, nodes[i], -1);
+            for (int j = 0; j < b; j++) {
+                matrix[i * b + j] = space.distance[nodes[j]];
+            }
+        }
+        return matrix;
+    }
+
+    /** This thread's search space in the given slot, cleared of whatever last used it. */
+    private SearchSpace searchSpace(int slot) {
+        SearchSpace[] spaces = searchSpaces.get();
+        if (spaces[slot] == null) {
+            spaces[slot] = new SearchSpace(weights.size());
+        }
+        spaces[slot].reset();
+        return spaces[slot];
+    }
+
+    /**
+     * Dijkstra confined to one cell at the given level, using the base graph for level 1 and
+     * the level below (cut arcs plus sub-cell cliques) otherwise. Stops early once target is settled.
+     */
+    private void cellSearch(SearchSpace space, int level, int cell, int source, int target) {
+        int[] cells = partition.cellOf[level - 1];
+        space.reach(source, 0.0, -1, 0, -1);
+        while (!space.heap.isEmpty()) {
+            int u = space.heap.pollMin();
+            if (u == target) {
+                return;
+            }
+            double du = space.distance[u];
+            if (level == 1) {
+                for (int e = weights.outStart(u); e < weights.outEnd(u); e++) {
+                    int v = weights.outTarget(e);
+                    if (cells[v] == cell) {
+                        space.reach(v, du + weights.outWeight(e), u, 0, e);
+                    }
+                }
+            } else {
+                relaxOverlay(space, level - 1, u, du, cells, cell, true);
+            }
+        }
+    }
+
+    /**
+     * Relaxes level-l arcs out of (or, backwards, into) u: the clique of u's level-l cell and the
+     * base arcs cut at level l. When confineTo is given, targets must lie in that cell of the
+     * level above, as they do while customizing.
+     */
+    private void relaxOverlay(SearchSpace space, int level, int u, double du,
+            int[] confineCells, int confineTo, boolean forward) {
+        int[] cells = partition.cellOf[level - 1];
+        int cell = cells[u];
+        int[] nodes = partition.boundary[level - 1][cell];
+        double[] matrix = matrices[level - 1][cell];
+        int b = nodes.length;
+        int i = partition.boundaryIndex[level - 1][u];
+        for (int j = 0; j < b; j++) {
+            double w = forward ? matrix[i * b + j] : matrix[j * b + i];
+            if (j != i && w < Double.POSITIVE_INFINITY) {
+                space.reach(nodes[j], du + w, u, level, -1);
+            }
+        }
+        if (forward) {
+            for (int e = weights.outStart(u); e < weights.outEnd(u); e++) {
+                int v = weights.outTarget(e);
+                if (cells[v] != cell && (confineCells == null || confineCells[v] == confineTo)) {
+                    space.reach(v, du + weights.outWeight(e), u, 0, e);
+                }
+            }
+        } else {
+            for (int e = weights.inStart(u); e < weights.inEnd(u); e++) {
+                int v = weights.inSource(e);
+                if (cells[v] != cell && (confineCells == null || confineCells[v] == confineTo)) {
+                    space.reach(v, du + weights.inWeight(e), u, 0, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bidirectional multi-level query. Each search works on the highest level whose cells contain
+     * neither endpoint, so only the cells around s and t are explored on the base graph.
+     */
+    public IndexedPath query(int s, int t, SearchStats stats) {
+        SearchSpace forward = searchSpace(FORWARD_SPACE);
+        SearchSpace backward = searchSpace(BACKWARD_SPACE);
+        Meeting meeting = new Meeting();
+        forward.opposite = backward;
+        backward.opposite = forward;
+        forward.meeting = meeting;
+        backward.meeting = meeting;
+        forward.reach(s, 0.0, -1, 0, -1);
+        backward.reach(t, 0.0, -1, 0, -1);
+
+        while (!forward.heap.isEmpty() || !backward.heap.isEmpty()) {
+            PathfindingEngine.checkCancelled();
+            double topForward = forward.heap.isEmpty() ? Double.POSITIVE_INFINITY : forward.heap.peekKey();
+            double topBackward = backward.heap.isEmpty() ? Double.POSITIVE_INFINITY : backward.heap.peekKey();
+            if (topForward + topBackward >= meeting.distance) {
+                break;
+            }
+            boolean forwardStep = topForward <= topBackward;
+            SearchSpace space = forwardStep ? forward : backward;
+
+            int u = space.heap.pollMin();
+            stats.heapPops++;
+            stats.nodesSettled++;
+            double du = space.distance[u];
+            int level = partition.queryLevel(u, s, t);
+
+            if (level == 0) {
+                if (forwardStep) {
+                    for (int e = weights.outStart(u); e < weights.outEnd(u); e++) {
+                        space.reach(weights.outTarget(e), du + weights.outWeight(e), u, 0, e);
+                        stats.edgesRelaxed++;
+                    }
+                } else {
+                    for (int e = weights.inStart(u); e < weights.inEnd(u); e++) {
+                        space.reach(weights.inSource(e), du + weights.inWeight(e), u, 0, e);
+                        stats.edgesRelaxed++;
+                    }
+                }
+            } else {
+                relaxOverlay(space, level, u, du, null, -1, forwardStep);
+                stats.edgesRelaxed += partition.boundary[level - 1][partition.cellOf[level - 1][u]].length;
+            }
+        }
+        stats.heapPushes += forward.pushes + backward.pushes;
+
+        if (meeting.node < 0) {
+            return IndexedPath.NONE;
+        }
+
+        // The forward half's arcs from s to the meeting node, then the backward half's on to t
+        int[] arcs = new int[16];
+        int arcCount = 0;
+        for (int v = meeting.node; forward.parent[v] >= 0; v = forward.parent[v]) {
+            if (arcCount == arcs.length) {
+                arcs = Arrays.copyOf(arcs, arcCount * 2);
+            }
+            arcs[arcCount++] = v;
+        }
+        PathBuffer path = new PathBuffer();
+        path.add(s);
+        for (int k = arcCount - 1; k >= 0; k--) {
+            int v = arcs[k];
+            unpack(forward.parentLevel[v], forward.parent[v], v, path);
+        }
+        for (int v = meeting.node; backward.parent[v] >= 0; v = backward.parent[v]) {
+            unpack(backward.parentLevel[v], v, backward.parent[v], path);
+        }
+        return new IndexedPath(path.toArray(), meeting.distance);
+    }
+
+    /**
+     * Expands an arc from a to b (a shortcut when level > 0) into base-graph nodes, appending
+     * those after a, up to and including b, to path.
+     */
+    private void unpack(int level, int a, int b, PathBuffer path) {
+        if (level == 0) {
+            path.add(b);
+            return;
+        }
+        // Arcs below this level are unpacked in lower levels' spaces, so this one stays intact
+        SearchSpace space = searchSpace(CELL_SPACES + level - 1);
+        cellSearch(space, level, partition.cellOf[level - 1][a], a, b);
+
+        int hops = 0;
+        for (int v = b; v != a; v = space.parent[v]) {
+            hops++;
+        }
+        int[] heads = new int[hops];
+        for (int v = b; v != a; v = space.parent[v]) {
+            heads[--hops] = v;
+        }
+        int previous = a;
+        for (int next : heads) {
+            unpack(space.parentLevel[next], previous, next, path);
+            previous = next;
+        }
+    }
+
+    /** Growable run of node indices, for unpacking paths without boxing. */
+    private static final class PathBuffer {
+        private int[] nodes = new int[64];
+        private int size;
+
+        void add(int v) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            nodes[size++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(nodes, size);
+        }
+    }
+
+    /** Best s-t distance seen so far in a bidirectional query and the node where it was found. */
+    private static final class Meeting {
+        double distance = Double.POSITIVE_INFINITY;
+        int node = -1;
+    }
+
+    /** Per-search state with lazy reset, so one instance can serve many cell searches. */
+    private static final class SearchSpace {
+        final double[] distance;
+        final int[] parent;
+        final int[] parentLevel;
+        final IndexedMinHeap heap;
+        int[] touched = new int[64];
+        int touchedCount;
+        int pushes;
+
+        // Set only for the two halves of a bidirectional query
+        SearchSpace opposite;
+        Meeting meeting;
+
+        SearchSpace(int n) {
+            distance = new double[n];
+            parent = new int[n];
+            parentLevel = new int[n];
+            Arrays.fill(distance, Double.POSITIVE_INFINITY);
+            heap = new IndexedMinHeap(n);
+        }
+
+        void reach(int v, double dist, int from, int level, int edge) {
+            if (dist >= distance[v]) {
+                return;
+            }
+            if (distance[v] == Double.POSITIVE_INFINITY) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = v;
+            }
+            distance[v] = dist;
+            parent[v] = from;
+            parentLevel[v] = level;
+            heap.insertOrDecrease(v, dist);
+            pushes++;
+
+            if (opposite != null && dist + opposite.distance[v] < meeting.distance) {
+                meeting.distance = dist + opposite.distance[v];
+                meeting.node = v;
+            }
+        }
+
+        void reset() {
+            for (int k = 0; k < touchedCount; k++) {
+                distance[touched[k]] = Double.POSITIVE_INFINITY;
+            }
+            touchedCount = 0;
+            pushes = 0;
+            heap.clear();
+        }
+    }
+}
+
+// ===== HUB LABELING =====
+
+/**
+ * Pruned landmark labeling (2-hop cover) distance oracle. Every node keeps a forward label of
+ * (hub, distance to hub) and a backward label of (hub, distance from hub); dist(s, t) is the best
+ * hub shared by s's forward and t's backward label. Labels are sorted by hub rank and packed per
+ * direction into one byte array: each entry is the varint rank delta, the varint distance in
+ * units of {@link #DISTANCE_QUANTUM} metres, and the varint slot of the node's first edge on its
+ * path to or from the hub. A query is one linear merge over two short runs; paths are unpacked
+ * by following those edges through the labels, and summed exactly from the graph's weights.
+ */
+class HubLabels {
+    /** Label distances are rounded to this many metres, so {@link #distance} is within it of exact. */
+    static final double DISTANCE_QUANTUM = 1.0 / 64;
+    private static final int INITIAL_LABEL_CAPACITY = 4;
+
+    private final IndexedGraph graph;
+    // Node of each hub rank
+    private final int[] hubNodes;
+    // Forward labels: hubs reachable from a node, the distance to them and the out-edge slot towards them
+    private final int[] outOffsets;
+    private final byte[] outLabels;
+    private final int outEntries;
+    // Backward labels: hubs that reach a node, the distance from them and the in-edge slot back towards them
+    private final int[] inOffsets;
+    private final byte[] inLabels;
+    private final int inEntries;
+    private final long buildNanos;
+
+    private HubLabels(IndexedGraph graph, int[] order) {
+        this.graph = graph;
+        long start = System.nanoTime();
+        int n = graph.size();
+        LabelBuilder out = new LabelBuilder(n);
+        LabelBuilder in = new LabelBuilder(n);
+
+        double[] hubRow = new double[n];
+        Arrays.fill(hubRow, Double.POSITIVE_INFINITY);
+        double[] dist = new double[n];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        int[] parentEdge = new int[n];
+        int[] touched = new int[n];
+        IndexedMinHeap heap = new IndexedMinHeap(n);
+
+        for (int rank = 0; rank < order.length; rank++) {
+            int hub = order[rank];
+            prunedSearch(hub, rank, true, out, in, hubRow, dist, parentEdge, touched, heap);
+            prunedSearch(hub, rank, false, out, in, hubRow, dist, parentEdge, touched, heap);
+        }
+
+        this.hubNodes = order.clone();
+        this.outOffsets = new int[n + 1];
+        this.outLabels = out.encode(outOffsets);
+        this.outEntries = out.total();
+        this.inOffsets = new int[n + 1];
+        this.inLabels = in.encode(inOffsets);
+        this.inEntries = in.total();
+        this.buildNanos = System.nanoTime() - start;
+    }
+
+    /** Builds labels with hubs ranked by {@link #separatorOrder}. */
+    public static HubLabels build(IndexedGraph graph, OverlayPartition partition) {
+        return build(graph, separatorOrder(graph, partition));
+    }
+
+    /** Builds labels processing hubs in the given order; order must be a permutation of the nodes. */
+    public static HubLabels build(IndexedGraph graph, int[] order) {
+        if (order.length != graph.size()) {
+            throw new IllegalArgumentException("Hub order must cover every node");
+        }
+        return new HubLabels(graph, order);
+    }
+
+    /**
+     * Ranks nodes on high-level cell boundaries first (they are the separators most shortest
+     * paths cross), then by degree. Label size depends heavily on this order.
+     */
+    public static int[] separatorOrder(IndexedGraph graph, OverlayPartition partition) {
+        int n = graph.size();
+        Integer[] nodes = new Integer[n];
+        int[] boundaryLevel = new int[n];
+        for (int v = 0; v < n; v++) {
+            nodes[v] = v;
+            boundaryLevel[v] = partition == null ? 0 : partition.boundaryLevel(v);
+        }
+        Arrays.sort(nodes, (a, b) -> {
+            if (boundaryLevel[a] != boundaryLevel[b]) {
+                return Integer.compare(boundaryLevel[b], boundaryLevel[a]);
+            }
+            int degreeA = graph.outEnd(a) - graph.outStart(a) + graph.inEnd(a) - graph.inStart(a);
+            int degreeB = graph.outEnd(b) - graph.outStart(b) + graph.inEnd(b) - graph.inStart(b);
+            return degreeA != degreeB ? Integer.compare(degreeB, degreeA) : Integer.compare(a, b);
+        });
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = nodes[i];
+        }
+        return order;
+    }
+
+    /**
+     * Dijkstra from hub that stops expanding wherever the labels built so far already cover
+     * the distance. The forward search fills backward labels and vice versa, each entry with
+     * the edge its node was reached by.
+     */
+    private void prunedSearch(int hub, int rank, boolean forward, LabelBuilder out, LabelBuilder in,
+                              double[] hubRow, double[] dist, int[] parentEdge, int[] touched, IndexedMinHeap heap) {
+        // hubRow holds the hub's own label on the side the prune test pairs with
+        LabelBuilder hubSide = forward ? out : in;
+        LabelBuilder target = forward ? in : out;
+        for (int i = 0; i < hubSide.count[hub]; i++) {
+            hubRow[hubSide.hubs[hub][i]] = hubSide.distances[hub][i];
+        }
+
+        int touchedCount = 0;
+        dist[hub] = 0;
+        touched[touchedCount++] = hub;
+        heap.insertOrDecrease(hub, 0);
+        while (!heap.isEmpty()) {
+            int v = heap.pollMin();
+            double d = dist[v];
+            if (coveredDistance(target, v, hubRow) <= d) {
+                continue;
+            }
+            target.add(v, rank, d, v == hub ? 0 : edgeSlot(v, parentEdge[v], forward));
+            int start = forward ? graph.outStart(v) : graph.inStart(v);
+            int end = forward ? graph.outEnd(v) : graph.inEnd(v);
+            for (int e = start; e < end; e++) {
+                int w = forward ? graph.outTarget(e) : graph.inSource(e);
+                double nd = d + (forward ? graph.outWeight(e) : graph.inWeight(e));
+                if (nd < dist[w]) {
+                    if (dist[w] == Double.POSITIVE_INFINITY) {
+                        touched[touchedCount++] = w;
+                    }
+                    dist[w] = nd;
+                    parentEdge[w] = forward ? e : graph.inForwardEdge(e);
+                    heap.insertOrDecrease(w, nd);
+                }
+            }
+        }
+
+        for (int i = 0; i < touchedCount; i++) {
+            dist[touched[i]] = Double.POSITIVE_INFINITY;
+        }
+        for (int i = 0; i < hubSide.count[hub]; i++) {
+            hubRow[hubSide.hubs[hub][i]] = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Position of forward edge among v's in-edges when v was reached by a forward search (the edge
+     * enters v), or among its out-edges when reached by a backward one (the edge leaves v).
+     */
+    private int edgeSlot(int v, int edge, boolean forward) {
+        if (!forward) {
+            return edge - graph.outStart(v);
+        }
+        for (int e = graph.inStart(v); e < graph.inEnd(v); e++) {
+            if (graph.inForwardEdge(e) == edge) {
+                return e - graph.inStart(v);
+            }
+        }
+        throw new IllegalStateException("Edge " + edge + " does not enter node " + v);
+    }
+
+    private static double coveredDistance(LabelBuilder labels, int v, double[] hubRow) {
+        double best = Double.POSITIVE_INFINITY;
+        int[] hubs = labels.hubs[v];
+        double[] distances = labels.distances[v];
+        for (int i = 0; i < labels.count[v]; i++) {
+            double d = hubRow[hubs[i]] + distances[i];
+            if (d < best) {
+                best = d;
+            }
+        }
+        return best;
+    }
+
+    /** Shortest distance from s to t, within {@link #DISTANCE_QUANTUM} of exact; infinite if unreachable. */
+    public double distance(int s, int t) {
+        long best = quantizedDistance(s, t, null);
+        return best == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : best * DISTANCE_QUANTUM;
+    }
+
+    /** Best sum of quantized label distances over the hubs s and t share, or Long.MAX_VALUE. */
+    private long quantizedDistance(int s, int t, SearchStats stats) {
+        LabelCursor forward = new LabelCursor(outLabels, outOffsets[s], outOffsets[s + 1]);
+        LabelCursor backward = new LabelCursor(inLabels, inOffsets[t], inOffsets[t + 1]);
+        long best = Long.MAX_VALUE;
+        boolean more = forward.next() && backward.next();
+        while (more) {
+            if (forward.rank == backward.rank) {
+                best = Math.min(best, forward.distance + backward.distance);
+                more = forward.next() && backward.next();
+            } else if (forward.rank < backward.rank) {
+                more = forward.next();
+            } else {
+                more = backward.next();
+            }
+        }
+        if (stats != null) {
+            stats.edgesRelaxed += forward.read + backward.read;
+        }
+        return best;
+    }
+
+    /**
+     * Shortest path from s to t through the best shared hub. Rounding leaves the quantized sums
+     * of hubs within two quanta of the best tied, so each of those is unpacked and summed
+     * exactly from the graph's weights, and the shortest wins.
+     */
+    public IndexedPath query(int s, int t, SearchStats stats) {
+        long best = quantizedDistance(s, t, stats);
+        if (best == Long.MAX_VALUE) {
+            return IndexedPath.NONE;
+        }
+        LabelCursor forward = new LabelCursor(outLabels, outOffsets[s], outOffsets[s + 1]);
+        LabelCursor backward = new LabelCursor(inLabels, inOffsets[t], inOffsets[t + 1]);
+        int[] bestEdges = null;
+        double bestTotal = Double.POSITIVE_INFINITY;
+        boolean more = forward.next() && backward.next();
+        while (more) {
+            if (forward.rank == backward.rank) {
+                if (forward.distance + backward.distance <= best + 2) {
+                    int[] edges = edgesVia(s, t, forward.rank);
+                    double total = 0;
+                    for (int e : edges) {
+                        total += graph.outWeight(e);
+                    }
+                    if (total < bestTotal) {
+                        bestTotal = total;
+                        bestEdges = edges;
+                    }
+                }
+                more = forward.next() && backward.next();
+            } else if (forward.rank < backward.rank) {
+                more = forward.next();
+            } else {
+                more = backward.next();
+            }
+        }
+
+        int[] path = new int[bestEdges.length + 1];
+        path[0] = s;
+        for (int k = 0; k < bestEdges.length; k++) {
+            path[k + 1] = graph.outTarget(bestEdges[k]);
+        }
+        stats.nodesSettled += path.length;
+        return new IndexedPath(path, bestTotal);
+    }
+
+    /** Forward edges from s to the hub of the given rank and on to t, in path order. */
+    private int[] edgesVia(int s, int t, int rank) {
+        int hub = hubNodes[rank];
+        int[] edges = new int[16];
+        int count = 0;
+        int u = s;
+        while (u != hub) {
+            PathfindingEngine.checkCancelled();
+            int e = graph.outStart(u) + slotTowards(outLabels, outOffsets, u, rank);
+            if (count == edges.length) {
+                edges = Arrays.copyOf(edges, count * 2);
+            }
+            edges[count++] = e;
+            u = graph.outTarget(e);
+        }
+        // The backward label leads from t back to the hub, so that half is gathered in reverse
+        int towardHub = count;
+        u = t;
+        while (u != hub) {
+            PathfindingEngine.checkCancelled();
+            int e = graph.inStart(u) + slotTowards(inLabels, inOffsets, u, rank);
+            if (count == edges.length) {
+                edges = Arrays.copyOf(edges, count * 2);
+            }
+            edges[count++] = graph.inForwardEdge(e);
+            u = graph.inSource(e);
+        }
+        for (int i = towardHub, j = count - 1; i < j; i++, j--) {
+            int swap = edges[i];
+            edges[i] = edges[j];
+            edges[j] = swap;
+        }
+        return Arrays.copyOf(edges, count);
+    }
+
+    /** Edge slot stored in u's label entry for the hub of the given rank. */
+    private int slotTowards(byte[] labels, int[] offsets, int u, int rank) {
+        LabelCursor cursor = new LabelCursor(labels, offsets[u], offsets[u + 1]);
+        while (cursor.next() && cursor.rank <= rank) {
+            if (cursor.rank == rank) {
+                return cursor.slot;
+            }
+        }
+        throw new IllegalStateException("Hub labels are inconsistent with the graph");
+    }
+
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    public double getAverageLabelSize() {
+        return graph.size() == 0 ? 0 : (outEntries + inEntries) / (2.0 * graph.size());
+    }
+
+    /** Bytes held by the packed labels, their offsets and the hub order. */
+    public long getLabelBytes() {
+        return outLabels.length + inLabels.length
+                + (long) (outOffsets.length + inOffsets.length + hubNodes.length) * Integer.BYTES;
+    }
+
+    public double getBytesPerNode() {
+        return graph.size() == 0 ? 0 : getLabelBytes() / (double) graph.size();
+    }
+
+    /** Reads one node's packed label entry by entry. */
+    private static final class LabelCursor {
+        private final byte[] labels;
+        private final int end;
+        private int position;
+        int rank;
+        long distance;
+        int slot;
+        int read;
+
+        LabelCursor(byte[] labels, int start, int end) {
+            this.labels = labels;
+            this.position = start;
+            this.end = end;
+        }
+
+        boolean next() {
+            if (position == end) {
+                return false;
+            }
+            rank += (int) readVarint();
+            distance = readVarint();
+            slot = (int) readVarint();
+            read++;
+            return true;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = labels[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    /** Growable per-node labels used only while building, packed afterwards. */
+    private static final class LabelBuilder {
+        final int[][] hubs;
+        final double[][] distances;
+        final int[][] slots;
+        final int[] count;
+
+        LabelBuilder(int n) {
+            hubs = new int[n][INITIAL_LABEL_CAPACITY];
+            distances = new double[n][INITIAL_LABEL_CAPACITY];
+            slots = new int[n][INITIAL_LABEL_CAPACITY];
+            count = new int[n];
+        }
+
+        void add(int node, int hub, double distance, int slot) {
+            int c = count[node];
+            if (c == hubs[node].length) {
+                hubs[node] = Arrays.copyOf(hubs[node], c * 2);
+                distances[node] = Arrays.copyOf(distances[node], c * 2);
+                slots[node] = Arrays.copyOf(slots[node], c * 2);
+            }
+            hubs[node][c] = hub;
+            distances[node][c] = distance;
+            slots[node][c] = slot;
+            count[node] = c + 1;
+        }
+
+        /** Packs every label into one array, filling offsets with where each node's label starts. */
+        byte[] encode(int[] offsets) {
+            byte[] packed = new byte[total() * 4];
+            int size = 0;
+            for (int v = 0; v < count.length; v++) {
+                offsets[v] = size;
+                int previous = 0;
+                for (int i = 0; i < count[v]; i++) {
+                    // Each entry needs at most 5 + 10 + 5 bytes
+                    if (packed.length - size < 20) {
+                        packed = Arrays.copyOf(packed, packed.length * 2 + 20);
+                    }
+                    size = putVarint(packed, size, hubs[v][i] - previous);
+                    size = putVarint(packed, size, Math.round(distances[v][i] / DISTANCE_QUANTUM));
+                    size = putVarint(packed, size, slots[v][i]);
+                    previous = hubs[v][i];
+                }
+            }
+            offsets[count.length] = size;
+            return Arrays.copyOf(packed, size);
+        }
+
+        private static int putVarint(byte[] out, int position, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out[position++] = (byte) value;
+            return position;
+        }
+
+        int total() {
+            int total = 0;
+            for (int c : count) {
+                total += c;
+            }
+            return total;
+        }
+    }
+}
+
+// ===== ON-DEMAND DISTANCE ROWS =====
+
+/**
+ * All-pairs lookups computed one source row at a time. A row is filled by a single Dijkstra
+ * the first time its source is queried and kept in an LRU bounded by bytes, so memory follows
+ * the set of hot sources instead of growing with n².
+ *
+ * Rows are stored compactly: distances as floats, predecessors as the position of the tree
+ * edge within the target's incoming edges (one byte per node on typical campus graphs).
+ * Route lengths are re-summed from the exact edge weights, so float rounding only affects
+ * {@link #distance}.
+ */
+class DistanceRowCache {
+    private final IndexedGraph graph;
+    private final long maxBytes;
+    private final int predecessorBytes;
+    private final LinkedHashMap<Integer, DistanceRow> rows = new LinkedHashMap<>(16, 0.75f, true);
+    private final Supplier<OneToAllAlgorithm> algorithm;
+    private long usedBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DistanceRowCache(IndexedGraph graph, long maxBytes) {
+        this(graph, maxBytes, () -> OneToAllAlgorithm.AUTO);
+    }
+
+    /** algorithm is read for every row, so a change applies to rows computed after it. */
+    public DistanceRowCache(IndexedGraph graph, long maxBytes, Supplier<OneToAllAlgorithm> algorithm) {
+        this.graph = graph;
+        this.maxBytes = maxBytes;
+        this.algorithm = algorithm;
+        int maxInDegree = 0;
+        for (int v = 0; v < graph.size(); v++) {
+            maxInDegree = Math.max(maxInDegree, graph.inEnd(v) - graph.inStart(v));
+        }
+        // Code 0 means "no predecessor", so the widest code is maxInDegree
+        this.predecessorBytes = maxInDegree < 0xFF ? 1 : maxInDegree < 0xFFFF ? 2 : 4;
+    }
+
+    /** Bytes one cached row occupies for this graph. */
+    public long rowBytes() {
+        return (long) graph.size() * (Float.BYTES + predecessorBytes);
+    }
+
+    public float distance(int source, int target, SearchStats stats) {
+        return row(source, stats).distances[target];
+    }
+
+    /** Path from source to target as dense indices, with its exact length; empty if unreachable. */
+    public IndexedPath path(int source, int target, SearchStats stats) {
+        DistanceRow row = row(source, stats);
+        if (row.distances[target] == Float.POSITIVE_INFINITY) {
+            return IndexedPath.NONE;
+        }
+        LinkedList<Integer> path = new LinkedList<>();
+        double length = 0;
+        int v = target;
+        path.addFirst(v);
+        while (v != source) {
+            int edge = graph.inStart(v) + row.predecessor(v) - 1;
+            length += graph.inWeight(edge);
+            v = graph.inSource(edge);
+            path.addFirst(v);
+        }
+        stats.pathLength = path.size();
+        return new IndexedPath(path, length);
+    }
+
+    private DistanceRow row(int source, SearchStats stats) {
+        synchronized (this) {
+            DistanceRow row = rows.get(source);
+            if (row != null) {
+                hits.increment();
+                return row;
+            }
+        }
+        misses.increment();
+        // Built outside the lock; two threads missing on the same source just do the work twice
+        DistanceRow row = computeRow(source, stats);
+        synchronized (this) {
+            if (rows.put(source, row) == null) {
+                usedBytes += rowBytes();
+            }
+            Iterator<Map.Entry<Integer, DistanceRow>> eldest = rows.entrySet().iterator();
+            while (usedBytes > maxBytes && rows.size() > 1 && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+                usedBytes -= rowBytes();
+            }
+        }
+        return row;
+    }
+
+    private DistanceRow computeRow(int source, SearchStats stats) {
+        int n = graph.size();
+        ShortestPathTree tree = ShortestPathTree.compute(graph, algorithm.get(), new int[] { source }, false, null,
+                stats);
+        double[] dist = tree.distances();
+        DistanceRow row = new DistanceRow(n, predecessorBytes);
+        for (int v = 0; v < n; v++) {
+            row.distances[v] = (float) dist[v];
+            if (tree.parent(v) >= 0) {
+                row.setPredecessor(v, treeEdgeCode(tree.parent(v), v, dist));
+            }
+        }
+        return row;
+    }
+
+    /** 1-based position among v's incoming edges of the edge from u that realises dist[v]. */
+    private int treeEdgeCode(int u, int v, double[] dist) {
+        int best = -1;
+        for (int e = graph.inStart(v); e < graph.inEnd(v); e++) {
+            if (graph.inSource(e) == u && (best < 0 || graph.inWeight(e) < graph.inWeight(best))) {
+                best = e;
+            }
+        }
+        return best - graph.inStart(v) + 1;
+    }
+
+    public synchronized int getCachedRows() {
+        return rows.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static final class DistanceRow {
+        final float[] distances;
+        private final byte[] bytePredecessors;
+        private final short[] shortPredecessors;
+        private final int[] intPredecessors;
+
+        DistanceRow(int n, int predecessorBytes) {
+            distances = new float[n];
+            bytePredecessors = predecessorBytes == 1 ? new byte[n] : null;
+            shortPredecessors = predecessorBytes == 2 ? new short[n] : null;
+            intPredecessors = predecessorBytes == 4 ? new int[n] : null;
+        }
+
+        void setPredecessor(int v, int code) {
+            if (bytePredecessors != null) {
+                bytePredecessors[v] = (byte) code;
+            } else if (shortPredecessors != null) {
+                shortPredecessors[v] = (short) code;
+            } else {
+                intPredecessors[v] = code;
+            }
+        }
+
+        int predecessor(int v) {
+            if (bytePredecessors != null) {
+                return bytePredecessors[v] & 0xFF;
+            } else if (shortPredecessors != null) {
+                return shortPredecessors[v] & 0xFFFF;
+            }
+            return intPredecessors[v];
+        }
+    }
+}
+
+// ===== PARALLEL SHORTEST PATHS =====
+
+/**
+ * Shortest distances from a set of sources to every node, and a tree realising them, as dense
+ * IndexedGraph indices. In a reverse tree the distances are to the sources and a node's parent
+ * is its next hop towards them.
+ */
+final class ShortestPathTree {
+    /** Below this many edges AUTO stays sequential, since fork-join overhead outweighs the work. */
+    static final int PARALLEL_EDGE_THRESHOLD = 1 << 18;
+
+    private final IndexedGraph graph;
+    private final double[] distances;
+    private final int[] parents;
+    private final boolean reverse;
+    private int[] roots;
+
+    private ShortestPathTree(IndexedGraph graph, double[] distances, int[] parents, boolean reverse) {
+        this.graph = graph;
+        this.distances = distances;
+        this.parents = parents;
+        this.reverse = reverse;
+    }
+
+    /**
+     * Searches from sources over forward edges, or towards them over reverse edges, skipping
+     * the edges set in blockedEdges (forward edge ids; may be null).
+     */
+    static ShortestPathTree compute(IndexedGraph graph, OneToAllAlgorithm algorithm, int[] sources, boolean reverse,
+            long[] blockedEdges, SearchStats stats) {
+        boolean parallel = algorithm == OneToAllAlgorithm.DELTA_STEPPING
+                || algorithm == OneToAllAlgorithm.AUTO && graph.edgeCount() >= PARALLEL_EDGE_THRESHOLD
+                        && ForkJoinPool.getCommonPoolParallelism() > 1;
+        if (!parallel) {
+            return dijkstra(graph, sources, reverse, blockedEdges, stats);
+        }
+        double[] distances = new DeltaStepping(graph).distances(sources, reverse, blockedEdges, stats);
+        return new ShortestPathTree(graph, distances, tightTree(graph, distances, sources, reverse, blockedEdges),
+                reverse);
+    }
+
+    private static ShortestPathTree dijkstra(IndexedGraph graph, int[] sources, boolean reverse, long[] blockedEdges,
+            SearchStats stats) {
+        int n = graph.size();
+        double[] dist = new double[n];
+        int[] parent = new int[n];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(parent, -1);
+        IndexedMinHeap heap = new IndexedMinHeap(n);
+        for (int s : sources) {
+            dist[s] = 0;
+            heap.insertOrDecrease(s, 0);
+            stats.heapPushes++;
+        }
+        while (!heap.isEmpty()) {
+            PathfindingEngine.checkCancelled();
+            int u = heap.pollMin();
+            stats.heapPops++;
+            stats.nodesSettled++;
+            int end = reverse ? graph.inEnd(u) : graph.outEnd(u);
+            for (int e = reverse ? graph.inStart(u) : graph.outStart(u); e < end; e++) {
+                int forward = reverse ? graph.inForwardEdge(e) : e;
+                if (blockedEdges != null && (blockedEdges[forward >>> 6] & (1L << forward)) != 0) {
+                    continue;
+                }
+                stats.edgesRelaxed++;
+                int v = reverse ? graph.inSource(e) : graph.outTarget(e);
+                double nd = dist[u] + graph.outWeight(forward);
+                if (nd < dist[v]) {
+                    dist[v] = nd;
+                    parent[v] = u;
+                    if (heap.insertOrDecrease(v, nd)) {
+                        stats.heapPushes++;
+                    }
+                }
+            }
+        }
+        return new ShortestPathTree(graph, dist, parent, reverse);
+    }
+
+    /**
+     * Parents for distances computed without them: a traversal from the sources over tight
+     * edges, those whose weight is exactly the difference of their endpoints' distances. The
+     * final distance of every reached node was produced by relaxing one such edge, and walking
+     * them outwards keeps zero-weight ties from forming cycles.
+     */
+    private static int[] tightTree(IndexedGraph graph, double[] dist, int[] sources, boolean reverse,
+            long[] blockedEdges) {
+        int n = graph.size();
+        int[] parent = new int[n];
+        Arrays.fill(parent, -1);
+        boolean[] reached = new boolean[n];
+        int[] queue = new int[n];
+        int tail = 0;
+        for (int s : sources) {
+            if (!reached[s]) {
+                reached[s] = true;
+                queue[tail++] = s;
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            int u = queue[head];
+            int end = reverse ? graph.inEnd(u) : graph.outEnd(u);
+            for (int e = reverse ? graph.inStart(u) : graph.outStart(u); e < end; e++) {
+                int forward = reverse ? graph.inForwardEdge(e) : e;
+                int v = reverse ? graph.inSource(e) : graph.outTarget(e);
+                if (reached[v] || blockedEdges != null && (blockedEdges[forward >>> 6] & (1L << forward)) != 0) {
+                    continue;
+                }
+                if (dist[u] + graph.outWeight(forward) == dist[v]) {
+                    reached[v] = true;
+                    parent[v] = u;
+                    queue[tail++] = v;
+                }
+            }
+        }
+        return parent;
+    }
+
+    public boolean isReverse() {
+        return reverse;
+    }
+
+    public double distance(int v) {
+        return distances[v];
+    }
+
+    /** Previous node on the path from a source, or next hop towards one in a reverse tree; -1 at roots. */
+    public int parent(int v) {
+        return parents[v];
+    }
+
+    /** Distance of a campus node, or infinity if it is unreachable or not in the indexed graph. */
+    public double distanceTo(CampusNode node) {
+        int v = graph.indexOf(node.getId());
+        return v < 0 ? Double.POSITIVE_INFINITY : distances[v];
+    }
+
+    public int reachedCount() {
+        int count = 0;
+        for (double d : distances) {
+            if (d != Double.POSITIVE_INFINITY) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    double[] distances() {
+        return distances;
+    }
+
+    int[] parents() {
+        return parents;
+    }
+
+    /** The source each node's tree path leads back to, or -1 if unreached. */
+    synchronized int[] roots() {
+        if (roots == null) {
+            int n = distances.length;
+            int[] root = new int[n];
+            Arrays.fill(root, -2);
+            int[] chain = new int[n];
+            for (int v = 0; v < n; v++) {
+                int length = 0;
+                int u = v;
+                while (root[u] == -2 && parents[u] >= 0) {
+                    chain[length++] = u;
+                    u = parents[u];
+                }
+                if (root[u] == -2) {
+                    root[u] = distances[u] == Double.POSITIVE_INFINITY ? -1 : u;
+                }
+                while (length > 0) {
+                    root[chain[--length]] = root[u];
+                }
+            }
+            roots = root;
+        }
+        return roots;
+    }
+}
+
+/**
+ * Delta-stepping single-source shortest paths (Meyer and Sanders). Tentative distances live
+ * in buckets of width delta; the lowest non-empty bucket is settled by relaxing light edges
+ * (weight at most delta) of its nodes in rounds until it stops refilling, then the heavy edges
+ * of everything it settled once. Each round relaxes its frontier in parallel on a ForkJoinPool,
+ * with distances lowered by compare-and-set, so a round costs about frontier edges / cores.
+ * Rounds that are too small to split run on the calling thread.
+ *
+ * Distances are stored as the raw bits of non-negative doubles, which order the same way as
+ * the values. Parents are not tracked here; see {@link ShortestPathTree}.
+ */
+final class DeltaStepping {
+    /** Frontier nodes per leaf task. */
+    static final int GRAIN = 256;
+    private static final int DELTA_SAMPLE = 4096;
+    private static final long UNREACHED = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+
+    private final IndexedGraph graph;
+    private final ForkJoinPool pool;
+    private final double delta;
+
+    public DeltaStepping(IndexedGraph graph) {
+        this(graph, ForkJoinPool.commonPool(), chooseDelta(graph));
+    }
+
+    public DeltaStepping(IndexedGraph graph, ForkJoinPool pool, double delta) {
+        if (!(delta > 0)) {
+            throw new IllegalArgumentException("delta must be positive: " + delta);
+        }
+        this.graph = graph;
+        this.pool = pool;
+        this.delta = delta;
+    }
+
+    /**
+     * Picks delta from a sample of edge weights: the weight at quantile 1 - 1/(average
+     * out-degree), so a node has about one heavy edge. Smaller deltas give too few nodes per
+     * bucket to split across cores; larger ones make light rounds re-relax nodes many times.
+     */
+    static double chooseDelta(IndexedGraph graph) {
+        int m = graph.edgeCount();
+        if (m == 0) {
+            return 1;
+        }
+        int sampleSize = Math.min(m, DELTA_SAMPLE);
+        double[] sample = new double[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            sample[i] = graph.outWeight((int) ((long) i * m / sampleSize));
+        }
+        Arrays.sort(sample);
+        double averageDegree = (double) m / graph.size();
+        double quantile = Math.max(0.5, 1 - 1 / averageDegree);
+        double weight = sample[Math.min(sampleSize - 1, (int) (quantile * sampleSize))];
+        return weight > 0 ? weight : sample[sampleSize - 1] > 0 ? sample[sampleSize - 1] : 1;
+    }
+
+    public double getDelta() {
+        return delta;
+    }
+
+    /** Distances from (or, if reverse, to) the nearest source; infinity where unreachable. */
+    public double[] distances(int[] sources, boolean reverse, long[] blockedEdges, SearchStats stats) {
+        int n = graph.size();
+        AtomicLongArray dist = new AtomicLongArray(n);
+        for (int v = 0; v < n; v++) {
+            dist.lazySet(v, UNREACHED);
+        }
+        LongAdder relaxed = new LongAdder();
+        Buckets buckets = new Buckets(n);
+        for (int s : sources) {
+            dist.set(s, 0L);
+            buckets.add(s, 0);
+        }
+        // settledIn[v] - 1 is the bucket whose heavy pass already includes v
+        int[] settledIn = new int[n];
+        int[] settled = new int[64];
+
+        for (int i = buckets.next(0); i >= 0; i = buckets.next(i + 1)) {
+            PathfindingEngine.checkCancelled();
+            int settledCount = 0;
+            int[] frontier;
+            while ((frontier = buckets.take(i)).length > 0) {
+                for (int v : frontier) {
+                    if (settledIn[v] != i + 1) {
+                        settledIn[v] = i + 1;
+                        if (settledCount == settled.length) {
+                            settled = Arrays.copyOf(settled, settledCount * 2);
+                        }
+                        settled[settledCount++] = v;
+                    }
+                }
+                requeue(relax(frontier, frontier.length, true, reverse, blockedEdges, dist, relaxed), dist, buckets,
+                        stats);
+            }
+            stats.nodesSettled += settledCount;
+            requeue(relax(settled, settledCount, false, reverse, blockedEdges, dist, relaxed), dist, buckets, stats);
+        }
+        stats.edgesRelaxed += relaxed.sum();
+
+        double[] distances = new double[n];
+        for (int v = 0; v < n; v++) {
+            distances[v] = Double.longBitsToDouble(dist.get(v));
+        }
+        return distances;
+    }
+
+    private void requeue(Queue<int[]> reached, AtomicLongArray dist, Buckets buckets, SearchStats stats) {
+        for (int[] chunk : reached) {
+            for (int v : chunk) {
+                if (buckets.add(v, bucketOf(Double.longBitsToDouble(dist.get(v))))) {
+                    stats.heapPushes++;
+                }
+            }
+        }
+    }
+
+    private int bucketOf(double distance) {
+        return (int) Math.min(Integer.MAX_VALUE - 1, distance / delta);
+    }
+
+    /** Relaxes the light or heavy edges of nodes[0, count); returns the nodes whose distance dropped. */
+    private Queue<int[]> relax(int[] nodes, int count, boolean light, boolean reverse, long[] blockedEdges,
+            AtomicLongArray dist, LongAdder relaxed) {
+        Queue<int[]> reached = new ConcurrentLinkedQueue<>();
+        RelaxTask task = new RelaxTask(nodes, 0, count, light, reverse, blockedEdges, dist, relaxed, reached);
+        if (count <= GRAIN) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+        return reached;
+    }
+
+    private final class RelaxTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] nodes;
+        private final int from;
+        private final int to;
+        private final boolean light;
+        private final boolean reverse;
+        private final long[] blockedEdges;
+        private final AtomicLongArray dist;
+        private final LongAdder relaxed;
+        private final Queue<int[]> reached;
+
+        RelaxTask(int[] nodes, int from, int to, boolean light, boolean reverse, long[] blockedEdges,
+                AtomicLongArray dist, LongAdder relaxed, Queue<int[]> reached) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.light = light;
+            this.reverse = reverse;
+            this.blockedEdges = blockedEdges;
+            this.dist = dist;
+            this.relaxed = relaxed;
+            this.reached = reached;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > GRAIN) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RelaxTask(nodes, from, mid, light, reverse, blockedEdges, dist, relaxed, reached),
+                        new RelaxTask(nodes, mid, to, light, reverse, blockedEdges, dist, relaxed, reached));
+                return;
+            }
+            int[] out = new int[16];
+            int outCount = 0;
+            long edges = 0;
+            for (int k = from; k < to; k++) {
+                int u = nodes[k];
+                double du = Double.longBitsToDouble(dist.get(u));
+                int end = reverse ? graph.inEnd(u) : graph.outEnd(u);
+                for (int e = reverse ? graph.inStart(u) : graph.outStart(u); e < end; e++) {
+                    int forward = reverse ? graph.inForwardEdge(e) : e;
+                    double w = graph.outWeight(forward);
+                    if ((w <= delta) != light
+                            || blockedEdges != null && (blockedEdges[forward >>> 6] & (1L << forward)) != 0) {
+                        continue;
+                    }
+                    edges++;
+                    int v = reverse ? graph.inSource(e) : graph.outTarget(e);
+                    long candidate = Double.doubleToRawLongBits(du + w);
+                    long current;
+                    while (candidate < (current = dist.get(v))) {
+                        if (dist.compareAndSet(v, current, candidate)) {
+                            if (outCount == out.length) {
+                                out = Arrays.copyOf(out, outCount * 2);
+                            }
+                            out[outCount++] = v;
+                            break;
+                        }
+                    }
+                }
+            }
+            relaxed.add(edges);
+            if (outCount > 0) {
+                reached.add(Arrays.copyOf(out, outCount));
+            }
+        }
+    }
+
+    /**
+     * Bucket lists with lazy deletion: a node moved to a lower bucket leaves a stale entry
+     * behind, skipped because queued[v] no longer names that bucket.
+     */
+    private static final class Buckets {
+        private int[][] lists = new int[64][];
+        private int[] sizes = new int[64];
+        private final int[] queued;
+
+        Buckets(int n) {
+            queued = new int[n];
+            Arrays.fill(queued, -1);
+        }
+
+        /** Queues v in bucket b unless it is already there. */
+        boolean add(int v, int b) {
+            if (queued[v] == b) {
+                return false;
+            }
+            queued[v] = b;
+            if (b >= lists.length) {
+                int capacity = Math.max(b + 1, lists.length * 2);
+                lists = Arrays.copyOf(lists, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+            if (lists[b] == null) {
+                lists[b] = new int[16];
+            } else if (sizes[b] == lists[b].length) {
+                lists[b] = Arrays.copyOf(lists[b], sizes[b] * 2);
+            }
+            lists[b][sizes[b]++] = v;
+            return true;
+        }
+
+        /** Empties bucket b, returning the nodes still queued in it. */
+        int[] take(int b) {
+            if (b >= lists.length || sizes[b] == 0) {
+                return new int[0];
+            }
+            int[] list = lists[b];
+            int kept = 0;
+            for (int k = 0; k < sizes[b]; k++) {
+                int v = list[k];
+                if (queued[v] == b) {
+                    queued[v] = -1;
+                    list[kept++] = v;
+                }
+            }
+            int[] taken = Arrays.copyOf(list, kept);
+            sizes[b] = 0;
+            lists[b] = null;
+            return taken;
+        }
+
+        /** Lowest bucket at or after b with entries, or -1. */
+        int next(int b) {
+            for (; b < lists.length; b++) {
+                if (sizes[b] > 0) {
+                    return b;
+                }
+            }
+            return -1;
+        }
+    }
+}
+
+// ===== MULTI-CRITERIA ROUTING =====
+
+/**
+ * Label-setting search for the Pareto front over walking distance, estimated time and distance
+ * walked on heavy-traffic edges. Labels are popped in order of distance plus a lower bound to
+ * the target, so a label is final once it survives the dominance checks at its node.
+ *
+ * Three reverse single-criterion searches from the target provide per-node lower bounds and the
+ * best route for each criterion; those routes seed the target's bag so that labels whose
+ * optimistic completion is already covered there are pruned from the start. Dominance is also
+ * relaxed by epsilon (by default labels within 1% on every criterion count as covered) and each
+ * node keeps at most maxLabelsPerNode labels.
+ */
+class ParetoRouter {
+    static final double DEFAULT_EPSILON = 0.01;
+    static final int DEFAULT_MAX_LABELS_PER_NODE = 8;
+    private static final int CRITERIA = 3;
+
+    private final IndexedGraph graph;
+    private final int maxLabelsPerNode;
+    private final double epsilon;
+
+    public ParetoRouter(IndexedGraph graph) {
+        this(graph, DEFAULT_MAX_LABELS_PER_NODE, DEFAULT_EPSILON);
+    }
+
+    public ParetoRouter(IndexedGraph graph, int maxLabelsPerNode, double epsilon) {
+        this.graph = graph;
+        this.maxLabelsPerNode = maxLabelsPerNode;
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * Returns up to maxRoutes Pareto-optimal paths from s to t, ordered by distance. When the
+     * front is larger, the best route for each criterion is kept first and the rest are picked
+     * to be as different as possible from the ones already chosen. blockedEdges is a compiled
+     * {@link RouteConstraints} bitset, or null.
+     */
+    public List<IndexedPath> query(int s, int t, int maxRoutes, long[] blockedEdges, SearchStats stats) {
+        int n = graph.size();
+        double[][] lowerBound = new double[CRITERIA][n];
+        int[][] towardTarget = new int[CRITERIA][n];
+        for (int c = 0; c < CRITERIA; c++) {
+            reverseSearch(t, c, blockedEdges, lowerBound[c], towardTarget[c], stats);
+        }
+        if (lowerBound[0][s] == Double.POSITIVE_INFINITY) {
+            return Collections.emptyList();
+        }
+
+        Labels labels = new Labels();
+        int[][] bags = new int[n][];
+        int[] bagSizes = new int[n];
+        LabelQueue queue = new LabelQueue();
+
+        // Seed the target with each criterion's optimum so target pruning bites immediately
+        for (int c = 0; c < CRITERIA; c++) {
+            int label = labels.add(s, -1, 0, 0, 0, 0);
+            for (int v = s; v != t; ) {
+                int e = towardTarget[c][v];
+                label = extend(labels, label, e);
+                v = graph.outTarget(e);
+            }
+            if (!coveredAt(labels, bags[t], bagSizes[t], label, 0, 0, 0)) {
+                bags[t] = addToTargetBag(labels, bags[t], bagSizes, t, label);
+            }
+        }
+
+        queue.push(labels.add(s, -1, 0, 0, 0, 0), lowerBound[0][s]);
+        stats.heapPushes++;
+
+        while (!queue.isEmpty()) {
+            PathfindingEngine.checkCancelled();
+            int label = queue.pop();
+            stats.heapPops++;
+            int v = labels.node[label];
+
+            if (v == t || coveredAt(labels, bags[v], bagSizes[v], label, 0, 0, 0)
+                    || coveredAtTarget(labels, bags[t], bagSizes[t], label, lowerBound)) {
+                if (v == t && !coveredAt(labels, bags[t], bagSizes[t], label, 0, 0, 0)) {
+                    bags[t] = addToTargetBag(labels, bags[t], bagSizes, t, label);
+                }
+                continue;
+            }
+            if (bagSizes[v] >= maxLabelsPerNode) {
+                continue;
+            }
+            bags[v] = addToBag(labels, bags[v], bagSizes, v, label);
+            stats.nodesSettled++;
+
+            for (int e = graph.outStart(v); e < graph.outEnd(v); e++) {
+                stats.edgesRelaxed++;
+                int w = graph.outTarget(e);
+                if (lowerBound[0][w] == Double.POSITIVE_INFINITY
+                        || blockedEdges != null && (blockedEdges[e >>> 6] & (1L << e)) != 0) {
+                    continue;
+                }
+                int next = extend(labels, label, e);
+                if (coveredAt(labels, bags[w], bagSizes[w], next, 0, 0, 0)
+                        || coveredAtTarget(labels, bags[t], bagSizes[t], next, lowerBound)) {
+                    labels.removeLast();
+                    continue;
+                }
+                queue.push(next, labels.length[next] + lowerBound[0][w]);
+                stats.heapPushes++;
+            }
+        }
+
+        List<Integer> front = selectRepresentatives(labels, bags[t], bagSizes[t], maxRoutes);
+        List<IndexedPath> paths = new ArrayList<>(front.size());
+        for (int label : front) {
+            LinkedList<Integer> path = new LinkedList<>();
+            for (int l = label; l >= 0; l = labels.parent[l]) {
+                path.addFirst(labels.node[l]);
+            }
+            paths.add(new IndexedPath(path, labels.adjusted[label]));
+        }
+        return paths;
+    }
+
+    private double criterion(int edge, int c) {
+        switch (c) {
+            case 0:
+                return graph.outLength(edge);
+            case 1:
+                return graph.outTime(edge);
+            default:
+                return graph.outCondition(edge) == TrafficCondition.HEAVY ? graph.outLength(edge) : 0;
+        }
+    }
+
+    private int extend(Labels labels, int label, int edge) {
+        return labels.add(graph.outTarget(edge), label,
+                labels.length[label] + criterion(edge, 0),
+                labels.time[label] + criterion(edge, 1),
+                labels.heavy[label] + criterion(edge, 2),
+                labels.adjusted[label] + graph.outWeight(edge));
+    }
+
+    /**
+     * Single-criterion Dijkstra to t on the reverse graph. Fills the optimal remaining value per
+     * node and the forward edge to take from each node on that optimum.
+     */
+    private void reverseSearch(int t, int c, long[] blockedEdges, double[] dist, int[] towardTarget,
+            SearchStats stats) {
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(towardTarget, -1);
+        IndexedMinHeap heap = new IndexedMinHeap(graph.size());
+        dist[t] = 0;
+        heap.insertOrDecrease(t, 0);
+        while (!heap.isEmpty()) {
+            int u = heap.pollMin();
+            stats.nodesSettled++;
+            for (int e = graph.inStart(u); e < graph.inEnd(u); e++) {
+                int v = graph.inSource(e);
+                int forward = graph.inForwardEdge(e);
+                if (blockedEdges != null && (blockedEdges[forward >>> 6] & (1L << forward)) != 0) {
+                    continue;
+                }
+                double nd = dist[u] + criterion(forward, c);
+                if (nd < dist[v]) {
+                    dist[v] = nd;
+                    towardTarget[v] = forward;
+                    heap.insertOrDecrease(v, nd);
+                }
+            }
+        }
+    }
+
+    private boolean coveredAtTarget(Labels labels, int[] bag, int size, int candidate, double[][] lowerBound) {
+        int v = labels.node[candidate];
+        return coveredAt(labels, bag, size, candidate, lowerBound[0][v], lowerBound[1][v], lowerBound[2][v]);
+    }
+
+    /**
+     * True when some label in the bag is within epsilon of the candidate, extended by the given
+     * optimistic remaining values, on every criterion.
+     */
+    private boolean coveredAt(Labels labels, int[] bag, int size, int candidate,
+                              double extraLength, double extraTime, double extraHeavy) {
+        double length = (labels.length[candidate] + extraLength) * (1 + epsilon);
+        double time = (labels.time[candidate] + extraTime) * (1 + epsilon);
+        double heavy = (labels.heavy[candidate] + extraHeavy) * (1 + epsilon);
+        for (int i = 0; i < size; i++) {
+            int other = bag[i];
+            if (labels.length[other] <= length && labels.time[other] <= time && labels.heavy[other] <= heavy) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Appends label to v's bag, dropping entries it strictly dominates. */
+    private static int[] addToBag(Labels labels, int[] bag, int[] bagSizes, int v, int label) {
+        int size = bagSizes[v];
+        if (bag == null) {
+            bag = new int[4];
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int other = bag[i];
+            boolean dominated = labels.length[label] <= labels.length[other]
+                    && labels.time[label] <= labels.time[other] && labels.heavy[label] <= labels.heavy[other];
+            if (!dominated) {
+                bag[kept++] = other;
+            }
+        }
+        if (kept == bag.length) {
+            bag = Arrays.copyOf(bag, kept * 2);
+        }
+        bag[kept++] = label;
+        bagSizes[v] = kept;
+        return bag;
+    }
+
+    /**
+     * Appends label to the target's bag like {@link #addToBag}, then thins the bag back to
+     * maxLabelsPerNode representatives: each criterion's best and the most spread of the rest.
+     */
+    private int[] addToTargetBag(Labels labels, int[] bag, int[] bagSizes, int t, int label) {
+        bag = addToBag(labels, bag, bagSizes, t, label);
+        if (bagSizes[t] > maxLabelsPerNode) {
+            List<Integer> kept = selectRepresentatives(labels, bag, bagSizes[t], maxLabelsPerNode);
+            for (int i = 0; i < kept.size(); i++) {
+                bag[i] = kept.get(i);
+            }
+            bagSizes[t] = kept.size();
+        }
+        return bag;
+    }
+
+    private static List<Integer> selectRepresentatives(Labels labels, int[] bag, int size, int maxRoutes) {
+        List<Integer> chosen = new ArrayList<>();
+        if (size == 0 || maxRoutes <= 0) {
+            return chosen;
+        }
+        double[] min = new double[CRITERIA];
+        double[] max = new double[CRITERIA];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < size; i++) {
+            for (int c = 0; c < CRITERIA; c++) {
+                min[c] = Math.min(min[c], labels.criterion(bag[i], c));
+                max[c] = Math.max(max[c], labels.criterion(bag[i], c));
+            }
+        }
+
+        // Best route for each criterion first
+        for (int c = 0; c < CRITERIA && chosen.size() < maxRoutes; c++) {
+            int best = bag[0];
+            for (int i = 1; i < size; i++) {
+                if (labels.criterion(bag[i], c) < labels.criterion(best, c)) {
+                    best = bag[i];
+                }
+            }
+            if (!chosen.contains(best)) {
+                chosen.add(best);
+            }
+        }
+
+        // Then farthest-point picks in normalised criterion space
+        while (chosen.size() < Math.min(maxRoutes, size)) {
+            int farthest = -1;
+            double farthestGap = -1;
+            for (int i = 0; i < size; i++) {
+                if (chosen.contains(bag[i])) {
+                    continue;
+                }
+                double gap = Double.POSITIVE_INFINITY;
+                for (int picked : chosen) {
+                    double d = 0;
+                    for (int c = 0; c < CRITERIA; c++) {
+                        double range = max[c] - min[c];
+                        if (range > 0) {
+                            double diff = (labels.criterion(bag[i], c) - labels.criterion(picked, c)) / range;
+                            d += diff * diff;
+                        }
+                    }
+                    gap = Math.min(gap, d);
+                }
+                if (gap > farthestGap) {
+                    farthestGap = gap;
+                    farthest = bag[i];
+                }
+            }
+            chosen.add(farthest);
+        }
+        chosen.sort(Comparator.comparingDouble(label -> labels.length[label]));
+        return chosen;
+    }
+
+    /** Growable struct-of-arrays label store; a label's parent is its predecessor's index. */
+    private static final class Labels {
+        int[] node = new int[64];
+        int[] parent = new int[64];
+        double[] length = new double[64];
+        double[] time = new double[64];
+        double[] heavy = new double[64];
+        double[] adjusted = new double[64];
+        int count;
+
+        int add(int v, int from, double length, double time, double heavy, double adjusted) {
+            if (count == node.length) {
+                int capacity = count * 2;
+                node = Arrays.copyOf(node, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                this.length = Arrays.copyOf(this.length, capacity);
+                this.time = Arrays.copyOf(this.time, capacity);
+                this.heavy = Arrays.copyOf(this.heavy, capacity);
+                this.adjusted = Arrays.copyOf(this.adjusted, capacity);
+            }
+            node[count] = v;
+            parent[count] = from;
+            this.length[count] = length;
+            this.time[count] = time;
+            this.heavy[count] = heavy;
+            this.adjusted[count] = adjusted;
+            return count++;
+        }
+
+        void removeLast() {
+            count--;
+        }
+
+        double criterion(int label, int c) {
+            return c == 0 ? length[label] : c == 1 ? time[label] : heavy[label];
+        }
+    }
+}
+
+// ===== ROUTE CONSTRAINTS =====
+
+/**
+ * A named set of things a route must avoid: traffic conditions and access features. Profiles
+ * compose with {@link #and}, and each distinct combination is compiled once per indexed graph
+ * into a bitset over forward edges, so search loops filter with a single bit test.
+ *
+ * A feature on a node blocks every edge into it; a feature on an edge blocks that edge.
+ */
+final class RouteConstraints {
+    static final RouteConstraints NONE = new RouteConstraints("None",
+            EnumSet.noneOf(TrafficCondition.class), EnumSet.noneOf(AccessFeature.class));
+    static final RouteConstraints AVOID_HEAVY_TRAFFIC = new RouteConstraints("Avoid heavy traffic",
+            EnumSet.of(TrafficCondition.HEAVY), EnumSet.noneOf(AccessFeature.class));
+    static final RouteConstraints AVOID_CLOSED_BUILDINGS = new RouteConstraints("Avoid closed buildings",
+            EnumSet.noneOf(TrafficCondition.class), EnumSet.of(AccessFeature.CLOSED));
+    static final RouteConstraints WHEELCHAIR_ACCESSIBLE = new RouteConstraints("Wheelchair accessible",
+            EnumSet.noneOf(TrafficCondition.class), EnumSet.of(AccessFeature.STEPS));
+    static final RouteConstraints NIGHT_SAFE = new RouteConstraints("Night-safe",
+            EnumSet.noneOf(TrafficCondition.class), EnumSet.of(AccessFeature.UNLIT, AccessFeature.ISOLATED));
+
+    private final String name;
+    private final int conditionMask;
+    private final int featureMask;
+
+    private RouteConstraints(String name, EnumSet<TrafficCondition> excludedConditions,
+            EnumSet<AccessFeature> excludedFeatures) {
+        this.name = name;
+        this.conditionMask = maskOf(excludedConditions);
+        this.featureMask = AccessFeature.maskOf(excludedFeatures);
+    }
+
+    private RouteConstraints(String name, int conditionMask, int featureMask) {
+        this.name = name;
+        this.conditionMask = conditionMask;
+        this.featureMask = featureMask;
+    }
+
+    public static RouteConstraints of(String name, Set<TrafficCondition> excludedConditions,
+            Set<AccessFeature> excludedFeatures) {
+        return new RouteConstraints(name, maskOf(excludedConditions), AccessFeature.maskOf(excludedFeatures));
+    }
+
+    /** A profile that avoids everything either profile avoids. */
+    public RouteConstraints and(RouteConstraints other) {
+        if (other.isSubsetOf(this)) {
+            return this;
+        }
+        if (isSubsetOf(other)) {
+            return other;
+        }
+        return new RouteConstraints(name + " + " + other.name,
+                conditionMask | other.conditionMask, featureMask | other.featureMask);
+    }
+
+    private boolean isSubsetOf(RouteConstraints other) {
+        return (conditionMask & ~other.conditionMask) == 0 && (featureMask & ~other.featureMask) == 0;
+    }
+
+    public boolean isUnconstrained() {
+        return conditionMask == 0 && featureMask == 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Bit c set for each TrafficCondition ordinal c this profile avoids. */
+    int getConditionMask() {
+        return conditionMask;
+    }
+
+    /** AccessFeature bitmask of the features this profile avoids. */
+    int getFeatureMask() {
+        return featureMask;
+    }
+
+    /** The constraints avoiding exactly these masks, under a preset's name where one matches. */
+    static RouteConstraints fromMasks(int conditionMask, int featureMask) {
+        RouteConstraints constraints = new RouteConstraints("Custom", conditionMask, featureMask);
+        for (RouteConstraints preset : new RouteConstraints[] { NONE, AVOID_HEAVY_TRAFFIC, AVOID_CLOSED_BUILDINGS,
+                WHEELCHAIR_ACCESSIBLE, NIGHT_SAFE }) {
+            if (preset.equals(constraints)) {
+                return preset;
+            }
+        }
+        return constraints;
+    }
+
+    /** Bitset over the graph's forward edges; bit e is set when edge e may not be used. */
+    public long[] compile(IndexedGraph graph) {
+        long[] blocked = new long[(graph.edgeCount() + 63) >>> 6];
+        for (int u = 0; u < graph.size(); u++) {
+            for (int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+                boolean avoid = (conditionMask & (1 << graph.outCondition(e).ordinal())) != 0
+                        || (featureMask & graph.outFeatures(e)) != 0
+                        || (featureMask & graph.nodeFeatures(graph.outTarget(e))) != 0;
+                if (avoid) {
+                    blocked[e >>> 6] |= 1L << e;
+                }
+            }
+        }
+        return blocked;
+    }
+
+    /** Copy of blocked (or a fresh bitset if null) that also blocks every edge into the given nodes. */
+    static long[] withBlockedNodes(long[] blocked, IndexedGraph graph, Collection<Integer> nodeIds) {
+        long[] result = blocked != null ? blocked.clone() : new long[(graph.edgeCount() + 63) >>> 6];
+        for (int id : nodeIds) {
+            int v = graph.indexOf(id);
+            if (v < 0) {
+                continue;
+            }
+            for (int e = graph.inStart(v); e < graph.inEnd(v); e++) {
+                int forward = graph.inForwardEdge(e);
+                result[forward >>> 6] |= 1L << forward;
+            }
+        }
+        return result;
+    }
+
+    private static int maskOf(Set<TrafficCondition> conditions) {
+        int mask = 0;
+        for (TrafficCondition condition : conditions) {
+            mask |= 1 << condition.ordinal();
+        }
+        return mask;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        RouteConstraints that = (RouteConstraints) obj;
+        return conditionMask == that.conditionMask && featureMask == that.featureMask;
+    }
+
+    @Override
+    public int hashCode() {
+        return conditionMask * 31 + featureMask;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
+
+// ===== RELIABILITY ROUTING =====
+
+/**
+ * Routes that arrive on time with a given probability, over edges whose walking times are
+ * random ({@link TravelTimeDistribution}). Edge times are taken as independent.
+ *
+ * A label search over (mean, variance) finds candidates. It scores a label by the normal
+ * approximation of its percentile, mean + z·sqrt(variance), which is a lower bound on every
+ * completion when the remaining mean and variance are replaced by their reverse-search
+ * minima. Labels dominated on both criteria at a node are dropped, each node keeps at most
+ * MAX_LABELS_PER_NODE labels, and the search stops once the best key exceeds the best target
+ * score by CANDIDATE_SLACK. The normal approximation understates the long tail of the sums,
+ * so the surviving candidates are then scored by Monte Carlo over the lognormal edge times.
+ */
+final class ReliabilityRouter {
+    static final int DEFAULT_SAMPLES = 4096;
+    static final int MAX_CANDIDATES = 6;
+    static final int MAX_LABELS_PER_NODE = 8;
+    static final double CANDIDATE_SLACK = 0.1;
+    private static final int SAMPLE_CHUNK = 512;
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final IndexedGraph graph;
+    private final int samples;
+
+    public ReliabilityRouter(IndexedGraph graph) {
+        this(graph, DEFAULT_SAMPLES);
+    }
+
+    public ReliabilityRouter(IndexedGraph graph, int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("samples must be positive: " + samples);
+        }
+        this.graph = graph;
+        // Whole chunks, so every parallel task fills the same number of slots
+        this.samples = (samples + SAMPLE_CHUNK - 1) / SAMPLE_CHUNK * SAMPLE_CHUNK;
+    }
+
+    /**
+     * Candidate routes from s to t, each scored by sampling, in the order the label search
+     * ranked them. percentile must be in [0.5, 1). deadlineMinutes may be NaN for no deadline.
+     * blockedEdges is a compiled {@link RouteConstraints} bitset, or null.
+     */
+    public List<Candidate> query(int s, int t, double percentile, double deadlineMinutes, long[] blockedEdges,
+            SearchStats stats) {
+        if (!(percentile >= 0.5 && percentile < 1)) {
+            throw new IllegalArgumentException("percentile must be in [0.5, 1): " + percentile);
+        }
+        int n = graph.size();
+        double z = inverseNormal(percentile);
+        double[] meanBound = new double[n];
+        double[] varianceBound = new double[n];
+        int[] meanEdge = new int[n];
+        int[] varianceEdge = new int[n];
+        reverseSearch(t, false, blockedEdges, meanBound, meanEdge, stats);
+        if (meanBound[s] == Double.POSITIVE_INFINITY) {
+            return Collections.emptyList();
+        }
+        reverseSearch(t, true, blockedEdges, varianceBound, varianceEdge, stats);
+
+        Labels labels = new Labels();
+        int[][] bags = new int[n][];
+        int[] bagSizes = new int[n];
+        double best = Double.POSITIVE_INFINITY;
+
+        // The least-mean and least-variance routes are both feasible, so they bound the search from the start
+        for (int[] towardTarget : new int[][] { meanEdge, varianceEdge }) {
+            int label = labels.add(s, -1, -1, 0, 0, 0);
+            for (int v = s; v != t; v = graph.outTarget(towardTarget[v])) {
+                label = extend(labels, label, towardTarget[v]);
+            }
+            if (!covered(labels, bags[t], bagSizes[t], label)) {
+                bags[t] = addToBag(labels, bags[t], bagSizes, t, label);
+                best = Math.min(best, score(labels.mean[label], labels.variance[label], z));
+            }
+        }
+
+        LabelQueue queue = new LabelQueue();
+        queue.push(labels.add(s, -1, -1, 0, 0, 0), score(meanBound[s], varianceBound[s], z));
+        stats.heapPushes++;
+        while (!queue.isEmpty()) {
+            PathfindingEngine.checkCancelled();
+            double key = queue.peekKey();
+            if (key > best * (1 + CANDIDATE_SLACK)) {
+                break;
+            }
+            int label = queue.pop();
+            stats.heapPops++;
+            int v = labels.node[label];
+            if (covered(labels, bags[v], bagSizes[v], label)) {
+                continue;
+            }
+            if (v == t) {
+                bags[t] = addToBag(labels, bags[t], bagSizes, t, label);
+                best = Math.min(best, score(labels.mean[label], labels.variance[label], z));
+                continue;
+            }
+            if (bagSizes[v] >= MAX_LABELS_PER_NODE) {
+                continue;
+            }
+            bags[v] = addToBag(labels, bags[v], bagSizes, v, label);
+            stats.nodesSettled++;
+
+            for (int e = graph.outStart(v); e < graph.outEnd(v); e++) {
+                stats.edgesRelaxed++;
+                int w = graph.outTarget(e);
+                if (meanBound[w] == Double.POSITIVE_INFINITY
+                        || blockedEdges != null && (blockedEdges[e >>> 6] & (1L << e)) != 0) {
+                    continue;
+                }
+                double mean = labels.mean[label] + graph.outTimeMean(e);
+                double variance = labels.variance[label] + edgeVariance(e);
+                double nextKey = score(mean + meanBound[w], variance + varianceBound[w], z);
+                if (nextKey > best * (1 + CANDIDATE_SLACK)) {
+                    continue;
+                }
+                int next = extend(labels, label, e);
+                if (covered(labels, bags[w], bagSizes[w], next)) {
+                    labels.removeLast();
+                    continue;
+                }
+                queue.push(next, nextKey);
+                stats.heapPushes++;
+            }
+        }
+
+        Integer[] targets = new Integer[bagSizes[t]];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = bags[t][i];
+        }
+        Arrays.sort(targets, Comparator.comparingDouble(l -> score(labels.mean[l], labels.variance[l], z)));
+        int count = Math.min(targets.length, MAX_CANDIDATES);
+        int[][] routeEdges = new int[count][];
+        for (int c = 0; c < count; c++) {
+            routeEdges[c] = labels.edges(targets[c]);
+        }
+        double[][] sampled = sample(routeEdges);
+
+        List<Candidate> candidates = new ArrayList<>(count);
+        for (int c = 0; c < count; c++) {
+            int label = targets[c];
+            double[] times = sampled[c];
+            Arrays.sort(times);
+            int rank = Math.max(0, (int) Math.ceil(percentile * times.length) - 1);
+            double onTime = Double.isNaN(deadlineMinutes) ? Double.NaN
+                    : (double) upperBound(times, deadlineMinutes) / times.length;
+            int[] nodes = new int[routeEdges[c].length + 1];
+            nodes[0] = s;
+            for (int i = 0; i < routeEdges[c].length; i++) {
+                nodes[i + 1] = graph.outTarget(routeEdges[c][i]);
+            }
+            candidates.add(new Candidate(new IndexedPath(nodes, labels.adjusted[label]), labels.mean[label],
+                    Math.sqrt(labels.variance[label]), times[rank], onTime));
+        }
+        stats.pathLength = candidates.isEmpty() ? 0 : candidates.get(0).getPath().getNodes().length;
+        return candidates;
+    }
+
+    /**
+     * Total walking time of each route, samples times over. Tasks are (route, chunk) pairs run
+     * on the common pool; each writes its own slice of a preallocated row and draws from its
+     * own generator, seeded from the pair, so results do not depend on scheduling.
+     */
+    private double[][] sample(int[][] routeEdges) {
+        int routes = routeEdges.length;
+        double[][] logMeans = new double[routes][];
+        double[][] logStdDevs = new double[routes][];
+        double[][] times = new double[routes][samples];
+        for (int c = 0; c < routes; c++) {
+            int[] edges = routeEdges[c];
+            logMeans[c] = new double[edges.length];
+            logStdDevs[c] = new double[edges.length];
+            for (int i = 0; i < edges.length; i++) {
+                TravelTimeDistribution time = new TravelTimeDistribution(graph.outTimeMean(edges[i]),
+                        graph.outTimeStdDev(edges[i]));
+                logMeans[c][i] = time.getLogMean();
+                logStdDevs[c][i] = time.getLogStdDev();
+            }
+        }
+        int chunks = samples / SAMPLE_CHUNK;
+        java.util.stream.IntStream.range(0, routes * chunks).parallel().forEach(task -> {
+            int c = task / chunks;
+            int from = task % chunks * SAMPLE_CHUNK;
+            double[] mu = logMeans[c];
+            double[] sigma = logStdDevs[c];
+            double[] out = times[c];
+            GaussianSource gaussian = new GaussianSource(new SplittableRandom(SEED + 31L * task));
+            for (int k = from; k < from + SAMPLE_CHUNK; k++) {
+                double total = 0;
+                for (int i = 0; i < mu.length; i++) {
+                    total += Math.exp(mu[i] + sigma[i] * gaussian.next());
+                }
+                out[k] = total;
+            }
+        });
+        return times;
+    }
+
+    private static double score(double mean, double variance, double z) {
+        return mean + z * Math.sqrt(variance);
+    }
+
+    private double edgeVariance(int edge) {
+        double sd = graph.outTimeStdDev(edge);
+        return sd * sd;
+    }
+
+    private int extend(Labels labels, int label, int edge) {
+        return labels.add(graph.outTarget(edge), label, edge, labels.mean[label] + graph.outTimeMean(edge),
+                labels.variance[label] + edgeVariance(edge), labels.adjusted[label] + graph.outWeight(edge));
+    }
+
+    /** Least total mean time, or variance, from each node to t, and the forward edge that achieves it. */
+    private void reverseSearch(int t, boolean variance, long[] blockedEdges, double[] dist, int[] towardTarget,
+            SearchStats stats) {
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(towardTarget, -1);
+        IndexedMinHeap heap = new IndexedMinHeap(graph.size());
+        dist[t] = 0;
+        heap.insertOrDecrease(t, 0);
+        while (!heap.isEmpty()) {
+            int u = heap.pollMin();
+            stats.nodesSettled++;
+            for (int e = graph.inStart(u); e < graph.inEnd(u); e++) {
+                int v = graph.inSource(e);
+                int forward = graph.inForwardEdge(e);
+                if (blockedEdges != null && (blockedEdges[forward >>> 6] & (1L << forward)) != 0) {
+                    continue;
+                }
+                double nd = dist[u] + (variance ? edgeVariance(forward) : graph.outTimeMean(forward));
+                if (nd < dist[v]) {
+                    dist[v] = nd;
+                    towardTarget[v] = forward;
+                    heap.insertOrDecrease(v, nd);
+                }
+            }
+        }
+    }
+
+    private static boolean covered(Labels labels, int[] bag, int size, int candidate) {
+        for (int i = 0; i < size; i++) {
+            int other = bag[i];
+            if (labels.mean[other] <= labels.mean[candidate] && labels.variance[other] <= labels.variance[candidate]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Appends label to v's bag, dropping entries it dominates. */
+    private static int[] addToBag(Labels labels, int[] bag, int[] bagSizes, int v, int label) {
+        if (bag == null) {
+            bag = new int[4];
+        }
+        int kept = 0;
+        for (int i = 0; i < bagSizes[v]; i++) {
+            int other = bag[i];
+            if (!(labels.mean[label] <= labels.mean[other] && labels.variance[label] <= labels.variance[other])) {
+                bag[kept++] = other;
+            }
+        }
+        if (kept == bag.length) {
+            bag = Arrays.copyOf(bag, kept * 2);
+        }
+        bag[kept++] = label;
+        bagSizes[v] = kept;
+        return bag;
+    }
+
+    /** Number of sorted values at most x. */
+    private static int upperBound(double[] sorted, double x) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Standard normal quantile for p in [0.5, 1), Abramowitz and Stegun 26.2.23 (error below 4.5e-4). */
+    static double inverseNormal(double p) {
+        double t = Math.sqrt(-2 * Math.log(1 - p));
+        double z = t - (2.515517 + t * (0.802853 + t * 0.010328))
+                / (1 + t * (1.432788 + t * (0.189269 + t * 0.001308)));
+        return Math.max(0, z);
+    }
+
+    /** A route found by the label search, with its analytic moments and sampled percentile. */
+    static final class Candidate {
+        private final IndexedPath path;
+        private final double meanMinutes;
+        private final double stdDevMinutes;
+        private final double percentileMinutes;
+        private final double onTimeProbability;
+
+        Candidate(IndexedPath path, double meanMinutes, double stdDevMinutes, double percentileMinutes,
+                double onTimeProbability) {
+            this.path = path;
+            this.meanMinutes = meanMinutes;
+            this.stdDevMinutes = stdDevMinutes;
+            this.percentileMinutes = percentileMinutes;
+            this.onTimeProbability = onTimeProbability;
+        }
+
+        IndexedPath getPath() {
+            return path;
+        }
+
+        double getMeanMinutes() {
+            return meanMinutes;
+        }
+
+        double getStdDevMinutes() {
+            return stdDevMinutes;
+        }
+
+        double getPercentileMinutes() {
+            return percentileMinutes;
+        }
+
+        double getOnTimeProbability() {
+            return onTimeProbability;
+        }
+    }
+
+    /** Standard normal deviates by the polar method, which yields them in pairs. */
+    private static final class GaussianSource {
+        private final SplittableRandom random;
+        private double spare;
+        private boolean hasSpare;
+
+        GaussianSource(SplittableRandom random) {
+            this.random = random;
+        }
+
+        double next() {
+            if (hasSpare) {
+                hasSpare = false;
+                return spare;
+            }
+            double u;
+            double v;
+            double s;
+            do {
+                u = 2 * random.nextDouble() - 1;
+                v = 2 * random.nextDouble() - 1;
+                s = u * u + v * v;
+            } while (s >= 1 || s == 0);
+            double scale = Math.sqrt(-2 * Math.log(s) / s);
+            spare = v * scale;
+            hasSpare = true;
+            return u * scale;
+        }
+    }
+
+    /** Growable struct-of-arrays label store; edge is the one taken into node, or -1 at the source. */
+    private static final class Labels {
+        int[] node = new int[64];
+        int[] parent = new int[64];
+        int[] edge = new int[64];
+        double[] mean = new double[64];
+        double[] variance = new double[64];
+        double[] adjusted = new double[64];
+        int count;
+
+        int add(int v, int from, int via, double mean, double variance, double adjusted) {
+            if (count == node.length) {
+                int capacity = count * 2;
+                node = Arrays.copyOf(node, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                edge = Arrays.copyOf(edge, capacity);
+                this.mean = Arrays.copyOf(this.mean, capacity);
+                this.variance = Arrays.copyOf(this.variance, capacity);
+                this.adjusted = Arrays.copyOf(this.adjusted, capacity);
+            }
+            node[count] = v;
+            parent[count] = from;
+            edge[count] = via;
+            this.mean[count] = mean;
+            this.variance[count] = variance;
+            this.adjusted[count] = adjusted;
+            return count++;
+        }
+
+        void removeLast() {
+            count--;
+        }
+
+        /** Forward edges from the source to label's node, in order. */
+        int[] edges(int label) {
+            int hops = 0;
+            for (int l = label; parent[l] >= 0; l = parent[l]) {
+                hops++;
+            }
+            int[] edges = new int[hops];
+            for (int l = label; parent[l] >= 0; l = parent[l]) {
+                edges[--hops] = edge[l];
+            }
+            return edges;
+        }
+    }
+}
+
+/** A candidate route scored for reliability; times are in minutes. */
+class RouteReliability {
+    private final Route route;
+    private final double meanMinutes;
+    private final double stdDevMinutes;
+    private final double percentileMinutes;
+    private final double onTimeProbability;
+
+    public RouteReliability(Route route, double meanMinutes, double stdDevMinutes, double percentileMinutes,
+            double onTimeProbability) {
+        this.route = route;
+        this.meanMinutes = meanMinutes;
+        this.stdDevMinutes = stdDevMinutes;
+        this.percentileMinutes = percentileMinutes;
+        this.onTimeProbability = onTimeProbability;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    public double getMeanMinutes() {
+        return meanMinutes;
+    }
+
+    public double getStdDevMinutes() {
+        return stdDevMinutes;
+    }
+
+    /** Sampled walking time the route stays within with the plan's percentile probability. */
+    public double getPercentileMinutes() {
+        return percentileMinutes;
+    }
+
+    /** Sampled probability of arriving within the deadline, or NaN when the query had none. */
+    public double getOnTimeProbability() {
+        return onTimeProbability;
+    }
+}
+
+/** Result of a reliability query: the chosen route and every candidate that was sampled. */
+class ReliabilityPlan {
+    private final RouteReliability best;
+    private final List<RouteReliability> candidates;
+    private final double percentile;
+    private final double deadlineMinutes;
+
+    public ReliabilityPlan(RouteReliability best, List<RouteReliability> candidates, double percentile,
+            double deadlineMinutes) {
+        this.best = best;
+        this.candidates = candidates;
+        this.percentile = percentile;
+        this.deadlineMinutes = deadlineMinutes;
+    }
+
+    /** Most likely to make the deadline if there is one, else the least percentile time; null if unreachable. */
+    public RouteReliability getBest() {
+        return best;
+    }
+
+    public List<RouteReliability> getCandidates() {
+        return candidates;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public double getDeadlineMinutes() {
+        return deadlineMinutes;
+    }
+
+    public boolean hasDeadline() {
+        return !Double.isNaN(deadlineMinutes);
+    }
+}
+
+// ===== TOUR PLANNING =====
+
+/** A node a tour must visit, optionally within a time window given in minutes after departure. */
+class TourStop {
+    private final CampusNode node;
+    private final double earliestMinutes;
+    private final double latestMinutes;
+
+    public TourStop(CampusNode node) {
+        this(node, 0.0, Double.POSITIVE_INFINITY);
+    }
+
+    /** Arriving before earliestMinutes means waiting; arriving after latestMinutes is late. */
+    public TourStop(CampusNode node, double earliestMinutes, double latestMinutes) {
+        if (!(earliestMinutes <= latestMinutes)) {
+            throw new IllegalArgumentException("Time window ends before it starts: " + earliestMinutes
+                    + " > " + latestMinutes);
+        }
+        this.node = node;
+        this.earliestMinutes = earliestMinutes;
+        this.latestMinutes = latestMinutes;
+    }
+
+    public CampusNode getNode() {
+        return node;
+    }
+
+    public double getEarliestMinutes() {
+        return earliestMinutes;
+    }
+
+    public double getLatestMinutes() {
+        return latestMinutes;
+    }
+
+    public boolean hasTimeWindow() {
+        return earliestMinutes > 0 || latestMinutes != Double.POSITIVE_INFINITY;
+    }
+}
+
+/** Result of tour planning: the stitched walking route and the schedule at each stop. */
+class TourPlan {
+    private final Route route;
+    private final List<TourStop> visitOrder;
+    private final double[] arrivalMinutes;
+    private final double latenessMinutes;
+    private final boolean exact;
+
+    TourPlan(Route route, List<TourStop> visitOrder, double[] arrivalMinutes, double latenessMinutes,
+            boolean exact) {
+        this.route = route;
+        this.visitOrder = Collections.unmodifiableList(visitOrder);
+        this.arrivalMinutes = arrivalMinutes;
+        this.latenessMinutes = latenessMinutes;
+        this.exact = exact;
+    }
+
+    /** The full route; its path is empty if some stop cannot be reached. */
+    public Route getRoute() {
+        return route;
+    }
+
+    public List<TourStop> getVisitOrder() {
+        return visitOrder;
+    }
+
+    /** Arrival time at each stop of getVisitOrder, in minutes after departure, before any waiting. */
+    public double[] getArrivalMinutes() {
+        return arrivalMinutes.clone();
+    }
+
+    /** Total minutes by which stops were reached after their window closed. */
+    public double getLatenessMinutes() {
+        return latenessMinutes;
+    }
+
+    public boolean isOnTime() {
+        return latenessMinutes == 0;
+    }
+
+    /** True if the visit order is provably optimal rather than the best found by local search. */
+    public boolean isExact() {
+        return exact;
+    }
+}
+
+/**
+ * Orders the stops of a multi-stop tour. One one-to-all search per tour point, skipping blocked
+ * edges, fills the stop-to-stop weight and time matrices; up to EXACT_STOP_LIMIT stops are then ordered
+ * exactly by Held-Karp, larger tours by 2-opt and Or-opt local search from several starting
+ * tours run in parallel. The start is fixed, and so is the end when one is given; otherwise the
+ * tour ends at whichever stop is visited last.
+ *
+ * <p>Stops with time windows are scored as traffic-adjusted distance plus
+ * LATENESS_PENALTY_PER_MINUTE for every minute late; arriving early means waiting. Held-Karp stays
+ * exact under windows by keeping, per state, every label not beaten on both cost and clock.
+ */
+final class TourPlanner {
+    static final int EXACT_STOP_LIMIT = 12;
+    static final double LATENESS_PENALTY_PER_MINUTE = 1000.0;
+    private static final double EPSILON = 1e-9;
+    // Randomised restarts pick uniformly among this many nearest unvisited stops
+    private static final int RANDOM_NEIGHBOUR_CHOICES = 3;
+    // Candidate list length for local search moves
+    private static final int NEIGHBOUR_LIST_SIZE = 12;
+
+    private final CampusGraph campusGraph;
+    private final IndexedGraph graph;
+    private final OneToAllAlgorithm algorithm;
+    private final long[] blockedEdges;
+    private final int restarts;
+    private final long seed;
+
+    /** blockedEdges are forward edge ids no leg may use; may be null. */
+    TourPlanner(CampusGraph campusGraph, IndexedGraph graph, OneToAllAlgorithm algorithm, long[] blockedEdges) {
+        this(campusGraph, graph, algorithm, blockedEdges, Math.max(4, Runtime.getRuntime().availableProcessors()),
+                1L);
+    }
+
+    TourPlanner(CampusGraph campusGraph, IndexedGraph graph, OneToAllAlgorithm algorithm, long[] blockedEdges,
+            int restarts, long seed) {
+        this.campusGraph = campusGraph;
+        this.graph = graph;
+        this.algorithm = algorithm;
+        this.blockedEdges = blockedEdges;
+        this.restarts = Math.max(1, restarts);
+        this.seed = seed;
+    }
+
+    /** Plans a tour from start through every stop, finishing at end, or at the last stop if end is null. */
+    TourPlan plan(CampusNode start, CampusNode end, List<TourStop> stops, SearchStats stats) {
+        Instance instance = new Instance(start, end, stops, stats);
+        if (!instance.connected()) {
+            return new TourPlan(new Route(), new ArrayList<>(), new double[0], 0.0, false);
+        }
+        PathfindingEngine.checkCancelled();
+
+        boolean exact = instance.stopCount <= EXACT_STOP_LIMIT;
+        int[] sequence = exact ? heldKarp(instance) : localSearch(instance);
+
+        List<TourStop> visitOrder = new ArrayList<>(instance.stopCount);
+        double[] arrivals = new double[instance.stopCount];
+        double clock = 0;
+        double lateness = 0;
+        for (int k = 1; k < sequence.length; k++) {
+            int point = sequence[k];
+            clock += instance.minutes[sequence[k - 1]][point];
+            if (point <= instance.stopCount) {
+                arrivals[visitOrder.size()] = clock;
+                visitOrder.add(stops.get(point - 1));
+                lateness += Math.max(0.0, clock - instance.latest[point]);
+                clock = Math.max(clock, instance.earliest[point]);
+            }
+        }
+        return new TourPlan(stitch(instance, sequence), visitOrder, arrivals, lateness, exact);
+    }
+
+    private Route stitch(Instance instance, int[] sequence) {
+        List<CampusNode> path = new ArrayList<>();
+        path.add(graph.node(instance.pointNodes[sequence[0]]));
+        double adjustedDistance = 0;
+        int[] leg = new int[graph.size()];
+        for (int k = 1; k < sequence.length; k++) {
+            int from = sequence[k - 1];
+            int[] parents = instance.parents[from];
+            int length = 0;
+            for (int node = instance.pointNodes[sequence[k]]; node != instance.pointNodes[from]; node = parents[node]) {
+                leg[length++] = node;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                path.add(graph.node(leg[i]));
+            }
+            adjustedDistance += instance.weights[from][sequence[k]];
+        }
+        return new Route(path, adjustedDistance, campusGraph, graph.getTimeOfDay());
+    }
+
+    // ----- Exact ordering -----
+
+    /** Partial tour in the Held-Karp table: visited set implied by its state, ending at last. */
+    private static final class Label {
+        final double cost;
+        final double clock;
+        final int last;
+        final Label previous;
+
+        Label(double cost, double clock, int last, Label previous) {
+            this.cost = cost;
+            this.clock = clock;
+            this.last = last;
+            this.previous = previous;
+        }
+    }
+
+    private int[] heldKarp(Instance instance) {
+        int m = instance.stopCount;
+        int[] sequence = new int[instance.pointCount];
+        sequence[0] = 0;
+        if (instance.hasEnd) {
+            sequence[instance.pointCount - 1] = instance.pointCount - 1;
+        }
+        if (m == 0) {
+            return sequence;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        List<Label>[] bags = new List[(1 << m) * m];
+        for (int stop = 1; stop <= m; stop++) {
+            insert(bags, (1 << (stop - 1)) * m + stop - 1, extend(instance, new Label(0, 0, 0, null), stop),
+                    instance.hasWindows);
+        }
+        int full = (1 << m) - 1;
+        for (int mask = 1; mask < full; mask++) {
+            PathfindingEngine.checkCancelled();
+            for (int last = 0; last < m; last++) {
+                List<Label> bag = bags[mask * m + last];
+                if (bag == null) {
+                    continue;
+                }
+                for (Label label : bag) {
+                    for (int next = 0; next < m; next++) {
+                        if ((mask & (1 << next)) == 0) {
+                            insert(bags, (mask | (1 << next)) * m + next, extend(instance, label, next + 1),
+                                    instance.hasWindows);
+                        }
+                    }
+                }
+            }
+        }
+
+        Label best = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int last = 0; last < m; last++) {
+            List<Label> bag = bags[full * m + last];
+            for (Label label : bag) {
+                double cost = label.cost
+                        + (instance.hasEnd ? instance.weights[label.last][instance.pointCount - 1] : 0.0);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = label;
+                }
+            }
+        }
+        for (int k = m; k >= 1; k--) {
+            sequence[k] = best.last;
+            best = best.previous;
+        }
+        return sequence;
+    }
+
+    private static Label extend(Instance instance, Label label, int stop) {
+        double clock = label.clock + instance.minutes[label.last][stop];
+        double cost = label.cost + instance.weights[label.last][stop];
+        if (clock > instance.latest[stop]) {
+            cost += LATENESS_PENALTY_PER_MINUTE * (clock - instance.latest[stop]);
+        }
+        return new Label(cost, Math.max(clock, instance.earliest[stop]), stop, label);
+    }
+
+    /** Adds a label to its state's bag unless dominated; without windows only the cheapest is kept. */
+    private static void insert(List<Label>[] bags, int state, Label label, boolean keepClockTradeOffs) {
+        List<Label> bag = bags[state];
+        if (bag == null) {
+            bag = new ArrayList<>(1);
+            bag.add(label);
+            bags[state] = bag;
+            return;
+        }
+        for (Label existing : bag) {
+            if (existing.cost <= label.cost && (!keepClockTradeOffs || existing.clock <= label.clock)) {
+                return;
+            }
+        }
+        bag.removeIf(existing -> label.cost <= existing.cost
+                && (!keepClockTradeOffs || label.clock <= existing.clock));
+        bag.add(label);
+    }
+
+    // ----- Local search -----
+
+    private int[] localSearch(Instance instance) {
+        int[][] tours = new int[restarts][];
+        double[] costs = new double[restarts];
+        java.util.stream.IntStream.range(0, restarts).parallel().forEach(restart -> {
+            Random random = new Random(seed * 31 + restart);
+            int[] tour = initialTour(instance, restart, random);
+            costs[restart] = improve(instance, tour);
+            tours[restart] = tour;
+        });
+        int best = 0;
+        for (int restart = 1; restart < restarts; restart++) {
+            if (costs[restart] < costs[best] - EPSILON) {
+                best = restart;
+            }
+        }
+        return tours[best];
+    }
+
+    /**
+     * Restart 0 is greedy nearest neighbour; with time windows restart 1 visits stops by deadline;
+     * the rest pick randomly among the few nearest unvisited stops.
+     */
+    private static int[] initialTour(Instance instance, int restart, Random random) {
+        int m = instance.stopCount;
+        int[] tour = new int[instance.pointCount];
+        if (instance.hasEnd) {
+            tour[instance.pointCount - 1] = instance.pointCount - 1;
+        }
+        if (restart == 1 && instance.hasWindows) {
+            Integer[] byDeadline = new Integer[m];
+            for (int i = 0; i < m; i++) {
+                byDeadline[i] = i + 1;
+            }
+            Arrays.sort(byDeadline, Comparator.comparingDouble((Integer stop) -> instance.latest[stop])
+                    .thenComparingDouble(stop -> instance.earliest[stop]));
+            for (int i = 0; i < m; i++) {
+                tour[i + 1] = byDeadline[i];
+            }
+            return tour;
+        }
+
+        boolean[] visited = new boolean[m + 1];
+        int[] nearest = new int[RANDOM_NEIGHBOUR_CHOICES];
+        int current = 0;
+        for (int position = 1; position <= m; position++) {
+            int found = 0;
+            for (int stop = 1; stop <= m; stop++) {
+                if (visited[stop]) {
+                    continue;
+                }
+                // Keep the closest few unvisited stops, sorted by weight from current
+                int slot = Math.min(found, nearest.length - 1);
+                if (found < nearest.length
+                        || instance.weights[current][stop] < instance.weights[current][nearest[slot]]) {
+                    while (slot > 0 && instance.weights[current][nearest[slot - 1]] > instance.weights[current][stop]) {
+                        nearest[slot] = nearest[slot - 1];
+                        slot--;
+                    }
+                    nearest[slot] = stop;
+                    found = Math.min(found + 1, nearest.length);
+                }
+            }
+            int next = restart == 0 ? nearest[0] : nearest[random.nextInt(found)];
+            visited[next] = true;
+            tour[position] = next;
+            current = next;
+        }
+        return tour;
+    }
+
+    /**
+     * Applies improving 2-opt and Or-opt moves until neither finds one; returns the final cost.
+     * Only moves that create an edge to one of a point's NEIGHBOUR_LIST_SIZE nearest points are tried.
+     */
+    private static double improve(Instance instance, int[] tour) {
+        int length = tour.length;
+        int lastMovable = instance.hasEnd ? length - 2 : length - 1;
+        int lastGap = lastMovable;
+        double[] forward = new double[length];
+        double[] backward = new double[length];
+        int[] position = new int[length];
+        int[] trial = new int[length];
+        // Cost and clock after each position, so trial tours are only re-scored from the first change
+        double[] costAt = new double[length];
+        double[] clockAt = new double[length];
+        double cost = instance.schedule(tour, 1, 0.0, 0.0, costAt, clockAt);
+        double distance = prefixSums(instance, tour, forward, backward, position);
+        double[][] w = instance.weights;
+
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+
+            // 2-opt: reverse tour[i..j] so that tour[i - 1] is followed by its neighbour tour[j];
+            // prefix sums give both traversal directions of the segment in O(1)
+            for (int i = 1; i < lastMovable; i++) {
+                for (int neighbour : instance.neighbours[tour[i - 1]]) {
+                    int j = position[neighbour];
+                    if (j <= i || j > lastMovable) {
+                        continue;
+                    }
+                    int before = tour[i - 1];
+                    int after = j + 1 < length ? tour[j + 1] : -1;
+                    double removed = w[before][tour[i]] + forward[j] - forward[i]
+                            + (after >= 0 ? w[tour[j]][after] : 0.0);
+                    double added = w[before][tour[j]] + backward[j] - backward[i]
+                            + (after >= 0 ? w[tour[i]][after] : 0.0);
+                    double delta = added - removed;
+                    if (!promising(delta, cost - distance)) {
+                        continue;
+                    }
+                    System.arraycopy(tour, 0, trial, 0, length);
+                    for (int a = i, b = j; a < b; a++, b--) {
+                        int swap = trial[a];
+                        trial[a] = trial[b];
+                        trial[b] = swap;
+                    }
+                    double trialCost = instance.hasWindows
+                            ? trialCost(instance, trial, i, j, costAt, clockAt, cost)
+                            : cost + delta;
+                    if (trialCost < cost - EPSILON) {
+                        System.arraycopy(trial, 0, tour, 0, length);
+                        cost = instance.schedule(tour, i, costAt[i - 1], clockAt[i - 1], costAt, clockAt);
+                        distance = prefixSums(instance, tour, forward, backward, position);
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+
+            // Or-opt: move a run of one to three stops, keeping its direction, to just after or
+            // just before a neighbour of its first stop
+            for (int run = 1; run <= 3; run++) {
+                for (int i = 1; i + run - 1 <= lastMovable; i++) {
+                    int k = i + run - 1;
+                    int before = tour[i - 1];
+                    int after = k + 1 < length ? tour[k + 1] : -1;
+                    double removed = w[before][tour[i]]
+                            + (after >= 0 ? w[tour[k]][after] - w[before][after] : 0.0);
+                    moves:
+                    for (int neighbour : instance.neighbours[tour[i]]) {
+                        for (int side = 0; side < 2; side++) {
+                            int gap = position[neighbour] - side;
+                            if (gap < 0 || gap > lastGap || (gap >= i - 1 && gap <= k)) {
+                                continue;
+                            }
+                            int next = gap + 1 < length ? tour[gap + 1] : -1;
+                            double added = w[tour[gap]][tour[i]]
+                                    + (next >= 0 ? w[tour[k]][next] - w[tour[gap]][next] : 0.0);
+                            double delta = added - removed;
+                            if (!promising(delta, cost - distance)) {
+                                continue;
+                            }
+                            int out = 0;
+                            for (int q = 0; q < length; q++) {
+                                if (q >= i && q <= k) {
+                                    continue;
+                                }
+                                trial[out++] = tour[q];
+                                if (q == gap) {
+                                    for (int r = i; r <= k; r++) {
+                                        trial[out++] = tour[r];
+                                    }
+                                }
+                            }
+                            int changed = Math.min(i, gap + 1);
+                            double trialCost = instance.hasWindows
+                                    ? trialCost(instance, trial, changed, Math.max(k, gap), costAt, clockAt, cost)
+                                    : cost + delta;
+                            if (trialCost < cost - EPSILON) {
+                                System.arraycopy(trial, 0, tour, 0, length);
+                                cost = instance.schedule(tour, changed, costAt[changed - 1], clockAt[changed - 1],
+                                        costAt, clockAt);
+                                distance = prefixSums(instance, tour, forward, backward, position);
+                                improved = true;
+                                break moves;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Scores a trial tour that matches the current one outside positions from..end. Past end the
+     * remaining cost can only grow with the arrival clock, so scoring stops as soon as the trial is
+     * no better on both cost and clock, or rejoins the current schedule at the same clock.
+     */
+    private static double trialCost(Instance instance, int[] trial, int from, int end, double[] costAt,
+            double[] clockAt, double cost) {
+        double total = costAt[from - 1];
+        double clock = clockAt[from - 1];
+        for (int k = from; k < trial.length; k++) {
+            int point = trial[k];
+            total += instance.weights[trial[k - 1]][point];
+            clock += instance.minutes[trial[k - 1]][point];
+            if (clock > instance.latest[point]) {
+                total += LATENESS_PENALTY_PER_MINUTE * (clock - instance.latest[point]);
+            }
+            clock = Math.max(clock, instance.earliest[point]);
+            if (total >= cost - EPSILON) {
+                return Double.POSITIVE_INFINITY;
+            }
+            if (k >= end) {
+                if (clock == clockAt[k]) {
+                    return total + cost - costAt[k];
+                }
+                if (clock > clockAt[k] && total >= costAt[k]) {
+                    return Double.POSITIVE_INFINITY;
+                }
+            }
+        }
+        return total;
+    }
+
+    /** A move can only pay off if its distance change is smaller than the lateness penalty it might remove. */
+    private static boolean promising(double distanceDelta, double latenessPenalty) {
+        return distanceDelta < -EPSILON || (latenessPenalty > EPSILON && distanceDelta < latenessPenalty);
+    }
+
+    /**
+     * Fills forward[k] with the weight of tour[0..k] walked forwards, backward[k] with the same
+     * hops walked in reverse and position with each point's place in the tour; returns the total
+     * tour weight.
+     */
+    private static double prefixSums(Instance instance, int[] tour, double[] forward, double[] backward,
+            int[] position) {
+        forward[0] = 0;
+        backward[0] = 0;
+        for (int k = 0; k < tour.length; k++) {
+            position[tour[k]] = k;
+        }
+        for (int k = 1; k < tour.length; k++) {
+            forward[k] = forward[k - 1] + instance.weights[tour[k - 1]][tour[k]];
+            backward[k] = backward[k - 1] + instance.weights[tour[k]][tour[k - 1]];
+        }
+        return forward[tour.length - 1];
+    }
+
+    // ----- Distance matrix -----
+
+    /**
+     * Tour points are numbered 0 for the start, 1..stopCount for the stops and stopCount + 1 for
+     * the end, if any. Matrices are indexed by point.
+     */
+    private final class Instance {
+        final int stopCount;
+        final int pointCount;
+        final boolean hasEnd;
+        final boolean hasWindows;
+        final int[] pointNodes;
+        final double[] earliest;
+        final double[] latest;
+        final double[][] weights;
+        final double[][] minutes;
+        final int[][] parents;
+        // Nearest start-or-stop points of every point, for local search candidate moves
+        final int[][] neighbours;
+
+        Instance(CampusNode start, CampusNode end, List<TourStop> stops, SearchStats stats) {
+            stopCount = stops.size();
+            hasEnd = end != null;
+            pointCount = stopCount + 1 + (hasEnd ? 1 : 0);
+            pointNodes = new int[pointCount];
+            earliest = new double[pointCount];
+            latest = new double[pointCount];
+            Arrays.fill(latest, Double.POSITIVE_INFINITY);
+            pointNodes[0] = denseIndex(start);
+            boolean windows = false;
+            for (int i = 0; i < stopCount; i++) {
+                TourStop stop = stops.get(i);
+                pointNodes[i + 1] = denseIndex(stop.getNode());
+                earliest[i + 1] = stop.getEarliestMinutes();
+                latest[i + 1] = stop.getLatestMinutes();
+                windows |= stop.hasTimeWindow();
+            }
+            if (hasEnd) {
+                pointNodes[pointCount - 1] = denseIndex(end);
+            }
+            hasWindows = windows;
+
+            // The end point is only ever a target, so it needs no row of its own
+            int sources = hasEnd ? pointCount - 1 : pointCount;
+            weights = new double[pointCount][pointCount];
+            minutes = new double[pointCount][pointCount];
+            parents = new int[sources][];
+            // Rows run on the calling thread, so cancellation and the query's budget reach every one
+            for (int point = 0; point < sources; point++) {
+                fillRow(point, stats);
+            }
+            neighbours = stopCount > EXACT_STOP_LIMIT ? nearestPoints() : null;
+        }
+
+        /**
+         * Nearest points by weight in either direction, since moves create edges both into and out
+         * of a point. With time windows the list also takes the points with the closest deadlines,
+         * so late stops can move next to stops that are due around the same time.
+         */
+        private int[][] nearestPoints() {
+            int[][] nearest = new int[stopCount + 1][];
+            Integer[] candidates = new Integer[stopCount + 1];
+            int size = Math.min(NEIGHBOUR_LIST_SIZE, stopCount);
+            for (int point = 0; point <= stopCount; point++) {
+                int from = point;
+                Set<Integer> chosen = new LinkedHashSet<>();
+                sortCandidates(candidates, Comparator.comparingDouble(
+                        (Integer other) -> Math.min(weights[from][other], weights[other][from])));
+                take(candidates, point, size, chosen);
+                if (hasWindows) {
+                    sortCandidates(candidates, Comparator.comparingDouble(
+                            (Integer other) -> Math.abs(deadline(other) - deadline(from))));
+                    take(candidates, point, size, chosen);
+                }
+                nearest[point] = chosen.stream().mapToInt(Integer::intValue).toArray();
+            }
+            return nearest;
+        }
+
+        private void sortCandidates(Integer[] candidates, Comparator<Integer> order) {
+            for (int i = 0; i < candidates.length; i++) {
+                candidates[i] = i;
+            }
+            Arrays.sort(candidates, order);
+        }
+
+        private void take(Integer[] sorted, int self, int count, Set<Integer> chosen) {
+            for (int i = 0, taken = 0; taken < count && i < sorted.length; i++) {
+                if (sorted[i] != self) {
+                    chosen.add(sorted[i]);
+                    taken++;
+                }
+            }
+        }
+
+        /** Latest arrival for windowed stops; earliest otherwise, so unconstrained points sort first. */
+        private double deadline(int point) {
+            return latest[point] != Double.POSITIVE_INFINITY ? latest[point] : earliest[point];
+        }
+
+        private int denseIndex(CampusNode node) {
+            int index = graph.indexOf(node.getId());
+            if (index < 0) {
+                throw new IllegalArgumentException("Tour node is not in the graph: " + node.getName());
+            }
+            return index;
+        }
+
+        /** One-to-all search on the traffic-adjusted weight, then timing of the path to each point. */
+        private void fillRow(int point, SearchStats stats) {
+            ShortestPathTree tree = ShortestPathTree.compute(graph, algorithm, new int[] { pointNodes[point] }, false,
+                    blockedEdges, stats);
+            int[] parent = tree.parents();
+            for (int target = 0; target < pointCount; target++) {
+                weights[point][target] = tree.distance(pointNodes[target]);
+                minutes[point][target] = pathMinutes(tree, pointNodes[target]);
+            }
+            parents[point] = parent;
+        }
+
+        /**
+         * Walking time along the tree path to v: each hop takes the open edge whose weight is
+         * exactly the hop's distance difference, the edge the search relaxed to reach it.
+         */
+        private double pathMinutes(ShortestPathTree tree, int v) {
+            if (tree.distance(v) == Double.POSITIVE_INFINITY) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double total = 0;
+            for (int u = tree.parent(v); u >= 0; v = u, u = tree.parent(v)) {
+                double hopTime = Double.POSITIVE_INFINITY;
+                for (int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+                    if (graph.outTarget(e) == v && tree.distance(u) + graph.outWeight(e) == tree.distance(v)
+                            && (blockedEdges == null || (blockedEdges[e >>> 6] & (1L << e)) == 0)) {
+                        hopTime = Math.min(hopTime, graph.outTime(e));
+                    }
+                }
+                total += hopTime;
+            }
+            return total;
+        }
+
+        /** True if every point can reach every other point it might be followed by. */
+        boolean connected() {
+            for (int from = 0; from < parents.length; from++) {
+                for (int to = 1; to < pointCount; to++) {
+                    if (weights[from][to] == Double.POSITIVE_INFINITY) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Weight plus lateness penalty of a point sequence, resuming at position from with the cost
+         * and clock reached just before it, and recording the running values per position.
+         */
+        double schedule(int[] tour, int from, double total, double clock, double[] costAt, double[] clockAt) {
+            for (int k = from; k < tour.length; k++) {
+                int point = tour[k];
+                total += weights[tour[k - 1]][point];
+                clock += minutes[tour[k - 1]][point];
+                if (clock > latest[point]) {
+                    total += LATENESS_PENALTY_PER_MINUTE * (clock - latest[point]);
+                }
+                clock = Math.max(clock, earliest[point]);
+                costAt[k] = total;
+                clockAt[k] = clock;
+            }
+            return total;
+        }
+    }
+}
+
+// ===== EVACUATION =====
+
+/**
+ * Routes every node of the graph to an exit at once. The uncapacitated mode is a single
+ * multi-source Dijkstra over reverse edges seeded from all exits, which leaves each node with its
+ * nearest exit and the next hop towards it. The capacitated mode gives every edge (and optionally
+ * every exit) a limit on people and solves the assignment as a min-cost flow, so that crowds
+ * spill over to the next-best exits instead of all taking the same corridors.
+ */
+final class EvacuationPlanner {
+    private final IndexedGraph graph;
+    private final LandmarkType exitType;
+
+    EvacuationPlanner(IndexedGraph graph) {
+        this(graph, LandmarkType.ENTRANCE);
+    }
+
+    EvacuationPlanner(IndexedGraph graph, LandmarkType exitType) {
+        this.graph = graph;
+        this.exitType = exitType;
+    }
+
+    /**
+     * Nearest exit, distance and next hop for every node, from one reverse search that skips the
+     * edges set in blockedEdges (may be null).
+     */
+    EvacuationPlan nearestExits(CampusGraph campusGraph, OneToAllAlgorithm algorithm, long[] blockedEdges,
+            SearchStats stats) {
+        int n = graph.size();
+        int[] exits = new int[n];
+        int exitCount = 0;
+        for (int v = 0; v < n; v++) {
+            if (graph.node(v).getLandmarkType() == exitType) {
+                exits[exitCount++] = v;
+            }
+        }
+        ShortestPathTree tree = ShortestPathTree.compute(graph, algorithm, Arrays.copyOf(exits, exitCount), true,
+                blockedEdges, stats);
+        return new EvacuationPlan(campusGraph, graph, tree.roots(), tree.parents(), tree.distances());
+    }
+
+    /**
+     * Sends occupants[v] people from each node v (dense index) to exits at least total walking
+     * cost, with at most edgeCapacity people on any edge and, if exitCapacity is positive, at most
+     * exitCapacity through any exit. Edges set in blockedEdges (may be null) carry nobody. People
+     * who cannot get out within the limits are reported as unrouted. Solved by successive
+     * shortest paths with Dijkstra on reduced costs.
+     */
+    CapacitatedEvacuation assign(CampusGraph campusGraph, int[] occupants, int edgeCapacity, int exitCapacity,
+            long[] blockedEdges, SearchStats stats) {
+        int n = graph.size();
+        int superSource = n;
+        int superSink = n + 1;
+        FlowNetwork network = new FlowNetwork(n + 2, graph.edgeCount() + 2 * n);
+        for (int u = 0; u < n; u++) {
+            for (int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+                if (blockedEdges == null || (blockedEdges[e >>> 6] & (1L << e)) == 0) {
+                    network.addArc(u, graph.outTarget(e), edgeCapacity, graph.outWeight(e));
+                }
+            }
+        }
+        int supply = supply(occupants);
+        int[] sourceArc = new int[n];
+        int[] exitArc = new int[n];
+        Arrays.fill(sourceArc, -1);
+        Arrays.fill(exitArc, -1);
+        for (int v = 0; v < n; v++) {
+            if (occupants[v] > 0) {
+                sourceArc[v] = network.addArc(superSource, v, occupants[v], 0.0);
+            }
+            if (graph.node(v).getLandmarkType() == exitType) {
+                exitArc[v] = network.addArc(v, superSink, exitCapacity > 0 ? exitCapacity : supply, 0.0);
+            }
+        }
+
+        int routed = network.minCostFlow(superSource, superSink, supply, stats);
+
+        // Decompose the flow into origin-to-exit paths; optimal flows carry no cycles
+        List<EvacuationAssignment> assignments = new ArrayList<>();
+        int[] path = new int[n];
+        // pathArcs[i] carries the flow from path[i] to path[i + 1]; parallel edges make the pair ambiguous
+        int[] pathArcs = new int[n];
+        for (int origin = 0; origin < n; origin++) {
+            if (sourceArc[origin] < 0) {
+                continue;
+            }
+            while (network.flow(sourceArc[origin]) > 0) {
+                PathfindingEngine.checkCancelled();
+                int length = 0;
+                int people = network.flow(sourceArc[origin]);
+                int v = origin;
+                path[length++] = v;
+                while (exitArc[v] < 0 || network.flow(exitArc[v]) == 0) {
+                    int arc = network.firstArcWithFlow(v, n);
+                    people = Math.min(people, network.flow(arc));
+                    pathArcs[length - 1] = arc;
+                    v = network.head(arc);
+                    path[length++] = v;
+                }
+                people = Math.min(people, network.flow(exitArc[v]));
+                double cost = 0;
+                network.removeFlow(sourceArc[origin], people);
+                for (int i = 0; i + 1 < length; i++) {
+                    cost += network.cost(pathArcs[i]);
+                    network.removeFlow(pathArcs[i], people);
+                }
+                network.removeFlow(exitArc[v], people);
+                List<CampusNode> nodes = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    nodes.add(graph.node(path[i]));
+                }
+                assignments.add(new EvacuationAssignment(graph.node(origin), graph.node(v), people,
+                        new Route(nodes, cost, campusGraph, graph.getTimeOfDay())));
+            }
+        }
+        return new CapacitatedEvacuation(assignments, supply - routed);
+    }
+
+    private static int supply(int[] occupants) {
+        int total = 0;
+        for (int people : occupants) {
+            total += Math.max(0, people);
+        }
+        return total;
+    }
+
+    /** Residual network in forward-star form; arc a and its reverse are a and a ^ 1. */
+    private static final class FlowNetwork {
+        private final int nodeCount;
+        private final int[] firstArc;
+        private int[] nextArc;
+        private int[] head;
+        private int[] residual;
+        private int[] capacity;
+        private double[] cost;
+        private int arcCount;
+
+        FlowNetwork(int nodeCount, int expectedArcs) {
+            this.nodeCount = nodeCount;
+            this.firstArc = new int[nodeCount];
+            Arrays.fill(firstArc, -1);
+            int size = 2 * Math.max(1, expectedArcs);
+            this.nextArc = new int[size];
+            this.head = new int[size];
+            this.residual = new int[size];
+            this.capacity = new int[size];
+            this.cost = new double[size];
+        }
+
+        int addArc(int from, int to, int arcCapacity, double arcCost) {
+            if (arcCount + 2 > head.length) {
+                int size = head.length * 2;
+                nextArc = Arrays.copyOf(nextArc, size);
+                head = Arrays.copyOf(head, size);
+                residual = Arrays.copyOf(residual, size);
+                capacity = Arrays.copyOf(capacity, size);
+                cost = Arrays.copyOf(cost, size);
+            }
+            int arc = arcCount;
+            link(arc, from, to, arcCapacity, arcCost);
+            link(arc + 1, to, from, 0, -arcCost);
+            arcCount += 2;
+            return arc;
+        }
+
+        private void link(int arc, int from, int to, int arcCapacity, double arcCost) {
+            head[arc] = to;
+            residual[arc] = arcCapacity;
+            capacity[arc] = arcCapacity;
+            cost[arc] = arcCost;
+            nextArc[arc] = firstArc[from];
+            firstArc[from] = arc;
+        }
+
+        int head(int arc) {
+            return head[arc];
+        }
+
+        double cost(int arc) {
+            return cost[arc];
+        }
+
+        int flow(int arc) {
+            return capacity[arc] - residual[arc];
+        }
+
+        void removeFlow(int arc, int amount) {
+            residual[arc] += amount;
+        }
+
+        /** A forward arc out of from into a real node (below limit) that still carries flow. */
+        int firstArcWithFlow(int from, int limit) {
+            for (int arc = firstArc[from]; arc >= 0; arc = nextArc[arc]) {
+                if ((arc & 1) == 0 && head[arc] < limit && flow(arc) > 0) {
+                    return arc;
+                }
+            }
+            throw new IllegalStateException("Flow is not conserved at node " + from);
+        }
+
+        /**
+         * Pushes up to demand units from source to sink along successively cheapest paths, keeping
+         * Johnson potentials so every Dijkstra runs on non-negative reduced costs. Returns the
+         * amount actually sent.
+         */
+        int minCostFlow(int source, int sink, int demand, SearchStats stats) {
+            double[] potential = new double[nodeCount];
+            double[] distance = new double[nodeCount];
+            int[] parentArc = new int[nodeCount];
+            IndexedMinHeap heap = new IndexedMinHeap(nodeCount);
+            int sent = 0;
+            while (sent < demand) {
+                PathfindingEngine.checkCancelled();
+                Arrays.fill(distance, Double.POSITIVE_INFINITY);
+                Arrays.fill(parentArc, -1);
+                distance[source] = 0;
+                heap.clear();
+                heap.insertOrDecrease(source, 0);
+                while (!heap.isEmpty()) {
+                    int u = heap.pollMin();
+                    stats.nodesSettled++;
+                    for (int arc = firstArc[u]; arc >= 0; arc = nextArc[arc]) {
+                        if (residual[arc] == 0) {
+                            continue;
+                        }
+                        int v = head[arc];
+                        // Clamp rounding noise; reduced costs are non-negative in exact arithmetic
+                        double reduced = Math.max(0.0, cost[arc] + potential[u] - potential[v]);
+                        double candidate = distance[u] + reduced;
+                        stats.edgesRelaxed++;
+                        if (candidate < distance[v]) {
+                            distance[v] = candidate;
+                            parentArc[v] = arc;
+                            heap.insertOrDecrease(v, candidate);
+                        }
+                    }
+                }
+                if (distance[sink] == Double.POSITIVE_INFINITY) {
+                    break;
+                }
+                // Capping at the sink distance keeps reduced costs valid for nodes not reached yet
+                for (int v = 0; v < nodeCount; v++) {
+                    potential[v] += Math.min(distance[v], distance[sink]);
+                }
+                int push = demand - sent;
+                for (int v = sink; v != source; v = head[parentArc[v] ^ 1]) {
+                    push = Math.min(push, residual[parentArc[v]]);
+                }
+                for (int v = sink; v != source; v = head[parentArc[v] ^ 1]) {
+                    residual[parentArc[v]] -= push;
+                    residual[parentArc[v] ^ 1] += push;
+                }
+                sent += push;
+            }
+            return sent;
+        }
+    }
+}
+
+/** Nearest exit of every node, as computed by one multi-source reverse search. */
+class EvacuationPlan {
+    private final CampusGraph campusGraph;
+    private final IndexedGraph graph;
+    private final int[] exit;
+    private final int[] nextHop;
+    private final double[] distance;
+
+    EvacuationPlan(CampusGraph campusGraph, IndexedGraph graph, int[] exit, int[] nextHop, double[] distance) {
+        this.campusGraph = campusGraph;
+        this.graph = graph;
+        this.exit = exit;
+        this.nextHop = nextHop;
+        this.distance = distance;
+    }
+
+    /** The nearest exit of origin, or null if none can be reached. */
+    public CampusNode getExit(CampusNode origin) {
+        int v = graph.indexOf(origin.getId());
+        return v < 0 || exit[v] < 0 ? null : graph.node(exit[v]);
+    }
+
+    /** Traffic-adjusted distance to the nearest exit; infinite if none can be reached. */
+    public double getDistance(CampusNode origin) {
+        int v = graph.indexOf(origin.getId());
+        return v < 0 ? Double.POSITIVE_INFINITY : distance[v];
+    }
+
+    /** Walking route from origin to its nearest exit; empty if none can be reached. */
+    public Route getRoute(CampusNode origin) {
+        int v = graph.indexOf(origin.getId());
+        if (v < 0 || exit[v] < 0) {
+            return new Route();
+        }
+        List<CampusNode> path = new ArrayList<>();
+        for (int node = v; node >= 0; node = nextHop[node]) {
+            path.add(graph.node(node));
+        }
+        return new Route(path, distance[v], campusGraph, graph.getTimeOfDay());
+    }
+
+    /** Every reachable node grouped under its nearest exit. */
+    public Map<CampusNode, List<CampusNode>> getNodesByExit() {
+        Map<CampusNode, List<CampusNode>> byExit = new LinkedHashMap<>();
+        for (int v = 0; v < exit.length; v++) {
+            if (exit[v] >= 0) {
+                byExit.computeIfAbsent(graph.node(exit[v]), key -> new ArrayList<>()).add(graph.node(v));
+            }
+        }
+        return byExit;
+    }
+}
+
+/** A group of people walking from one origin to one exit along the same route. */
+class EvacuationAssignment {
+    private final CampusNode origin;
+    private final CampusNode exit;
+    private final int people;
+    private final Route route;
+
+    EvacuationAssignment(CampusNode origin, CampusNode exit, int people, Route route) {
+        this.origin = origin;
+        this.exit = exit;
+        this.people = people;
+        this.route = route;
+    }
+
+    public CampusNode getOrigin() {
+        return origin;
+    }
+
+    public CampusNode getExit() {
+        return exit;
+    }
+
+    public int getPeople() {
+        return people;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+}
+
+/** Result of a capacity-aware evacuation: who goes where, and how many could not get out. */
+class CapacitatedEvacuation {
+    private final List<EvacuationAssignment> assignments;
+    private final int unroutedPeople;
+
+    CapacitatedEvacuation(List<EvacuationAssignment> assignments, int unroutedPeople) {
+        this.assignments = Collections.unmodifiableList(assignments);
+        this.unroutedPeople = unroutedPeople;
+    }
+
+    public List<EvacuationAssignment> getAssignments() {
+        return assignments;
+    }
+
+    public int getUnroutedPeople() {
+        return unroutedPeople;
+    }
+
+    /** Sum over assignments of people times traffic-adjusted route length, the quantity minimised. */
+    public double getTotalCost() {
+        double total = 0;
+        for (EvacuationAssignment assignment : assignments) {
+            total += assignment.getPeople() * assignment.getRoute().getAdjustedDistance();
+        }
+        return total;
+    }
+
+    public Map<CampusNode, Integer> getPeopleByExit() {
+        Map<CampusNode, Integer> byExit = new LinkedHashMap<>();
+        for (EvacuationAssignment assignment : assignments) {
+            byExit.merge(assignment.getExit(), assignment.getPeople(), Integer::sum);
+        }
+        return byExit;
+    }
+}
+
+// ===== INDOOR BUILDINGS =====
+
+class IndoorNode {
+    private final int id;
+    private final String name;
+    private final int floor;
+
+    public IndoorNode(int id, String name, int floor) {
+        this.id = id;
+        this.name = name;
+        this.floor = floor;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getFloor() {
+        return floor;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (floor " + floor + ")";
+    }
+}
+
+/**
+ * The interior of one building: corridors, stairs and lifts between indoor nodes, in CSR form,
+ * and the entrances that connect it to outdoor campus nodes. Edges are undirected; weights are
+ * metres scaled by {@link IndoorEdgeKind} so they compare with outdoor adjusted distances.
+ */
+final class IndoorGraph {
+    private final String buildingId;
+    private final IndoorNode[] nodes;
+    private final Map<Integer, Integer> indexById;
+    private final int[] edgeStart;
+    private final int[] edgeTarget;
+    private final double[] edgeWeight;
+    // Dense indoor node of each entrance, and the campus node it opens onto
+    private final int[] entranceNodes;
+    private final int[] entranceCampusIds;
+
+    private IndoorGraph(String buildingId, IndoorNode[] nodes, Map<Integer, Integer> indexById, int[] edgeStart,
+            int[] edgeTarget, double[] edgeWeight, int[] entranceNodes,
+            int[] entranceCampusIds) {
+        this.buildingId = buildingId;
+        this.nodes = nodes;
+        this.indexById = indexById;
+        this.edgeStart = edgeStart;
+        this.edgeTarget = edgeTarget;
+        this.edgeWeight = edgeWeight;
+        this.entranceNodes = entranceNodes;
+        this.entranceCampusIds = entranceCampusIds;
+    }
+
+    public String getBuildingId() {
+        return buildingId;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    public int edgeCount() {
+        return edgeTarget.length;
+    }
+
+    /** Dense index of the indoor node with the given id, or -1. */
+    public int indexOf(int id) {
+        Integer index = indexById.get(id);
+        return index == null ? -1 : index;
+    }
+
+    public IndoorNode node(int index) {
+        return nodes[index];
+    }
+
+    public int entranceCount() {
+        return entranceNodes.length;
+    }
+
+    int entranceNode(int entrance) {
+        return entranceNodes[entrance];
+    }
+
+    public int entranceCampusId(int entrance) {
+        return entranceCampusIds[entrance];
+    }
+
+    /** Indoor weights from the dense node origin to every node, with predecessors in parent if given. */
+    double[] distancesFrom(int origin, int[] parent) {
+        double[] dist = new double[nodes.length];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        if (parent != null) {
+            Arrays.fill(parent, -1);
+        }
+        IndexedMinHeap heap = new IndexedMinHeap(nodes.length);
+        dist[origin] = 0;
+        heap.insertOrDecrease(origin, 0);
+        while (!heap.isEmpty()) {
+            int u = heap.pollMin();
+            for (int e = edgeStart[u]; e < edgeStart[u + 1]; e++) {
+                int v = edgeTarget[e];
+                double nd = dist[u] + edgeWeight[e];
+                if (nd < dist[v]) {
+                    dist[v] = nd;
+                    if (parent != null) {
+                        parent[v] = u;
+                    }
+                    heap.insertOrDecrease(v, nd);
+                }
+            }
+        }
+        return dist;
+    }
+
+    /** Indoor nodes from one dense node to another along the lightest path; empty if unconnected. */
+    List<IndoorNode> path(int from, int to) {
+        int[] parent = new int[nodes.length];
+        if (distancesFrom(from, parent)[to] == Double.POSITIVE_INFINITY) {
+            return Collections.emptyList();
+        }
+        LinkedList<IndoorNode> path = new LinkedList<>();
+        for (int v = to; v != -1; v = parent[v]) {
+            path.addFirst(nodes[v]);
+        }
+        return path;
+    }
+
+    /** Lightest indoor weights between every pair of entrances, row-major. */
+    double[] entranceDistances() {
+        int k = entranceNodes.length;
+        double[] table = new double[k * k];
+        for (int i = 0; i < k; i++) {
+            double[] dist = distancesFrom(entranceNodes[i], null);
+            for (int j = 0; j < k; j++) {
+                table[i * k + j] = dist[entranceNodes[j]];
+            }
+        }
+        return table;
+    }
+
+    static final class Builder {
+        private final String buildingId;
+        private final List<IndoorNode> nodes = new ArrayList<>();
+        private final Map<Integer, Integer> indexById = new HashMap<>();
+        private final List<int[]> edges = new ArrayList<>();
+        private final List<Double> lengths = new ArrayList<>();
+        private final List<IndoorEdgeKind> kinds = new ArrayList<>();
+        private final List<int[]> entrances = new ArrayList<>();
+
+        Builder(String buildingId) {
+            this.buildingId = buildingId;
+        }
+
+        public Builder addNode(int id, String name, int floor) {
+            if (indexById.putIfAbsent(id, nodes.size()) != null) {
+                throw new IllegalArgumentException("Duplicate indoor node " + id + " in " + buildingId);
+            }
+            nodes.add(new IndoorNode(id, name, floor));
+            return this;
+        }
+
+        public Builder addEdge(int sourceId, int targetId, double length, IndoorEdgeKind kind) {
+            edges.add(new int[] { index(sourceId), index(targetId) });
+            lengths.add(length);
+            kinds.add(kind);
+            return this;
+        }
+
+        /** Marks an indoor node as an entrance onto the given campus node. */
+        public Builder addEntrance(int indoorId, int campusNodeId) {
+            entrances.add(new int[] { index(indoorId), campusNodeId });
+            return this;
+        }
+
+        private int index(int id) {
+            Integer index = indexById.get(id);
+            if (index == null) {
+                throw new IllegalArgumentException("Unknown indoor node " + id + " in " + buildingId);
+            }
+            return index;
+        }
+
+        public IndoorGraph build() {
+            int n = nodes.size();
+            int[] edgeStart = new int[n + 1];
+            for (int[] edge : edges) {
+                edgeStart[edge[0] + 1]++;
+                edgeStart[edge[1] + 1]++;
+            }
+            for (int i = 0; i < n; i++) {
+                edgeStart[i + 1] += edgeStart[i];
+            }
+            int[] cursor = Arrays.copyOf(edgeStart, n);
+            int[] edgeTarget = new int[edges.size() * 2];
+            double[] edgeWeight = new double[edges.size() * 2];
+            for (int i = 0; i < edges.size(); i++) {
+                int[] edge = edges.get(i);
+                double weight = kinds.get(i).weigh(lengths.get(i));
+                for (int side = 0; side < 2; side++) {
+                    int at = cursor[edge[side]]++;
+                    edgeTarget[at] = edge[1 - side];
+                    edgeWeight[at] = weight;
+                }
+            }
+            int[] entranceNodes = new int[entrances.size()];
+            int[] entranceCampusIds = new int[entrances.size()];
+            for (int i = 0; i < entrances.size(); i++) {
+                entranceNodes[i] = entrances.get(i)[0];
+                entranceCampusIds[i] = entrances.get(i)[1];
+            }
+            return new IndoorGraph(buildingId, nodes.toArray(new IndoorNode[0]), new HashMap<>(indexById), edgeStart,
+                    edgeTarget, edgeWeight, entranceNodes, entranceCampusIds);
+        }
+    }
+}
+
+/**
+ * What outdoor searches know of a building without loading its interior: its entrances'
+ * campus nodes and the lightest indoor weight between every pair of them.
+ */
+final class EntranceTable {
+    private final String buildingId;
+    private final int[] campusIds;
+    private final double[] distances;
+
+    EntranceTable(String buildingId, int[] campusIds, double[] distances) {
+        this.buildingId = buildingId;
+        this.campusIds = campusIds;
+        this.distances = distances;
+    }
+
+    public String getBuildingId() {
+        return buildingId;
+    }
+
+    public int entranceCount() {
+        return campusIds.length;
+    }
+
+    public int campusId(int entrance) {
+        return campusIds[entrance];
+    }
+
+    /** Indoor weight from entrance i to entrance j; infinite if the interior does not connect them. */
+    public double distance(int i, int j) {
+        return distances[i * campusIds.length + j];
+    }
+}
+
+/**
+ * Registered buildings. Entrance tables are computed when a building is registered and stay
+ * resident; interiors are loaded on first use and held softly, so the JVM drops them under
+ * memory pressure and the next query that needs one loads it again.
+ */
+class BuildingCatalog {
+    private final Function<String, IndoorGraph> loader;
+    private final Map<String, EntranceTable> entranceTables = new ConcurrentHashMap<>();
+    private final Map<String, SoftReference<IndoorGraph>> interiors = new ConcurrentHashMap<>();
+    private final AtomicLong loads = new AtomicLong();
+    // Bumped on every registration, so routers built from older tables can tell they are stale
+    private final AtomicLong revision = new AtomicLong();
+
+    /** loader returns a building's interior by id, e.g. read with {@link DataReader#loadBuilding}. */
+    public BuildingCatalog(Function<String, IndoorGraph> loader) {
+        this.loader = loader;
+    }
+
+    /** Loads the building once to compute its entrance table, keeping the interior softly. */
+    public EntranceTable register(String buildingId) {
+        IndoorGraph interior = load(buildingId);
+        int[] campusIds = new int[interior.entranceCount()];
+        for (int i = 0; i < campusIds.length; i++) {
+            campusIds[i] = interior.entranceCampusId(i);
+        }
+        EntranceTable table = new EntranceTable(buildingId, campusIds, interior.entranceDistances());
+        entranceTables.put(buildingId, table);
+        revision.incrementAndGet();
+        return table;
+    }
+
+    /** The building's interior, loading it again if it was never loaded or has been evicted. */
+    public IndoorGraph interior(String buildingId) {
+        if (!entranceTables.containsKey(buildingId)) {
+            throw new IllegalArgumentException("Unknown building: " + buildingId);
+        }
+        SoftReference<IndoorGraph> ref = interiors.get(buildingId);
+        IndoorGraph interior = ref == null ? null : ref.get();
+        return interior != null ? interior : load(buildingId);
+    }
+
+    private IndoorGraph load(String buildingId) {
+        IndoorGraph interior = loader.apply(buildingId);
+        if (interior == null) {
+            throw new IllegalArgumentException("No interior for building: " + buildingId);
+        }
+        loads.incrementAndGet();
+        interiors.put(buildingId, new SoftReference<>(interior));
+        return interior;
+    }
+
+    /** Drops the interior now rather than waiting for memory pressure. */
+    public void evict(String buildingId) {
+        interiors.remove(buildingId);
+    }
+
+    public boolean isResident(String buildingId) {
+        SoftReference<IndoorGraph> ref = interiors.get(buildingId);
+        return ref != null && ref.get() != null;
+    }
+
+    public Collection<EntranceTable> getEntranceTables() {
+        return Collections.unmodifiableCollection(entranceTables.values());
+    }
+
+    /** Interiors loaded so far, counting reloads after eviction. */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    long getRevision() {
+        return revision.get();
+    }
+}
+
+/** A route endpoint: either a campus node or an indoor node of a registered building. */
+final class IndoorLocation {
+    private final CampusNode campusNode;
+    private final String buildingId;
+    private final int indoorNodeId;
+
+    private IndoorLocation(CampusNode campusNode, String buildingId, int indoorNodeId) {
+        this.campusNode = campusNode;
+        this.buildingId = buildingId;
+        this.indoorNodeId = indoorNodeId;
+    }
+
+    public static IndoorLocation outdoors(CampusNode node) {
+        return new IndoorLocation(node, null, -1);
+    }
+
+    public static IndoorLocation inside(String buildingId, int indoorNodeId) {
+        return new IndoorLocation(null, buildingId, indoorNodeId);
+    }
+
+    public boolean isIndoors() {
+        return buildingId != null;
+    }
+
+    public CampusNode getCampusNode() {
+        return campusNode;
+    }
+
+    public String getBuildingId() {
+        return buildingId;
+    }
+
+    public int getIndoorNodeId() {
+        return indoorNodeId;
+    }
+}
+
+/**
+ * A route that may start and end inside buildings: indoor legs to and from the entrances used,
+ * and the outdoor path between them. Buildings crossed on the way appear as hops between two of
+ * their entrances, named in getPassages; interiors are only spelled out at the endpoints.
+ */
+class IndoorRoute {
+    private final List<IndoorNode> startInterior;
+    private final List<CampusNode> outdoorPath;
+    private final List<String> passages;
+    private final List<IndoorNode> endInterior;
+    private final double weight;
+
+    public IndoorRoute(List<IndoorNode> startInterior, List<CampusNode> outdoorPath, List<String> passages,
+            List<IndoorNode> endInterior, double weight) {
+        this.startInterior = startInterior;
+        this.outdoorPath = outdoorPath;
+        this.passages = passages;
+        this.endInterior = endInterior;
+        this.weight = weight;
+    }
+
+    /** Indoor nodes from the start to the entrance left by; empty when starting outdoors. */
+    public List<IndoorNode> getStartInterior() {
+        return startInterior;
+    }
+
+    /** Campus nodes from the first entrance to the last; empty for a route that never leaves its building. */
+    public List<CampusNode> getOutdoorPath() {
+        return outdoorPath;
+    }
+
+    /** For each hop of the outdoor path, the building walked through, or null for an outdoor edge. */
+    public List<String> getPassages() {
+        return passages;
+    }
+
+    public List<IndoorNode> getEndInterior() {
+        return endInterior;
+    }
+
+    /** Total weight, in the adjusted metres outdoor routes use. */
+    public double getWeight() {
+        return weight;
+    }
+
+    public boolean isFound() {
+        return weight < Double.POSITIVE_INFINITY;
+    }
+}
+
+/**
+ * Routes between indoor and outdoor locations. The outdoor search is a Dijkstra over the
+ * campus graph in which every registered building is a clique between its entrances, weighted
+ * from the entrance tables, so crossing a building never loads it. Only the start and end
+ * buildings are loaded, to weigh the walk between the endpoint and each of their entrances.
+ */
+final class IndoorRouter {
+    private final IndexedGraph graph;
+    private final long[] blockedEdges;
+    private final long revision;
+    // Entrance-to-entrance hops, CSR by dense campus node
+    private final int[] cliqueStart;
+    private final int[] cliqueTarget;
+    private final double[] cliqueWeight;
+    private final String[] cliqueBuilding;
+
+    IndoorRouter(IndexedGraph graph, Collection<EntranceTable> tables, long revision, long[] blockedEdges) {
+        this.graph = graph;
+        this.blockedEdges = blockedEdges;
+        this.revision = revision;
+        // Count the hops out of each node, then fill them in place
+        cliqueStart = new int[graph.size() + 1];
+        for (EntranceTable table : tables) {
+            for (int i = 0; i < table.entranceCount(); i++) {
+                int u = graph.indexOf(table.campusId(i));
+                for (int j = 0; j < table.entranceCount(); j++) {
+                    if (isHop(table, u, i, j)) {
+                        cliqueStart[u + 1]++;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < graph.size(); i++) {
+            cliqueStart[i + 1] += cliqueStart[i];
+        }
+        int hops = cliqueStart[graph.size()];
+        int[] cursor = Arrays.copyOf(cliqueStart, graph.size());
+        cliqueTarget = new int[hops];
+        cliqueWeight = new double[hops];
+        cliqueBuilding = new String[hops];
+        for (EntranceTable table : tables) {
+            for (int i = 0; i < table.entranceCount(); i++) {
+                int u = graph.indexOf(table.campusId(i));
+                for (int j = 0; j < table.entranceCount(); j++) {
+                    if (isHop(table, u, i, j)) {
+                        int at = cursor[u]++;
+                        cliqueTarget[at] = graph.indexOf(table.campusId(j));
+                        cliqueWeight[at] = table.distance(i, j);
+                        cliqueBuilding[at] = table.getBuildingId();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Whether entrance i (at dense node u) to entrance j is a hop of the table's clique. */
+    private boolean isHop(EntranceTable table, int u, int i, int j) {
+        int v = graph.indexOf(table.campusId(j));
+        return u >= 0 && v >= 0 && u != v && table.distance(i, j) < Double.POSITIVE_INFINITY;
+    }
+
+    long getRevision() {
+        return revision;
+    }
+
+    IndoorRoute route(IndoorLocation from, IndoorLocation to, BuildingCatalog catalog, SearchStats stats) {
+        int n = graph.size();
+        double[] dist = new double[n];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        // Endpoint legs: indoor weight from the start to each entrance node, and from each to the end
+        double[] targetOffset = new double[n];
+        Arrays.fill(targetOffset, Double.POSITIVE_INFINITY);
+        IndoorGraph startBuilding = from.isIndoors() ? catalog.interior(from.getBuildingId()) : null;
+        IndoorGraph endBuilding = to.isIndoors() ? catalog.interior(to.getBuildingId()) : null;
+        int startRoom = startBuilding == null ? -1 : indoorIndex(startBuilding, from);
+        int endRoom = endBuilding == null ? -1 : indoorIndex(endBuilding, to);
+        int[] startEntranceAt = new int[n];
+        int[] endEntranceAt = new int[n];
+
+        IndexedMinHeap heap = new IndexedMinHeap(n);
+        if (startBuilding == null) {
+            int s = campusIndex(from.getCampusNode());
+            dist[s] = 0;
+            heap.insertOrDecrease(s, 0);
+        } else {
+            double[] indoor = startBuilding.distancesFrom(startRoom, null);
+            for (int i = 0; i < startBuilding.entranceCount(); i++) {
+                int u = graph.indexOf(startBuilding.entranceCampusId(i));
+                double d = indoor[startBuilding.entranceNode(i)];
+                if (u >= 0 && d < dist[u]) {
+                    dist[u] = d;
+                    startEntranceAt[u] = i;
+                    heap.insertOrDecrease(u, d);
+                }
+            }
+        }
+        if (endBuilding == null) {
+            targetOffset[campusIndex(to.getCampusNode())] = 0;
+        } else {
+            // Interior edges are undirected, so distances from the end room are distances to it
+            double[] indoor = endBuilding.distancesFrom(endRoom, null);
+            for (int i = 0; i < endBuilding.entranceCount(); i++) {
+                int v = graph.indexOf(endBuilding.entranceCampusId(i));
+                double d = indoor[endBuilding.entranceNode(i)];
+                if (v >= 0 && d < targetOffset[v]) {
+                    targetOffset[v] = d;
+                    endEntranceAt[v] = i;
+                }
+            }
+        }
+
+        double best = Double.POSITIVE_INFINITY;
+        int bestExit = -1;
+        // Staying inside one building may beat going out at all
+        if (startBuilding != null && startBuilding == endBuilding) {
+            best = startBuilding.distancesFrom(startRoom, null)[endRoom];
+        }
+        // Seeds keep parent -1: the start node, or the entrances of the start building
+        int[] parent = new int[n];
+        int[] parentHop = new int[n];
+        Arrays.fill(parent, -1);
+        while (!heap.isEmpty() && heap.peekKey() < best) {
+            PathfindingEngine.checkCancelled();
+            int u = heap.pollMin();
+            stats.nodesSettled++;
+            if (dist[u] + targetOffset[u] < best) {
+                best = dist[u] + targetOffset[u];
+                bestExit = u;
+            }
+            for (int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+                if (blockedEdges != null && (blockedEdges[e >>> 6] & (1L << e)) != 0) {
+                    continue;
+                }
+                relax(heap, dist, parent, parentHop, u, graph.outTarget(e), graph.outWeight(e), -1, stats);
+            }
+            for (int h = cliqueStart[u]; h < cliqueStart[u + 1]; h++) {
+                relax(heap, dist, parent, parentHop, u, cliqueTarget[h], cliqueWeight[h], h, stats);
+            }
+        }
+        if (best == Double.POSITIVE_INFINITY) {
+            return new IndoorRoute(Collections.emptyList(), Collections.emptyList(), Collections.emptyList(),
+                    Collections.emptyList(), best);
+        }
+        if (bestExit < 0) {
+            return new IndoorRoute(startBuilding.path(startRoom, endRoom), Collections.emptyList(),
+                    Collections.emptyList(), Collections.emptyList(), best);
+        }
+
+        LinkedList<CampusNode> outdoor = new LinkedList<>();
+        LinkedList<String> passages = new LinkedList<>();
+        int v = bestExit;
+        outdoor.addFirst(graph.node(v));
+        while (parent[v] >= 0) {
+            passages.addFirst(parentHop[v] < 0 ? null : cliqueBuilding[parentHop[v]]);
+            v = parent[v];
+            outdoor.addFirst(graph.node(v));
+        }
+        List<IndoorNode> startInterior = startBuilding == null ? Collections.emptyList()
+                : startBuilding.path(startRoom, startBuilding.entranceNode(startEntranceAt[v]));
+        List<IndoorNode> endInterior = endBuilding == null ? Collections.emptyList()
+                : endBuilding.path(endBuilding.entranceNode(endEntranceAt[bestExit]), endRoom);
+        stats.pathLength = outdoor.size();
+        return new IndoorRoute(startInterior, outdoor, passages, endInterior, best);
+    }
+
+    private void relax(IndexedMinHeap heap, double[] dist, int[] parent, int[] parentHop, int u, int v, double w,
+            int hop, SearchStats stats) {
+        stats.edgesRelaxed++;
+        double nd = dist[u] + w;
+        if (nd < dist[v]) {
+            dist[v] = nd;
+            parent[v] = u;
+            parentHop[v] = hop;
+            heap.insertOrDecrease(v, nd);
+        }
+    }
+
+    private int campusIndex(CampusNode node) {
+        int index = graph.indexOf(node.getId());
+        if (index < 0) {
+            throw new IllegalArgumentException("Node " + node.getId() + " is not in the routing graph yet");
+        }
+        return index;
+    }
+
+    private static int indoorIndex(IndoorGraph building, IndoorLocation location) {
+        int index = building.indexOf(location.getIndoorNodeId());
+        if (index < 0) {
+            throw new IllegalArgumentException("No indoor node " + location.getIndoorNodeId() + " in "
+                    + building.getBuildingId());
+        }
+        return index;
+    }
+}
+
+// ===== SHUTTLE TIMETABLE =====
+
+/**
+ * Campus shuttle timetable: stops placed on campus nodes, and the elementary connections of
+ * every trip (one stop to the next), sorted by departure as the Connection Scan Algorithm needs
+ * them. Times are seconds after midnight and may pass 24:00 for late trips, as in GTFS.
+ */
+final class ShuttleTimetable {
+    private final String[] stopIds;
+    private final String[] stopNames;
+    private final int[] stopNodeIds;
+    private final String[] tripIds;
+    // Connection arrays, ordered by departure, then arrival
+    private final int[] departureStop;
+    private final int[] arrivalStop;
+    private final int[] departureTime;
+    private final int[] arrivalTime;
+    private final int[] trip;
+
+    private ShuttleTimetable(String[] stopIds, String[] stopNames, int[] stopNodeIds, String[] tripIds,
+            int[] departureStop, int[] arrivalStop, int[] departureTime, int[] arrivalTime, int[] trip) {
+        this.stopIds = stopIds;
+        this.stopNames = stopNames;
+        this.stopNodeIds = stopNodeIds;
+        this.tripIds = tripIds;
+        this.departureStop = departureStop;
+        this.arrivalStop = arrivalStop;
+        this.departureTime = departureTime;
+        this.arrivalTime = arrivalTime;
+        this.trip = trip;
+    }
+
+    public int stopCount() {
+        return stopIds.length;
+    }
+
+    public int tripCount() {
+        return tripIds.length;
+    }
+
+    public int connectionCount() {
+        return trip.length;
+    }
+
+    public String stopId(int stop) {
+        return stopIds[stop];
+    }
+
+    public String stopName(int stop) {
+        return stopNames[stop];
+    }
+
+    /** Campus node id the stop sits at. */
+    public int stopNodeId(int stop) {
+        return stopNodeIds[stop];
+    }
+
+    public String tripId(int trip) {
+        return tripIds[trip];
+    }
+
+    int departureStop(int connection) {
+        return departureStop[connection];
+    }
+
+    int arrivalStop(int connection) {
+        return arrivalStop[connection];
+    }
+
+    int departureTime(int connection) {
+        return departureTime[connection];
+    }
+
+    int arrivalTime(int connection) {
+        return arrivalTime[connection];
+    }
+
+    int trip(int connection) {
+        return trip[connection];
+    }
+
+    /** Index of the first connection departing at or after time. */
+    int firstDepartingAt(int time) {
+        int lo = 0;
+        int hi = departureTime.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (departureTime[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Parses H:MM or H:MM:SS, allowing hours past 23. */
+    static int parseTime(String text) {
+        String[] parts = text.trim().split(":");
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException("Not a time: " + text);
+        }
+        int seconds = Integer.parseInt(parts[0]) * 3600 + Integer.parseInt(parts[1]) * 60;
+        return parts.length == 3 ? seconds + Integer.parseInt(parts[2]) : seconds;
+    }
+
+    static String formatTime(int seconds) {
+        return String.format("%02d:%02d", seconds / 3600, seconds / 60 % 60);
+    }
+
+    /** Collects stops and per-trip stop times; each trip's consecutive stop times become connections. */
+    static final class Builder {
+        private final Map<String, Integer> stopIndex = new LinkedHashMap<>();
+        private final List<String> stopNames = new ArrayList<>();
+        private final List<Integer> stopNodeIds = new ArrayList<>();
+        private final Map<String, List<int[]>> stopTimesByTrip = new LinkedHashMap<>();
+
+        public Builder addStop(String stopId, int nodeId, String name) {
+            if (stopIndex.containsKey(stopId)) {
+                throw new IllegalArgumentException("Duplicate stop: " + stopId);
+            }
+            stopIndex.put(stopId, stopIndex.size());
+            stopNames.add(name);
+            stopNodeIds.add(nodeId);
+            return this;
+        }
+
+        /** arrival and departure are seconds after midnight. */
+        public Builder addStopTime(String tripId, int sequence, String stopId, int arrival, int departure) {
+            Integer stop = stopIndex.get(stopId);
+            if (stop == null) {
+                throw new IllegalArgumentException("Unknown stop " + stopId + " in trip " + tripId);
+            }
+            if (departure < arrival) {
+                throw new IllegalArgumentException("Trip " + tripId + " leaves stop " + stopId + " before arriving");
+            }
+            stopTimesByTrip.computeIfAbsent(tripId, t -> new ArrayList<>())
+                    .add(new int[] { sequence, stop, arrival, departure });
+            return this;
+        }
+
+        public ShuttleTimetable build() {
+            String[] tripIds = stopTimesByTrip.keySet().toArray(new String[0]);
+            List<int[]> connections = new ArrayList<>();
+            for (int t = 0; t < tripIds.length; t++) {
+                List<int[]> times = stopTimesByTrip.get(tripIds[t]);
+                times.sort(Comparator.comparingInt(time -> time[0]));
+                for (int i = 0; i + 1 < times.size(); i++) {
+                    int[] from = times.get(i);
+                    int[] to = times.get(i + 1);
+                    if (to[2] < from[3]) {
+                        throw new IllegalArgumentException("Trip " + tripIds[t] + " arrives before it departs");
+                    }
+                    connections.add(new int[] { from[1], to[1], from[3], to[2], t });
+                }
+            }
+            // Sorting by arrival second keeps a trip's zero-duration hops in travel order
+            connections.sort((a, b) -> a[2] != b[2] ? Integer.compare(a[2], b[2]) : Integer.compare(a[3], b[3]));
+            int m = connections.size();
+            int[] departureStop = new int[m];
+            int[] arrivalStop = new int[m];
+            int[] departureTime = new int[m];
+            int[] arrivalTime = new int[m];
+            int[] trip = new int[m];
+            for (int c = 0; c < m; c++) {
+                int[] connection = connections.get(c);
+                departureStop[c] = connection[0];
+                arrivalStop[c] = connection[1];
+                departureTime[c] = connection[2];
+                arrivalTime[c] = connection[3];
+                trip[c] = connection[4];
+            }
+            int[] nodeIds = stopNodeIds.stream().mapToInt(Integer::intValue).toArray();
+            return new ShuttleTimetable(stopIndex.keySet().toArray(new String[0]), stopNames.toArray(new String[0]),
+                    nodeIds, tripIds, departureStop, arrivalStop, departureTime, arrivalTime, trip);
+        }
+    }
+}
+
+/**
+ * Earliest-arrival and Pareto (arrival, number of rides) journeys combining walking with
+ * shuttle rides, by the Connection Scan Algorithm. Walking comes from the campus graph's
+ * estimated times: to stops from the origin, from stops to the destination, and transfers
+ * between stops up to MAX_TRANSFER_WALK_SECONDS apart, which are computed once per router.
+ *
+ * The scan keeps one arrival time per stop and ride count, earliest[k][stop] being the best
+ * arrival using at most k rides. A connection extends the fewest-ride label that reaches its
+ * departure stop in time, or the label its trip was already boarded with. A single pass over
+ * the connections leaving after the departure time thus yields every Pareto-optimal journey
+ * with up to MAX_RIDES rides, and the scan stops at the first connection leaving after the best
+ * one-ride (or walking) arrival, since nothing later can improve any label that matters.
+ */
+final class ConnectionScanRouter {
+    static final int MAX_RIDES = 4;
+    static final int MAX_TRANSFER_WALK_SECONDS = 600;
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    private final IndexedGraph graph;
+    private final ShuttleTimetable timetable;
+    private final long[] blockedEdges;
+    // Dense graph index of each stop, or -1 when its node is not in the graph
+    private final int[] stopNode;
+    // Stops at each dense node, as linked lists through nextStopAtNode
+    private final int[] firstStopAtNode;
+    private final int[] nextStopAtNode;
+    // Walking transfers between stops, CSR by origin stop
+    private final int[] transferOffsets;
+    private final int[] transferTargets;
+    private final int[] transferSeconds;
+
+    /** blockedEdges (forward edge ids, may be null) are avoided by every walking leg. */
+    ConnectionScanRouter(IndexedGraph graph, ShuttleTimetable timetable, long[] blockedEdges) {
+        this.graph = graph;
+        this.timetable = timetable;
+        this.blockedEdges = blockedEdges;
+        int stops = timetable.stopCount();
+        stopNode = new int[stops];
+        firstStopAtNode = new int[graph.size()];
+        nextStopAtNode = new int[stops];
+        Arrays.fill(firstStopAtNode, -1);
+        for (int stop = 0; stop < stops; stop++) {
+            stopNode[stop] = graph.indexOf(timetable.stopNodeId(stop));
+            if (stopNode[stop] >= 0) {
+                nextStopAtNode[stop] = firstStopAtNode[stopNode[stop]];
+                firstStopAtNode[stopNode[stop]] = stop;
+            }
+        }
+
+        transferOffsets = new int[stops + 1];
+        List<int[]> transfers = new ArrayList<>();
+        for (int stop = 0; stop < stops; stop++) {
+            if (stopNode[stop] >= 0) {
+                double[] seconds = walk(stopNode[stop], false, MAX_TRANSFER_WALK_SECONDS, null);
+                for (int other = 0; other < stops; other++) {
+                    if (other != stop && stopNode[other] >= 0
+                            && seconds[stopNode[other]] <= MAX_TRANSFER_WALK_SECONDS) {
+                        transfers.add(new int[] { other, (int) Math.ceil(seconds[stopNode[other]]) });
+                    }
+                }
+            }
+            transferOffsets[stop + 1] = transfers.size();
+        }
+        transferTargets = new int[transfers.size()];
+        transferSeconds = new int[transfers.size()];
+        for (int i = 0; i < transfers.size(); i++) {
+            transferTargets[i] = transfers.get(i)[0];
+            transferSeconds[i] = transfers.get(i)[1];
+        }
+    }
+
+    ShuttleTimetable getTimetable() {
+        return timetable;
+    }
+
+    /** Pareto-optimal journeys from s to t leaving at departure (seconds after midnight), fewest rides first. */
+    JourneyPlan query(int s, int t, int departure, SearchStats stats) {
+        int stops = timetable.stopCount();
+        // Walking that takes longer than walking all the way is never part of a useful journey, so
+        // the walk back from the target stops once it has settled everything no farther than s
+        double[] toTargetFull = walk(t, true, Double.POSITIVE_INFINITY, stats, -1, s, null);
+        double walkAll = toTargetFull[s];
+        double[] fromSource = walk(s, false, walkAll, stats);
+        int[] accessSeconds = new int[stops];
+        int[] egressSeconds = new int[stops];
+        for (int stop = 0; stop < stops; stop++) {
+            int node = stopNode[stop];
+            accessSeconds[stop] = node < 0 || fromSource[node] > walkAll ? UNREACHED
+                    : (int) Math.ceil(fromSource[node]);
+            egressSeconds[stop] = node < 0 || toTargetFull[node] > walkAll ? UNREACHED
+                    : (int) Math.ceil(toTargetFull[node]);
+        }
+
+        int labels = (MAX_RIDES + 1) * stops;
+        int[] earliest = new int[labels];
+        int[] enter = new int[labels];
+        int[] exit = new int[labels];
+        int[] rides = new int[labels];
+        Arrays.fill(earliest, UNREACHED);
+        Arrays.fill(exit, -1);
+        for (int stop = 0; stop < stops; stop++) {
+            if (accessSeconds[stop] != UNREACHED) {
+                for (int k = 0; k <= MAX_RIDES; k++) {
+                    earliest[k * stops + stop] = departure + accessSeconds[stop];
+                }
+            }
+        }
+        // Best arrival at the target with at most k rides, and the stop it is walked from (-1: walk only)
+        long[] targetArrival = new long[MAX_RIDES + 1];
+        int[] targetVia = new int[MAX_RIDES + 1];
+        Arrays.fill(targetArrival, walkAll == Double.POSITIVE_INFINITY ? Long.MAX_VALUE
+                : departure + (long) Math.ceil(walkAll));
+        Arrays.fill(targetVia, -1);
+
+        int[] tripRides = new int[timetable.tripCount()];
+        int[] tripEnter = new int[timetable.tripCount()];
+        Arrays.fill(tripRides, UNREACHED);
+        for (int c = timetable.firstDepartingAt(departure); c < timetable.connectionCount(); c++) {
+            if (timetable.departureTime(c) >= targetArrival[1]) {
                 break;
-            case EVENING_RUSH:
-                if (destType == LandmarkType.RESIDENTIAL || destType == LandmarkType.DINING) {
-                    return TrafficCondition.HEAVY;
+            }
+            stats.edgesRelaxed++;
+            int trip = timetable.trip(c);
+            int from = timetable.departureStop(c);
+            int k = tripRides[trip];
+            // Boarding here after j rides is worth it only if it beats how the trip is already ridden
+            int boardLimit = k == UNREACHED ? MAX_RIDES : k - 1;
+            for (int j = 0; j < boardLimit; j++) {
+                if (earliest[j * stops + from] <= timetable.departureTime(c)) {
+                    k = j + 1;
+                    tripRides[trip] = k;
+                    tripEnter[trip] = c;
+                    break;
                 }
-                if (destType == LandmarkType.RECREATION) {
-                    return TrafficCondition.MODERATE;
+            }
+            if (k == UNREACHED) {
+                continue;
+            }
+            int to = timetable.arrivalStop(c);
+            int arrival = timetable.arrivalTime(c);
+            if (arrive(to, arrival, k, tripEnter[trip], c, earliest, enter, exit, rides, stops, egressSeconds,
+                    targetArrival, targetVia, stats)) {
+                for (int i = transferOffsets[to]; i < transferOffsets[to + 1]; i++) {
+                    arrive(transferTargets[i], arrival + transferSeconds[i], k, tripEnter[trip], c, earliest, enter,
+                            exit, rides, stops, egressSeconds, targetArrival, targetVia, stats);
                 }
+            }
+        }
+
+        List<Journey> journeys = new ArrayList<>();
+        long previous = Long.MAX_VALUE;
+        for (int k = 0; k <= MAX_RIDES; k++) {
+            if (targetArrival[k] < previous) {
+                journeys.add(journey(s, t, departure, targetVia[k], k, earliest, enter, exit, rides, stops,
+                        (int) targetArrival[k]));
+                previous = targetArrival[k];
+            }
+        }
+        stats.pathLength = journeys.isEmpty() ? 0 : journeys.get(journeys.size() - 1).getLegs().size();
+        return new JourneyPlan(departure, journeys);
+    }
+
+    /** Records arriving at stop with k rides (and so with any more); false if that improves nothing. */
+    private boolean arrive(int stop, int time, int k, int enterConnection, int exitConnection, int[] earliest,
+            int[] enter, int[] exit, int[] rides, int stops, int[] egressSeconds, long[] targetArrival,
+            int[] targetVia, SearchStats stats) {
+        boolean improved = false;
+        for (int j = k; j <= MAX_RIDES; j++) {
+            int label = j * stops + stop;
+            if (time >= earliest[label]) {
                 break;
-            case NORMAL_HOURS:
-            default:
-                // Return original condition or light traffic
+            }
+            earliest[label] = time;
+            enter[label] = enterConnection;
+            exit[label] = exitConnection;
+            rides[label] = k;
+            improved = true;
+            stats.nodesSettled++;
+            if (egressSeconds[stop] != UNREACHED && (long) time + egressSeconds[stop] < targetArrival[j]) {
+                targetArrival[j] = (long) time + egressSeconds[stop];
+                targetVia[j] = stop;
+            }
+        }
+        return improved;
+    }
+
+    private Journey journey(int s, int t, int departure, int lastStop, int k, int[] earliest, int[] enter, int[] exit,
+            int[] rides, int stops, int arrivalAtTarget) {
+        LinkedList<JourneyLeg> legs = new LinkedList<>();
+        if (lastStop < 0) {
+            legs.add(walkLeg(s, t, departure, arrivalAtTarget));
+            return new Journey(legs, 0);
+        }
+        int label = k * stops + lastStop;
+        int rideCount = rides[label];
+        legs.addFirst(walkLeg(stopNode[lastStop], t, earliest[label], arrivalAtTarget));
+        int stop = lastStop;
+        while (exit[label] >= 0) {
+            int in = enter[label];
+            int out = exit[label];
+            int alighted = timetable.arrivalStop(out);
+            if (alighted != stop) {
+                legs.addFirst(walkLeg(stopNode[alighted], stopNode[stop], timetable.arrivalTime(out), earliest[label]));
+            }
+            legs.addFirst(new JourneyLeg(timetable.tripId(timetable.trip(out)),
+                    graph.node(stopNode[timetable.departureStop(in)]), graph.node(stopNode[alighted]),
+                    timetable.departureTime(in), timetable.arrivalTime(out), Collections.emptyList()));
+            stop = timetable.departureStop(in);
+            label = (rides[label] - 1) * stops + stop;
+        }
+        legs.addFirst(walkLeg(s, stopNode[stop], departure, earliest[label]));
+        legs.removeIf(leg -> !leg.isRide() && leg.getFrom() == leg.getTo());
+        return new Journey(legs, rideCount);
+    }
+
+    private JourneyLeg walkLeg(int from, int to, int departure, int arrival) {
+        List<CampusNode> path = new ArrayList<>();
+        if (from != to) {
+            int[] parent = new int[graph.size()];
+            walk(from, false, Double.POSITIVE_INFINITY, null, to, -1, parent);
+            LinkedList<Integer> nodes = new LinkedList<>();
+            for (int v = to; v != from; v = parent[v]) {
+                nodes.addFirst(v);
+            }
+            nodes.addFirst(from);
+            for (int v : nodes) {
+                path.add(graph.node(v));
+            }
+        }
+        return new JourneyLeg(null, graph.node(from), graph.node(to), departure, arrival, path);
+    }
+
+    private double[] walk(int origin, boolean reverse, double limitSeconds, SearchStats stats) {
+        return walk(origin, reverse, limitSeconds, stats, -1, -1, null);
+    }
+
+    /**
+     * Walking seconds from origin (or to it, if reverse) over estimated edge times, up to
+     * limitSeconds, lowered to bound's own seconds once bound is settled; stops early once
+     * target is settled, filling parent if given.
+     */
+    private double[] walk(int origin, boolean reverse, double limitSeconds, SearchStats stats, int target,
+            int bound, int[] parent) {
+        double[] seconds = new double[graph.size()];
+        Arrays.fill(seconds, Double.POSITIVE_INFINITY);
+        IndexedMinHeap heap = new IndexedMinHeap(graph.size());
+        seconds[origin] = 0;
+        heap.insertOrDecrease(origin, 0);
+        while (!heap.isEmpty()) {
+            PathfindingEngine.checkCancelled();
+            int u = heap.pollMin();
+            if (u == target || seconds[u] > limitSeconds) {
                 break;
+            }
+            if (u == bound) {
+                limitSeconds = Math.min(limitSeconds, seconds[u]);
+            }
+            if (stats != null) {
+                stats.nodesSettled++;
+            }
+            int end = reverse ? graph.inEnd(u) : graph.outEnd(u);
+            for (int e = reverse ? graph.inStart(u) : graph.outStart(u); e < end; e++) {
+                int forward = reverse ? graph.inForwardEdge(e) : e;
+                if (blockedEdges != null && (blockedEdges[forward >>> 6] & (1L << forward)) != 0) {
+                    continue;
+                }
+                int v = reverse ? graph.inSource(e) : graph.outTarget(e);
+                double nd = seconds[u] + graph.outTime(forward) * 60;
+                if (nd < seconds[v]) {
+                    seconds[v] = nd;
+                    if (parent != null) {
+                        parent[v] = u;
+                    }
+                    heap.insertOrDecrease(v, nd);
+                }
+            }
         }
+        return seconds;
+    }
+}
+
+/** One walk or shuttle ride of a journey. Times are seconds after midnight. */
+class JourneyLeg {
+    private final String tripId;
+    private final CampusNode from;
+    private final CampusNode to;
+    private final int departureSeconds;
+    private final int arrivalSeconds;
+    private final List<CampusNode> walkingPath;
+
+    /** tripId is null for a walk. */
+    public JourneyLeg(String tripId, CampusNode from, CampusNode to, int departureSeconds, int arrivalSeconds,
+            List<CampusNode> walkingPath) {
+        this.tripId = tripId;
+        this.from = from;
+        this.to = to;
+        this.departureSeconds = departureSeconds;
+        this.arrivalSeconds = arrivalSeconds;
+        this.walkingPath = walkingPath;
+    }
+
+    public boolean isRide() {
+        return tripId != null;
+    }
+
+    public String getTripId() {
+        return tripId;
+    }
+
+    public CampusNode getFrom() {
+        return from;
+    }
+
+    public CampusNode getTo() {
+        return to;
+    }
+
+    public int getDepartureSeconds() {
+        return departureSeconds;
+    }
+
+    public int getArrivalSeconds() {
+        return arrivalSeconds;
+    }
+
+    /** Nodes walked through, empty for rides. */
+    public List<CampusNode> getWalkingPath() {
+        return walkingPath;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s -> %s, %s-%s", isRide() ? "Shuttle " + tripId : "Walk", from.getName(),
+                to.getName(), ShuttleTimetable.formatTime(departureSeconds),
+                ShuttleTimetable.formatTime(arrivalSeconds));
+    }
+}
+
+class Journey {
+    private final List<JourneyLeg> legs;
+    private final int rides;
+
+    public Journey(List<JourneyLeg> legs, int rides) {
+        this.legs = legs;
+        this.rides = rides;
+    }
+
+    public List<JourneyLeg> getLegs() {
+        return legs;
+    }
 
-        // Default conditions based on landmark type
-        switch (destType) {
-            case DINING:
-            case SERVICES:
-                return TrafficCondition.MODERATE;
-            case ENTRANCE:
-            case ADMINISTRATIVE:
-                return TrafficCondition.HEAVY;
-            default:
-                return TrafficCondition.LIGHT;
-        }
+    public int getDepartureSeconds() {
+        return legs.get(0).getDepartureSeconds();
+    }
+
+    public int getArrivalSeconds() {
+        return legs.get(legs.size() - 1).getArrivalSeconds();
+    }
+
+    public int getRides() {
+        return rides;
+    }
+
+    /** Changes between shuttles; 0 for a single ride or a walk. */
+    public int getTransfers() {
+        return Math.max(0, rides - 1);
     }
 }
 
-// ===== PATHFINDING ENGINE =====
+/** Pareto-optimal journeys over arrival time and rides, fewest rides (and latest arrival) first. */
+class JourneyPlan {
+    private final int departureSeconds;
+    private final List<Journey> journeys;
 
-class PathfindingEngine {
-    private final CampusGraph graph;
-    private double[][] fwDistances;
-    private int[][] fwNext;
-    private long floydWarshallBuildTime;
+    public JourneyPlan(int departureSeconds, List<Journey> journeys) {
+        this.departureSeconds = departureSeconds;
+        this.journeys = journeys;
+    }
 
-    public PathfindingEngine(CampusGraph graph) {
-        this.graph = graph;
-        precomputeFloydWarshall();
+    public int getDepartureSeconds() {
+        return departureSeconds;
     }
 
-    public long getFloydWarshallBuildTime() {
-        return floydWarshallBuildTime;
+    public List<Journey> getJourneys() {
+        return journeys;
     }
 
-    private void precomputeFloydWarshall() {
-        long startTime = System.currentTimeMillis();
-        int n = graph.getNodeCount();
-        fwDistances = new double[n][n];
-        fwNext = new int[n][n];
+    /** The earliest-arriving journey, or null when the destination cannot be reached. */
+    public Journey getEarliestArrival() {
+        return journeys.isEmpty() ? null : journeys.get(journeys.size() - 1);
+    }
+}
 
-        // Initialize matrices
-        for (int i = 0; i < n; i++) {
-            Arrays.fill(fwDistances[i], Double.POSITIVE_INFINITY);
-            Arrays.fill(fwNext[i], -1);
-            fwDistances[i][i] = 0;
+// ===== OFF-HEAP GRAPH STORE =====
+
+/**
+ * A campus graph laid out in one ByteBuffer outside the Java heap, either allocated directly or
+ * memory-mapped from a file written by {@link #write}. Nodes follow the same Hilbert order as
+ * IndexedGraph and edges are stored as compressed rows, so the heap keeps a few fields however
+ * large the graph grows, and the garbage collector has nothing to trace.
+ *
+ * Edges keep their untrafficked length and loaded condition. Under a traffic profile the weight
+ * is the length times the multiplier of {@link CampusGraph#trafficConditionFor} for the edge's
+ * destination, so one store serves every profile. Dijkstra and A* read the buffer directly;
+ * CampusNode and CampusEdge objects are only made for the hops of a route being returned.
+ *
+ * Built from the view an IndexedGraph was built from, the store numbers nodes and edges as that
+ * graph does, so the engine's compiled constraints and closures apply to it unchanged; this is
+ * how it serves as the {@link RoutingBackend#OFF_HEAP} backend.
+ */
+final class OffHeapGraph {
+    private static final int MAGIC = 0x484f4755; // "UGOH" in little-endian order
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final double EARTH_RADIUS = 6371000; // meters
+    private static final LandmarkType[] LANDMARK_TYPES = LandmarkType.values();
+    private static final TrafficCondition[] CONDITIONS = TrafficCondition.values();
+
+    private final ByteBuffer data;
+    private final boolean mapped;
+    private final int nodeCount;
+    private final int edgeCount;
+    // Section offsets in bytes: doubles first so they stay 8-byte aligned, then ints, then bytes
+    private final int latitudesAt;
+    private final int longitudesAt;
+    private final int lengthsAt;
+    private final int idsAt;
+    private final int sortedIdsAt;
+    private final int sortedIndexesAt;
+    private final int nodeFeaturesAt;
+    private final int nameOffsetsAt;
+    private final int outOffsetsAt;
+    private final int targetsAt;
+    private final int edgeFeaturesAt;
+    private final int typesAt;
+    private final int conditionsAt;
+    private final int namesAt;
+    private final ThreadLocal<SearchWorkspace> workspaces = new ThreadLocal<>();
+
+    private OffHeapGraph(ByteBuffer data, boolean mapped) throws IOException {
+        this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+        this.mapped = mapped;
+        if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC || data.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not an off-heap campus graph");
+        }
+        nodeCount = data.getInt(8);
+        edgeCount = data.getInt(12);
+        int nameBytes = data.getInt(16);
+        long[] sections = layout(nodeCount, edgeCount, nameBytes);
+        if (sections[sections.length - 1] != data.capacity()) {
+            throw new IOException("Off-heap campus graph is truncated or padded");
         }
+        latitudesAt = (int) sections[0];
+        longitudesAt = (int) sections[1];
+        lengthsAt = (int) sections[2];
+        idsAt = (int) sections[3];
+        sortedIdsAt = (int) sections[4];
+        sortedIndexesAt = (int) sections[5];
+        nodeFeaturesAt = (int) sections[6];
+        nameOffsetsAt = (int) sections[7];
+        outOffsetsAt = (int) sections[8];
+        targetsAt = (int) sections[9];
+        edgeFeaturesAt = (int) sections[10];
+        typesAt = (int) sections[11];
+        conditionsAt = (int) sections[12];
+        namesAt = (int) sections[13];
+    }
 
-        // Populate with direct edges
-        for (CampusNode node : graph.getNodes()) {
-            int u = node.getId();
-            for (CampusEdge edge : graph.getEdges(u)) {
-                int v = edge.getDestination().getId();
-                fwDistances[u][v] = edge.getAdjustedDistance();
-                fwNext[u][v] = v;
-            }
+    /** Start of each section, followed by the total size. */
+    private static long[] layout(int n, int m, int nameBytes) {
+        long[] sizes = { 8L * n, 8L * n, 8L * m, 4L * n, 4L * n, 4L * n, 4L * n, 4L * (n + 1), 4L * (n + 1),
+                4L * m, 4L * m, n, m, nameBytes };
+        long[] starts = new long[sizes.length + 1];
+        starts[0] = HEADER_BYTES;
+        for (int i = 0; i < sizes.length; i++) {
+            starts[i + 1] = starts[i] + sizes[i];
         }
+        return starts;
+    }
 
-        // Floyd-Warshall algorithm
-        for (int k = 0; k < n; k++) {
-            for (int i = 0; i < n; i++) {
-                for (int j = 0; j < n; j++) {
-                    if (fwDistances[i][k] != Double.POSITIVE_INFINITY &&
-                            fwDistances[k][j] != Double.POSITIVE_INFINITY &&
-                            fwDistances[i][k] + fwDistances[k][j] < fwDistances[i][j]) {
+    /** Copies the open edges of the graph's current version, with their conditions as loaded. */
+    static OffHeapGraph of(CampusGraph graph) {
+        graph.pin();
+        try {
+            return of(graph.currentVersion());
+        } finally {
+            graph.unpin();
+        }
+    }
 
-                        fwDistances[i][j] = fwDistances[i][k] + fwDistances[k][j];
-                        fwNext[i][j] = fwNext[i][k];
-                    }
-                }
+    /** Copies the open edges of the view, with their conditions as loaded. */
+    static OffHeapGraph of(CampusGraphView view) {
+        Builder builder = new Builder();
+        for (CampusNode node : view.getNodes()) {
+            builder.addNode(node.getId(), node.getName(), node.getLatitude(), node.getLongitude(),
+                    node.getLandmarkType(), view.getNodeFeatures(node.getId()));
+        }
+        for (CampusNode node : view.getNodes()) {
+            for (CampusEdge edge : view.getEdges(node.getId())) {
+                builder.addEdge(node.getId(), edge.getDestination().getId(), edge.getDistance(),
+                        edge.getTrafficCondition(), edge.getAccessFeatures());
             }
         }
+        return builder.build();
+    }
 
-        floydWarshallBuildTime = System.currentTimeMillis() - startTime;
+    /** Maps a file written by {@link #write} read-only; pages are loaded by the OS as searches touch them. */
+    static OffHeapGraph map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Off-heap campus graph exceeds 2 GB: " + file);
+            }
+            return new OffHeapGraph(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), true);
+        }
     }
 
-    public RoutingResult findOptimalRoutes(CampusNode source, CampusNode destination, LandmarkType landmarkFilter) {
-        List<AlgorithmResult> algorithmResults = new ArrayList<>();
+    void write(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = data.duplicate();
+            bytes.clear();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
 
-        // Run Dijkstra's Algorithm
-        long startTime = System.nanoTime();
-        Route dijkstraRoute = runDijkstra(source, destination, null, null);
-        long dijkstraTime = (System.nanoTime() - startTime) / 1000;
-        algorithmResults.add(new AlgorithmResult("Dijkstra",
-                dijkstraRoute != null ? dijkstraRoute.getTotalDistance() : 0, dijkstraTime));
-
-        // Run A* Algorithm
-        startTime = System.nanoTime();
-        Route aStarRoute = runAStar(source, destination);
-        long aStarTime = (System.nanoTime() - startTime) / 1000;
-        algorithmResults.add(new AlgorithmResult("A*",
-                aStarRoute != null ? aStarRoute.getTotalDistance() : 0, aStarTime));
-
-        // Run Floyd-Warshall (lookup only)
-        startTime = System.nanoTime();
-        Route floydRoute = runFloydWarshall(source, destination);
-        long floydTime = (System.nanoTime() - startTime) / 1000;
-        algorithmResults.add(new AlgorithmResult("Floyd-Warshall",
-                floydRoute != null ? floydRoute.getTotalDistance() : 0, floydTime));
-
-        // Generate alternative routes
-        List<Route> alternativeRoutes = generateAlternativeRoutes(source, destination, landmarkFilter, dijkstraRoute);
-
-        // Sort routes by efficiency (distance + time factor)
-        alternativeRoutes.sort((r1, r2) -> {
-            double score1 = r1.getTotalDistance() + r1.getEstimatedTime() * 50; // Weight time higher
-            double score2 = r2.getTotalDistance() + r2.getEstimatedTime() * 50;
-            return Double.compare(score1, score2);
-        });
+    public int size() {
+        return nodeCount;
+    }
 
-        Route optimalRoute = alternativeRoutes.isEmpty() ? null : alternativeRoutes.get(0);
+    public int edgeCount() {
+        return edgeCount;
+    }
 
-        return new RoutingResult(optimalRoute, alternativeRoutes, algorithmResults);
+    public long byteSize() {
+        return data.capacity();
     }
 
-    private List<Route> generateAlternativeRoutes(CampusNode source, CampusNode destination,
-            LandmarkType landmarkFilter, Route optimalRoute) {
-        Set<Route> routes = new HashSet<>();
+    public boolean isMapped() {
+        return mapped;
+    }
 
-        // 1. Direct optimal route
-        if (optimalRoute != null && !optimalRoute.getPath().isEmpty()) {
-            routes.add(optimalRoute);
+    /** Whether nodes and edges are numbered as in indexed, so its edge bitsets apply here. */
+    public boolean hasSameTopology(IndexedGraph indexed) {
+        if (nodeCount != indexed.size() || edgeCount != indexed.edgeCount()) {
+            return false;
         }
-
-        // 2. Route via specific landmark type
-        if (landmarkFilter != null) {
-            Route landmarkRoute = findRouteThroughLandmark(source, destination, landmarkFilter);
-            if (landmarkRoute != null && !landmarkRoute.getPath().isEmpty()) {
-                routes.add(landmarkRoute);
+        for (int u = 0; u < nodeCount; u++) {
+            if (nodeId(u) != indexed.node(u).getId() || outEnd(u) != indexed.outEnd(u)) {
+                return false;
             }
         }
-
-        // 3. Low-traffic route (avoid heavy traffic)
-        Route lightTrafficRoute = runDijkstra(source, destination, EnumSet.of(TrafficCondition.HEAVY), null);
-        if (lightTrafficRoute != null && !lightTrafficRoute.getPath().isEmpty()) {
-            routes.add(lightTrafficRoute);
+        for (int e = 0; e < edgeCount; e++) {
+            if (outTarget(e) != indexed.outTarget(e)) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        // 4. Alternative route excluding key nodes from optimal path
-        if (optimalRoute != null && optimalRoute.getPath().size() > 2) {
-            Set<Integer> excludedNodes = new HashSet<>();
-            excludedNodes.add(optimalRoute.getPath().get(1).getId()); // Exclude second node
-            Route divergentRoute = runDijkstra(source, destination, null, excludedNodes);
-            if (divergentRoute != null && !divergentRoute.getPath().isEmpty()) {
-                routes.add(divergentRoute);
+    /** Returns the dense index of a node id, or -1 if the node is not in the store. */
+    public int indexOf(int nodeId) {
+        int low = 0;
+        int high = nodeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = data.getInt(sortedIdsAt + 4 * mid);
+            if (id < nodeId) {
+                low = mid + 1;
+            } else if (id > nodeId) {
+                high = mid - 1;
+            } else {
+                return data.getInt(sortedIndexesAt + 4 * mid);
             }
         }
+        return -1;
+    }
 
-        // 5. Scenic route via recreational areas
-        Route scenicRoute = findRouteThroughLandmark(source, destination, LandmarkType.RECREATION);
-        if (scenicRoute != null && !scenicRoute.getPath().isEmpty()) {
-            routes.add(scenicRoute);
-        }
+    public int nodeId(int index) {
+        return data.getInt(idsAt + 4 * index);
+    }
 
-        return new ArrayList<>(routes);
+    public double latitude(int index) {
+        return data.getDouble(latitudesAt + 8 * index);
     }
 
-    private Route runDijkstra(CampusNode source, CampusNode destination,
-            EnumSet<TrafficCondition> excludedConditions, Set<Integer> excludedNodes) {
-        Map<Integer, Double> distances = new HashMap<>();
-        Map<Integer, CampusNode> previous = new HashMap<>();
-        PriorityQueue<DijkstraNode> pq = new PriorityQueue<>();
+    public double longitude(int index) {
+        return data.getDouble(longitudesAt + 8 * index);
+    }
 
-        // Initialize distances
-        for (CampusNode node : graph.getNodes()) {
-            distances.put(node.getId(), Double.POSITIVE_INFINITY);
-        }
-        distances.put(source.getId(), 0.0);
-        pq.add(new DijkstraNode(source, 0.0));
+    public LandmarkType landmarkType(int index) {
+        return LANDMARK_TYPES[data.get(typesAt + index)];
+    }
 
-        while (!pq.isEmpty()) {
-            DijkstraNode current = pq.poll();
+    /** AccessFeature bitmask of a node. */
+    public int nodeFeatures(int index) {
+        return data.getInt(nodeFeaturesAt + 4 * index);
+    }
 
-            if (current.distance > distances.get(current.node.getId())) {
-                continue;
+    public String name(int index) {
+        int start = data.getInt(nameOffsetsAt + 4 * index);
+        byte[] bytes = new byte[data.getInt(nameOffsetsAt + 4 * (index + 1)) - start];
+        ByteBuffer view = data.duplicate();
+        view.position(namesAt + start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** A new CampusNode for the node at index; the store keeps no node objects itself. */
+    public CampusNode node(int index) {
+        return new CampusNode(nodeId(index), name(index), latitude(index), longitude(index), landmarkType(index));
+    }
+
+    public int outStart(int u) {
+        return data.getInt(outOffsetsAt + 4 * u);
+    }
+
+    public int outEnd(int u) {
+        return data.getInt(outOffsetsAt + 4 * (u + 1));
+    }
+
+    public int outTarget(int edge) {
+        return data.getInt(targetsAt + 4 * edge);
+    }
+
+    public double outLength(int edge) {
+        return data.getDouble(lengthsAt + 8 * edge);
+    }
+
+    /** AccessFeature bitmask of an edge. */
+    public int outFeatures(int edge) {
+        return data.getInt(edgeFeaturesAt + 4 * edge);
+    }
+
+    /** The edge's condition under a profile, or as loaded when timeOfDay is null. */
+    public TrafficCondition outCondition(int edge, TimeOfDay timeOfDay) {
+        return timeOfDay == null ? CONDITIONS[data.get(conditionsAt + edge)]
+                : CampusGraph.trafficConditionFor(landmarkType(outTarget(edge)), timeOfDay);
+    }
+
+    /**
+     * Distance multipliers for a profile: by loaded condition when timeOfDay is null, otherwise by
+     * destination landmark type.
+     */
+    private static double[] multipliers(TimeOfDay timeOfDay) {
+        if (timeOfDay == null) {
+            double[] byCondition = new double[CONDITIONS.length];
+            for (TrafficCondition condition : CONDITIONS) {
+                byCondition[condition.ordinal()] = condition.getDistanceMultiplier();
             }
-            if (current.node.getId() == destination.getId()) {
+            return byCondition;
+        }
+        double[] byType = new double[LANDMARK_TYPES.length];
+        for (LandmarkType type : LANDMARK_TYPES) {
+            byType[type.ordinal()] = CampusGraph.trafficConditionFor(type, timeOfDay).getDistanceMultiplier();
+        }
+        return byType;
+    }
+
+    /** Shortest traffic-adjusted path between two node ids, or {@link IndexedPath#NONE}. */
+    public IndexedPath dijkstra(int sourceId, int destinationId, TimeOfDay timeOfDay, SearchStats stats) {
+        return dijkstra(sourceId, destinationId, timeOfDay, null, stats);
+    }
+
+    /** As {@link #dijkstra(int, int, TimeOfDay, SearchStats)}, avoiding blockedEdges (may be null). */
+    public IndexedPath dijkstra(int sourceId, int destinationId, TimeOfDay timeOfDay, long[] blockedEdges,
+            SearchStats stats) {
+        return search(sourceId, destinationId, timeOfDay, false, blockedEdges, stats);
+    }
+
+    /** As {@link #dijkstra}, guided by straight-line distance to the destination. */
+    public IndexedPath aStar(int sourceId, int destinationId, TimeOfDay timeOfDay, SearchStats stats) {
+        return aStar(sourceId, destinationId, timeOfDay, null, stats);
+    }
+
+    public IndexedPath aStar(int sourceId, int destinationId, TimeOfDay timeOfDay, long[] blockedEdges,
+            SearchStats stats) {
+        return search(sourceId, destinationId, timeOfDay, true, blockedEdges, stats);
+    }
+
+    /** blockedEdges is an edge bitset, e.g. one compiled against an IndexedGraph of the same topology. */
+    private IndexedPath search(int sourceId, int destinationId, TimeOfDay timeOfDay, boolean guided,
+            long[] blockedEdges, SearchStats stats) {
+        int s = indexOf(sourceId);
+        int t = indexOf(destinationId);
+        if (s < 0 || t < 0) {
+            return IndexedPath.NONE;
+        }
+        double[] multiplier = multipliers(timeOfDay);
+        boolean byDestination = timeOfDay != null;
+
+        SearchWorkspace workspace = workspace();
+        IndexedMinHeap heap = workspace.heap;
+        workspace.improve(s, 0.0, -1);
+        heap.insertOrDecrease(s, guided ? heuristic(s, t) : 0.0);
+        stats.heapPushes++;
+
+        while (!heap.isEmpty()) {
+            PathfindingEngine.checkCancelled();
+            int u = heap.pollMin();
+            stats.heapPops++;
+            stats.nodesSettled++;
+            if (u == t) {
                 break;
             }
 
-            for (CampusEdge edge : graph.getEdges(current.node.getId())) {
-                CampusNode neighbor = edge.getDestination();
-
-                // Skip excluded conditions
-                if (excludedConditions != null && excludedConditions.contains(edge.getTrafficCondition())) {
+            double du = workspace.dist[u];
+            int end = outEnd(u);
+            for (int e = outStart(u); e < end; e++) {
+                stats.edgesRelaxed++;
+                if (blockedEdges != null && (blockedEdges[e >>> 6] & (1L << e)) != 0) {
                     continue;
                 }
-
-                // Skip excluded nodes
-                if (excludedNodes != null && excludedNodes.contains(neighbor.getId())) {
-                    continue;
+                int v = outTarget(e);
+                int key = byDestination ? data.get(typesAt + v) : data.get(conditionsAt + e);
+                double newDist = du + outLength(e) * multiplier[key];
+                if (newDist < workspace.dist[v]) {
+                    workspace.improve(v, newDist, u);
+                    heap.insertOrDecrease(v, guided ? newDist + heuristic(v, t) : newDist);
+                    stats.heapPushes++;
                 }
+            }
+        }
+
+        if (workspace.dist[t] == Double.POSITIVE_INFINITY) {
+            return IndexedPath.NONE;
+        }
+        int hops = 0;
+        for (int v = t; v >= 0; v = workspace.parent[v]) {
+            hops++;
+        }
+        int[] path = new int[hops];
+        for (int v = t; v >= 0; v = workspace.parent[v]) {
+            path[--hops] = v;
+        }
+        return new IndexedPath(path, workspace.dist[t]);
+    }
+
+    private double heuristic(int a, int b) {
+        double lat1 = Math.toRadians(latitude(a));
+        double lat2 = Math.toRadians(latitude(b));
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians(longitude(b) - longitude(a));
+        double val = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return EARTH_RADIUS * 2 * Math.atan2(Math.sqrt(val), Math.sqrt(1 - val));
+    }
 
-                double newDist = distances.get(current.node.getId()) + edge.getAdjustedDistance();
+    /** Per-thread search arrays; these are the only per-node data kept on the heap. */
+    private SearchWorkspace workspace() {
+        SearchWorkspace workspace = workspaces.get();
+        if (workspace == null) {
+            workspace = new SearchWorkspace(nodeCount);
+            workspaces.set(workspace);
+        }
+        workspace.reset();
+        return workspace;
+    }
 
-                if (newDist < distances.get(neighbor.getId())) {
-                    distances.put(neighbor.getId(), newDist);
-                    previous.put(neighbor.getId(), current.node);
-                    pq.add(new DijkstraNode(neighbor, newDist));
+    /** Materialises a path as a Route, making node and edge objects for its hops only. */
+    public Route toRoute(IndexedPath indexedPath, TimeOfDay timeOfDay) {
+        if (indexedPath.isEmpty()) {
+            return new Route();
+        }
+        int[] indices = indexedPath.getNodes();
+        double[] multiplier = multipliers(timeOfDay);
+        List<CampusNode> path = new ArrayList<>(indices.length);
+        List<CampusEdge> hops = new ArrayList<>(indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            path.add(node(indices[i]));
+        }
+        for (int i = 0; i + 1 < indices.length; i++) {
+            // Parallel edges are possible; the search used the lightest one
+            int best = -1;
+            double bestWeight = Double.POSITIVE_INFINITY;
+            for (int e = outStart(indices[i]); e < outEnd(indices[i]); e++) {
+                if (outTarget(e) == indices[i + 1]) {
+                    double weight = outLength(e) * multiplier[timeOfDay != null
+                            ? data.get(typesAt + indices[i + 1]) : data.get(conditionsAt + e)];
+                    if (weight < bestWeight) {
+                        bestWeight = weight;
+                        best = e;
+                    }
                 }
             }
+            CampusEdge hop = null;
+            if (best >= 0) {
+                hop = new CampusEdge(path.get(i), path.get(i + 1), outLength(best), outCondition(best, timeOfDay));
+                hop.setAccessFeatures(AccessFeature.fromMask(outFeatures(best)));
+            }
+            hops.add(hop);
         }
-
-        return reconstructPath(source, destination, previous, distances);
+        return new Route(path, hops, indexedPath.getDistance(), timeOfDay);
     }
 
-    private Route runAStar(CampusNode source, CampusNode destination) {
-        Map<Integer, Double> gScore = new HashMap<>();
-        Map<Integer, CampusNode> previous = new HashMap<>();
-        PriorityQueue<AStarNode> openSet = new PriorityQueue<>();
+    /**
+     * Collects nodes and directed edges in primitive arrays, then lays them out in a direct buffer.
+     * Edges naming unknown nodes are dropped, as CampusGraph.addEdge does.
+     */
+    static final class Builder {
+        private int nodeCount;
+        private int[] ids = new int[64];
+        private double[] latitudes = new double[64];
+        private double[] longitudes = new double[64];
+        private byte[] types = new byte[64];
+        private int[] nodeFeatures = new int[64];
+        private int[] nameEnds = new int[64];
+        private byte[] names = new byte[1024];
+
+        private int edgeCount;
+        private int[] sourceIds = new int[128];
+        private int[] targetIds = new int[128];
+        private double[] lengths = new double[128];
+        private byte[] conditions = new byte[128];
+        private int[] edgeFeatures = new int[128];
+
+        Builder addNode(int id, String name, double latitude, double longitude, LandmarkType type,
+                Set<AccessFeature> features) {
+            if (nodeCount == ids.length) {
+                int capacity = nodeCount * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                types = Arrays.copyOf(types, capacity);
+                nodeFeatures = Arrays.copyOf(nodeFeatures, capacity);
+                nameEnds = Arrays.copyOf(nameEnds, capacity);
+            }
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            int nameStart = nodeCount == 0 ? 0 : nameEnds[nodeCount - 1];
+            if (nameStart + encoded.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, nameStart + encoded.length));
+            }
+            System.arraycopy(encoded, 0, names, nameStart, encoded.length);
+            ids[nodeCount] = id;
+            latitudes[nodeCount] = latitude;
+            longitudes[nodeCount] = longitude;
+            types[nodeCount] = (byte) type.ordinal();
+            nodeFeatures[nodeCount] = AccessFeature.maskOf(features);
+            nameEnds[nodeCount] = nameStart + encoded.length;
+            nodeCount++;
+            return this;
+        }
 
-        for (CampusNode node : graph.getNodes()) {
-            gScore.put(node.getId(), Double.POSITIVE_INFINITY);
+        /** Adds one direction; call twice for a two-way path. */
+        Builder addEdge(int sourceId, int destId, double length, TrafficCondition condition,
+                Set<AccessFeature> features) {
+            if (edgeCount == sourceIds.length) {
+                int capacity = edgeCount * 2;
+                sourceIds = Arrays.copyOf(sourceIds, capacity);
+                targetIds = Arrays.copyOf(targetIds, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                conditions = Arrays.copyOf(conditions, capacity);
+                edgeFeatures = Arrays.copyOf(edgeFeatures, capacity);
+            }
+            sourceIds[edgeCount] = sourceId;
+            targetIds[edgeCount] = destId;
+            lengths[edgeCount] = length;
+            conditions[edgeCount] = (byte) condition.ordinal();
+            edgeFeatures[edgeCount] = AccessFeature.maskOf(features);
+            edgeCount++;
+            return this;
         }
-        gScore.put(source.getId(), 0.0);
-        openSet.add(new AStarNode(source, heuristic(source, destination)));
 
-        while (!openSet.isEmpty()) {
-            AStarNode current = openSet.poll();
+        OffHeapGraph build() {
+            int n = nodeCount;
+            // Ids in ascending order, remembering where each was added
+            long[] byId = new long[n];
+            for (int i = 0; i < n; i++) {
+                byId[i] = ((long) ids[i] << 32) | i;
+            }
+            Arrays.sort(byId);
+            int[] sortedIds = new int[n];
+            int[] rankOf = new int[n];
+            for (int r = 0; r < n; r++) {
+                sortedIds[r] = (int) (byId[r] >> 32);
+                rankOf[(int) byId[r]] = r;
+                if (r > 0 && sortedIds[r] == sortedIds[r - 1]) {
+                    throw new IllegalArgumentException("Duplicate node id " + sortedIds[r]);
+                }
+            }
 
-            if (current.node.getId() == destination.getId()) {
-                return reconstructPath(source, destination, previous, gScore);
+            // Hilbert order as in IndexedGraph, ties by id
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                minX = Math.min(minX, longitudes[i]);
+                maxX = Math.max(maxX, longitudes[i]);
+                minY = Math.min(minY, latitudes[i]);
+                maxY = Math.max(maxY, latitudes[i]);
+            }
+            double span = Math.max(maxX - minX, maxY - minY);
+            double scale = n > 1 && span > 0 ? ((1 << IndexedGraph.HILBERT_ORDER) - 1) / span : 0;
+            long[] byCurve = new long[n];
+            for (int i = 0; i < n; i++) {
+                long key = IndexedGraph.hilbertIndex((int) ((longitudes[i] - minX) * scale),
+                        (int) ((latitudes[i] - minY) * scale));
+                byCurve[i] = (key << 31) | rankOf[i];
+            }
+            Arrays.sort(byCurve);
+            int[] order = new int[n];
+            int[] indexOfAdded = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = (int) (byId[(int) (byCurve[i] & Integer.MAX_VALUE)] & 0xffffffffL);
+                indexOfAdded[order[i]] = i;
             }
 
-            for (CampusEdge edge : graph.getEdges(current.node.getId())) {
-                CampusNode neighbor = edge.getDestination();
-                double tentativeGScore = gScore.get(current.node.getId()) + edge.getAdjustedDistance();
+            // Compressed rows; edges with an unknown endpoint are dropped
+            int[] source = new int[edgeCount];
+            int[] target = new int[edgeCount];
+            int[] outOffsets = new int[n + 1];
+            int m = 0;
+            for (int e = 0; e < edgeCount; e++) {
+                int u = Arrays.binarySearch(sortedIds, sourceIds[e]);
+                int v = Arrays.binarySearch(sortedIds, targetIds[e]);
+                source[e] = u < 0 ? -1 : indexOfAdded[(int) byId[u]];
+                target[e] = v < 0 ? -1 : indexOfAdded[(int) byId[v]];
+                if (u >= 0 && v >= 0) {
+                    outOffsets[source[e] + 1]++;
+                    m++;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                outOffsets[i + 1] += outOffsets[i];
+            }
+            int[] slotOf = new int[m];
+            int[] cursor = Arrays.copyOf(outOffsets, n);
+            for (int e = 0; e < edgeCount; e++) {
+                if (source[e] >= 0 && target[e] >= 0) {
+                    // Insertion keeps each row sorted by target, stably, as IndexedGraph orders it
+                    int slot = cursor[source[e]]++;
+                    while (slot > outOffsets[source[e]] && target[slotOf[slot - 1]] > target[e]) {
+                        slotOf[slot] = slotOf[slot - 1];
+                        slot--;
+                    }
+                    slotOf[slot] = e;
+                }
+            }
 
-                if (tentativeGScore < gScore.getOrDefault(neighbor.getId(), Double.POSITIVE_INFINITY)) {
-                    previous.put(neighbor.getId(), current.node);
-                    gScore.put(neighbor.getId(), tentativeGScore);
-                    double fScore = tentativeGScore + heuristic(neighbor, destination);
-                    openSet.add(new AStarNode(neighbor, fScore));
+            int nameBytes = n == 0 ? 0 : nameEnds[n - 1];
+            long[] sections = layout(n, m, nameBytes);
+            long size = sections[sections.length - 1];
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Graph needs " + size + " bytes; one buffer holds at most 2 GB");
+            }
+            ByteBuffer data = ByteBuffer.allocateDirect((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            data.putInt(0, MAGIC).putInt(4, FORMAT_VERSION).putInt(8, n).putInt(12, m).putInt(16, nameBytes);
+            int nameCursor = 0;
+            data.putInt((int) sections[7], 0);
+            for (int i = 0; i < n; i++) {
+                int added = order[i];
+                data.putDouble((int) sections[0] + 8 * i, latitudes[added]);
+                data.putDouble((int) sections[1] + 8 * i, longitudes[added]);
+                data.putInt((int) sections[3] + 4 * i, ids[added]);
+                data.putInt((int) sections[6] + 4 * i, nodeFeatures[added]);
+                data.put((int) sections[11] + i, types[added]);
+                int nameStart = added == 0 ? 0 : nameEnds[added - 1];
+                for (int b = nameStart; b < nameEnds[added]; b++) {
+                    data.put((int) sections[13] + nameCursor++, names[b]);
                 }
+                data.putInt((int) sections[7] + 4 * (i + 1), nameCursor);
+                data.putInt((int) sections[8] + 4 * i, outOffsets[i]);
+            }
+            data.putInt((int) sections[8] + 4 * n, m);
+            for (int r = 0; r < n; r++) {
+                data.putInt((int) sections[4] + 4 * r, sortedIds[r]);
+                data.putInt((int) sections[5] + 4 * r, indexOfAdded[(int) byId[r]]);
+            }
+            for (int slot = 0; slot < m; slot++) {
+                int e = slotOf[slot];
+                data.putDouble((int) sections[2] + 8 * slot, lengths[e]);
+                data.putInt((int) sections[9] + 4 * slot, target[e]);
+                data.putInt((int) sections[10] + 4 * slot, edgeFeatures[e]);
+                data.put((int) sections[12] + slot, conditions[e]);
+            }
+            try {
+                return new OffHeapGraph(data, false);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
             }
         }
-        return new Route(); // Path not found
     }
+}
 
-    private Route runFloydWarshall(CampusNode source, CampusNode destination) {
-        int sourceId = source.getId();
-        int destId = destination.getId();
+// ===== ALGORITHM SUPPORT CLASSES =====
 
-        if (sourceId >= fwDistances.length || destId >= fwDistances.length ||
-                fwDistances[sourceId][destId] == Double.POSITIVE_INFINITY) {
-            return new Route();
-        }
+/** Receives routes from a progressive query as they become available. */
+interface RoutingListener {
+    RoutingListener NONE = new RoutingListener() {
+    };
 
-        List<CampusNode> path = new ArrayList<>();
-        int currentId = sourceId;
-        while (currentId != destId) {
-            path.add(graph.getNode(currentId));
-            currentId = fwNext[currentId][destId];
-            if (currentId == -1)
-                return new Route();
-        }
-        path.add(destination);
+    default void onOptimalRoute(Route route) {
+    }
 
-        return new Route(path, fwDistances[sourceId][destId], graph);
+    default void onAlternativeRoute(Route route) {
     }
+}
 
-    private Route findRouteThroughLandmark(CampusNode source, CampusNode destination, LandmarkType landmarkType) {
-        List<CampusNode> potentialLandmarks = graph.getNodes().stream()
-                .filter(node -> node.getLandmarkType() == landmarkType &&
-                        !node.equals(source) && !node.equals(destination))
-                .collect(Collectors.toList());
+/** Thrown from inside a search when the querying thread has been interrupted. */
+class QueryCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
 
-        if (potentialLandmarks.isEmpty()) {
-            return new Route();
-        }
+    public QueryCancelledException() {
+        super("Route query cancelled");
+    }
+}
 
-        Route bestRoute = null;
-        double minDistance = Double.POSITIVE_INFINITY;
+/**
+ * Thrown inside a search when its query's {@link QueryBudget} is spent. Route queries catch it and
+ * degrade; tour planning, which has nothing cheaper to fall back on, passes it to the caller.
+ */
+class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
 
-        for (CampusNode landmark : potentialLandmarks) {
-            Route part1 = runDijkstra(source, landmark, null, null);
-            Route part2 = runDijkstra(landmark, destination, null, null);
+    public BudgetExceededException() {
+        super("Route query budget exceeded", null, false, false);
+    }
+}
 
-            if (part1 != null && !part1.getPath().isEmpty() &&
-                    part2 != null && !part2.getPath().isEmpty()) {
-                double totalDistance = part1.getTotalDistance() + part2.getTotalDistance();
-                if (totalDistance < minDistance) {
-                    minDistance = totalDistance;
-                    bestRoute = combineRoutes(part1, part2);
-                }
-            }
+/** A route query shed by {@link AdmissionControl} before it ran. */
+class QueryRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public QueryRejectedException(String message) {
+        super(message);
+    }
+}
+
+/**
+ * Reusable distance/parent arrays for one search. Only entries written since the last reset
+ * are cleared, so back-to-back searches cost O(touched) instead of O(n) to set up.
+ */
+class SearchWorkspace {
+    final double[] dist;
+    final int[] parent;
+    final IndexedMinHeap heap;
+    private final int[] touched;
+    private int touchedCount;
+    // Per-round CLOSED and INCONS membership for anytime A*, allocated on first use
+    int[] closedMark;
+    int[] inconsistentMark;
+    private int mark;
+
+    SearchWorkspace(int size) {
+        dist = new double[size];
+        parent = new int[size];
+        heap = new IndexedMinHeap(size);
+        touched = new int[size];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(parent, -1);
+    }
+
+    int size() {
+        return dist.length;
+    }
+
+    void improve(int node, double distance, int from) {
+        if (dist[node] == Double.POSITIVE_INFINITY) {
+            touched[touchedCount++] = node;
         }
+        dist[node] = distance;
+        parent[node] = from;
+    }
 
-        return bestRoute == null ? new Route() : bestRoute;
+    /** Starts a new round of anytime A*: every node reads as neither closed nor inconsistent. */
+    int nextMark() {
+        if (closedMark == null) {
+            closedMark = new int[dist.length];
+            inconsistentMark = new int[dist.length];
+        }
+        if (++mark == Integer.MAX_VALUE) {
+            Arrays.fill(closedMark, 0);
+            Arrays.fill(inconsistentMark, 0);
+            mark = 1;
+        }
+        return mark;
     }
 
-    private double heuristic(CampusNode a, CampusNode b) {
-        // Haversine distance for geographic coordinates
-        final int EARTH_RADIUS = 6371000; // meters
-        double lat1 = Math.toRadians(a.getLatitude());
-        double lon1 = Math.toRadians(a.getLongitude());
-        double lat2 = Math.toRadians(b.getLatitude());
-        double lon2 = Math.toRadians(b.getLongitude());
+    void reset() {
+        for (int i = 0; i < touchedCount; i++) {
+            dist[touched[i]] = Double.POSITIVE_INFINITY;
+            parent[touched[i]] = -1;
+        }
+        touchedCount = 0;
+        heap.clear();
+    }
+}
 
-        double dLat = lat2 - lat1;
-        double dLon = lon2 - lon1;
+/**
+ * Binary min-heap over dense node ids with decrease-key, for the array-based search kernels.
+ * Positions are tracked per id, so a node is never in the heap twice.
+ */
+class IndexedMinHeap {
+    private final int[] heap;
+    private final int[] position;
+    private final double[] key;
+    private int size;
+
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        position = new int[capacity];
+        key = new double[capacity];
+        Arrays.fill(position, -1);
+    }
 
-        double val = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
-                Math.cos(lat1) * Math.cos(lat2) *
-                        Math.sin(dLon / 2) * Math.sin(dLon / 2);
+    public boolean isEmpty() {
+        return size == 0;
+    }
 
-        double c = 2 * Math.atan2(Math.sqrt(val), Math.sqrt(1 - val));
+    public int size() {
+        return size;
+    }
 
-        return EARTH_RADIUS * c;
+    public boolean contains(int id) {
+        return position[id] >= 0;
     }
 
-    private Route reconstructPath(CampusNode source, CampusNode destination,
-            Map<Integer, CampusNode> previous, Map<Integer, Double> distances) {
-        LinkedList<CampusNode> path = new LinkedList<>();
-        CampusNode current = destination;
+    public double peekKey() {
+        return key[heap[0]];
+    }
 
-        while (current != null) {
-            path.addFirst(current);
-            current = previous.get(current.getId());
+    public int peek() {
+        return heap[0];
+    }
+
+    /** Inserts id or lowers its key; returns false if it is already queued with a key at most newKey. */
+    public boolean insertOrDecrease(int id, double newKey) {
+        int pos = position[id];
+        if (pos < 0) {
+            pos = size++;
+            heap[pos] = id;
+            position[id] = pos;
+        } else if (newKey >= key[id]) {
+            return false;
+        }
+        key[id] = newKey;
+        siftUp(pos);
+        return true;
+    }
+
+    public int pollMin() {
+        int min = heap[0];
+        position[min] = -1;
+        size--;
+        if (size > 0) {
+            int last = heap[size];
+            heap[0] = last;
+            position[last] = 0;
+            siftDown(0);
         }
+        return min;
+    }
 
-        if (path.isEmpty() || !path.getFirst().equals(source)) {
-            return new Route();
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            position[heap[i]] = -1;
         }
+        size = 0;
+    }
 
-        return new Route(path, distances.get(destination.getId()), graph);
+    private void siftUp(int pos) {
+        int id = heap[pos];
+        double k = key[id];
+        while (pos > 0) {
+            int parentPos = (pos - 1) >>> 1;
+            int parent = heap[parentPos];
+            if (key[parent] <= k) {
+                break;
+            }
+            heap[pos] = parent;
+            position[parent] = pos;
+            pos = parentPos;
+        }
+        heap[pos] = id;
+        position[id] = pos;
     }
 
-    private Route combineRoutes(Route route1, Route route2) {
-        List<CampusNode> combinedPath = new ArrayList<>(route1.getPath());
-        combinedPath.remove(combinedPath.size() - 1); // Remove duplicate landmark
-        combinedPath.addAll(route2.getPath());
+    private void siftDown(int pos) {
+        int id = heap[pos];
+        double k = key[id];
+        int half = size >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < size && key[heap[right]] < key[heap[child]]) {
+                child = right;
+            }
+            if (k <= key[heap[child]]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            position[heap[pos]] = pos;
+            pos = child;
+        }
+        heap[pos] = id;
+        position[id] = pos;
+    }
+}
 
-        double totalAdjustedDistance = route1.getTotalDistance() + route2.getTotalDistance();
+/**
+ * Binary heap of label ids for the label-setting searches; unlike IndexedMinHeap a node may be
+ * queued many times.
+ */
+class LabelQueue {
+    private int[] ids = new int[64];
+    private double[] keys = new double[64];
+    private int size;
 
-        return new Route(combinedPath, totalAdjustedDistance, graph);
+    boolean isEmpty() {
+        return size == 0;
     }
 
-    public String getBearing(CampusNode node1, CampusNode node2) {
-        double lat1 = Math.toRadians(node1.getLatitude());
-        double lon1 = Math.toRadians(node1.getLongitude());
-        double lat2 = Math.toRadians(node2.getLatitude());
-        double lon2 = Math.toRadians(node2.getLongitude());
+    double peekKey() {
+        return keys[0];
+    }
 
-        double dLon = lon2 - lon1;
-        double y = Math.sin(dLon) * Math.cos(lat2);
-        double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
-        double bearing = Math.toDegrees(Math.atan2(y, x));
-        bearing = (bearing + 360) % 360;
+    void push(int id, double key) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int pos = size++;
+        while (pos > 0) {
+            int parentPos = (pos - 1) >>> 1;
+            if (keys[parentPos] <= key) {
+                break;
+            }
+            ids[pos] = ids[parentPos];
+            keys[pos] = keys[parentPos];
+            pos = parentPos;
+        }
+        ids[pos] = id;
+        keys[pos] = key;
+    }
 
-        String[] directions = { "North", "North-East", "East", "South-East",
-                "South", "South-West", "West", "North-West" };
-        return directions[(int) Math.round(bearing / 45) % 8];
+    int pop() {
+        int top = ids[0];
+        size--;
+        if (size > 0) {
+            int id = ids[size];
+            double key = keys[size];
+            int pos = 0;
+            int half = size >>> 1;
+            while (pos < half) {
+                int child = 2 * pos + 1;
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (key <= keys[child]) {
+                    break;
+                }
+                ids[pos] = ids[child];
+                keys[pos] = keys[child];
+                pos = child;
+            }
+            ids[pos] = id;
+            keys[pos] = key;
+        }
+        return top;
     }
 }
 
-// ===== ALGORITHM SUPPORT CLASSES =====
+/** A path as dense IndexedGraph node indices, with its traffic-adjusted length. */
+class IndexedPath {
+    static final IndexedPath NONE = new IndexedPath(new int[0], Double.POSITIVE_INFINITY);
 
-class DijkstraNode implements Comparable<DijkstraNode> {
-    final CampusNode node;
-    final double distance;
+    private final int[] nodes;
+    private final double distance;
 
-    DijkstraNode(CampusNode node, double distance) {
-        this.node = node;
+    public IndexedPath(int[] nodes, double distance) {
+        this.nodes = nodes;
         this.distance = distance;
     }
 
-    @Override
-    public int compareTo(DijkstraNode other) {
-        return Double.compare(this.distance, other.distance);
+    public IndexedPath(List<Integer> nodes, double distance) {
+        this(nodes.stream().mapToInt(Integer::intValue).toArray(), distance);
     }
-}
 
-class AStarNode implements Comparable<AStarNode> {
-    final CampusNode node;
-    final double fScore;
+    public int[] getNodes() {
+        return nodes;
+    }
 
-    AStarNode(CampusNode node, double fScore) {
-        this.node = node;
-        this.fScore = fScore;
+    public double getDistance() {
+        return distance;
     }
 
-    @Override
-    public int compareTo(AStarNode other) {
-        return Double.compare(this.fScore, other.fScore);
+    public boolean isEmpty() {
+        return nodes.length == 0;
     }
 }
 
@@ -1233,35 +12560,72 @@ class Route {
     private final double adjustedDistance;
     private double totalDistance;
     private double estimatedTime;
+    private double heavyTrafficDistance;
+    // Edge for each hop, aligned with path; null where the graph has no such hop
+    private List<CampusEdge> edges = Collections.emptyList();
+    // Traffic profile the route was found under; null for the conditions as loaded
+    private final TimeOfDay timeOfDay;
 
     public Route() {
         this.path = Collections.emptyList();
         this.adjustedDistance = 0.0;
         this.totalDistance = 0.0;
         this.estimatedTime = 0.0;
+        this.timeOfDay = null;
     }
 
     public Route(List<CampusNode> path, double adjustedDistance, CampusGraph graph) {
+        this(path, adjustedDistance, graph, null);
+    }
+
+    /** Time and traffic exposure are measured under the traffic profile for timeOfDay. */
+    public Route(List<CampusNode> path, double adjustedDistance, CampusGraph graph, TimeOfDay timeOfDay) {
         this.path = path;
         this.adjustedDistance = adjustedDistance;
+        this.timeOfDay = timeOfDay;
         calculateMetrics(graph);
     }
 
+    /** A route whose hop edges are already known, aligned with path, e.g. from an {@link OffHeapGraph}. */
+    public Route(List<CampusNode> path, List<CampusEdge> hops, double adjustedDistance, TimeOfDay timeOfDay) {
+        this.path = path;
+        this.adjustedDistance = adjustedDistance;
+        this.timeOfDay = timeOfDay;
+        accumulateMetrics(hops.toArray(new CampusEdge[0]));
+    }
+
     private void calculateMetrics(CampusGraph graph) {
-        this.totalDistance = 0;
-        this.estimatedTime = 0;
-        if (path.size() < 2)
+        if (path.size() < 2) {
+            accumulateMetrics(new CampusEdge[0]);
             return;
+        }
 
+        CampusEdge[] hops = new CampusEdge[path.size() - 1];
         for (int i = 0; i < path.size() - 1; i++) {
             CampusNode source = path.get(i);
             CampusNode dest = path.get(i + 1);
-            CampusEdge edge = graph.getEdge(source.getId(), dest.getId());
+            hops[i] = graph.getEdge(source.getId(), dest.getId());
+        }
+        accumulateMetrics(hops);
+    }
+
+    private void accumulateMetrics(CampusEdge[] hops) {
+        this.totalDistance = 0;
+        this.estimatedTime = 0;
+        this.heavyTrafficDistance = 0;
+        if (hops.length == 0) {
+            return;
+        }
+        for (CampusEdge edge : hops) {
             if (edge != null) {
                 this.totalDistance += edge.getDistance();
-                this.estimatedTime += edge.getEstimatedTime();
+                this.estimatedTime += edge.getEstimatedTime(timeOfDay);
+                if (edge.getTrafficCondition(timeOfDay) == TrafficCondition.HEAVY) {
+                    this.heavyTrafficDistance += edge.getDistance();
+                }
             }
         }
+        this.edges = Collections.unmodifiableList(Arrays.asList(hops));
     }
 
     // Getters
@@ -1269,10 +12633,26 @@ class Route {
         return path;
     }
 
+    /** Edges walked by this route, one per hop; an entry is null if the graph lacks that hop. */
+    public List<CampusEdge> getEdges() {
+        return edges;
+    }
+
     public double getTotalDistance() {
         return totalDistance;
     }
 
+    /** Meters of this route walked along heavy-traffic edges. */
+    public double getHeavyTrafficDistance() {
+        return heavyTrafficDistance;
+    }
+
+    /** True if this route is at least as good as other on distance, time and heavy-traffic exposure. */
+    public boolean dominates(Route other) {
+        return totalDistance <= other.totalDistance && estimatedTime <= other.estimatedTime
+                && heavyTrafficDistance <= other.heavyTrafficDistance;
+    }
+
     public double getAdjustedDistance() {
         return adjustedDistance;
     }
@@ -1281,6 +12661,10 @@ class Route {
         return estimatedTime;
     }
 
+    public TimeOfDay getTimeOfDay() {
+        return timeOfDay;
+    }
+
     public TrafficCondition getAverageTrafficCondition(CampusGraph graph) {
         if (path.size() < 2)
             return TrafficCondition.LIGHT;
@@ -1291,7 +12675,7 @@ class Route {
         for (int i = 0; i < path.size() - 1; i++) {
             CampusEdge edge = graph.getEdge(path.get(i).getId(), path.get(i + 1).getId());
             if (edge != null) {
-                totalMultiplier += edge.getTrafficCondition().getDistanceMultiplier();
+                totalMultiplier += edge.getTrafficCondition(timeOfDay).getDistanceMultiplier();
                 edgeCount++;
             }
         }
@@ -1327,11 +12711,35 @@ class RoutingResult {
     private final Route optimalRoute;
     private final List<Route> alternativeRoutes;
     private final List<AlgorithmResult> algorithmResults;
+    private final List<Route> paretoRoutes;
+    private final DegradationLevel degradationLevel;
 
     public RoutingResult(Route optimalRoute, List<Route> alternativeRoutes, List<AlgorithmResult> algorithmResults) {
+        this(optimalRoute, alternativeRoutes, algorithmResults, Collections.emptyList());
+    }
+
+    public RoutingResult(Route optimalRoute, List<Route> alternativeRoutes, List<AlgorithmResult> algorithmResults,
+            List<Route> paretoRoutes) {
+        this(optimalRoute, alternativeRoutes, algorithmResults, paretoRoutes, DegradationLevel.NONE);
+    }
+
+    public RoutingResult(Route optimalRoute, List<Route> alternativeRoutes, List<AlgorithmResult> algorithmResults,
+            List<Route> paretoRoutes, DegradationLevel degradationLevel) {
         this.optimalRoute = optimalRoute;
         this.alternativeRoutes = alternativeRoutes;
         this.algorithmResults = algorithmResults;
+        this.paretoRoutes = paretoRoutes;
+        this.degradationLevel = degradationLevel;
+    }
+
+    /** How much was given up to stay within the query's budget or the engine's load limits. */
+    public DegradationLevel getDegradationLevel() {
+        return degradationLevel;
+    }
+
+    /** Representative distance/time/heavy-traffic trade-offs, ordered by distance. */
+    public List<Route> getParetoRoutes() {
+        return paretoRoutes;
     }
 
     public Route getOptimalRoute() {
@@ -1347,15 +12755,48 @@ class RoutingResult {
     }
 }
 
+/** A route with a proven bound on how much heavier it may be than the optimal one. */
+class BoundedRoute {
+    private final Route route;
+    private final double suboptimalityBound;
+
+    public BoundedRoute(Route route, double suboptimalityBound) {
+        this.route = route;
+        this.suboptimalityBound = suboptimalityBound;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    /** The route's weight is at most this times the optimal weight; 1 when it is optimal. */
+    public double getSuboptimalityBound() {
+        return suboptimalityBound;
+    }
+}
+
 class AlgorithmResult {
     private final String algorithmName;
     private final double distance;
     private final long executionTime;
+    private final SearchStats searchStats;
+    private final double suboptimalityBound;
 
     public AlgorithmResult(String algorithmName, double distance, long executionTime) {
+        this(algorithmName, distance, executionTime, new SearchStats());
+    }
+
+    public AlgorithmResult(String algorithmName, double distance, long executionTime, SearchStats searchStats) {
+        this(algorithmName, distance, executionTime, searchStats, 1.0);
+    }
+
+    public AlgorithmResult(String algorithmName, double distance, long executionTime, SearchStats searchStats,
+            double suboptimalityBound) {
         this.algorithmName = algorithmName;
         this.distance = distance;
         this.executionTime = executionTime;
+        this.searchStats = searchStats;
+        this.suboptimalityBound = suboptimalityBound;
     }
 
     public String getAlgorithmName() {
@@ -1369,6 +12810,316 @@ class AlgorithmResult {
     public long getExecutionTime() {
         return executionTime;
     }
+
+    public SearchStats getSearchStats() {
+        return searchStats;
+    }
+
+    /** Upper bound on this route's weight over the optimal one: 1 for exact backends. */
+    public double getSuboptimalityBound() {
+        return suboptimalityBound;
+    }
+}
+
+// ===== ROUTE OUTPUT =====
+
+/**
+ * Turns a route into walking instructions. Consecutive hops that keep roughly the same heading
+ * are merged into one step, so a long straight walkway reads as a single instruction instead of
+ * one line per graph node. Bearings and lengths come from the edges, which precompute them at load.
+ */
+final class RouteDirections {
+    /** Hops whose heading changes by less than this many degrees continue the current step. */
+    static final double MERGE_ANGLE_DEGREES = 20.0;
+    /** A merged step stops once its heading has drifted this far from where it started. */
+    static final double MAX_DRIFT_DEGREES = 45.0;
+
+    private RouteDirections() {
+    }
+
+    static List<DirectionStep> generate(Route route) {
+        List<CampusNode> path = route.getPath();
+        List<CampusEdge> edges = route.getEdges();
+        if (path.size() < 2 || edges.size() != path.size() - 1)
+            return Collections.emptyList();
+
+        List<DirectionStep> steps = new ArrayList<>();
+        int start = 0;
+        double startBearing = hopBearing(path, edges, 0);
+        double previousBearing = startBearing;
+        double stepLength = hopLength(edges, 0);
+        TurnDirection turn = TurnDirection.DEPART;
+
+        for (int i = 1; i < edges.size(); i++) {
+            double bearing = hopBearing(path, edges, i);
+            double change = TurnDirection.headingChange(previousBearing, bearing);
+            if (Math.abs(change) < MERGE_ANGLE_DEGREES
+                    && Math.abs(TurnDirection.headingChange(startBearing, bearing)) < MAX_DRIFT_DEGREES) {
+                stepLength += hopLength(edges, i);
+            } else {
+                steps.add(step(path, edges, start, i, stepLength, turn));
+                turn = TurnDirection.of(change);
+                start = i;
+                startBearing = bearing;
+                stepLength = hopLength(edges, i);
+            }
+            previousBearing = bearing;
+        }
+        steps.add(step(path, edges, start, edges.size(), stepLength, turn));
+        return steps;
+    }
+
+    private static DirectionStep step(List<CampusNode> path, List<CampusEdge> edges, int start, int end,
+            double length, TurnDirection turn) {
+        CampusNode from = path.get(start);
+        CampusNode to = path.get(end);
+        double bearing = end - start == 1 ? hopBearing(path, edges, start) : CampusEdge.initialBearing(from, to);
+        return new DirectionStep(from, to, length, bearing, turn, end - start);
+    }
+
+    private static double hopBearing(List<CampusNode> path, List<CampusEdge> edges, int hop) {
+        CampusEdge edge = edges.get(hop);
+        return edge != null ? edge.getBearing() : CampusEdge.initialBearing(path.get(hop), path.get(hop + 1));
+    }
+
+    private static double hopLength(List<CampusEdge> edges, int hop) {
+        CampusEdge edge = edges.get(hop);
+        return edge != null ? edge.getDistance() : 0.0;
+    }
+}
+
+/** One instruction of a route: a turn at the start node followed by a walk to the end node. */
+class DirectionStep {
+    private final CampusNode from;
+    private final CampusNode to;
+    private final double distance;
+    private final double bearing;
+    private final TurnDirection turn;
+    private final int hopCount;
+
+    DirectionStep(CampusNode from, CampusNode to, double distance, double bearing, TurnDirection turn,
+            int hopCount) {
+        this.from = from;
+        this.to = to;
+        this.distance = distance;
+        this.bearing = bearing;
+        this.turn = turn;
+        this.hopCount = hopCount;
+    }
+
+    public CampusNode getFrom() {
+        return from;
+    }
+
+    public CampusNode getTo() {
+        return to;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public double getBearing() {
+        return bearing;
+    }
+
+    public String getCompassDirection() {
+        return CampusEdge.compassDirection(bearing);
+    }
+
+    public TurnDirection getTurn() {
+        return turn;
+    }
+
+    /** Number of graph edges merged into this step. */
+    public int getHopCount() {
+        return hopCount;
+    }
+}
+
+/**
+ * Streaming route encoders for API consumers. Each writer emits straight into the caller's
+ * Appendable or ByteBuffer, formatting numbers digit by digit instead of going through
+ * String.format or intermediate strings.
+ */
+final class RouteEncoders {
+    /** Leading bytes of the compact binary format: "UGR" followed by the format version. */
+    static final byte[] BINARY_MAGIC = { 'U', 'G', 'R', 1 };
+    private static final double POLYLINE_SCALE = 1e5;
+    private static final double BINARY_SCALE = 1e6;
+    private static final int GEOJSON_DECIMALS = 6;
+    private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L,
+            10_000_000L, 100_000_000L, 1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L,
+            10_000_000_000_000L, 100_000_000_000_000L, 1_000_000_000_000_000L, 10_000_000_000_000_000L,
+            100_000_000_000_000_000L, 1_000_000_000_000_000_000L };
+
+    private RouteEncoders() {
+    }
+
+    /** Writes the path as a Google encoded polyline with five decimal places of precision. */
+    static void writePolyline(List<CampusNode> path, Appendable out) throws IOException {
+        long previousLat = 0;
+        long previousLon = 0;
+        for (CampusNode node : path) {
+            long lat = Math.round(node.getLatitude() * POLYLINE_SCALE);
+            long lon = Math.round(node.getLongitude() * POLYLINE_SCALE);
+            appendPolylineValue(out, lat - previousLat);
+            appendPolylineValue(out, lon - previousLon);
+            previousLat = lat;
+            previousLon = lon;
+        }
+    }
+
+    private static void appendPolylineValue(Appendable out, long delta) throws IOException {
+        long value = delta < 0 ? ~(delta << 1) : delta << 1;
+        while (value >= 0x20) {
+            out.append((char) ((0x20 | (value & 0x1f)) + 63));
+            value >>>= 5;
+        }
+        out.append((char) (value + 63));
+    }
+
+    /**
+     * Writes the route as a GeoJSON Feature with a LineString geometry in [longitude, latitude]
+     * order, carrying distance, time, heavy-traffic exposure and node ids as properties.
+     */
+    static void writeGeoJson(Route route, Appendable out) throws IOException {
+        List<CampusNode> path = route.getPath();
+        out.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"LineString\",\"coordinates\":[");
+        for (int i = 0; i < path.size(); i++) {
+            if (i > 0)
+                out.append(',');
+            out.append('[');
+            appendFixed(out, path.get(i).getLongitude(), GEOJSON_DECIMALS);
+            out.append(',');
+            appendFixed(out, path.get(i).getLatitude(), GEOJSON_DECIMALS);
+            out.append(']');
+        }
+        out.append("]},\"properties\":{\"distance\":");
+        appendFixed(out, route.getTotalDistance(), 1);
+        out.append(",\"estimatedTime\":");
+        appendFixed(out, route.getEstimatedTime(), 2);
+        out.append(",\"heavyTrafficDistance\":");
+        appendFixed(out, route.getHeavyTrafficDistance(), 1);
+        out.append(",\"nodeIds\":[");
+        for (int i = 0; i < path.size(); i++) {
+            if (i > 0)
+                out.append(',');
+            appendLong(out, path.get(i).getId());
+        }
+        out.append("]}}");
+    }
+
+    /** Appends value rounded to the given number of decimals, without exponent notation. */
+    static void appendFixed(Appendable out, double value, int decimals) throws IOException {
+        long scale = POWERS_OF_TEN[decimals];
+        // Round the magnitude so halves go away from zero and tiny negatives print without a sign
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0)
+            out.append('-');
+        appendLong(out, scaled / scale);
+        if (decimals == 0)
+            return;
+        out.append('.');
+        long fraction = scaled % scale;
+        for (long digit = scale / 10; digit > 0; digit /= 10) {
+            out.append((char) ('0' + fraction / digit));
+            fraction %= digit;
+        }
+    }
+
+    /** Appends an integer in decimal. */
+    static void appendLong(Appendable out, long value) throws IOException {
+        if (value < 0) {
+            out.append('-');
+            if (value == Long.MIN_VALUE) {
+                // Cannot negate; emit the last digit separately
+                appendLong(out, -(value / 10));
+                out.append((char) ('0' - value % 10));
+                return;
+            }
+            value = -value;
+        }
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits])
+            digits++;
+        for (int i = digits - 1; i >= 0; i--) {
+            out.append((char) ('0' + value / POWERS_OF_TEN[i]));
+            value %= POWERS_OF_TEN[i];
+        }
+    }
+
+    /** Upper bound on the bytes writeBinary needs for a path with the given number of nodes. */
+    static int maxBinarySize(int nodeCount) {
+        return BINARY_MAGIC.length + 5 + nodeCount * 15;
+    }
+
+    /**
+     * Writes the path in the compact binary format: magic, varint node count, then for every node
+     * the zigzag varint deltas of its id and of its latitude and longitude in microdegrees.
+     * Throws BufferOverflowException if out has fewer than maxBinarySize bytes remaining.
+     */
+    static void writeBinary(List<CampusNode> path, java.nio.ByteBuffer out) {
+        out.put(BINARY_MAGIC);
+        putVarint(out, path.size());
+        int previousId = 0;
+        int previousLat = 0;
+        int previousLon = 0;
+        for (CampusNode node : path) {
+            int lat = (int) Math.round(node.getLatitude() * BINARY_SCALE);
+            int lon = (int) Math.round(node.getLongitude() * BINARY_SCALE);
+            putVarint(out, zigzag(node.getId() - previousId));
+            putVarint(out, zigzag(lat - previousLat));
+            putVarint(out, zigzag(lon - previousLon));
+            previousId = node.getId();
+            previousLat = lat;
+            previousLon = lon;
+        }
+    }
+
+    /** Reads back the node ids of a path written by writeBinary, leaving the buffer after it. */
+    static int[] readBinaryNodeIds(java.nio.ByteBuffer in) {
+        for (byte expected : BINARY_MAGIC) {
+            if (in.get() != expected)
+                throw new IllegalArgumentException("Not a binary route (bad magic or version)");
+        }
+        int[] ids = new int[getVarint(in)];
+        int id = 0;
+        for (int i = 0; i < ids.length; i++) {
+            id += unzigzag(getVarint(in));
+            ids[i] = id;
+            getVarint(in); // latitude delta
+            getVarint(in); // longitude delta
+        }
+        return ids;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putVarint(java.nio.ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(java.nio.ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint in binary route");
+    }
 }
 
 // ===== ENUMS =====
@@ -1378,16 +13129,23 @@ enum LandmarkType {
 }
 
 enum TrafficCondition {
-    LIGHT(1.0, 1.0),
-    MODERATE(1.2, 1.3),
-    HEAVY(1.5, 1.8);
+    LIGHT(1.0, 1.0, 0.10),
+    MODERATE(1.2, 1.3, 0.25),
+    HEAVY(1.5, 1.8, 0.45);
 
     private final double distanceMultiplier;
     private final double timeMultiplier;
+    // Coefficient of variation of walking time, for edges without a measured distribution
+    private final double timeVariability;
 
-    TrafficCondition(double distanceMultiplier, double timeMultiplier) {
+    TrafficCondition(double distanceMultiplier, double timeMultiplier, double timeVariability) {
         this.distanceMultiplier = distanceMultiplier;
         this.timeMultiplier = timeMultiplier;
+        this.timeVariability = timeVariability;
+    }
+
+    public double getTimeVariability() {
+        return timeVariability;
     }
 
     public double getDistanceMultiplier() {
@@ -1403,6 +13161,178 @@ enum TimeOfDay {
     NORMAL_HOURS, MORNING_RUSH, EVENING_RUSH
 }
 
+/** Change of heading at the start of a direction step. */
+enum TurnDirection {
+    DEPART("head out"),
+    STRAIGHT("continue straight"),
+    SLIGHT_LEFT("bear left"),
+    LEFT("turn left"),
+    SHARP_LEFT("turn sharp left"),
+    SLIGHT_RIGHT("bear right"),
+    RIGHT("turn right"),
+    SHARP_RIGHT("turn sharp right"),
+    U_TURN("turn around");
+
+    private final String instruction;
+
+    TurnDirection(String instruction) {
+        this.instruction = instruction;
+    }
+
+    public String getInstruction() {
+        return instruction;
+    }
+
+    /** Signed heading change in degrees from one bearing to another, in [-180, 180); negative is left. */
+    static double headingChange(double fromBearing, double toBearing) {
+        double change = (toBearing - fromBearing) % 360;
+        if (change >= 180)
+            change -= 360;
+        else if (change < -180)
+            change += 360;
+        return change;
+    }
+
+    static TurnDirection of(double headingChange) {
+        double magnitude = Math.abs(headingChange);
+        boolean left = headingChange < 0;
+        if (magnitude < RouteDirections.MERGE_ANGLE_DEGREES)
+            return STRAIGHT;
+        if (magnitude < 45)
+            return left ? SLIGHT_LEFT : SLIGHT_RIGHT;
+        if (magnitude < 120)
+            return left ? LEFT : RIGHT;
+        if (magnitude < 165)
+            return left ? SHARP_LEFT : SHARP_RIGHT;
+        return U_TURN;
+    }
+}
+
+/** Properties of a node or path segment that route constraints can avoid. */
+enum AccessFeature {
+    CLOSED, STEPS, UNLIT, ISOLATED;
+
+    static int maskOf(Set<AccessFeature> features) {
+        int mask = 0;
+        for (AccessFeature feature : features) {
+            mask |= 1 << feature.ordinal();
+        }
+        return mask;
+    }
+
+    static EnumSet<AccessFeature> fromMask(int mask) {
+        EnumSet<AccessFeature> features = EnumSet.noneOf(AccessFeature.class);
+        for (AccessFeature feature : values()) {
+            if ((mask & (1 << feature.ordinal())) != 0) {
+                features.add(feature);
+            }
+        }
+        return features;
+    }
+
+    /** Parses a semicolon-separated list such as "STEPS;UNLIT"; blank means none. */
+    static EnumSet<AccessFeature> parseList(String text) {
+        EnumSet<AccessFeature> features = EnumSet.noneOf(AccessFeature.class);
+        for (String part : text.split(";")) {
+            if (!part.trim().isEmpty()) {
+                features.add(AccessFeature.valueOf(part.trim()));
+            }
+        }
+        return features;
+    }
+}
+
+enum RoutingBackend {
+    DIJKSTRA("Dijkstra", true),
+    A_STAR("A*", true),
+    // Bounded-suboptimal: within 1 + epsilon of optimal, see PathfindingEngine#setSuboptimalityEpsilon
+    WEIGHTED_A_STAR("Weighted A*", true),
+    ANYTIME_A_STAR("Anytime A*", true),
+    FLOYD_WARSHALL("Floyd-Warshall", false),
+    CRP("CRP Overlay", false),
+    HUB_LABELS("Hub Labels", false),
+    // Dijkstra over an OffHeapGraph copy of the snapshot
+    OFF_HEAP("Off-heap Dijkstra", true);
+
+    private final String displayName;
+    private final boolean supportsConstraints;
+
+    RoutingBackend(String displayName, boolean supportsConstraints) {
+        this.displayName = displayName;
+        this.supportsConstraints = supportsConstraints;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /** Backends answering from precomputed unconstrained distances cannot honour route constraints. */
+    public boolean supportsConstraints() {
+        return supportsConstraints;
+    }
+}
+
+/** What a route query gave up to stay within budget or load limits, from least to most. */
+enum DegradationLevel {
+    NONE("Full result"),
+    // The budget ran out while looking for alternatives, Pareto routes or comparison runs
+    ALTERNATIVES_TRIMMED("Fewer alternatives"),
+    // Admitted under a long queue: the optimal route only
+    OPTIMAL_ONLY("Optimal route only"),
+    // Exact search ran out of budget; the route is at most FALLBACK_SEARCH_WEIGHT times optimal
+    SUBOPTIMAL("Bounded-suboptimal route"),
+    BUDGET_EXHAUSTED("No route within budget");
+
+    private final String displayName;
+
+    DegradationLevel(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
+
+/** Kinds of indoor edge, and how their length is weighed against walking outdoors. */
+enum IndoorEdgeKind {
+    CORRIDOR(1.0, 0),
+    // Climbing costs about twice the effort of walking the same distance on the flat
+    STAIRS(2.0, 0),
+    // A lift's length is its shaft; waiting for it is charged as a fixed extra distance
+    LIFT(1.0, 40);
+
+    private final double lengthMultiplier;
+    private final double fixedWeight;
+
+    IndoorEdgeKind(double lengthMultiplier, double fixedWeight) {
+        this.lengthMultiplier = lengthMultiplier;
+        this.fixedWeight = fixedWeight;
+    }
+
+    public double weigh(double length) {
+        return length * lengthMultiplier + fixedWeight;
+    }
+}
+
+/** How searches that need distances to every node run; see {@link ShortestPathTree#compute}. */
+enum OneToAllAlgorithm {
+    DIJKSTRA("Dijkstra"),
+    DELTA_STEPPING("Parallel delta-stepping"),
+    // Delta-stepping on large graphs when more than one core is available, Dijkstra otherwise
+    AUTO("Automatic");
+
+    private final String displayName;
+
+    OneToAllAlgorithm(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
+
 // ===== DATA LOADER =====
 
 class DataReader {
@@ -1415,12 +13345,17 @@ class DataReader {
             while ((line = br.readLine()) != null) {
                 String[] values = line.split(",");
                 if (values.length >= 5) {
+                    int id = Integer.parseInt(values[0].trim());
                     graph.addNode(new CampusNode(
-                            Integer.parseInt(values[0].trim()),
+                            id,
                             values[1].trim(),
                             Double.parseDouble(values[2].trim()),
                             Double.parseDouble(values[3].trim()),
                             LandmarkType.valueOf(values[4].trim())));
+                    // Optional sixth column: access features such as CLOSED or STEPS
+                    if (values.length >= 6 && !values[5].trim().isEmpty()) {
+                        graph.setNodeFeatures(id, AccessFeature.parseList(values[5]));
+                    }
                 }
             }
         }
@@ -1439,6 +13374,10 @@ class DataReader {
                     TrafficCondition condition = TrafficCondition.valueOf(values[3].trim());
 
                     graph.addEdge(sourceId, destId, distance, condition);
+                    // Optional fifth column: access features such as STEPS or UNLIT
+                    if (values.length >= 5 && !values[4].trim().isEmpty()) {
+                        graph.setEdgeFeatures(sourceId, destId, AccessFeature.parseList(values[4]));
+                    }
 
                     // Store original conditions for traffic simulation
                     originalEdgeConditions.put(sourceId + "-" + destId, condition);
@@ -1448,6 +13387,118 @@ class DataReader {
         }
     }
 
+    /**
+     * Streams the same CSV files straight into an {@link OffHeapGraph}, without creating node or
+     * edge objects. Each edge row becomes two directed edges.
+     */
+    public static OffHeapGraph loadOffHeap(InputStream nodesInput, InputStream edgesInput) throws IOException {
+        OffHeapGraph.Builder builder = new OffHeapGraph.Builder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(nodesInput))) {
+            String line;
+            br.readLine(); // Skip header
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length >= 5) {
+                    Set<AccessFeature> features = values.length >= 6
+                            ? AccessFeature.parseList(values[5]) : EnumSet.noneOf(AccessFeature.class);
+                    builder.addNode(Integer.parseInt(values[0].trim()), values[1].trim(),
+                            Double.parseDouble(values[2].trim()), Double.parseDouble(values[3].trim()),
+                            LandmarkType.valueOf(values[4].trim()), features);
+                }
+            }
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(edgesInput))) {
+            String line;
+            br.readLine(); // Skip header
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length >= 4) {
+                    int sourceId = Integer.parseInt(values[0].trim());
+                    int destId = Integer.parseInt(values[1].trim());
+                    double distance = Double.parseDouble(values[2].trim());
+                    TrafficCondition condition = TrafficCondition.valueOf(values[3].trim());
+                    Set<AccessFeature> features = values.length >= 5
+                            ? AccessFeature.parseList(values[4]) : EnumSet.noneOf(AccessFeature.class);
+                    builder.addEdge(sourceId, destId, distance, condition, features);
+                    builder.addEdge(destId, sourceId, distance, condition, features);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Loads a shuttle timetable from two GTFS-like CSV files: stops (stop_id, node_id, name) and
+     * stop times (trip_id, stop_sequence, stop_id, arrival_time, departure_time), with times as
+     * HH:MM:SS and hours past 23 allowed for trips running after midnight.
+     */
+    public static ShuttleTimetable loadTimetable(InputStream stopsInput, InputStream stopTimesInput)
+            throws IOException {
+        ShuttleTimetable.Builder builder = new ShuttleTimetable.Builder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(stopsInput))) {
+            String line;
+            br.readLine(); // Skip header
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length >= 3) {
+                    builder.addStop(values[0].trim(), Integer.parseInt(values[1].trim()), values[2].trim());
+                }
+            }
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(stopTimesInput))) {
+            String line;
+            br.readLine(); // Skip header
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length >= 5) {
+                    builder.addStopTime(values[0].trim(), Integer.parseInt(values[1].trim()), values[2].trim(),
+                            ShuttleTimetable.parseTime(values[3]), ShuttleTimetable.parseTime(values[4]));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Loads a building interior from two CSV files: nodes (node_id, name, floor, and optionally
+     * the campus node the indoor node is an entrance onto) and edges (source, target, length,
+     * kind), edges being walkable both ways.
+     */
+    public static IndoorGraph loadBuilding(String buildingId, InputStream nodesInput, InputStream edgesInput)
+            throws IOException {
+        IndoorGraph.Builder builder = new IndoorGraph.Builder(buildingId);
+        List<int[]> entrances = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(nodesInput))) {
+            String line;
+            br.readLine(); // Skip header
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length >= 3) {
+                    int id = Integer.parseInt(values[0].trim());
+                    builder.addNode(id, values[1].trim(), Integer.parseInt(values[2].trim()));
+                    if (values.length >= 4 && !values[3].trim().isEmpty()) {
+                        entrances.add(new int[] { id, Integer.parseInt(values[3].trim()) });
+                    }
+                }
+            }
+        }
+        for (int[] entrance : entrances) {
+            builder.addEntrance(entrance[0], entrance[1]);
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(edgesInput))) {
+            String line;
+            br.readLine(); // Skip header
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length >= 4) {
+                    builder.addEdge(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()),
+                            Double.parseDouble(values[2].trim()), IndoorEdgeKind.valueOf(values[3].trim()));
+                }
+            }
+        }
+        return builder.build();
+    }
+
     public static TrafficCondition getOriginalTrafficCondition(int sourceId, int destId) {
         return originalEdgeConditions.get(sourceId + "-" + destId);
     }
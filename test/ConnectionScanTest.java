@@ -0,0 +1,226 @@
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks PathfindingEngine.planShuttleJourney against a reference search over rides on seeded
+ * shuttle timetables, on the sample campus and on seeded random grids. The reference works ride by
+ * ride: a plain Dijkstra over walking seconds from the origin, then for each further ride every
+ * trip boarded at the first stop reached in time, with transfers of at most
+ * {@link ConnectionScanRouter#MAX_TRANSFER_WALK_SECONDS} between rides. Each returned journey must
+ * arrive when the reference says the best journey with that many rides does, the earliest must
+ * match the best with up to {@link ConnectionScanRouter#MAX_RIDES} rides, and the legs must chain
+ * from origin to destination.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/ConnectionScanTest.java
+ * java -cp out ConnectionScanTest
+ * </pre>
+ */
+public class ConnectionScanTest {
+    private static final int FIRST_DEPARTURE = 7 * 3600;
+    private static final int LAST_DEPARTURE = 10 * 3600;
+
+    public static void main(String[] args) throws Exception {
+        int checked = checkGraph(TestGraphs.sample(), 3, 4, 1, new Random(1));
+        checked += checkGraph(TestGraphs.random(25, 25, 15), 6, 8, 11, new Random(2));
+        checked += checkGraph(TestGraphs.random(40, 10, 16), 5, 10, 9, new Random(3));
+        System.out.println("ConnectionScanTest passed (" + checked + " journeys)");
+    }
+
+    private static int checkGraph(CampusGraph graph, int lines, int stopsPerLine, int queryStride, Random random)
+            throws Exception {
+        IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), TimeOfDay.NORMAL_HOURS);
+        List<int[]> tripNodes = new ArrayList<>();
+        List<int[]> tripArrivals = new ArrayList<>();
+        List<int[]> tripDepartures = new ArrayList<>();
+        StringBuilder stops = new StringBuilder("stop_id,node_id,name\n");
+        StringBuilder stopTimes = new StringBuilder("trip_id,stop_sequence,stop_id,arrival_time,departure_time\n");
+        boolean[] used = new boolean[indexed.size()];
+        for (int line = 0; line < lines; line++) {
+            int[] route = new int[Math.min(stopsPerLine, indexed.size())];
+            for (int i = 0; i < route.length; i++) {
+                // Lines may share stops on the small sample campus, never a stop twice on one line
+                int node;
+                do {
+                    node = random.nextInt(indexed.size());
+                } while (contains(route, i, node) || used[node] && indexed.size() > lines * stopsPerLine);
+                route[i] = node;
+                if (!used[node]) {
+                    used[node] = true;
+                    int id = indexed.node(node).getId();
+                    stops.append("S").append(id).append(',').append(id).append(",Stop ").append(id).append('\n');
+                }
+            }
+            int hop = 45 + random.nextInt(60);
+            for (int start = FIRST_DEPARTURE + line * 97; start < LAST_DEPARTURE; start += 480 + line * 60) {
+                int[] arrivals = new int[route.length];
+                int[] departures = new int[route.length];
+                for (int i = 0, clock = start; i < route.length; i++, clock += 30 + hop) {
+                    arrivals[i] = clock;
+                    departures[i] = clock + 30;
+                    stopTimes.append("L").append(line).append('-').append(start).append(',').append(i + 1)
+                            .append(",S").append(indexed.node(route[i]).getId()).append(',').append(time(clock))
+                            .append(',').append(time(clock + 30)).append('\n');
+                }
+                tripNodes.add(route);
+                tripArrivals.add(arrivals);
+                tripDepartures.add(departures);
+            }
+        }
+        ShuttleTimetable timetable = DataReader.loadTimetable(
+                new ByteArrayInputStream(stops.toString().getBytes(StandardCharsets.UTF_8)),
+                new ByteArrayInputStream(stopTimes.toString().getBytes(StandardCharsets.UTF_8)));
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        engine.setShuttleTimetable(timetable);
+
+        double[][] walkFrom = new double[indexed.size()][];
+        int checked = 0;
+        for (int s = random.nextInt(queryStride); s < indexed.size(); s += queryStride) {
+            int departure = FIRST_DEPARTURE + 1800 + random.nextInt(3600);
+            double[][] best = reference(indexed, walkFrom, tripNodes, tripArrivals, tripDepartures, s, departure);
+            for (int t = random.nextInt(queryStride); t < indexed.size(); t += queryStride) {
+                JourneyPlan plan = engine.planShuttleJourney(indexed.node(s), indexed.node(t),
+                        LocalTime.ofSecondOfDay(departure), TimeOfDay.NORMAL_HOURS);
+                checkPlan(plan, indexed, s, t, departure, best, s + "->" + t + " at " + time(departure));
+                checked++;
+            }
+        }
+        return checked;
+    }
+
+    private static void checkPlan(JourneyPlan plan, IndexedGraph indexed, int s, int t, int departure,
+            double[][] best, String query) {
+        int maxRides = ConnectionScanRouter.MAX_RIDES;
+        Journey earliest = plan.getEarliestArrival();
+        if (best[maxRides][t] == Double.POSITIVE_INFINITY) {
+            check(earliest == null, query + ": unreachable but a journey came back");
+            return;
+        }
+        check(earliest != null, query + ": reachable at " + best[maxRides][t] + " but no journey came back");
+        check(arrivesAt(earliest, best[maxRides][t]),
+                query + ": earliest arrival " + earliest.getArrivalSeconds() + ", reference " + best[maxRides][t]);
+        check(best[0][t] == Double.POSITIVE_INFINITY || plan.getJourneys().get(0).getRides() == 0,
+                query + ": walking all the way is missing");
+        Journey previous = null;
+        for (Journey journey : plan.getJourneys()) {
+            check(journey.getRides() <= maxRides, query + ": " + journey.getRides() + " rides");
+            check(arrivesAt(journey, best[journey.getRides()][t]), query + ": with " + journey.getRides()
+                    + " rides arrives " + journey.getArrivalSeconds() + ", reference " + best[journey.getRides()][t]);
+            check(previous == null || journey.getRides() > previous.getRides()
+                    && journey.getArrivalSeconds() < previous.getArrivalSeconds(),
+                    query + ": journeys are not ordered by rides with each arriving earlier");
+            checkLegs(journey, indexed, s, t, departure, query);
+            previous = journey;
+        }
+    }
+
+    /** Legs must chain from s to t in time, rides must be counted, and walks must take their edges' time. */
+    private static void checkLegs(Journey journey, IndexedGraph indexed, int s, int t, int departure, String query) {
+        int clock = departure;
+        int at = indexed.node(s).getId();
+        int rides = 0;
+        for (JourneyLeg leg : journey.getLegs()) {
+            check(leg.getFrom().getId() == at, query + ": leg leaves from the wrong node " + journey.getLegs());
+            check(leg.getDepartureSeconds() >= clock && leg.getArrivalSeconds() >= leg.getDepartureSeconds(),
+                    query + ": leg runs back in time " + journey.getLegs());
+            if (leg.isRide()) {
+                rides++;
+            } else {
+                List<CampusNode> path = leg.getWalkingPath();
+                int[] nodes = new int[path.size()];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = indexed.indexOf(path.get(i).getId());
+                }
+                double seconds = TestGraphs.pathCost(indexed, nodes, e -> indexed.outTime(e) * 60);
+                check(seconds <= leg.getArrivalSeconds() - leg.getDepartureSeconds() + 1e-6,
+                        query + ": walk of " + seconds + " s fits in a shorter leg " + journey.getLegs());
+            }
+            clock = leg.getArrivalSeconds();
+            at = leg.getTo().getId();
+        }
+        check(at == indexed.node(t).getId(), query + ": journey ends at " + at);
+        check(rides == journey.getRides(), query + ": counts " + journey.getRides() + " rides, legs have " + rides);
+    }
+
+    /**
+     * best[k][v]: earliest arrival in seconds at v with at most k rides. Walks from the origin and
+     * to the destination are unlimited; walks between rides are capped like the router's transfers.
+     */
+    private static double[][] reference(IndexedGraph indexed, double[][] walkFrom, List<int[]> tripNodes,
+            List<int[]> tripArrivals, List<int[]> tripDepartures, int s, int departure) {
+        int n = indexed.size();
+        int maxRides = ConnectionScanRouter.MAX_RIDES;
+        double[][] best = new double[maxRides + 1][n];
+        double[] boardable = new double[n];
+        double[] walk = walkSeconds(indexed, walkFrom, s);
+        for (int v = 0; v < n; v++) {
+            best[0][v] = departure + walk[v];
+            boardable[v] = best[0][v];
+        }
+        for (int k = 1; k <= maxRides; k++) {
+            double[] alighted = new double[n];
+            Arrays.fill(alighted, Double.POSITIVE_INFINITY);
+            for (int trip = 0; trip < tripNodes.size(); trip++) {
+                int[] nodes = tripNodes.get(trip);
+                boolean aboard = false;
+                for (int i = 0; i < nodes.length; i++) {
+                    if (aboard) {
+                        alighted[nodes[i]] = Math.min(alighted[nodes[i]], tripArrivals.get(trip)[i]);
+                    }
+                    aboard |= boardable[nodes[i]] <= tripDepartures.get(trip)[i];
+                }
+            }
+            Arrays.fill(boardable, Double.POSITIVE_INFINITY);
+            best[k] = best[k - 1].clone();
+            for (int stop = 0; stop < n; stop++) {
+                if (alighted[stop] == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                double[] onward = walkSeconds(indexed, walkFrom, stop);
+                for (int v = 0; v < n; v++) {
+                    best[k][v] = Math.min(best[k][v], alighted[stop] + onward[v]);
+                    if (onward[v] <= ConnectionScanRouter.MAX_TRANSFER_WALK_SECONDS) {
+                        boardable[v] = Math.min(boardable[v], alighted[stop] + onward[v]);
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private static double[] walkSeconds(IndexedGraph indexed, double[][] walkFrom, int source) {
+        if (walkFrom[source] == null) {
+            walkFrom[source] = TestGraphs.dijkstra(indexed, source, e -> indexed.outTime(e) * 60);
+        }
+        return walkFrom[source];
+    }
+
+    /** The router counts whole seconds, so it may arrive up to a second after the exact reference. */
+    private static boolean arrivesAt(Journey journey, double reference) {
+        return journey.getArrivalSeconds() >= reference - 1e-6 && journey.getArrivalSeconds() <= reference + 1;
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String time(int seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
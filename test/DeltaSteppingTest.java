@@ -0,0 +1,155 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks parallel delta-stepping against a plain Dijkstra on the sample campus and on seeded random
+ * grids, forwards from one source and backwards towards several, with and without blocked edges,
+ * for the chosen bucket width and for very narrow and very wide ones. The trees built on top must
+ * have the Dijkstra distances, tight parent edges that are not blocked, and parent chains that end
+ * at one of the sources.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/DeltaSteppingTest.java
+ * java -cp out DeltaSteppingTest
+ * </pre>
+ */
+public class DeltaSteppingTest {
+    public static void main(String[] args) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int checked = checkGraph(TestGraphs.sample(), pool, new Random(1));
+            checked += checkGraph(TestGraphs.random(40, 40, 13), pool, new Random(2));
+            checked += checkGraph(TestGraphs.random(150, 100, 14), pool, new Random(3));
+            System.out.println("DeltaSteppingTest passed (" + checked + " searches)");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int checkGraph(CampusGraph graph, ForkJoinPool pool, Random random) {
+        IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), TimeOfDay.EVENING_RUSH);
+        long[] blocked = new long[(indexed.edgeCount() + 63) >>> 6];
+        for (int e = 0; e < indexed.edgeCount(); e++) {
+            if (random.nextInt(20) == 0) {
+                blocked[e >>> 6] |= 1L << e;
+            }
+        }
+        double[] deltas = {DeltaStepping.chooseDelta(indexed), 1.0, 1e9};
+        int checked = 0;
+        for (int round = 0; round < 3; round++) {
+            int[][] sourceSets = {
+                {random.nextInt(indexed.size())},
+                {random.nextInt(indexed.size()), random.nextInt(indexed.size()), random.nextInt(indexed.size())},
+            };
+            for (int[] sources : sourceSets) {
+                for (boolean reverse : new boolean[] {false, true}) {
+                    for (long[] blockedEdges : new long[][] {null, blocked}) {
+                        String search = Arrays.toString(sources) + (reverse ? " reverse" : " forward")
+                                + (blockedEdges == null ? "" : " blocked");
+                        double[] want = dijkstra(indexed, sources, reverse, blockedEdges);
+                        for (double delta : deltas) {
+                            double[] got = new DeltaStepping(indexed, pool, delta)
+                                    .distances(sources, reverse, blockedEdges, new SearchStats());
+                            checkDistances(got, want, search + " delta " + delta);
+                        }
+                        ShortestPathTree tree = ShortestPathTree.compute(indexed, OneToAllAlgorithm.DELTA_STEPPING,
+                                sources, reverse, blockedEdges, new SearchStats());
+                        checkTree(tree, indexed, sources, reverse, blockedEdges, want, search);
+                        checked++;
+                    }
+                }
+            }
+        }
+        return checked;
+    }
+
+    private static void checkDistances(double[] got, double[] want, String search) {
+        for (int v = 0; v < want.length; v++) {
+            check(TestGraphs.same(got[v], want[v]), search + ": node " + v + " at " + got[v] + ", want " + want[v]);
+        }
+    }
+
+    private static void checkTree(ShortestPathTree tree, IndexedGraph indexed, int[] sources, boolean reverse,
+            long[] blockedEdges, double[] want, String search) {
+        int[] roots = tree.roots();
+        for (int v = 0; v < want.length; v++) {
+            check(TestGraphs.same(tree.distance(v), want[v]),
+                    search + ": tree has node " + v + " at " + tree.distance(v));
+            if (want[v] == Double.POSITIVE_INFINITY) {
+                check(roots[v] == -1, search + ": unreached node " + v + " has a root");
+                continue;
+            }
+            check(contains(sources, roots[v]), search + ": node " + v + " leads to " + roots[v] + ", not a source");
+            int p = tree.parent(v);
+            if (p < 0) {
+                check(want[v] == 0 && contains(sources, v), search + ": node " + v + " has no parent");
+                continue;
+            }
+            // The tree edge runs p -> v forwards, v -> p in a reverse tree
+            int tail = reverse ? v : p;
+            int head = reverse ? p : v;
+            boolean tight = false;
+            for (int e = indexed.outStart(tail); e < indexed.outEnd(tail); e++) {
+                if (indexed.outTarget(e) == head && !isBlocked(blockedEdges, e)
+                        && TestGraphs.same(want[p] + indexed.outWeight(e), want[v])) {
+                    tight = true;
+                }
+            }
+            check(tight, search + ": parent edge of node " + v + " is not a tight open edge");
+            check(roots[p] == roots[v], search + ": node " + v + " and its parent lead to different sources");
+        }
+    }
+
+    /** Reference Dijkstra from (or, in reverse, towards) the nearest of sources, skipping blocked edges. */
+    private static double[] dijkstra(IndexedGraph indexed, int[] sources, boolean reverse, long[] blockedEdges) {
+        double[] dist = new double[indexed.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        for (int s : sources) {
+            dist[s] = 0;
+            queue.add(new double[] {0, s});
+        }
+        while (!queue.isEmpty()) {
+            double[] top = queue.poll();
+            int u = (int) top[1];
+            if (top[0] > dist[u]) {
+                continue;
+            }
+            int end = reverse ? indexed.inEnd(u) : indexed.outEnd(u);
+            for (int e = reverse ? indexed.inStart(u) : indexed.outStart(u); e < end; e++) {
+                int forward = reverse ? indexed.inForwardEdge(e) : e;
+                if (isBlocked(blockedEdges, forward)) {
+                    continue;
+                }
+                int v = reverse ? indexed.inSource(e) : indexed.outTarget(e);
+                double candidate = dist[u] + indexed.outWeight(forward);
+                if (candidate < dist[v]) {
+                    dist[v] = candidate;
+                    queue.add(new double[] {candidate, v});
+                }
+            }
+        }
+        return dist;
+    }
+
+    private static boolean isBlocked(long[] blockedEdges, int edge) {
+        return blockedEdges != null && (blockedEdges[edge >>> 6] & (1L << edge)) != 0;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks PathfindingEngine.planEvacuation against a textbook min-cost max-flow (successive
+ * shortest paths with Bellman-Ford) on the sample campus and on seeded random grids: the same
+ * number of people must get out at the same total cost, every assignment must walk real edges from
+ * its origin to an ENTRANCE, and no edge or exit may carry more than its capacity.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/EvacuationTest.java
+ * java -cp out EvacuationTest
+ * </pre>
+ */
+public class EvacuationTest {
+    private static final int[] EDGE_CAPACITIES = {1, 2, 5};
+    private static final int[] EXIT_CAPACITIES = {0, 3};
+
+    public static void main(String[] args) throws Exception {
+        int checked = checkGraph(TestGraphs.sample(), 20, new Random(1));
+        checked += checkGraph(TestGraphs.random(10, 10, 11), 30, new Random(2));
+        checked += checkGraph(TestGraphs.random(16, 5, 12), 25, new Random(3));
+        System.out.println("EvacuationTest passed (" + checked + " plans)");
+    }
+
+    private static int checkGraph(CampusGraph graph, int occupiedNodes, Random random) {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        int checked = 0;
+        for (TimeOfDay profile : new TimeOfDay[] {null, TimeOfDay.MORNING_RUSH}) {
+            IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), profile);
+            for (int edgeCapacity : EDGE_CAPACITIES) {
+                for (int exitCapacity : EXIT_CAPACITIES) {
+                    int[] people = new int[indexed.size()];
+                    Map<CampusNode, Integer> occupants = new HashMap<>();
+                    for (int i = 0; i < occupiedNodes; i++) {
+                        int v = random.nextInt(indexed.size());
+                        int count = 1 + random.nextInt(4);
+                        people[v] += count;
+                        occupants.merge(indexed.node(v), count, Integer::sum);
+                    }
+                    String plan = "edges " + edgeCapacity + ", exits " + exitCapacity + ", " + profile;
+                    checkPlan(engine.planEvacuation(occupants, edgeCapacity, exitCapacity, profile), indexed, people,
+                            edgeCapacity, exitCapacity, plan);
+                    checked++;
+                }
+            }
+        }
+        return checked;
+    }
+
+    private static void checkPlan(CapacitatedEvacuation evacuation, IndexedGraph indexed, int[] people,
+            int edgeCapacity, int exitCapacity, String plan) {
+        int supply = Arrays.stream(people).sum();
+        double[] reference = minCostMaxFlow(indexed, people, edgeCapacity, exitCapacity);
+        int routed = supply - evacuation.getUnroutedPeople();
+        check(routed == (int) reference[0], plan + ": routed " + routed + ", reference " + (int) reference[0]);
+        check(Math.abs(evacuation.getTotalCost() - reference[1]) <= 1e-6 * Math.max(1, reference[1]),
+                plan + ": total cost " + evacuation.getTotalCost() + ", reference " + reference[1]);
+
+        Map<Long, Integer> edgeLoad = new HashMap<>();
+        int[] exitLoad = new int[indexed.size()];
+        int[] leaving = new int[indexed.size()];
+        for (EvacuationAssignment assignment : evacuation.getAssignments()) {
+            List<CampusNode> path = assignment.getRoute().getPath();
+            int[] nodes = new int[path.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = indexed.indexOf(path.get(i).getId());
+            }
+            check(assignment.getPeople() > 0, plan + ": empty assignment");
+            check(path.get(0).equals(assignment.getOrigin()) && path.get(path.size() - 1).equals(assignment.getExit()),
+                    plan + ": assignment route does not run from its origin to its exit");
+            check(assignment.getExit().getLandmarkType() == LandmarkType.ENTRANCE, plan + ": exit is not an ENTRANCE");
+            check(TestGraphs.same(TestGraphs.pathWeight(indexed, nodes), assignment.getRoute().getAdjustedDistance()),
+                    plan + ": assignment route does not follow graph edges");
+            for (int i = 0; i + 1 < nodes.length; i++) {
+                edgeLoad.merge((long) nodes[i] * indexed.size() + nodes[i + 1], assignment.getPeople(), Integer::sum);
+            }
+            exitLoad[nodes[nodes.length - 1]] += assignment.getPeople();
+            leaving[nodes[0]] += assignment.getPeople();
+        }
+        for (Map.Entry<Long, Integer> load : edgeLoad.entrySet()) {
+            int u = (int) (load.getKey() / indexed.size());
+            int v = (int) (load.getKey() % indexed.size());
+            int parallel = 0;
+            for (int e = indexed.outStart(u); e < indexed.outEnd(u); e++) {
+                parallel += indexed.outTarget(e) == v ? 1 : 0;
+            }
+            check(load.getValue() <= edgeCapacity * parallel, plan + ": " + load.getValue() + " people on one edge");
+        }
+        for (int v = 0; v < indexed.size(); v++) {
+            check(exitCapacity <= 0 || exitLoad[v] <= exitCapacity, plan + ": " + exitLoad[v] + " people at one exit");
+            check(leaving[v] <= people[v], plan + ": more people leave node " + v + " than were there");
+        }
+    }
+
+    /** {people routed, total cost} of a min-cost max-flow from the occupied nodes to the ENTRANCE nodes. */
+    private static double[] minCostMaxFlow(IndexedGraph indexed, int[] people, int edgeCapacity, int exitCapacity) {
+        int n = indexed.size();
+        int source = n;
+        int sink = n + 1;
+        int supply = Arrays.stream(people).sum();
+        int maxArcs = 2 * (indexed.edgeCount() + 2 * n);
+        int[] from = new int[maxArcs];
+        int[] to = new int[maxArcs];
+        int[] capacity = new int[maxArcs];
+        double[] cost = new double[maxArcs];
+        int arcs = 0;
+        for (int u = 0; u < n; u++) {
+            for (int e = indexed.outStart(u); e < indexed.outEnd(u); e++) {
+                arcs = addArc(from, to, capacity, cost, arcs, u, indexed.outTarget(e), edgeCapacity,
+                        indexed.outWeight(e));
+            }
+            if (people[u] > 0) {
+                arcs = addArc(from, to, capacity, cost, arcs, source, u, people[u], 0);
+            }
+            if (indexed.node(u).getLandmarkType() == LandmarkType.ENTRANCE) {
+                arcs = addArc(from, to, capacity, cost, arcs, u, sink, exitCapacity > 0 ? exitCapacity : supply, 0);
+            }
+        }
+
+        int routed = 0;
+        double totalCost = 0;
+        double[] dist = new double[n + 2];
+        int[] via = new int[n + 2];
+        while (true) {
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(via, -1);
+            dist[source] = 0;
+            for (boolean changed = true; changed; ) {
+                changed = false;
+                for (int a = 0; a < arcs; a++) {
+                    if (capacity[a] > 0 && dist[from[a]] + cost[a] < dist[to[a]] - 1e-12) {
+                        dist[to[a]] = dist[from[a]] + cost[a];
+                        via[to[a]] = a;
+                        changed = true;
+                    }
+                }
+            }
+            if (dist[sink] == Double.POSITIVE_INFINITY) {
+                return new double[] {routed, totalCost};
+            }
+            int push = Integer.MAX_VALUE;
+            for (int v = sink; v != source; v = from[via[v]]) {
+                push = Math.min(push, capacity[via[v]]);
+            }
+            for (int v = sink; v != source; v = from[via[v]]) {
+                capacity[via[v]] -= push;
+                capacity[via[v] ^ 1] += push;
+            }
+            routed += push;
+            totalCost += push * dist[sink];
+        }
+    }
+
+    /** Adds an arc and its zero-capacity reverse at arcs and arcs + 1. */
+    private static int addArc(int[] from, int[] to, int[] capacity, double[] cost, int arcs, int u, int v,
+            int arcCapacity, double arcCost) {
+        from[arcs] = u;
+        to[arcs] = v;
+        capacity[arcs] = arcCapacity;
+        cost[arcs] = arcCost;
+        from[arcs + 1] = v;
+        to[arcs + 1] = u;
+        cost[arcs + 1] = -arcCost;
+        return arcs + 2;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.Random;
+
+/**
+ * Checks HubLabels against a plain Dijkstra on the sample campus and on seeded random grids, with
+ * hubs ranked by the overlay's separator order and by a shuffled order. {@code distance} must be
+ * within {@link HubLabels#DISTANCE_QUANTUM} of the Dijkstra distance, and {@code query} must return
+ * it exactly along a path whose edge weights add up to it.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/HubLabelsTest.java
+ * java -cp out HubLabelsTest
+ * </pre>
+ */
+public class HubLabelsTest {
+    private static final TimeOfDay[] PROFILES = {null, TimeOfDay.MORNING_RUSH};
+
+    public static void main(String[] args) throws Exception {
+        int checked = checkGraph(TestGraphs.sample(), 1, new Random(1));
+        checked += checkGraph(TestGraphs.random(25, 25, 5), 13, new Random(2));
+        checked += checkGraph(TestGraphs.random(60, 6, 6), 17, new Random(3));
+        System.out.println("HubLabelsTest passed (" + checked + " pairs)");
+    }
+
+    private static int checkGraph(CampusGraph graph, int sourceStride, Random random) {
+        int checked = 0;
+        for (TimeOfDay profile : PROFILES) {
+            IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), profile);
+            HubLabels separator = HubLabels.build(indexed, OverlayPartition.build(indexed));
+            HubLabels shuffled = HubLabels.build(indexed, shuffledOrder(indexed.size(), random));
+            for (int s = random.nextInt(sourceStride); s < indexed.size(); s += sourceStride) {
+                double[] dist = TestGraphs.dijkstra(indexed, s);
+                for (int t = 0; t < indexed.size(); t++) {
+                    checkPair(separator, indexed, s, t, dist[t], "separator order " + profile);
+                    checkPair(shuffled, indexed, s, t, dist[t], "shuffled order " + profile);
+                    checked++;
+                }
+            }
+        }
+        return checked;
+    }
+
+    private static void checkPair(HubLabels labels, IndexedGraph indexed, int s, int t, double want, String label) {
+        String query = s + "->" + t + " " + label;
+        double approximate = labels.distance(s, t);
+        if (want == Double.POSITIVE_INFINITY) {
+            check(approximate == want, query + ": unreachable but distance is " + approximate);
+            check(labels.query(s, t, new SearchStats()).isEmpty(), query + ": unreachable but a path came back");
+            return;
+        }
+        check(Math.abs(approximate - want) <= HubLabels.DISTANCE_QUANTUM,
+                query + ": distance " + approximate + ", want " + want);
+        IndexedPath path = labels.query(s, t, new SearchStats());
+        int[] nodes = path.getNodes();
+        check(TestGraphs.same(path.getDistance(), want), query + ": path distance " + path.getDistance());
+        check(nodes[0] == s && nodes[nodes.length - 1] == t, query + ": path has wrong endpoints");
+        check(TestGraphs.same(TestGraphs.pathWeight(indexed, nodes), want),
+                query + ": path weighs " + TestGraphs.pathWeight(indexed, nodes));
+    }
+
+    private static int[] shuffledOrder(int n, Random random) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
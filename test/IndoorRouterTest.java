@@ -0,0 +1,295 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Checks PathfindingEngine.findIndoorRoute against a plain Dijkstra over one flattened graph, on the
+ * sample campus and on a seeded random grid with seeded multi-floor buildings. The flattened graph
+ * holds every campus edge, every indoor edge weighed by its {@link IndoorEdgeKind}, and a free link
+ * both ways between each entrance and its campus node. Routes must have the reference weight, add
+ * up to it leg by leg, and begin and end at the requested rooms; buildings that are only crossed
+ * must not be loaded.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/IndoorRouterTest.java
+ * java -cp out IndoorRouterTest
+ * </pre>
+ */
+public class IndoorRouterTest {
+    private static final int FLOORS = 3;
+    private static final int ROOMS_PER_FLOOR = 6;
+
+    public static void main(String[] args) throws Exception {
+        int checked = checkCampus(TestGraphs.sample(), 3, 400, new Random(1));
+        checked += checkCampus(TestGraphs.random(20, 20, 17), 12, 600, new Random(2));
+        System.out.println("IndoorRouterTest passed (" + checked + " routes)");
+    }
+
+    /** A building as generated: its interior plus the edges and entrances it was loaded from. */
+    private static final class Building {
+        final String id;
+        final IndoorGraph interior;
+        final int[] nodeIds = new int[FLOORS * ROOMS_PER_FLOOR];
+        final List<double[]> edges = new ArrayList<>();
+        final Map<Integer, Integer> entrances = new HashMap<>();
+        int offset;
+
+        Building(String id, IndexedGraph campus, Random random) throws IOException {
+            this.id = id;
+            StringBuilder nodes = new StringBuilder("node_id,name,floor,entrance\n");
+            StringBuilder edgeCsv = new StringBuilder("source,target,length,kind\n");
+            int centre = random.nextInt(campus.size());
+            for (int floor = 0, k = 0; floor < FLOORS; floor++) {
+                for (int room = 0; room < ROOMS_PER_FLOOR; room++, k++) {
+                    int nodeId = floor * 100 + room;
+                    nodeIds[k] = nodeId;
+                    String entrance = "";
+                    if (floor == 0 && room < 3) {
+                        // Entrances onto the centre node or its outdoor neighbours
+                        int campusNode = centre;
+                        int degree = campus.outEnd(centre) - campus.outStart(centre);
+                        if (room > 0 && degree > 0) {
+                            campusNode = campus.outTarget(campus.outStart(centre) + random.nextInt(degree));
+                        }
+                        entrance = String.valueOf(campus.node(campusNode).getId());
+                        entrances.put(nodeId, campus.node(campusNode).getId());
+                    }
+                    nodes.append(nodeId).append(",Room ").append(nodeId).append(',').append(floor).append(',')
+                            .append(entrance).append('\n');
+                    if (room > 0) {
+                        addEdge(edgeCsv, nodeId - 1, nodeId, 5 + random.nextInt(40), IndoorEdgeKind.CORRIDOR);
+                    }
+                }
+            }
+            for (int floor = 1; floor < FLOORS; floor++) {
+                addEdge(edgeCsv, (floor - 1) * 100, floor * 100, 6, IndoorEdgeKind.STAIRS);
+                addEdge(edgeCsv, (floor - 1) * 100 + 5, floor * 100 + 5, 4, IndoorEdgeKind.LIFT);
+            }
+            interior = DataReader.loadBuilding(id,
+                    new ByteArrayInputStream(nodes.toString().getBytes(StandardCharsets.UTF_8)),
+                    new ByteArrayInputStream(edgeCsv.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void addEdge(StringBuilder csv, int u, int v, double length, IndoorEdgeKind kind) {
+            csv.append(u).append(',').append(v).append(',').append(length).append(',').append(kind).append('\n');
+            edges.add(new double[] {local(u), local(v), kind.weigh(length)});
+        }
+
+        int local(int nodeId) {
+            return nodeId / 100 * ROOMS_PER_FLOOR + nodeId % 100;
+        }
+    }
+
+    private static int checkCampus(CampusGraph graph, int buildingCount, int queries, Random random)
+            throws IOException {
+        IndexedGraph campus = IndexedGraph.build(graph.currentVersion(), TimeOfDay.NORMAL_HOURS);
+        Map<String, Building> buildings = new HashMap<>();
+        List<Building> list = new ArrayList<>();
+        int total = campus.size();
+        for (int b = 0; b < buildingCount; b++) {
+            Building building = new Building("B" + b, campus, random);
+            building.offset = total;
+            total += building.nodeIds.length;
+            buildings.put(building.id, building);
+            list.add(building);
+        }
+
+        // The flattened reference graph
+        List<List<double[]>> adjacency = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            adjacency.add(new ArrayList<>());
+        }
+        for (int u = 0; u < campus.size(); u++) {
+            for (int e = campus.outStart(u); e < campus.outEnd(u); e++) {
+                adjacency.get(u).add(new double[] {campus.outTarget(e), campus.outWeight(e)});
+            }
+        }
+        for (Building building : list) {
+            for (double[] edge : building.edges) {
+                int u = building.offset + (int) edge[0];
+                int v = building.offset + (int) edge[1];
+                adjacency.get(u).add(new double[] {v, edge[2]});
+                adjacency.get(v).add(new double[] {u, edge[2]});
+            }
+            for (Map.Entry<Integer, Integer> entrance : building.entrances.entrySet()) {
+                int inside = building.offset + building.local(entrance.getKey());
+                int outside = campus.indexOf(entrance.getValue());
+                adjacency.get(inside).add(new double[] {outside, 0});
+                adjacency.get(outside).add(new double[] {inside, 0});
+            }
+        }
+
+        BuildingCatalog catalog = new BuildingCatalog(id -> buildings.get(id).interior);
+        for (Building building : list) {
+            catalog.register(building.id);
+            catalog.evict(building.id);
+        }
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        engine.setBuildingCatalog(catalog);
+
+        for (int q = 0; q < queries; q++) {
+            int[] from = new int[1];
+            int[] to = new int[1];
+            IndoorLocation start = location(campus, list, random, from);
+            IndoorLocation end = q % 5 == 0 && start.isIndoors()
+                    ? location(campus, Arrays.asList(buildings.get(start.getBuildingId())), random, to, true)
+                    : location(campus, list, random, to);
+            long loadsBefore = catalog.getLoadCount();
+            IndoorRoute route = engine.findIndoorRoute(start, end, TimeOfDay.NORMAL_HOURS);
+            String query = q + ": " + describe(start) + " -> " + describe(end);
+            if (!start.isIndoors() && !end.isIndoors()) {
+                check(catalog.getLoadCount() == loadsBefore, query + ": an outdoor route loaded a building");
+            }
+
+            double want = dijkstra(adjacency, from[0], -1, -1)[to[0]];
+            check(TestGraphs.same(route.getWeight(), want), query + ": weight " + route.getWeight() + ", want " + want);
+            check(route.isFound() == (want < Double.POSITIVE_INFINITY), query + ": isFound disagrees");
+            if (!route.isFound()) {
+                continue;
+            }
+            checkLegs(route, start, end, campus, buildings, adjacency, query);
+        }
+        return queries;
+    }
+
+    private static void checkLegs(IndoorRoute route, IndoorLocation start, IndoorLocation end, IndexedGraph campus,
+            Map<String, Building> buildings, List<List<double[]>> adjacency, String query) {
+        List<CampusNode> outdoor = route.getOutdoorPath();
+        double weight = 0;
+        if (start.isIndoors()) {
+            List<IndoorNode> legs = route.getStartInterior();
+            check(!legs.isEmpty() && legs.get(0).getId() == start.getIndoorNodeId(),
+                    query + ": starts in the wrong room");
+            weight += interiorWeight(buildings.get(start.getBuildingId()), legs, adjacency);
+        } else {
+            check(route.getStartInterior().isEmpty() && outdoor.get(0).getId() == start.getCampusNode().getId(),
+                    query + ": does not start at the campus node");
+        }
+        if (end.isIndoors()) {
+            List<IndoorNode> legs = route.getEndInterior();
+            if (outdoor.isEmpty() && legs.isEmpty()) {
+                legs = route.getStartInterior();
+            } else {
+                weight += interiorWeight(buildings.get(end.getBuildingId()), legs, adjacency);
+            }
+            check(!legs.isEmpty() && legs.get(legs.size() - 1).getId() == end.getIndoorNodeId(),
+                    query + ": ends in the wrong room");
+        } else {
+            check(route.getEndInterior().isEmpty()
+                    && outdoor.get(outdoor.size() - 1).getId() == end.getCampusNode().getId(),
+                    query + ": does not end at the campus node");
+        }
+
+        check(route.getPassages().size() == Math.max(0, outdoor.size() - 1), query + ": one passage per hop");
+        for (int i = 0; i + 1 < outdoor.size(); i++) {
+            int u = campus.indexOf(outdoor.get(i).getId());
+            int v = campus.indexOf(outdoor.get(i + 1).getId());
+            String passage = route.getPassages().get(i);
+            if (passage == null) {
+                weight += TestGraphs.pathWeight(campus, new int[] {u, v});
+            } else {
+                weight += crossing(buildings.get(passage), u, v, campus, adjacency);
+            }
+        }
+        check(TestGraphs.same(weight, route.getWeight()),
+                query + ": legs add up to " + weight + ", route weighs " + route.getWeight());
+    }
+
+    /** Weight of walking the listed rooms in order over single indoor edges. */
+    private static double interiorWeight(Building building, List<IndoorNode> rooms, List<List<double[]>> adjacency) {
+        double weight = 0;
+        for (int i = 0; i + 1 < rooms.size(); i++) {
+            int u = building.offset + building.local(rooms.get(i).getId());
+            int v = building.offset + building.local(rooms.get(i + 1).getId());
+            double best = Double.NaN;
+            for (double[] edge : adjacency.get(u)) {
+                if ((int) edge[0] == v && !(edge[1] >= best)) {
+                    best = edge[1];
+                }
+            }
+            weight += best;
+        }
+        return weight;
+    }
+
+    /** Lightest walk through building from an entrance onto campus node u to one onto v. */
+    private static double crossing(Building building, int u, int v, IndexedGraph campus,
+            List<List<double[]>> adjacency) {
+        double best = Double.POSITIVE_INFINITY;
+        for (Map.Entry<Integer, Integer> in : building.entrances.entrySet()) {
+            if (campus.indexOf(in.getValue()) != u) {
+                continue;
+            }
+            int source = building.offset + building.local(in.getKey());
+            double[] dist = dijkstra(adjacency, source, building.offset, building.offset + building.nodeIds.length);
+            for (Map.Entry<Integer, Integer> out : building.entrances.entrySet()) {
+                if (campus.indexOf(out.getValue()) == v) {
+                    best = Math.min(best, dist[building.offset + building.local(out.getKey())]);
+                }
+            }
+        }
+        return best;
+    }
+
+    private static IndoorLocation location(IndexedGraph campus, List<Building> buildings, Random random,
+            int[] flatIndex) {
+        return location(campus, buildings, random, flatIndex, random.nextBoolean());
+    }
+
+    private static IndoorLocation location(IndexedGraph campus, List<Building> buildings, Random random,
+            int[] flatIndex, boolean indoors) {
+        if (!indoors) {
+            flatIndex[0] = random.nextInt(campus.size());
+            return IndoorLocation.outdoors(campus.node(flatIndex[0]));
+        }
+        Building building = buildings.get(random.nextInt(buildings.size()));
+        int room = random.nextInt(building.nodeIds.length);
+        flatIndex[0] = building.offset + room;
+        return IndoorLocation.inside(building.id, building.nodeIds[room]);
+    }
+
+    private static String describe(IndoorLocation location) {
+        return location.isIndoors() ? location.getBuildingId() + "/" + location.getIndoorNodeId()
+                : String.valueOf(location.getCampusNode().getId());
+    }
+
+    /** Plain Dijkstra over the flattened graph, kept to nodes in [low, high) when low >= 0. */
+    private static double[] dijkstra(List<List<double[]>> adjacency, int source, int low, int high) {
+        double[] dist = new double[adjacency.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[] {0, source});
+        while (!queue.isEmpty()) {
+            double[] top = queue.poll();
+            int u = (int) top[1];
+            if (top[0] > dist[u]) {
+                continue;
+            }
+            for (double[] edge : adjacency.get(u)) {
+                int v = (int) edge[0];
+                if (low >= 0 && (v < low || v >= high)) {
+                    continue;
+                }
+                if (dist[u] + edge[1] < dist[v]) {
+                    dist[v] = dist[u] + edge[1];
+                    queue.add(new double[] {dist[v], v});
+                }
+            }
+        }
+        return dist;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
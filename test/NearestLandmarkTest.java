@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks PathfindingEngine.findNearestLandmarks against a plain Dijkstra from the origin, on the
+ * sample campus and on seeded random grids, for every landmark type and traffic profile. Both the
+ * precomputed labels (small k) and the exact search behind them (large k) are covered.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/NearestLandmarkTest.java
+ * java -cp out NearestLandmarkTest
+ * </pre>
+ */
+public class NearestLandmarkTest {
+    private static final int[] KS = {1, 3, 5, 8};
+    private static final TimeOfDay[] PROFILES = {null, TimeOfDay.MORNING_RUSH, TimeOfDay.EVENING_RUSH};
+
+    public static void main(String[] args) throws Exception {
+        int checked = checkGraph(TestGraphs.sample(), 1);
+        checked += checkGraph(TestGraphs.random(12, 12, 1), 7);
+        checked += checkGraph(TestGraphs.random(20, 9, 2), 11);
+        System.out.println("NearestLandmarkTest passed (" + checked + " queries)");
+    }
+
+    private static int checkGraph(CampusGraph graph, int originStride) {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        int checked = 0;
+        for (TimeOfDay profile : PROFILES) {
+            IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), profile);
+            for (int origin = 0; origin < indexed.size(); origin += originStride) {
+                double[] dist = TestGraphs.dijkstra(indexed, origin);
+                for (LandmarkType type : LandmarkType.values()) {
+                    List<Double> expected = new ArrayList<>();
+                    for (int v = 0; v < indexed.size(); v++) {
+                        if (indexed.node(v).getLandmarkType() == type && dist[v] < Double.POSITIVE_INFINITY) {
+                            expected.add(dist[v]);
+                        }
+                    }
+                    Collections.sort(expected);
+                    for (int k : KS) {
+                        List<LandmarkDistance> got =
+                                engine.findNearestLandmarks(indexed.node(origin), type, k, profile);
+                        String query = indexed.node(origin).getId() + " " + type + " k=" + k + " " + profile;
+                        check(got.size() == Math.min(k, expected.size()),
+                                query + ": expected " + Math.min(k, expected.size()) + " landmarks, got " + got.size());
+                        for (int i = 0; i < got.size(); i++) {
+                            LandmarkDistance entry = got.get(i);
+                            int landmark = indexed.indexOf(entry.getLandmark().getId());
+                            check(entry.getLandmark().getLandmarkType() == type, query + ": wrong type at rank " + i);
+                            check(TestGraphs.same(entry.getDistance(), expected.get(i)),
+                                    query + ": rank " + i + " is " + entry.getDistance() + ", want " + expected.get(i));
+                            check(TestGraphs.same(entry.getDistance(), dist[landmark]),
+                                    query + ": distance to " + entry.getLandmark().getId() + " is " + dist[landmark]);
+                        }
+                        checked++;
+                    }
+                }
+            }
+        }
+        return checked;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
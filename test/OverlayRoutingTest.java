@@ -0,0 +1,60 @@
+import java.util.Random;
+
+/**
+ * Checks the multi-level overlay (OverlayPartition and OverlayMetrics) against a plain Dijkstra on
+ * the sample campus and on seeded random grids. Each partition is built once from the topology
+ * and customized for several traffic profiles, and every answer must have the Dijkstra distance
+ * and a path whose edge weights add up to it.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/OverlayRoutingTest.java
+ * java -cp out OverlayRoutingTest
+ * </pre>
+ */
+public class OverlayRoutingTest {
+    /** {maxCellSize, fanout}: from two-node cells with deep hierarchies up to a single cell. */
+    private static final int[][] PARTITIONS = {{2, 2}, {4, 3}, {16, 4}, {64, 2}, {4096, 16}};
+    private static final TimeOfDay[] PROFILES = {null, TimeOfDay.MORNING_RUSH, TimeOfDay.EVENING_RUSH};
+
+    public static void main(String[] args) throws Exception {
+        int checked = checkGraph(TestGraphs.sample(), 1, 1, new Random(1));
+        checked += checkGraph(TestGraphs.random(30, 30, 3), 61, 9, new Random(2));
+        checked += checkGraph(TestGraphs.random(45, 12, 4), 67, 7, new Random(3));
+        System.out.println("OverlayRoutingTest passed (" + checked + " queries)");
+    }
+
+    private static int checkGraph(CampusGraph graph, int sourceStride, int targetStride, Random random) {
+        IndexedGraph topology = IndexedGraph.build(graph.currentVersion(), null);
+        int checked = 0;
+        for (int[] params : PARTITIONS) {
+            OverlayPartition partition = OverlayPartition.build(topology, params[0], params[1]);
+            for (TimeOfDay profile : PROFILES) {
+                IndexedGraph weights = IndexedGraph.build(graph.currentVersion(), profile);
+                OverlayMetrics metrics = OverlayMetrics.customize(partition, weights);
+                for (int s = random.nextInt(sourceStride); s < weights.size(); s += sourceStride) {
+                    double[] dist = TestGraphs.dijkstra(weights, s);
+                    for (int t = random.nextInt(targetStride); t < weights.size(); t += targetStride) {
+                        String query = s + "->" + t + " cells " + params[0] + "/" + params[1] + " " + profile;
+                        IndexedPath path = metrics.query(s, t, new SearchStats());
+                        check(TestGraphs.same(path.getDistance(), dist[t]),
+                                query + ": distance " + path.getDistance() + ", want " + dist[t]);
+                        if (dist[t] < Double.POSITIVE_INFINITY) {
+                            int[] nodes = path.getNodes();
+                            check(nodes[0] == s && nodes[nodes.length - 1] == t, query + ": path has wrong endpoints");
+                            check(TestGraphs.same(TestGraphs.pathWeight(weights, nodes), dist[t]),
+                                    query + ": path weighs " + TestGraphs.pathWeight(weights, nodes));
+                        }
+                        checked++;
+                    }
+                }
+            }
+        }
+        return checked;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
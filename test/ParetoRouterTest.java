@@ -0,0 +1,107 @@
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Checks ParetoRouter on the sample campus and on seeded random grids: the returned front must
+ * hold the plain-Dijkstra length optimum, come within epsilon of the time and heavy-traffic
+ * optima (exactly with epsilon 0), stay within maxRoutes, and with epsilon 0 contain no route
+ * dominated by another. Dominance is
+ * compared exactly, as the router does, so routes that tie but for rounding both count.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/ParetoRouterTest.java
+ * java -cp out ParetoRouterTest
+ * </pre>
+ */
+public class ParetoRouterTest {
+    private static final int MAX_ROUTES = 5;
+
+    public static void main(String[] args) throws Exception {
+        int checked = checkGraph(TestGraphs.sample(), 1, 1, new Random(1));
+        checked += checkGraph(TestGraphs.random(20, 20, 7), 29, 13, new Random(2));
+        checked += checkGraph(TestGraphs.random(40, 8, 8), 37, 11, new Random(3));
+        System.out.println("ParetoRouterTest passed (" + checked + " queries)");
+    }
+
+    private static int checkGraph(CampusGraph graph, int sourceStride, int targetStride, Random random) {
+        IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), TimeOfDay.MORNING_RUSH);
+        IntToDoubleFunction[] criteria = {
+            indexed::outLength,
+            indexed::outTime,
+            e -> indexed.outCondition(e) == TrafficCondition.HEAVY ? indexed.outLength(e) : 0,
+        };
+        double[] epsilons = {ParetoRouter.DEFAULT_EPSILON, 0.0};
+        ParetoRouter[] routers = {
+            new ParetoRouter(indexed),
+            new ParetoRouter(indexed, 4, epsilons[1]),
+        };
+        int checked = 0;
+        for (int s = random.nextInt(sourceStride); s < indexed.size(); s += sourceStride) {
+            double[][] optimum = new double[criteria.length][];
+            for (int c = 0; c < criteria.length; c++) {
+                optimum[c] = TestGraphs.dijkstra(indexed, s, criteria[c]);
+            }
+            for (int t = random.nextInt(targetStride); t < indexed.size(); t += targetStride) {
+                if (s == t) {
+                    continue;
+                }
+                for (int r = 0; r < routers.length; r++) {
+                    String query = s + "->" + t + " router " + r;
+                    List<IndexedPath> front = routers[r].query(s, t, MAX_ROUTES, null, new SearchStats());
+                    if (optimum[0][t] == Double.POSITIVE_INFINITY) {
+                        check(front.isEmpty(), query + ": unreachable but a route came back");
+                        continue;
+                    }
+                    check(!front.isEmpty() && front.size() <= MAX_ROUTES, query + ": front of " + front.size());
+                    double[][] costs = new double[front.size()][criteria.length];
+                    for (int i = 0; i < front.size(); i++) {
+                        int[] nodes = front.get(i).getNodes();
+                        check(nodes[0] == s && nodes[nodes.length - 1] == t, query + ": route has wrong endpoints");
+                        check(TestGraphs.same(front.get(i).getDistance(), TestGraphs.pathWeight(indexed, nodes)),
+                                query + ": route distance does not match its edges");
+                        for (int c = 0; c < criteria.length; c++) {
+                            costs[i][c] = TestGraphs.pathCost(indexed, nodes, criteria[c]);
+                        }
+                    }
+                    for (int c = 0; c < criteria.length; c++) {
+                        double best = Double.POSITIVE_INFINITY;
+                        for (double[] cost : costs) {
+                            best = Math.min(best, cost[c]);
+                        }
+                        double allowed = c == 0 ? optimum[c][t] : optimum[c][t] * (1 + epsilons[r]);
+                        check(best <= allowed + 1e-6,
+                                query + ": best on criterion " + c + " is " + best + ", Dijkstra " + optimum[c][t]);
+                    }
+                    if (r == 1) {
+                        for (int i = 0; i < costs.length; i++) {
+                            for (int j = 0; j < costs.length; j++) {
+                                check(i == j || !dominates(costs[j], costs[i]),
+                                        query + ": route " + i + " is dominated by route " + j);
+                            }
+                        }
+                    }
+                    checked++;
+                }
+            }
+        }
+        return checked;
+    }
+
+    private static boolean dominates(double[] a, double[] b) {
+        boolean better = false;
+        for (int c = 0; c < a.length; c++) {
+            if (a[c] > b[c]) {
+                return false;
+            }
+            better |= a[c] < b[c];
+        }
+        return better;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks query budgets and the bounded-suboptimal searches behind them against a plain Dijkstra
+ * on the sample campus and on seeded grids whose edges are never shorter than the straight line,
+ * so the A* heuristics are admissible. A query within its node budget must return the optimal
+ * route; one that outgrows it must fall back to weighted A* and stay within
+ * {@link PathfindingEngine#FALLBACK_SEARCH_WEIGHT} of optimal, or come back empty once the fallback
+ * runs out too. Preview routes from anytime A* must stay within the bound they report, which never
+ * exceeds the starting weight and reaches 1 given time. Budgets count settled nodes only, with no
+ * deadline, so every outcome is deterministic.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/QueryBudgetTest.java
+ * java -cp out QueryBudgetTest
+ * </pre>
+ */
+public class QueryBudgetTest {
+    private static final long[] NODE_BUDGETS = {5, 20, 80, 320, Long.MAX_VALUE};
+    private static final double[] EPSILONS = {0.05, 0.2, 1.0};
+    private static final long[] PREVIEW_DEADLINES_MICROS = {0, 200, 10_000_000};
+
+    public static void main(String[] args) throws Exception {
+        checkValidation();
+        int[] levels = new int[DegradationLevel.values().length];
+        int checked = checkGraph(TestGraphs.sample(), 1, levels, new Random(1));
+        checked += checkGraph(TestGraphs.geometric(30, 30, 21), 61, levels, new Random(2));
+        checked += checkGraph(TestGraphs.geometric(60, 8, 22), 41, levels, new Random(3));
+        for (DegradationLevel level : new DegradationLevel[] {DegradationLevel.NONE, DegradationLevel.SUBOPTIMAL,
+                DegradationLevel.BUDGET_EXHAUSTED}) {
+            check(levels[level.ordinal()] > 0, "no query ended " + level);
+        }
+        checkTourBudget(TestGraphs.geometric(30, 30, 21));
+        System.out.println("QueryBudgetTest passed (" + checked + " queries)");
+    }
+
+    private static void checkValidation() throws Exception {
+        checkRejected(() -> QueryBudget.of(0, 0, 0), "a budget of 0 nodes");
+        checkRejected(() -> QueryBudget.of(1, -1, 0), "a negative timeout");
+        checkRejected(() -> QueryBudget.of(1, 0, -1), "a negative number of alternatives");
+        PathfindingEngine engine = new PathfindingEngine(TestGraphs.sample(), 0);
+        checkRejected(() -> engine.setSuboptimalityEpsilon(0), "an epsilon of 0");
+        checkRejected(() -> engine.setSuboptimalityEpsilon(Double.NaN), "an epsilon of NaN");
+    }
+
+    private static int checkGraph(CampusGraph graph, int stride, int[] levels, Random random) {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        engine.setEnabledBackends(EnumSet.of(RoutingBackend.DIJKSTRA, RoutingBackend.A_STAR,
+                RoutingBackend.WEIGHTED_A_STAR, RoutingBackend.ANYTIME_A_STAR));
+        int checked = 0;
+        int loosePreviews = 0;
+        for (TimeOfDay profile : new TimeOfDay[] {null, TimeOfDay.EVENING_RUSH}) {
+            IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), profile);
+            for (int s = random.nextInt(stride); s < indexed.size(); s += stride) {
+                double[] dist = TestGraphs.dijkstra(indexed, s);
+                for (int t = random.nextInt(stride); t < indexed.size(); t += stride) {
+                    String query = s + "->" + t + " " + profile;
+                    CampusNode source = indexed.node(s);
+                    CampusNode destination = indexed.node(t);
+                    for (long nodes : NODE_BUDGETS) {
+                        RoutingResult result = engine.findOptimalRoutes(source, destination, null, profile,
+                                RouteConstraints.NONE, RoutingListener.NONE, QueryBudget.of(nodes, 0, 0));
+                        checkBudgeted(result, indexed, dist[t], nodes, query + " within " + nodes + " nodes");
+                        levels[result.getDegradationLevel().ordinal()]++;
+                        checked++;
+                    }
+                    if (profile == null) {
+                        // Full queries run every backend, so one profile is enough for the slowest check
+                        checkAlternatives(engine, indexed, source, destination, profile, dist[t], query);
+                    }
+                    for (double epsilon : EPSILONS) {
+                        engine.setSuboptimalityEpsilon(epsilon);
+                        for (long deadline : PREVIEW_DEADLINES_MICROS) {
+                            BoundedRoute preview = engine.findPreviewRoute(source, destination, profile, deadline);
+                            checkPreview(preview, indexed, dist[t], epsilon, deadline,
+                                    query + " epsilon " + epsilon + " within " + deadline + " us");
+                            loosePreviews += preview.getRoute().getAdjustedDistance() > dist[t] + 1e-6 ? 1 : 0;
+                        }
+                    }
+                }
+            }
+        }
+        check(graph.getNodeCount() < 100 || loosePreviews > 0, "every preview was optimal, so no bound was tested");
+        return checked;
+    }
+
+    /** With no alternatives allowed the only route is the exact one, the weighted A* fallback or none. */
+    private static void checkBudgeted(RoutingResult result, IndexedGraph indexed, double optimum, long nodes,
+            String query) {
+        Route route = result.getOptimalRoute();
+        List<AlgorithmResult> runs = result.getAlgorithmResults();
+        switch (result.getDegradationLevel()) {
+            case NONE:
+                check(runs.size() == 1 && runs.get(0).getSuboptimalityBound() == 1.0,
+                        query + ": an exact answer should come from one exact run");
+                if (optimum == Double.POSITIVE_INFINITY) {
+                    check(route == null, query + ": unreachable but a route came back");
+                } else {
+                    checkRoute(route, indexed, query);
+                    check(TestGraphs.same(route.getAdjustedDistance(), optimum),
+                            query + ": " + route.getAdjustedDistance() + ", want " + optimum);
+                }
+                break;
+            case SUBOPTIMAL:
+                check(nodes != Long.MAX_VALUE, query + ": degraded without a node budget");
+                AlgorithmResult fallback = runs.get(runs.size() - 1);
+                check(fallback.getAlgorithmName().equals("Weighted A*")
+                        && fallback.getSuboptimalityBound() == PathfindingEngine.FALLBACK_SEARCH_WEIGHT,
+                        query + ": fallback ran as " + fallback.getAlgorithmName() + " with bound "
+                                + fallback.getSuboptimalityBound());
+                if (optimum == Double.POSITIVE_INFINITY) {
+                    check(route == null, query + ": unreachable but a route came back");
+                } else {
+                    checkRoute(route, indexed, query);
+                    double weight = route.getAdjustedDistance();
+                    check(weight >= optimum - 1e-6
+                            && weight <= PathfindingEngine.FALLBACK_SEARCH_WEIGHT * optimum + 1e-6,
+                            query + ": fallback route of " + weight + " against an optimum of " + optimum);
+                }
+                break;
+            case BUDGET_EXHAUSTED:
+                check(nodes != Long.MAX_VALUE, query + ": exhausted without a node budget");
+                check(route == null && result.getAlternativeRoutes().isEmpty(),
+                        query + ": an exhausted budget should return no route");
+                break;
+            default:
+                throw new AssertionError(query + ": unexpected level " + result.getDegradationLevel());
+        }
+        check(result.getAlternativeRoutes().size() <= 1, query + ": alternatives beyond a budget of none");
+    }
+
+    /** Without a node budget, maxAlternatives caps the routes and the optimum is always among them. */
+    private static void checkAlternatives(PathfindingEngine engine, IndexedGraph indexed, CampusNode source,
+            CampusNode destination, TimeOfDay profile, double optimum, String query) {
+        for (int maxAlternatives : new int[] {1, 3}) {
+            String budgeted = query + " with " + maxAlternatives + " alternatives";
+            RoutingResult result = engine.findOptimalRoutes(source, destination, null, profile, RouteConstraints.NONE,
+                    RoutingListener.NONE, QueryBudget.of(Long.MAX_VALUE, 0, maxAlternatives));
+            check(result.getDegradationLevel() == DegradationLevel.NONE,
+                    budgeted + ": degraded to " + result.getDegradationLevel());
+            List<Route> routes = new ArrayList<>(result.getAlternativeRoutes());
+            check(routes.size() <= maxAlternatives + 1, budgeted + ": " + routes.size() + " routes");
+            if (optimum == Double.POSITIVE_INFINITY) {
+                check(result.getOptimalRoute() == null && routes.isEmpty(), budgeted + ": unreachable but routed");
+                continue;
+            }
+            double best = Double.POSITIVE_INFINITY;
+            for (Route route : routes) {
+                checkRoute(route, indexed, budgeted);
+                best = Math.min(best, route.getAdjustedDistance());
+            }
+            check(TestGraphs.same(best, optimum), budgeted + ": best route " + best + ", want " + optimum);
+            double epsilon = engine.getSuboptimalityEpsilon();
+            for (AlgorithmResult run : result.getAlgorithmResults()) {
+                double bound = run.getSuboptimalityBound();
+                String name = run.getAlgorithmName();
+                if (name.equals("Weighted A*")) {
+                    check(bound == 1 + epsilon, budgeted + ": weighted A* reports a bound of " + bound);
+                } else if (name.equals("Anytime A*")) {
+                    check(bound >= 1 && bound <= 1 + PathfindingEngine.ANYTIME_EPSILON_FACTOR * epsilon,
+                            budgeted + ": anytime A* reports a bound of " + bound);
+                } else {
+                    check(bound == 1.0, budgeted + ": exact backend " + name + " reports a bound of " + bound);
+                }
+            }
+        }
+    }
+
+    /** The preview stays within the bound it reports, which starts at 1 + 5 epsilon and reaches 1 given time. */
+    private static void checkPreview(BoundedRoute preview, IndexedGraph indexed, double optimum, double epsilon,
+            long deadlineMicros, String query) {
+        Route route = preview.getRoute();
+        if (optimum == Double.POSITIVE_INFINITY) {
+            check(route.getPath().isEmpty(), query + ": unreachable but a preview came back");
+            return;
+        }
+        checkRoute(route, indexed, query);
+        double bound = preview.getSuboptimalityBound();
+        double weight = route.getAdjustedDistance();
+        check(bound >= 1 && bound <= 1 + PathfindingEngine.ANYTIME_EPSILON_FACTOR * epsilon,
+                query + ": reports a bound of " + bound);
+        check(weight >= optimum - 1e-6 && weight <= bound * optimum + 1e-6,
+                query + ": preview of " + weight + " outside bound " + bound + " of " + optimum);
+        check(bound > 1 || TestGraphs.same(weight, optimum), query + ": bound 1 but " + weight + " > " + optimum);
+        check(deadlineMicros < PREVIEW_DEADLINES_MICROS[PREVIEW_DEADLINES_MICROS.length - 1] || bound == 1.0,
+                query + ": ten seconds should be enough to reach bound 1, reached " + bound);
+    }
+
+    /** The route must run along graph edges and weigh what it says. */
+    private static void checkRoute(Route route, IndexedGraph indexed, String query) {
+        check(route != null && !route.getPath().isEmpty(), query + ": reachable but no route came back");
+        List<CampusNode> path = route.getPath();
+        int[] nodes = new int[path.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = indexed.indexOf(path.get(i).getId());
+        }
+        check(TestGraphs.same(TestGraphs.pathWeight(indexed, nodes), route.getAdjustedDistance()),
+                query + ": route does not follow graph edges at its stated weight");
+    }
+
+    /** A tour has nothing cheaper to degrade to, so it fails when out of budget and the engine recovers. */
+    private static void checkTourBudget(CampusGraph graph) {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        List<TourStop> stops = new ArrayList<>();
+        for (int id : new int[] {29, 870, 899, 450}) {
+            stops.add(new TourStop(graph.getNode(id)));
+        }
+        CampusNode start = graph.getNode(0);
+        try {
+            engine.planTour(start, start, stops, null, QueryBudget.of(50, 0, 1));
+            throw new AssertionError("a tour within 50 settled nodes should have run out of budget");
+        } catch (BudgetExceededException expected) {
+            // The tour searches cover most of the grid
+        }
+        TourPlan plan = engine.planTour(start, start, stops, null, QueryBudget.UNLIMITED);
+        check(!plan.getRoute().getPath().isEmpty(), "a tour without a budget should be planned");
+        RoutingResult result = engine.findOptimalRoutes(start, graph.getNode(899), null, null, RouteConstraints.NONE,
+                RoutingListener.NONE, QueryBudget.of(Long.MAX_VALUE, 0, 0));
+        check(result.getDegradationLevel() == DegradationLevel.NONE,
+                "a query after a failed tour should not inherit its budget, got " + result.getDegradationLevel());
+    }
+
+    private static void checkRejected(Runnable action, String what) {
+        try {
+            action.run();
+            throw new AssertionError(what + " should have been rejected");
+        } catch (IllegalArgumentException expected) {
+            // Rejected as it should be
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks QueryDispatcher: answers match a plain Dijkstra on the sample campus and on a seeded
+ * random grid, identical requests in flight share one future, requests from one source are
+ * answered by one search when the batch fills or the dispatcher closes, and a closed dispatcher
+ * rejects new work without shutting down an executor it does not own. Searches run on a
+ * single-thread executor that the test holds shut, so nothing depends on timing; the batch window
+ * is either 0 or far longer than the test.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/QueryDispatcherTest.java
+ * java -cp out QueryDispatcherTest
+ * </pre>
+ */
+public class QueryDispatcherTest {
+    private static final long NEVER_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final RouteConstraints NONE = RouteConstraints.NONE;
+
+    public static void main(String[] args) throws Exception {
+        checkAnswers(TestGraphs.sample(), 1, new Random(1));
+        CampusGraph graph = TestGraphs.random(20, 20, 19);
+        checkAnswers(graph, 37, new Random(2));
+        checkCoalescing(graph);
+        checkBatching(graph);
+        checkClose(graph);
+        System.out.println("QueryDispatcherTest passed");
+    }
+
+    /** Every answer, batched or not, has the Dijkstra distance; unreachable ones are empty. */
+    private static void checkAnswers(CampusGraph graph, int sourceStride, Random random) throws Exception {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (long window : new long[] {0, 500}) {
+            try (QueryDispatcher dispatcher = new QueryDispatcher(engine, window, 8, executor)) {
+                for (TimeOfDay profile : new TimeOfDay[] {null, TimeOfDay.EVENING_RUSH}) {
+                    IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), profile);
+                    for (int s = random.nextInt(sourceStride); s < indexed.size(); s += sourceStride) {
+                        double[] dist = TestGraphs.dijkstra(indexed, s);
+                        List<CompletableFuture<Route>> futures = new ArrayList<>();
+                        for (int t = 0; t < indexed.size(); t++) {
+                            futures.add(dispatcher.route(indexed.node(s), indexed.node(t), profile, NONE));
+                        }
+                        for (int t = 0; t < indexed.size(); t++) {
+                            Route route = futures.get(t).get(10, TimeUnit.SECONDS);
+                            String query = s + "->" + t + " window " + window + " " + profile;
+                            if (dist[t] == Double.POSITIVE_INFINITY) {
+                                check(route.getPath().isEmpty(), query + ": unreachable but a path came back");
+                            } else {
+                                check(TestGraphs.same(route.getAdjustedDistance(), dist[t]),
+                                        query + ": " + route.getAdjustedDistance() + ", want " + dist[t]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        executor.shutdown();
+    }
+
+    /** Identical requests share a future while it is in flight, and only then. */
+    private static void checkCoalescing(CampusGraph graph) throws Exception {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        CountDownLatch gate = new CountDownLatch(1);
+        ExecutorService executor = heldExecutor(gate);
+        try (QueryDispatcher dispatcher = new QueryDispatcher(engine, 0, 64, executor)) {
+            CampusNode a = graph.getNode(0);
+            CampusNode b = graph.getNode(399);
+            CompletableFuture<Route> first = dispatcher.route(a, b, null, NONE);
+            CompletableFuture<Route> second = dispatcher.route(a, b, null, NONE);
+            CompletableFuture<Route> otherProfile = dispatcher.route(a, b, TimeOfDay.MORNING_RUSH, NONE);
+            CompletableFuture<Route> otherConstraints =
+                    dispatcher.route(a, b, null, RouteConstraints.WHEELCHAIR_ACCESSIBLE);
+            check(first == second, "identical in-flight requests should share a future");
+            check(first != otherProfile && first != otherConstraints,
+                    "requests under another profile or constraints must not be coalesced");
+            check(dispatcher.getCoalescedCount() == 1 && dispatcher.getRequestCount() == 4,
+                    "expected 1 of 4 requests coalesced, got " + dispatcher.getCoalescedCount() + " of "
+                            + dispatcher.getRequestCount());
+            check(!first.isDone(), "searches are held, so nothing should be answered yet");
+
+            gate.countDown();
+            Route route = first.get(10, TimeUnit.SECONDS);
+            otherProfile.get(10, TimeUnit.SECONDS);
+            otherConstraints.get(10, TimeUnit.SECONDS);
+            check(dispatcher.getSearchCount() == 3, "expected 3 searches, got " + dispatcher.getSearchCount());
+
+            CompletableFuture<Route> later = dispatcher.route(a, b, null, NONE);
+            check(later != first, "a request after the answer arrived must not reuse it");
+            check(later.get(10, TimeUnit.SECONDS).getAdjustedDistance() == route.getAdjustedDistance(),
+                    "a repeated request should get the same answer");
+            check(dispatcher.getCoalescedCount() == 1 && dispatcher.getSearchCount() == 4,
+                    "the later request should run its own search");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Requests from one source share a search once the batch fills; a partial batch waits for its window. */
+    private static void checkBatching(CampusGraph graph) throws Exception {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            QueryDispatcher dispatcher = new QueryDispatcher(engine, NEVER_MICROS, 4, executor);
+            CampusNode source = graph.getNode(210);
+            List<CompletableFuture<Route>> full = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                full.add(dispatcher.route(source, graph.getNode(10 + 50 * i), null, NONE));
+            }
+            for (CompletableFuture<Route> future : full) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            check(dispatcher.getSearchCount() == 1, "a full batch of 4 should take one search, took "
+                    + dispatcher.getSearchCount());
+
+            List<CompletableFuture<Route>> partial = new ArrayList<>();
+            partial.add(dispatcher.route(source, graph.getNode(5), null, NONE));
+            partial.add(dispatcher.route(source, graph.getNode(6), null, NONE));
+            partial.add(dispatcher.route(source, graph.getNode(7), TimeOfDay.MORNING_RUSH, NONE));
+            partial.add(dispatcher.route(graph.getNode(211), graph.getNode(8), null, NONE));
+            executor.submit(() -> { }).get(10, TimeUnit.SECONDS);
+            for (CompletableFuture<Route> future : partial) {
+                check(!future.isDone(), "a partial batch should wait for its window");
+            }
+
+            dispatcher.close();
+            for (CompletableFuture<Route> future : partial) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            check(dispatcher.getSearchCount() == 4, "close should send the three open batches, searches "
+                    + dispatcher.getSearchCount());
+            check(!executor.isShutdown(), "close must not shut down an executor the caller owns");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** A closed dispatcher rejects every request, including repeats; a rejecting executor fails the batch. */
+    private static void checkClose(CampusGraph graph) throws Exception {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        QueryDispatcher dispatcher = new QueryDispatcher(engine, 0, 64, executor);
+        dispatcher.route(graph.getNode(0), graph.getNode(1), null, NONE).get(10, TimeUnit.SECONDS);
+        dispatcher.close();
+        for (int i = 0; i < 2; i++) {
+            checkRejected(dispatcher.route(graph.getNode(0), graph.getNode(1), null, NONE),
+                    "request " + i + " after close");
+        }
+        check(dispatcher.getCoalescedCount() == 0, "a rejected request must not be handed to a later one");
+
+        executor.shutdown();
+        QueryDispatcher orphan = new QueryDispatcher(engine, 0, 64, executor);
+        checkRejected(orphan.route(graph.getNode(0), graph.getNode(2), null, NONE), "request to a shut-down executor");
+        orphan.close();
+    }
+
+    private static void checkRejected(CompletableFuture<Route> future, String what) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            throw new AssertionError(what + " should have been rejected");
+        } catch (ExecutionException e) {
+            check(e.getCause() instanceof RejectedExecutionException, what + " failed with " + e.getCause());
+        }
+    }
+
+    /** A single search thread that runs nothing until gate opens. */
+    private static ExecutorService heldExecutor(CountDownLatch gate) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return executor;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that QueryLog.read survives a log cut off partway through a record, as left behind by
+ * a process killed before its write buffer was flushed, and that constraints and snapshot ids
+ * round-trip.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/QueryLogTest.java
+ * java -cp out QueryLogTest
+ * </pre>
+ */
+public class QueryLogTest {
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("querylog-test");
+        try {
+            Path full = dir.resolve("full.bin");
+            try (QueryLog.Writer writer = QueryLog.openWriter(full)) {
+                writer.append(1, 2, null, null);
+                writer.append(300, 70000, LandmarkType.DINING, TimeOfDay.MORNING_RUSH);
+                writer.append(Integer.MAX_VALUE, 5, null, TimeOfDay.EVENING_RUSH);
+                writer.append(42, 43, LandmarkType.values()[0], TimeOfDay.NORMAL_HOURS);
+                writer.append(7, 8, null, null, RouteConstraints.WHEELCHAIR_ACCESSIBLE, 12);
+            }
+            List<RecordedQuery> expected = QueryLog.read(full);
+            check(expected.size() == 5, "full log reads 5 records, got " + expected.size());
+            check(expected.get(0).getConstraints() == RouteConstraints.NONE && expected.get(0).getSnapshotId() == -1,
+                    "plain records read back unconstrained with no snapshot");
+            check(expected.get(4).getConstraints() == RouteConstraints.WHEELCHAIR_ACCESSIBLE
+                    && expected.get(4).getSnapshotId() == 12, "constraints and snapshot survive the round trip");
+
+            byte[] bytes = Files.readAllBytes(full);
+            int headerLength = 4 + 1 + 8;
+            Path cut = dir.resolve("cut.bin");
+            int previous = 0;
+            for (int length = headerLength; length <= bytes.length; length++) {
+                Files.write(cut, Arrays.copyOf(bytes, length));
+                List<RecordedQuery> queries = QueryLog.read(cut);
+                check(queries.size() >= previous, "records lost as the log grew at " + length + " bytes");
+                for (int i = 0; i < queries.size(); i++) {
+                    check(same(queries.get(i), expected.get(i)), "record " + i + " differs at " + length + " bytes");
+                }
+                previous = queries.size();
+            }
+            Files.write(cut, Arrays.copyOf(bytes, bytes.length - 1));
+            check(QueryLog.read(cut).size() == 4, "torn last record is dropped, earlier ones are kept");
+            Files.write(cut, Arrays.copyOf(bytes, headerLength));
+            check(QueryLog.read(cut).isEmpty(), "header-only log reads no records");
+            System.out.println("QueryLogTest passed");
+        } finally {
+            for (Path file : new Path[] { dir.resolve("full.bin"), dir.resolve("cut.bin"), dir }) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static boolean same(RecordedQuery a, RecordedQuery b) {
+        return a.getOffsetMicros() == b.getOffsetMicros() && a.getSourceId() == b.getSourceId()
+                && a.getDestinationId() == b.getDestinationId() && a.getLandmarkFilter() == b.getLandmarkFilter()
+                && a.getTimeOfDay() == b.getTimeOfDay() && a.getConstraints().equals(b.getConstraints())
+                && a.getSnapshotId() == b.getSnapshotId();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
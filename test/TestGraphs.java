@@ -0,0 +1,163 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Graphs and a reference shortest-path search shared by the tests under test/. The reference is
+ * a textbook Dijkstra over a {@link java.util.PriorityQueue} with lazy deletion, so it shares no
+ * heap, overlay or pruning code with the routers it is used to check.
+ */
+final class TestGraphs {
+    private TestGraphs() {
+    }
+
+    /** The sample campus from nodes.csv and edges.csv; run the tests from the repository root. */
+    static CampusGraph sample() throws IOException {
+        CampusGraph graph = new CampusGraph();
+        try (InputStream nodes = new FileInputStream("nodes.csv")) {
+            DataReader.loadNodes(nodes, graph);
+        }
+        try (InputStream edges = new FileInputStream("edges.csv")) {
+            DataReader.loadEdges(edges, graph);
+        }
+        graph.compact();
+        return graph;
+    }
+
+    /**
+     * A width by height grid with node id {@code y * width + x}, random landmark types and traffic
+     * conditions, lengths drawn uniformly from 40-80 m (so distinct paths practically never tie) and
+     * roughly one link in ten missing. The same seed always gives the same graph.
+     */
+    static CampusGraph random(int width, int height, long seed) {
+        Random random = new Random(seed);
+        CampusGraph graph = new CampusGraph();
+        LandmarkType[] types = LandmarkType.values();
+        TrafficCondition[] conditions = TrafficCondition.values();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int id = y * width + x;
+                graph.addNode(id, "N" + id, 6.67 + y * 0.0005 + random.nextDouble() * 0.0001,
+                        -1.56 + x * 0.0005 + random.nextDouble() * 0.0001, types[random.nextInt(types.length)]);
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int id = y * width + x;
+                if (x + 1 < width && random.nextDouble() < 0.9) {
+                    graph.addEdge(id, id + 1, 40 + 40 * random.nextDouble(),
+                            conditions[random.nextInt(conditions.length)]);
+                }
+                if (y + 1 < height && random.nextDouble() < 0.9) {
+                    graph.addEdge(id, id + width, 40 + 40 * random.nextDouble(),
+                            conditions[random.nextInt(conditions.length)]);
+                }
+            }
+        }
+        graph.compact();
+        return graph;
+    }
+
+    /**
+     * As {@link #random}, except that every edge is 5-65% longer than the straight line between its
+     * ends, so the haversine heuristic of the A* searches never overestimates. The grids from
+     * {@link #random} may have edges shorter than that line.
+     */
+    static CampusGraph geometric(int width, int height, long seed) {
+        Random random = new Random(seed);
+        CampusGraph graph = new CampusGraph();
+        LandmarkType[] types = LandmarkType.values();
+        TrafficCondition[] conditions = TrafficCondition.values();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int id = y * width + x;
+                graph.addNode(id, "N" + id, 6.67 + y * 0.0005 + random.nextDouble() * 0.0001,
+                        -1.56 + x * 0.0005 + random.nextDouble() * 0.0001, types[random.nextInt(types.length)]);
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int id = y * width + x;
+                for (int next : new int[] {x + 1 < width ? id + 1 : -1, y + 1 < height ? id + width : -1}) {
+                    if (next >= 0 && random.nextDouble() < 0.9) {
+                        double length = haversine(graph.getNode(id), graph.getNode(next));
+                        graph.addEdge(id, next, length * (1.05 + 0.6 * random.nextDouble()),
+                                conditions[random.nextInt(conditions.length)]);
+                    }
+                }
+            }
+        }
+        graph.compact();
+        return graph;
+    }
+
+    /** Great-circle distance in metres, as the A* heuristics compute it. */
+    static double haversine(CampusNode a, CampusNode b) {
+        double lat1 = Math.toRadians(a.getLatitude());
+        double lat2 = Math.toRadians(b.getLatitude());
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians(b.getLongitude() - a.getLongitude());
+        double val = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 6371000 * 2 * Math.atan2(Math.sqrt(val), Math.sqrt(1 - val));
+    }
+
+    /** Distances from {@code source} to every index of {@code graph}, infinite where unreachable. */
+    static double[] dijkstra(IndexedGraph graph, int source) {
+        return dijkstra(graph, source, graph::outWeight);
+    }
+
+    /** Distances from {@code source} with each edge index costing {@code weight.applyAsDouble(edge)}. */
+    static double[] dijkstra(IndexedGraph graph, int source, IntToDoubleFunction weight) {
+        double[] dist = new double[graph.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[] {0, source});
+        while (!queue.isEmpty()) {
+            double[] top = queue.poll();
+            int u = (int) top[1];
+            if (top[0] > dist[u]) {
+                continue;
+            }
+            for (int e = graph.outStart(u); e < graph.outEnd(u); e++) {
+                int v = graph.outTarget(e);
+                double candidate = dist[u] + weight.applyAsDouble(e);
+                if (candidate < dist[v]) {
+                    dist[v] = candidate;
+                    queue.add(new double[] {candidate, v});
+                }
+            }
+        }
+        return dist;
+    }
+
+    /** Sum of the cheapest edge weights along {@code path}, or NaN if two consecutive nodes are not linked. */
+    static double pathWeight(IndexedGraph graph, int[] path) {
+        return pathCost(graph, path, graph::outWeight);
+    }
+
+    /** Sum of the cheapest edge costs along {@code path}, or NaN if two consecutive nodes are not linked. */
+    static double pathCost(IndexedGraph graph, int[] path, IntToDoubleFunction cost) {
+        double total = 0;
+        for (int i = 0; i + 1 < path.length; i++) {
+            double best = Double.NaN;
+            for (int e = graph.outStart(path[i]); e < graph.outEnd(path[i]); e++) {
+                if (graph.outTarget(e) == path[i + 1] && !(cost.applyAsDouble(e) >= best)) {
+                    best = cost.applyAsDouble(e);
+                }
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    /** True when {@code a} and {@code b} agree to within a millimetre, or are both infinite. */
+    static boolean same(double a, double b) {
+        return a == b || Math.abs(a - b) <= 1e-6;
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks PathfindingEngine.planTour against brute force over every visiting order, for tours of
+ * one to eight stops on the sample campus and on seeded random grids, with and without time
+ * windows and with an open end, a round trip and a fixed end. Stop-to-stop distances and walking
+ * times come from a plain Dijkstra; a tour is scored as distance plus
+ * {@link TourPlanner#LATENESS_PENALTY_PER_MINUTE} per minute late, waiting out early arrivals.
+ *
+ * <pre>
+ * javac -d out UGNavigateSystem.java test/TestGraphs.java test/TourPlannerTest.java
+ * java -cp out TourPlannerTest
+ * </pre>
+ */
+public class TourPlannerTest {
+    private static final int MAX_STOPS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int checked = checkGraph(TestGraphs.sample(), TimeOfDay.MORNING_RUSH, new Random(1));
+        checked += checkGraph(TestGraphs.random(15, 15, 9), null, new Random(2));
+        checked += checkGraph(TestGraphs.random(30, 10, 10), TimeOfDay.EVENING_RUSH, new Random(3));
+        System.out.println("TourPlannerTest passed (" + checked + " tours)");
+    }
+
+    private static int checkGraph(CampusGraph graph, TimeOfDay profile, Random random) {
+        PathfindingEngine engine = new PathfindingEngine(graph, 0);
+        IndexedGraph indexed = IndexedGraph.build(graph.currentVersion(), profile);
+        int checked = 0;
+        for (int stopCount = 1; stopCount <= MAX_STOPS; stopCount++) {
+            for (int variant = 0; variant < 6; variant++) {
+                boolean windows = variant % 2 == 1;
+                int start = random.nextInt(indexed.size());
+                int end = variant < 2 ? -1 : variant < 4 ? start : random.nextInt(indexed.size());
+                List<TourStop> stops = new ArrayList<>();
+                for (int i = 0; i < stopCount; i++) {
+                    CampusNode node = indexed.node(random.nextInt(indexed.size()));
+                    if (windows && random.nextBoolean()) {
+                        double earliest = random.nextDouble() * 5;
+                        stops.add(new TourStop(node, earliest, earliest + 1 + random.nextDouble() * 10));
+                    } else {
+                        stops.add(new TourStop(node));
+                    }
+                }
+                String tour = stopCount + " stops, variant " + variant + ", " + profile;
+                checkTour(engine, indexed, start, end, stops, profile, tour);
+                checked++;
+            }
+        }
+        return checked;
+    }
+
+    private static void checkTour(PathfindingEngine engine, IndexedGraph indexed, int start, int end,
+            List<TourStop> stops, TimeOfDay profile, String tour) {
+        int m = stops.size();
+        // Points: 0 is the start, 1..m the stops, m + 1 the end if there is one
+        int[] points = new int[m + 2];
+        points[0] = start;
+        for (int i = 0; i < m; i++) {
+            points[i + 1] = indexed.indexOf(stops.get(i).getNode().getId());
+        }
+        points[m + 1] = end;
+        double[][] weights = new double[m + 1][m + 2];
+        double[][] minutes = new double[m + 1][m + 2];
+        for (int from = 0; from <= m; from++) {
+            double[] dist = TestGraphs.dijkstra(indexed, points[from]);
+            double[] time = walkingMinutes(indexed, dist);
+            for (int to = 0; to < points.length; to++) {
+                if (points[to] >= 0) {
+                    weights[from][to] = dist[points[to]];
+                    minutes[from][to] = time[points[to]];
+                }
+            }
+        }
+
+        int[] order = new int[m];
+        for (int i = 0; i < m; i++) {
+            order[i] = i + 1;
+        }
+        double best = bestCost(order, 0, weights, minutes, stops, end >= 0);
+
+        TourPlan plan = engine.planTour(indexed.node(start), end < 0 ? null : indexed.node(end), stops, profile);
+        if (best == Double.POSITIVE_INFINITY) {
+            check(plan.getRoute().getPath().isEmpty(), tour + ": some stop is unreachable but a route came back");
+            return;
+        }
+        check(plan.isExact(), tour + ": a tour of " + m + " stops should be ordered exactly");
+        List<TourStop> visited = plan.getVisitOrder();
+        check(visited.size() == m, tour + ": visits " + visited.size() + " stops");
+        int[] planned = new int[m];
+        for (int i = 0; i < m; i++) {
+            planned[i] = indexOfStop(stops, visited.get(i)) + 1;
+        }
+        double cost = cost(planned, weights, minutes, stops, end >= 0);
+        check(TestGraphs.same(cost, best), tour + ": planned tour costs " + cost + ", brute force " + best);
+
+        double distance = 0;
+        double clock = 0;
+        double lateness = 0;
+        double[] arrivals = plan.getArrivalMinutes();
+        for (int i = 0, from = 0; i < m; from = planned[i], i++) {
+            distance += weights[from][planned[i]];
+            clock += minutes[from][planned[i]];
+            check(TestGraphs.same(arrivals[i], clock),
+                    tour + ": arrival " + i + " is " + arrivals[i] + ", want " + clock);
+            lateness += Math.max(0, clock - stops.get(planned[i] - 1).getLatestMinutes());
+            clock = Math.max(clock, stops.get(planned[i] - 1).getEarliestMinutes());
+        }
+        if (end >= 0) {
+            distance += weights[planned[m - 1]][m + 1];
+        }
+        check(TestGraphs.same(plan.getRoute().getAdjustedDistance(), distance),
+                tour + ": route is " + plan.getRoute().getAdjustedDistance() + ", legs add up to " + distance);
+        check(TestGraphs.same(plan.getLatenessMinutes(), lateness),
+                tour + ": lateness " + plan.getLatenessMinutes() + ", want " + lateness);
+        List<CampusNode> path = plan.getRoute().getPath();
+        check(path.get(0).getId() == indexed.node(start).getId(), tour + ": route does not leave from the start");
+        if (end >= 0) {
+            check(path.get(path.size() - 1).getId() == indexed.node(end).getId(), tour + ": route misses the end");
+        }
+    }
+
+    /** Walking minutes along the shortest path to every node; the random grids have no tied paths. */
+    private static double[] walkingMinutes(IndexedGraph indexed, double[] dist) {
+        Integer[] byDistance = new Integer[indexed.size()];
+        for (int v = 0; v < byDistance.length; v++) {
+            byDistance[v] = v;
+        }
+        Arrays.sort(byDistance, (a, b) -> Double.compare(dist[a], dist[b]));
+        double[] time = new double[indexed.size()];
+        Arrays.fill(time, Double.POSITIVE_INFINITY);
+        time[byDistance[0]] = 0;
+        for (int u : byDistance) {
+            if (time[u] == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+            for (int e = indexed.outStart(u); e < indexed.outEnd(u); e++) {
+                int v = indexed.outTarget(e);
+                if (v != byDistance[0] && Math.abs(dist[u] + indexed.outWeight(e) - dist[v]) <= 1e-9) {
+                    time[v] = Math.min(time[v], time[u] + indexed.outTime(e));
+                }
+            }
+        }
+        return time;
+    }
+
+    /** Cheapest cost over every permutation of order[k..]. */
+    private static double bestCost(int[] order, int k, double[][] weights, double[][] minutes, List<TourStop> stops,
+            boolean hasEnd) {
+        if (k == order.length) {
+            return cost(order, weights, minutes, stops, hasEnd);
+        }
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = k; i < order.length; i++) {
+            swap(order, k, i);
+            best = Math.min(best, bestCost(order, k + 1, weights, minutes, stops, hasEnd));
+            swap(order, k, i);
+        }
+        return best;
+    }
+
+    private static double cost(int[] order, double[][] weights, double[][] minutes, List<TourStop> stops,
+            boolean hasEnd) {
+        double cost = 0;
+        double clock = 0;
+        int from = 0;
+        for (int stop : order) {
+            cost += weights[from][stop];
+            clock += minutes[from][stop];
+            TourStop window = stops.get(stop - 1);
+            if (clock > window.getLatestMinutes()) {
+                cost += TourPlanner.LATENESS_PENALTY_PER_MINUTE * (clock - window.getLatestMinutes());
+            }
+            clock = Math.max(clock, window.getEarliestMinutes());
+            from = stop;
+        }
+        return hasEnd ? cost + weights[from][order.length + 1] : cost;
+    }
+
+    private static int indexOfStop(List<TourStop> stops, TourStop stop) {
+        for (int i = 0; i < stops.size(); i++) {
+            if (stops.get(i) == stop) {
+                return i;
+            }
+        }
+        throw new AssertionError("plan visits a stop that was not asked for");
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int swap = order[i];
+        order[i] = order[j];
+        order[j] = swap;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}